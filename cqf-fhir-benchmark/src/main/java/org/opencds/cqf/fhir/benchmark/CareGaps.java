@@ -0,0 +1,137 @@
+package org.opencds.cqf.fhir.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.SEARCH_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.TERMINOLOGY_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings.VALUESET_EXPANSION_MODE;
+import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.r4.Measure;
+import org.opencds.cqf.fhir.cr.measure.r4.R4CareGapsService;
+import org.opencds.cqf.fhir.test.TestRepositoryFactory;
+import org.opencds.cqf.fhir.utility.repository.FederatedRepository;
+import org.opencds.cqf.fhir.utility.repository.IGLayoutMode;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the scaling of threaded care gaps for a Group of 1000 patients. The patients are copies
+ * of a test patient, so every evaluation runs the full Measure logic against the same data. The
+ * "serial" run evaluates the patients without the executor, as the baseline for the threaded runs.
+ */
+@State(Scope.Benchmark)
+public class CareGaps {
+    private static final int GROUP_SIZE = 1000;
+
+    // The number of threads of the executor, or "serial" for the serial evaluation
+    @Param({"serial", "1", "2", "4", "8"})
+    private String threads;
+
+    private ExecutorService executor;
+    private R4CareGapsService service;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        var fhirContext = FhirContext.forR4Cached();
+        var content = TestRepositoryFactory.createRepository(
+                fhirContext, Measure.class, Measure.CLASS_PATH + "/BreastCancerScreeningFHIR", IGLayoutMode.DIRECTORY);
+
+        var local = new InMemoryFhirRepository(fhirContext);
+        local.update(new Organization().setName("Reporter").setId("Organization/reporter"));
+        local.update(new Organization().setName("Author").setId("Organization/author"));
+
+        var template = content.read(Patient.class, new IdType("Patient/denom-EXM125"));
+        var group = new Group().setType(Group.GroupType.PERSON).setActual(true);
+        group.setId("Group/benchmark");
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            var patient = template.copy();
+            patient.setId("Patient/benchmark-" + i);
+            local.update(patient);
+            group.addMember().setEntity(new Reference("Patient/benchmark-" + i));
+        }
+        local.update(group);
+
+        var properties = new CareGapsProperties();
+        properties.setCareGapsReporter("Organization/reporter");
+        properties.setCareGapsCompositionSectionAuthor("Organization/author");
+        var serial = "serial".equals(threads);
+        var threadCount = serial ? 1 : Integer.parseInt(threads);
+        properties.setThreadedCareGapsEnabled(!serial);
+        properties.setThreadedCareGapsMaxConcurrency(threadCount * 2);
+
+        var evaluationOptions = MeasureEvaluationOptions.defaultOptions();
+        evaluationOptions
+                .getEvaluationSettings()
+                .getRetrieveSettings()
+                .setSearchParameterMode(SEARCH_FILTER_MODE.FILTER_IN_MEMORY)
+                .setTerminologyParameterMode(TERMINOLOGY_FILTER_MODE.FILTER_IN_MEMORY);
+        evaluationOptions
+                .getEvaluationSettings()
+                .getTerminologySettings()
+                .setValuesetExpansionMode(VALUESET_EXPANSION_MODE.PERFORM_NAIVE_EXPANSION)
+                .setPrefetchValueSets(true);
+
+        this.executor = Executors.newFixedThreadPool(threadCount);
+        this.service = new R4CareGapsService(
+                properties,
+                new FederatedRepository(local, content),
+                evaluationOptions,
+                executor,
+                "http://localhost/fhir");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        this.executor.shutdownNow();
+    }
+
+    @Benchmark
+    @Fork(warmups = 1, value = 1)
+    @Measurement(iterations = 2, timeUnit = TimeUnit.SECONDS)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void test(Blackhole bh) throws Exception {
+        bh.consume(this.service.getCareGapsReport(
+                new DateType("2019-01-01"),
+                new DateType("2019-12-31"),
+                null,
+                "Group/benchmark",
+                null,
+                null,
+                Arrays.asList("open-gap", "closed-gap"),
+                Collections.singletonList("BreastCancerScreeningFHIR"),
+                null,
+                null,
+                null));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt =
+                new OptionsBuilder().include(CareGaps.class.getSimpleName()).build();
+        new Runner(opt).run();
+    }
+}
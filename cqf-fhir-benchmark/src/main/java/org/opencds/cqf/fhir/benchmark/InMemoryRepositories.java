@@ -0,0 +1,103 @@
+package org.opencds.cqf.fhir.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Measures searches by patient against a single repository shared by concurrent threads
+@State(Scope.Benchmark)
+public class InMemoryRepositories {
+    private static final int PATIENTS = 1000;
+    private static final int OBSERVATIONS_PER_PATIENT = 20;
+
+    private InMemoryFhirRepository repository;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        this.repository = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        for (int i = 0; i < PATIENTS * OBSERVATIONS_PER_PATIENT; i++) {
+            this.repository.update(observation(i, i % PATIENTS));
+        }
+    }
+
+    private static Observation observation(int id, int patient) {
+        var observation = new Observation();
+        observation.setId("Observation/o" + id);
+        observation.setSubject(new Reference("Patient/p" + patient));
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("code-" + (id % 10));
+        return observation;
+    }
+
+    private Bundle searchRandomPatient() {
+        Map<String, List<IQueryParameterType>> search = new HashMap<>();
+        search.put(
+                "subject",
+                Collections.singletonList(new ReferenceParam(
+                        "Patient/p" + ThreadLocalRandom.current().nextInt(PATIENTS))));
+        return this.repository.search(Bundle.class, Observation.class, search);
+    }
+
+    @Benchmark
+    @Fork(warmups = 1, value = 1)
+    @Measurement(iterations = 10, timeUnit = TimeUnit.MILLISECONDS)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public void testParallelSearch(Blackhole bh) throws Exception {
+        bh.consume(searchRandomPatient());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    @Fork(warmups = 1, value = 1)
+    @Measurement(iterations = 10, timeUnit = TimeUnit.MILLISECONDS)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void testContendedSearch(Blackhole bh) throws Exception {
+        bh.consume(searchRandomPatient());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    @Fork(warmups = 1, value = 1)
+    @Measurement(iterations = 10, timeUnit = TimeUnit.MILLISECONDS)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void testContendedUpdate(Blackhole bh) throws Exception {
+        var random = ThreadLocalRandom.current();
+        bh.consume(this.repository.update(
+                observation(random.nextInt(PATIENTS * OBSERVATIONS_PER_PATIENT), random.nextInt(PATIENTS))));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(InMemoryRepositories.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -1,17 +1,31 @@
 package org.opencds.cqf.fhir.benchmark;
 
 import ca.uhn.fhir.context.FhirContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.ValueSet;
 import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.opencds.cqf.fhir.cql.engine.terminology.RepositoryTerminologyProvider;
-import org.opencds.cqf.fhir.cr.measure.r4.MeasureProcessorEvaluateTest;
+import org.opencds.cqf.fhir.cr.measure.r4.Measure;
 import org.opencds.cqf.fhir.test.TestRepositoryFactory;
+import org.opencds.cqf.fhir.utility.repository.FederatedRepository;
+import org.opencds.cqf.fhir.utility.repository.IGLayoutMode;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
@@ -21,9 +35,19 @@ import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
+/**
+ * Measures the membership checks of a TerminologyProvider for a small and a large ValueSet, and for
+ * a ValueSet with many duplicate codes. The "sortedList" provider checks membership as the provider
+ * did before expansions were indexed, as the baseline for the "index" provider.
+ */
 @State(Scope.Benchmark)
 public class TerminologyProviders {
-    private RepositoryTerminologyProvider terminologyProvider;
+    // The provider that checks membership, "index" for the RepositoryTerminologyProvider or
+    // "sortedList" for the baseline
+    @Param({"index", "sortedList"})
+    private String provider;
+
+    private TerminologyProvider terminologyProvider;
 
     private static final Code smallCode =
             new Code().withCode("F").withSystem("http://terminology.hl7.org/CodeSystem/v3-AdministrativeGender");
@@ -39,11 +63,125 @@ public class TerminologyProviders {
             .withId("http://cts.nlm.nih.gov/fhir/ValueSet/2.16.840.1.113762.1.4.1190.58")
             .withVersion("20220304");
 
+    // Every code is present in each of the systems, which puts many duplicate codes in the expansion
+    private static final int DUPLICATE_CODES = 4000;
+    private static final int DUPLICATE_SYSTEMS = 5;
+
+    private static final Code duplicateCode = new Code()
+            .withCode("code-" + (DUPLICATE_CODES - 1))
+            .withSystem("http://example.org/CodeSystem/system-" + (DUPLICATE_SYSTEMS - 1));
+
+    private static final ValueSetInfo duplicateValueSet =
+            new ValueSetInfo().withId("http://example.org/ValueSet/duplicates");
+
     @Setup(Level.Trial)
     public void setupTrial() throws Exception {
+        var fhirContext = FhirContext.forR4Cached();
         var repository = TestRepositoryFactory.createRepository(
-                FhirContext.forR4Cached(), MeasureProcessorEvaluateTest.class, "CaseRepresentation101");
-        this.terminologyProvider = new RepositoryTerminologyProvider(repository);
+                fhirContext, Measure.class, Measure.CLASS_PATH + "/CaseRepresentation101", IGLayoutMode.DIRECTORY);
+
+        var duplicates = new ValueSet().setUrl(duplicateValueSet.getId());
+        duplicates.setId("duplicates");
+        var expansion = duplicates.getExpansion().setTimestamp(new Date());
+        for (int system = 0; system < DUPLICATE_SYSTEMS; system++) {
+            for (int code = 0; code < DUPLICATE_CODES; code++) {
+                expansion
+                        .addContains()
+                        .setSystem("http://example.org/CodeSystem/system-" + system)
+                        .setCode("code-" + code);
+            }
+        }
+        var local = new InMemoryFhirRepository(fhirContext);
+        local.update(duplicates);
+
+        var repositoryProvider = new RepositoryTerminologyProvider(new FederatedRepository(local, repository));
+        this.terminologyProvider =
+                "index".equals(provider) ? repositoryProvider : new SortedListTerminologyProvider(repositoryProvider);
+    }
+
+    // Checks membership with a binary search of the expansion sorted by code, which is looked up by
+    // its url|version, and then compares the systems of the codes with the same value
+    private static class SortedListTerminologyProvider implements TerminologyProvider {
+        private static final Comparator<Code> CODE_COMPARATOR =
+                (x, y) -> x.getCode().compareTo(y.getCode());
+
+        private final TerminologyProvider expander;
+        private final Map<String, List<Code>> valueSetIndex = new HashMap<>();
+
+        private static class Range {
+
+            public static final Range EMPTY = new Range(-1, -1);
+
+            public Range(int start, int end) {
+                this.start = start;
+                this.end = end;
+            }
+
+            public final int start;
+            public final int end;
+        }
+
+        SortedListTerminologyProvider(TerminologyProvider expander) {
+            this.expander = expander;
+        }
+
+        @Override
+        public boolean in(Code code, ValueSetInfo valueSet) {
+            List<Code> codes = this.sorted(valueSet);
+
+            Range range = this.getSearchRange(code, codes);
+            for (int i = range.start; i < range.end; i++) {
+                var c = codes.get(i);
+                if (c.getSystem().equals(code.getSystem())) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public Iterable<Code> expand(ValueSetInfo valueSet) {
+            return this.sorted(valueSet);
+        }
+
+        private List<Code> sorted(ValueSetInfo valueSet) {
+            var url = valueSet.getId() + (valueSet.getVersion() != null ? ("|" + valueSet.getVersion()) : "");
+            return this.valueSetIndex.computeIfAbsent(url, k -> {
+                var codes = new ArrayList<Code>();
+                this.expander.expand(valueSet).forEach(codes::add);
+                codes.sort(CODE_COMPARATOR);
+                return codes;
+            });
+        }
+
+        @Override
+        public Code lookup(Code code, CodeSystemInfo codeSystem) {
+            return this.expander.lookup(code, codeSystem);
+        }
+
+        private Range getSearchRange(Code code, List<Code> expansion) {
+            int index = Collections.binarySearch(expansion, code, CODE_COMPARATOR);
+
+            if (index < 0) {
+                return Range.EMPTY;
+            }
+
+            int first = index;
+            int last = index + 1;
+
+            var value = code.getCode();
+
+            while (first > 0 && expansion.get(first - 1).getCode().equals(value)) {
+                first--;
+            }
+
+            while (last < expansion.size() && expansion.get(last).getCode().equals(value)) {
+                last++;
+            }
+
+            return new Range(first, last);
+        }
     }
 
     @Benchmark
@@ -59,12 +197,18 @@ public class TerminologyProviders {
     @Measurement(iterations = 10, timeUnit = TimeUnit.MILLISECONDS)
     @OutputTimeUnit(TimeUnit.SECONDS)
     public void testLarge(Blackhole bh) throws Exception {
-        // NOTE: There's an issue with this valueSet in that it does not contain many duplicate codes.
-        // A high cardinality of codes is likely to change performance
-        // So that's a gap we should close at some point with our sample set.
+        // NOTE: This valueSet does not contain many duplicate codes, see testDuplicates for that case
         bh.consume(this.terminologyProvider.in(largeCode, largeValueSet));
     }
 
+    @Benchmark
+    @Fork(warmups = 1, value = 1)
+    @Measurement(iterations = 10, timeUnit = TimeUnit.MILLISECONDS)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void testDuplicates(Blackhole bh) throws Exception {
+        bh.consume(this.terminologyProvider.in(duplicateCode, duplicateValueSet));
+    }
+
     public static void main(String[] args) throws RunnerException {
         Options opt = new OptionsBuilder()
                 .include(TerminologyProviders.class.getSimpleName())
@@ -22,13 +22,32 @@ public class BenchmarksIT {
     // Your mileage may vary, it's best to run the benchmarks on your local machine
     // and see what your specific hardware produces and then make modifications.
     // Check your results against your own personal reference scores.
-    private static final Map<String, Double> REFERENCE_SCORES = Map.of(
-            "org.opencds.cqf.fhir.benchmark.PlanDefinitions.test", 300.0, // ops/second
-            "org.opencds.cqf.fhir.benchmark.Measures.test", 800.0, // ops/second
-            "org.opencds.cqf.fhir.benchmark.MeasuresAdditionalData.test", .35, // ops/second
-            "org.opencds.cqf.fhir.benchmark.Questionnaires.test", 530.0, // ops/second
-            "org.opencds.cqf.fhir.benchmark.TerminologyProviders.testLarge", 4_000_000.0, // ops/second
-            "org.opencds.cqf.fhir.benchmark.TerminologyProviders.testSmall", 7_000_000.0); // ops/second
+    // Parameterized benchmarks have a score for each set of parameters. The sortedList scores of the
+    // TerminologyProviders are those of the provider before expansions were indexed. The index and
+    // testDuplicates scores were measured on another machine and have yet to be measured on this one.
+    private static final Map<String, Double> REFERENCE_SCORES = Map.ofEntries(
+            Map.entry("org.opencds.cqf.fhir.benchmark.PlanDefinitions.test", 300.0), // ops/second
+            Map.entry("org.opencds.cqf.fhir.benchmark.Measures.test", 800.0), // ops/second
+            Map.entry("org.opencds.cqf.fhir.benchmark.MeasuresAdditionalData.test", .35), // ops/second
+            Map.entry("org.opencds.cqf.fhir.benchmark.Questionnaires.test", 530.0), // ops/second
+            Map.entry(
+                    "org.opencds.cqf.fhir.benchmark.TerminologyProviders.testLarge:provider=sortedList",
+                    4_000_000.0), // ops/second
+            Map.entry(
+                    "org.opencds.cqf.fhir.benchmark.TerminologyProviders.testSmall:provider=sortedList",
+                    7_000_000.0), // ops/second
+            Map.entry(
+                    "org.opencds.cqf.fhir.benchmark.TerminologyProviders.testDuplicates:provider=sortedList",
+                    7_500_000.0), // ops/second
+            Map.entry(
+                    "org.opencds.cqf.fhir.benchmark.TerminologyProviders.testLarge:provider=index",
+                    52_000_000.0), // ops/second
+            Map.entry(
+                    "org.opencds.cqf.fhir.benchmark.TerminologyProviders.testSmall:provider=index",
+                    54_000_000.0), // ops/second
+            Map.entry(
+                    "org.opencds.cqf.fhir.benchmark.TerminologyProviders.testDuplicates:provider=index",
+                    25_000_000.0)); // ops/second
 
     private static final double SCORE_DEVIATION = .5; // +/- 50% ops/unit allowed
 
@@ -40,17 +59,28 @@ public class BenchmarksIT {
                 .include(Measures.class.getSimpleName())
                 .include(PlanDefinitions.class.getSimpleName())
                 .include(TerminologyProviders.class.getSimpleName())
+                // CareGaps has no reference scores until they're measured, so it's run on its own
                 .build();
         Collection<RunResult> runResults = new Runner(opt).run();
         assertFalse(runResults.isEmpty());
         for (RunResult runResult : runResults) {
-            var referenceScore =
-                    REFERENCE_SCORES.get(runResult.getPrimaryResult().getLabel());
-            assertNotNull(referenceScore);
+            var referenceScore = REFERENCE_SCORES.get(key(runResult));
+            assertNotNull(referenceScore, key(runResult));
             assertDeviationWithin(runResult, referenceScore, SCORE_DEVIATION);
         }
     }
 
+    // The label of the result, followed by the parameters of the run
+    private static String key(RunResult result) {
+        var params = result.getParams();
+        var key = new StringBuilder(result.getPrimaryResult().getLabel());
+        for (var name : params.getParamsKeys()) {
+            key.append(':').append(name).append('=').append(params.getParam(name));
+        }
+
+        return key.toString();
+    }
+
     private static void assertDeviationWithin(RunResult result, double referenceScore, double maxDeviation) {
         double score = result.getPrimaryResult().getScore();
         double deviation = Math.abs(score / referenceScore - 1);
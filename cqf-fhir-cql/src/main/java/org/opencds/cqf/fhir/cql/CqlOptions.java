@@ -9,6 +9,7 @@ public class CqlOptions {
     private CqlCompilerOptions cqlCompilerOptions = CqlCompilerOptions.defaultOptions();
     private CqlEngineOptions cqlEngineOptions = CqlEngineOptions.defaultOptions();
     private boolean useEmbeddedLibraries = true;
+    private boolean useElmContent = false;
 
     public CqlCompilerOptions getCqlCompilerOptions() {
         return this.cqlCompilerOptions;
@@ -34,6 +35,18 @@ public class CqlOptions {
         this.useEmbeddedLibraries = useEmbeddedLibraries;
     }
 
+    /**
+     * Whether precompiled ELM content of Libraries is used instead of translating their CQL, if it was
+     * compiled with compatible options. Disabled by default.
+     */
+    public boolean useElmContent() {
+        return this.useElmContent;
+    }
+
+    public void setUseElmContent(boolean useElmContent) {
+        this.useElmContent = useElmContent;
+    }
+
     public static CqlOptions defaultOptions() {
         var opt = new CqlOptions();
         opt.getCqlCompilerOptions().setSignatureLevel(SignatureLevel.All);
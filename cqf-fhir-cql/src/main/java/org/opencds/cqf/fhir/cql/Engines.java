@@ -3,11 +3,14 @@ package org.opencds.cqf.fhir.cql;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import ca.uhn.fhir.context.FhirContext;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.LibrarySourceProvider;
 import org.cqframework.cql.cql2elm.ModelManager;
@@ -25,6 +28,7 @@ import org.opencds.cqf.cql.engine.fhir.converter.FhirTypeConverterFactory;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cql.cql2elm.ElmLibraryManager;
 import org.opencds.cqf.fhir.cql.cql2elm.content.RepositoryFhirLibrarySourceProvider;
 import org.opencds.cqf.fhir.cql.cql2elm.util.LibraryVersionSelector;
 import org.opencds.cqf.fhir.cql.engine.model.FhirModelResolverCache;
@@ -33,6 +37,8 @@ import org.opencds.cqf.fhir.cql.engine.retrieve.FederatedDataProvider;
 import org.opencds.cqf.fhir.cql.engine.retrieve.RepositoryRetrieveProvider;
 import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings;
 import org.opencds.cqf.fhir.cql.engine.terminology.RepositoryTerminologyProvider;
+import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings;
+import org.opencds.cqf.fhir.cql.engine.terminology.ValueSetCache;
 import org.opencds.cqf.fhir.utility.Constants;
 import org.opencds.cqf.fhir.utility.adapter.AdapterFactory;
 import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
@@ -55,16 +61,7 @@ public class Engines {
 
     public static CqlEngine forRepository(
             Repository repository, EvaluationSettings settings, NpmProcessor npmProcessor, Boolean useLibraryCache) {
-        var terminologyProvider = new RepositoryTerminologyProvider(
-                repository, settings.getValueSetCache(), settings.getTerminologySettings());
-        var sources = Collections.singletonList(buildLibrarySource(repository));
-
-        var dataProviders = buildDataProviders(repository, null, terminologyProvider, settings.getRetrieveSettings());
-        var environment =
-                buildEnvironment(settings, sources, terminologyProvider, dataProviders, npmProcessor, useLibraryCache);
-
-        return new CqlEngine(
-                environment, settings.getCqlOptions().getCqlEngineOptions().getOptions());
+        return forRepositoryAndSettings(settings, repository, null, npmProcessor, useLibraryCache);
     }
 
     public static CqlEngine forRepositoryAndSettings(
@@ -81,19 +78,109 @@ public class Engines {
         checkNotNull(settings);
         checkNotNull(repository);
 
-        var terminologyProvider = new RepositoryTerminologyProvider(
-                repository, settings.getValueSetCache(), settings.getTerminologySettings());
+        var shared = sharedEnvironment(settings, repository);
         var sourceProviders = new ArrayList<LibrarySourceProvider>();
-        sourceProviders.add(buildLibrarySource(repository));
+        sourceProviders.add(shared.librarySourceProvider);
+        var libraryManager = buildLibraryManager(settings, sourceProviders, npmProcessor, useLibraryCache);
 
-        var dataProviders =
-                buildDataProviders(repository, additionalData, terminologyProvider, settings.getRetrieveSettings());
-        var environment = buildEnvironment(
-                settings, sourceProviders, terminologyProvider, dataProviders, npmProcessor, useLibraryCache);
+        // The retrieve provider holds the subjects and searches it prefetches, so each engine has its own
+        var retrieveProvider =
+                new RepositoryRetrieveProvider(repository, shared.terminologyProvider, settings.getRetrieveSettings());
+        var dataProviders = buildDataProviders(
+                repository,
+                additionalData,
+                shared.terminologyProvider,
+                retrieveProvider,
+                settings.getRetrieveSettings());
+        var environment = new Environment(libraryManager, dataProviders, shared.terminologyProvider);
         return new CqlEngine(
                 environment, settings.getCqlOptions().getCqlEngineOptions().getOptions());
     }
 
+    /**
+     * Returns the number of engines that reused the providers of a previous engine.
+     *
+     * @return the number of reuses
+     */
+    public static long getSharedEnvironmentHits() {
+        return sharedEnvironmentHits.get();
+    }
+
+    /**
+     * Returns the number of engines that had to build their providers.
+     *
+     * @return the number of builds
+     */
+    public static long getSharedEnvironmentMisses() {
+        return sharedEnvironmentMisses.get();
+    }
+
+    // The number of repositories whose providers are kept by each thread
+    static final int MAX_SHARED_ENVIRONMENTS = 8;
+
+    // The library source and terminology providers hold no state of an evaluation, only the
+    // repository and caches, so they are reused by the engines a thread creates for the same
+    // repository and settings. The retrieve provider is built for each engine, as it holds the
+    // subjects and searches it prefetches for the evaluation in progress. The repositories and
+    // settings are weakly held keys. The providers refer to their repository, so the entries are also
+    // softly held and bounded in number, which lets an unused repository be collected once its entry
+    // is evicted or the memory is needed. The ModelManager and LibraryManager are still built for each
+    // engine: a ModelManager loads only one version of each model, and content may use several. They
+    // share the models and compiled libraries through the caches of the settings.
+    private static final ThreadLocal<Cache<Repository, Map<EvaluationSettings, SharedEnvironment>>>
+            sharedEnvironments = ThreadLocal.withInitial(() -> CacheBuilder.newBuilder()
+                    .weakKeys()
+                    .softValues()
+                    .maximumSize(MAX_SHARED_ENVIRONMENTS)
+                    .build());
+    private static final AtomicLong sharedEnvironmentHits = new AtomicLong();
+    private static final AtomicLong sharedEnvironmentMisses = new AtomicLong();
+
+    private static class SharedEnvironment {
+        private final ValueSetCache valueSetCache;
+        private final TerminologySettings terminologySettings;
+
+        private final LibrarySourceProvider librarySourceProvider;
+        private final RepositoryTerminologyProvider terminologyProvider;
+
+        SharedEnvironment(EvaluationSettings settings, Repository repository) {
+            this.valueSetCache = settings.getValueSetExpansionCache();
+            this.terminologySettings = settings.getTerminologySettings();
+
+            this.librarySourceProvider = buildLibrarySource(repository);
+            this.terminologyProvider = this.valueSetCache != null
+                    ? new RepositoryTerminologyProvider(repository, this.valueSetCache, this.terminologySettings)
+                    : new RepositoryTerminologyProvider(repository, this.terminologySettings);
+        }
+
+        // The settings are mutable, so the providers are only valid while the settings still refer to
+        // the cache and settings they were built with
+        boolean isValidFor(EvaluationSettings settings) {
+            return this.valueSetCache == settings.getValueSetExpansionCache()
+                    && this.terminologySettings == settings.getTerminologySettings();
+        }
+    }
+
+    private static SharedEnvironment sharedEnvironment(EvaluationSettings settings, Repository repository) {
+        var environments = sharedEnvironments.get();
+        var bySettings = environments.getIfPresent(repository);
+        if (bySettings == null) {
+            bySettings = new WeakHashMap<>();
+            environments.put(repository, bySettings);
+        }
+
+        var shared = bySettings.get(settings);
+        if (shared != null && shared.isValidFor(settings)) {
+            sharedEnvironmentHits.incrementAndGet();
+            return shared;
+        }
+
+        sharedEnvironmentMisses.incrementAndGet();
+        shared = new SharedEnvironment(settings, repository);
+        bySettings.put(settings, shared);
+        return shared;
+    }
+
     private static LibrarySourceProvider buildLibrarySource(Repository repository) {
         AdapterFactory adapterFactory = getAdapterFactory(repository.fhirContext());
         return new RepositoryFhirLibrarySourceProvider(
@@ -101,11 +188,9 @@ public class Engines {
     }
 
     // TODO: Add NPM library source loader support
-    private static Environment buildEnvironment(
+    private static LibraryManager buildLibraryManager(
             EvaluationSettings settings,
             List<LibrarySourceProvider> librarySourceProviders,
-            TerminologyProvider terminologyProvider,
-            Map<String, DataProvider> dataProviders,
             NpmProcessor npmProcessor,
             Boolean useLibraryCache) {
         if (settings.getCqlOptions().useEmbeddedLibraries()) {
@@ -127,10 +212,17 @@ public class Engines {
                             npmProcessor.getPackageManager().getNpmList(), reader, adapter));
         }
 
-        LibraryManager libraryManager = new LibraryManager(
-                modelManager,
-                settings.getCqlOptions().getCqlCompilerOptions(),
-                Boolean.TRUE.equals(useLibraryCache) ? settings.getLibraryCache() : null);
+        var libraryCache = Boolean.TRUE.equals(useLibraryCache) ? settings.getLibraryCache() : null;
+        var persistentLibraryCache = libraryCache != null ? settings.getPersistentLibraryCache() : null;
+        var useElmContent = settings.getCqlOptions().useElmContent();
+        LibraryManager libraryManager = useElmContent || persistentLibraryCache != null
+                ? new ElmLibraryManager(
+                        modelManager,
+                        settings.getCqlOptions().getCqlCompilerOptions(),
+                        libraryCache,
+                        persistentLibraryCache,
+                        useElmContent)
+                : new LibraryManager(modelManager, settings.getCqlOptions().getCqlCompilerOptions(), libraryCache);
         libraryManager.getLibrarySourceLoader().clearProviders();
 
         if (npmProcessor != null) {
@@ -147,13 +239,14 @@ public class Engines {
             libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
         }
 
-        return new Environment(libraryManager, dataProviders, terminologyProvider);
+        return libraryManager;
     }
 
     private static Map<String, DataProvider> buildDataProviders(
             Repository repository,
             IBaseBundle additionalData,
             TerminologyProvider terminologyProvider,
+            RetrieveProvider retrieveProvider,
             RetrieveSettings retrieveSettings) {
         Map<String, DataProvider> dataProviders = new HashMap<>();
 
@@ -162,7 +255,6 @@ public class Engines {
                 repository.fhirContext().getVersion().getVersion());
         // TODO: Make a federated repository here once that is ready for sure
         // var fedRepo = new FederatedRepository(repository, bundleRepo);
-        var retrieveProvider = new RepositoryRetrieveProvider(repository, terminologyProvider, retrieveSettings);
         providers.add(retrieveProvider);
         if (additionalData != null && modelResolver.resolvePath(additionalData, "entry") != null) {
             var bundleRepo = new InMemoryFhirRepository(repository.fhirContext(), additionalData);
@@ -170,7 +262,9 @@ public class Engines {
             providers.add(provider);
         }
 
-        dataProviders.put(Constants.FHIR_MODEL_URI, new FederatedDataProvider(modelResolver, providers));
+        dataProviders.put(
+                Constants.FHIR_MODEL_URI,
+                new FederatedDataProvider(modelResolver, providers, retrieveSettings.getCacheRetrieves()));
 
         return dataProviders;
     }
@@ -1,5 +1,7 @@
 package org.opencds.cqf.fhir.cql;
 
+import static java.util.Objects.requireNonNull;
+
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -7,15 +9,28 @@ import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.cqframework.cql.cql2elm.model.Model;
 import org.hl7.cql.model.ModelIdentifier;
 import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.fhir.cql.cql2elm.PersistentLibraryCache;
 import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings;
 import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings;
+import org.opencds.cqf.fhir.cql.engine.terminology.ValueSetCache;
 
 public class EvaluationSettings {
 
     private Map<ModelIdentifier, Model> modelCache;
     private Map<VersionedIdentifier, CompiledLibrary> libraryCache;
-    private Map<String, List<Code>> valueSetCache;
+
+    // Stores the ELM of translated libraries across restarts, if set. It's used whether or not the
+    // precompiled ELM content of Libraries is enabled in the CqlOptions.
+    private PersistentLibraryCache persistentLibraryCache;
+
+    // The ValueSet expansions, bounded by the number of codes. Engines created with the same settings
+    // share the expansions.
+    private ValueSetCache valueSetCache;
+
+    // Compiled libraries for ad-hoc expressions, per repository and generated CQL
+    private ExpressionCache expressionCache;
 
     private CqlOptions cqlOptions;
 
@@ -29,12 +44,60 @@ public class EvaluationSettings {
         settings.setCqlOptions(options);
         settings.setModelCache(new ConcurrentHashMap<>());
         settings.setLibraryCache(new ConcurrentHashMap<>());
-        settings.setValueSetCache(new ConcurrentHashMap<>());
+        settings.setValueSetExpansionCache(new ValueSetCache());
+        settings.setExpressionCache(new ExpressionCache());
         settings.setRetrieveSettings(new RetrieveSettings());
         settings.setTerminologySettings(new TerminologySettings());
         return settings;
     }
 
+    /**
+     * Evicts the content compiled or expanded from a resource that changed, so that it's read again
+     * the next time it's used: for a Library, the compiled library and the expression libraries that
+     * include it, and for a ValueSet, its expansions. This can be used as a listener of the files of
+     * a repository, such as an IGFileWatcher.
+     *
+     * @param resource the resource as it was before it changed
+     */
+    public void invalidate(IBaseResource resource) {
+        requireNonNull(resource, "resource can not be null");
+        var terser = resource.getStructureFhirVersionEnum().newContextCached().newTerser();
+        var version = terser.getSinglePrimitiveValueOrNull(resource, "version");
+        switch (resource.fhirType()) {
+            case "Library":
+                var name = terser.getSinglePrimitiveValueOrNull(resource, "name");
+                if (name == null) {
+                    return;
+                }
+
+                if (this.libraryCache != null) {
+                    this.libraryCache.keySet().removeIf(id -> matches(id, name, version));
+                }
+
+                if (this.expressionCache != null) {
+                    this.expressionCache.invalidate(id -> matches(id, name, version));
+                }
+                break;
+            case "ValueSet":
+                var url = terser.getSinglePrimitiveValueOrNull(resource, "url");
+                if (url != null && this.valueSetCache != null) {
+                    this.valueSetCache.invalidate(url);
+                    if (version != null) {
+                        this.valueSetCache.invalidate(url + "|" + version);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Libraries without a version match every version
+    private static boolean matches(VersionedIdentifier id, String name, String version) {
+        return name.equals(id.getId())
+                && (version == null || id.getVersion() == null || version.equals(id.getVersion()));
+    }
+
     public Map<ModelIdentifier, Model> getModelCache() {
         return this.modelCache;
     }
@@ -61,19 +124,71 @@ public class EvaluationSettings {
         return this;
     }
 
+    public PersistentLibraryCache getPersistentLibraryCache() {
+        return this.persistentLibraryCache;
+    }
+
+    public void setPersistentLibraryCache(PersistentLibraryCache persistentLibraryCache) {
+        this.persistentLibraryCache = persistentLibraryCache;
+    }
+
+    public EvaluationSettings withPersistentLibraryCache(PersistentLibraryCache persistentLibraryCache) {
+        setPersistentLibraryCache(persistentLibraryCache);
+        return this;
+    }
+
+    /**
+     * @deprecated use {@link #getValueSetExpansionCache()}. The map is a view of the expansion cache.
+     */
+    @Deprecated
     public Map<String, List<Code>> getValueSetCache() {
-        return this.valueSetCache;
+        return this.valueSetCache != null ? this.valueSetCache.asMap() : null;
     }
 
+    /**
+     * @deprecated use {@link #setValueSetExpansionCache(ValueSetCache)}. Settings given the same map
+     * share an expansion cache that starts with the expansions of the map.
+     */
+    @Deprecated
     public void setValueSetCache(Map<String, List<Code>> valueSetCache) {
-        this.valueSetCache = valueSetCache;
+        setValueSetExpansionCache(valueSetCache != null ? ValueSetCache.of(valueSetCache) : null);
     }
 
+    /**
+     * @deprecated use {@link #withValueSetExpansionCache(ValueSetCache)}
+     */
+    @Deprecated
     public EvaluationSettings withValueSetCache(Map<String, List<Code>> valueSetCache) {
         setValueSetCache(valueSetCache);
         return this;
     }
 
+    public ValueSetCache getValueSetExpansionCache() {
+        return this.valueSetCache;
+    }
+
+    public void setValueSetExpansionCache(ValueSetCache valueSetCache) {
+        this.valueSetCache = valueSetCache;
+    }
+
+    public EvaluationSettings withValueSetExpansionCache(ValueSetCache valueSetCache) {
+        setValueSetExpansionCache(valueSetCache);
+        return this;
+    }
+
+    public ExpressionCache getExpressionCache() {
+        return this.expressionCache;
+    }
+
+    public void setExpressionCache(ExpressionCache expressionCache) {
+        this.expressionCache = expressionCache;
+    }
+
+    public EvaluationSettings withExpressionCache(ExpressionCache expressionCache) {
+        setExpressionCache(expressionCache);
+        return this;
+    }
+
     public CqlOptions getCqlOptions() {
         return this.cqlOptions;
     }
@@ -0,0 +1,93 @@
+package org.opencds.cqf.fhir.cql;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.fhir.api.Repository;
+
+/**
+ * A cache of the libraries compiled for ad-hoc CQL expressions. The generated CQL includes libraries
+ * that are resolved from a repository, so the compiled libraries are kept per repository and keyed
+ * by the CQL within it. Each value holds the expression library along with the libraries it
+ * includes.
+ * <p>
+ * Repositories are compared by identity and released once no longer in use. This class is
+ * thread-safe.
+ */
+public class ExpressionCache {
+
+    // The number of distinct expressions for which compiled libraries are retained by default
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final long maximumSize;
+    private final Cache<Repository, Map<String, Map<VersionedIdentifier, CompiledLibrary>>> byRepository =
+            CacheBuilder.newBuilder().weakKeys().build();
+
+    /**
+     * Creates a cache that holds the libraries of up to {@link #DEFAULT_MAXIMUM_SIZE} expressions
+     * per repository.
+     */
+    public ExpressionCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Creates a cache
+     *
+     * @param maximumSize the maximum number of expressions retained per repository
+     */
+    public ExpressionCache(long maximumSize) {
+        checkArgument(maximumSize >= 0, "maximumSize can not be negative");
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the compiled libraries of the expressions evaluated against a repository, by the
+     * generated CQL.
+     *
+     * @param repository the repository the included libraries are resolved from
+     * @return the compiled libraries by CQL
+     */
+    public Map<String, Map<VersionedIdentifier, CompiledLibrary>> forRepository(Repository repository) {
+        requireNonNull(repository, "repository can not be null");
+        try {
+            return byRepository.get(repository, () -> CacheBuilder.newBuilder()
+                    .maximumSize(maximumSize)
+                    .<String, Map<VersionedIdentifier, CompiledLibrary>>build()
+                    .asMap());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Evicts the expressions that include a library matching the predicate, for every repository.
+     *
+     * @param library matches the identifiers of the libraries to evict
+     */
+    public void invalidate(Predicate<VersionedIdentifier> library) {
+        requireNonNull(library, "library can not be null");
+        for (var expressions : byRepository.asMap().values()) {
+            expressions.values().removeIf(libraries -> libraries.keySet().stream().anyMatch(library));
+        }
+    }
+
+    /**
+     * Returns the number of expressions cached across all the repositories.
+     */
+    public long size() {
+        long size = 0;
+        for (var expressions : byRepository.asMap().values()) {
+            size += expressions.size();
+        }
+
+        return size;
+    }
+}
@@ -3,10 +3,13 @@ package org.opencds.cqf.fhir.cql;
 import static java.util.Objects.requireNonNull;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.BundleUtil;
 import ca.uhn.fhir.util.ParametersUtil;
 import com.google.common.collect.Lists;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -18,7 +21,11 @@ import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cql.fhirpath.FhirPathEvaluator;
+import org.opencds.cqf.fhir.utility.Ids;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -95,14 +102,32 @@ public class LibraryEngine {
         librarySourceProviders.add(new StringLibrarySourceProvider(Lists.newArrayList(cql)));
 
         var engine = Engines.forRepositoryAndSettings(settings, repository, bundle, npmProcessor, false);
-        var providers = engine.getEnvironment().getLibraryManager().getLibrarySourceLoader();
+        var libraryManager = engine.getEnvironment().getLibraryManager();
+        var providers = libraryManager.getLibrarySourceLoader();
         for (var source : librarySourceProviders) {
             providers.registerProvider(source);
         }
+
+        // The generated library is always "expression" version 1.0.0, so it can't be stored in the
+        // shared library cache. Instead, the libraries compiled for the first evaluation of this CQL are
+        // reused by the engine's own library cache, which skips translation. The included libraries are
+        // resolved from the repository, so the compiled libraries are only reused for the same one.
+        var expressionCache = settings.getExpressionCache() != null
+                ? settings.getExpressionCache().forRepository(repository)
+                : null;
+        var compiledLibraries = expressionCache != null ? expressionCache.get(cql) : null;
+        if (compiledLibraries != null) {
+            libraryManager.getCompiledLibraries().putAll(compiledLibraries);
+        }
+
         var evaluationParameters = cqlFhirParametersConverter.toCqlParameters(parameters);
         var id = new VersionedIdentifier().withId("expression").withVersion("1.0.0");
         var result = engine.evaluate(id.getId(), expressions, buildContextParameter(patientId), evaluationParameters);
 
+        if (compiledLibraries == null && expressionCache != null) {
+            expressionCache.put(cql, new HashMap<>(libraryManager.getCompiledLibraries()));
+        }
+
         return cqlFhirParametersConverter.toFhirParameters(result);
     }
 
@@ -114,6 +139,16 @@ public class LibraryEngine {
             IBaseParameters parameters,
             IBaseBundle bundle) {
         validateExpression(language, expression);
+        if (language.equals("text/fhirpath")) {
+            var fhirPath = FhirPathEvaluator.forContext(fhirContext);
+            if (fhirPath.canEvaluate(expression)) {
+                return this.evaluateFhirPath(fhirPath, subjectId, expression, parameters, bundle);
+            }
+
+            // Expressions that aren't valid FHIRPath may still be valid CQL
+            logger.debug("Evaluating the FHIRPath expression as CQL: {}", expression);
+        }
+
         List<IBase> results = null;
         IBaseParameters parametersResult;
         switch (language) {
@@ -144,6 +179,53 @@ public class LibraryEngine {
         return results;
     }
 
+    /**
+     * Evaluates a FHIRPath expression without translating it to CQL. The parameters are bound as
+     * external constants by name (e.g. a parameter named "%practitioner" or "practitioner" is
+     * %practitioner). The subject, read from the bundle or the repository, is the focus of the
+     * expression, %resource and, unless a parameter overrides it, %subject.
+     */
+    protected List<IBase> evaluateFhirPath(
+            FhirPathEvaluator<?> fhirPath,
+            String subjectId,
+            String expression,
+            IBaseParameters parameters,
+            IBaseBundle bundle) {
+        var variables = fhirPath.getVariables(parameters);
+        var subject = resolveSubject(subjectId, bundle);
+        if (subject != null) {
+            variables.computeIfAbsent("subject", k -> Collections.singletonList(subject));
+        }
+
+        var results = fhirPath.evaluate(expression, subject, variables);
+        return results.isEmpty() ? null : results;
+    }
+
+    // The resource of the subject from the bundle, or else the repository. Subjects without a type
+    // are Patients.
+    protected IBaseResource resolveSubject(String subjectId, IBaseBundle bundle) {
+        if (subjectId == null) {
+            return null;
+        }
+
+        IIdType id = Ids.newId(fhirContext, subjectId.contains("/") ? subjectId : "Patient/" + subjectId);
+        if (bundle != null) {
+            for (var resource : BundleUtil.toListOfResources(fhirContext, bundle)) {
+                if (id.getResourceType().equals(resource.fhirType())
+                        && id.getIdPart().equals(resource.getIdElement().getIdPart())) {
+                    return resource;
+                }
+            }
+        }
+
+        try {
+            return repository.read(
+                    fhirContext.getResourceDefinition(id.getResourceType()).getImplementingClass(), id);
+        } catch (ResourceNotFoundException e) {
+            return null;
+        }
+    }
+
     public void validateExpression(String language, String expression) {
         if (language == null) {
             logger.error("Missing language type for the Expression");
@@ -0,0 +1,273 @@
+package org.opencds.cqf.fhir.cql.cql2elm;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.cqframework.cql.cql2elm.CompilerOptions;
+import org.cqframework.cql.cql2elm.CqlCompilerException;
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.elm.serializing.ElmLibraryReaderFactory;
+import org.hl7.cql_annotations.r1.CqlToElmInfo;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A LibraryManager that loads the precompiled ELM (JSON, then XML) of a Library before translating
+ * its CQL source. The ELM is used when it was compiled with the same options and signature level as
+ * this LibraryManager and by a translator with the same major version, otherwise the CQL is
+ * translated as usual.
+ * <p>
+ * Deserialized ELM doesn't carry the resolved data types the translator needs for included
+ * libraries, so the libraries loaded from ELM are only served for evaluation. While this
+ * LibraryManager translates CQL, included libraries are translated from CQL as well. Translations
+ * started outside of this LibraryManager (e.g. by a CqlTranslator) must be run with
+ * {@link #translating(Supplier)}.
+ * <p>
+ * With a {@link PersistentLibraryCache}, the ELM of translated libraries is stored and libraries
+ * without precompiled ELM are loaded from the cache as long as their CQL source is unchanged. The
+ * precompiled ELM of the Libraries can be ignored, so that only the persistent cache is used.
+ * <p>
+ * Like the LibraryManager, this class is not thread-safe.
+ */
+public class ElmLibraryManager extends LibraryManager {
+    private static final Logger logger = LoggerFactory.getLogger(ElmLibraryManager.class);
+
+    private static final LibraryContentType[] ELM_CONTENT_TYPES = {LibraryContentType.JSON, LibraryContentType.XML};
+
+    private static final String TRANSLATOR_VERSION =
+            CqlTranslator.class.getPackage().getImplementationVersion();
+
+    private final PersistentLibraryCache persistentCache;
+    private final boolean useElmContent;
+
+    private int translationDepth;
+
+    public ElmLibraryManager(
+            ModelManager modelManager,
+            CqlCompilerOptions cqlCompilerOptions,
+            Map<VersionedIdentifier, CompiledLibrary> libraryCache) {
+        this(modelManager, cqlCompilerOptions, libraryCache, null);
+    }
+
+    public ElmLibraryManager(
+            ModelManager modelManager,
+            CqlCompilerOptions cqlCompilerOptions,
+            Map<VersionedIdentifier, CompiledLibrary> libraryCache,
+            PersistentLibraryCache persistentCache) {
+        this(modelManager, cqlCompilerOptions, libraryCache, persistentCache, true);
+    }
+
+    /**
+     * @param useElmContent whether the precompiled ELM of the Libraries is loaded, or only the ELM
+     *     stored in the persistent cache
+     */
+    public ElmLibraryManager(
+            ModelManager modelManager,
+            CqlCompilerOptions cqlCompilerOptions,
+            Map<VersionedIdentifier, CompiledLibrary> libraryCache,
+            PersistentLibraryCache persistentCache,
+            boolean useElmContent) {
+        super(modelManager, cqlCompilerOptions, libraryCache);
+        this.persistentCache = persistentCache;
+        this.useElmContent = useElmContent;
+    }
+
+    /**
+     * A CompiledLibrary that holds only the ELM of a Library, without the data types and operators
+     * a translation produces.
+     */
+    public static class ElmCompiledLibrary extends CompiledLibrary {}
+
+    @Override
+    public CompiledLibrary resolveLibrary(
+            VersionedIdentifier libraryIdentifier, List<CqlCompilerException> errors, CacheMode cacheMode) {
+        if (libraryIdentifier == null
+                || libraryIdentifier.getId() == null
+                || libraryIdentifier.getId().isEmpty()) {
+            return super.resolveLibrary(libraryIdentifier, errors, cacheMode);
+        }
+
+        if (this.translationDepth > 0) {
+            return translate(libraryIdentifier, errors, cacheMode, null);
+        }
+
+        if (cacheMode != CacheMode.NONE) {
+            var cached = getCompiledLibraries().get(libraryIdentifier);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String sourceKey = null;
+        var library = this.useElmContent ? loadElm(libraryIdentifier) : null;
+        if (library == null && this.persistentCache != null) {
+            sourceKey = sourceKey(libraryIdentifier);
+            library = loadPersisted(libraryIdentifier, sourceKey);
+        }
+
+        if (library == null) {
+            return translate(libraryIdentifier, errors, cacheMode, sourceKey);
+        }
+
+        if (cacheMode == CacheMode.READ_WRITE) {
+            getCompiledLibraries().put(libraryIdentifier, library);
+        }
+
+        return library;
+    }
+
+    /**
+     * Runs a translation that uses this LibraryManager, so the libraries it includes are translated
+     * from CQL rather than loaded from ELM.
+     */
+    public <T> T translating(Supplier<T> translation) {
+        this.translationDepth++;
+        try {
+            return translation.get();
+        } finally {
+            this.translationDepth--;
+        }
+    }
+
+    private CompiledLibrary translate(
+            VersionedIdentifier libraryIdentifier,
+            List<CqlCompilerException> errors,
+            CacheMode cacheMode,
+            String sourceKey) {
+        var cached = cacheMode != CacheMode.NONE ? getCompiledLibraries().get(libraryIdentifier) : null;
+        if (cached != null && !(cached instanceof ElmCompiledLibrary)) {
+            return cached;
+        }
+
+        var key = sourceKey != null ? sourceKey : sourceKey(libraryIdentifier);
+
+        // A library loaded from ELM is replaced with the translated one
+        var library = translating(
+                () -> super.resolveLibrary(libraryIdentifier, errors, cached != null ? CacheMode.NONE : cacheMode));
+        var succeeded = library != null && (errors == null || !CqlCompilerException.hasErrors(errors));
+        if (succeeded && cached != null && cacheMode == CacheMode.READ_WRITE) {
+            getCompiledLibraries().put(libraryIdentifier, library);
+        }
+
+        if (succeeded && key != null) {
+            this.persistentCache.put(libraryIdentifier, key, library.getLibrary());
+        }
+
+        return library;
+    }
+
+    // The key of the CQL source in the persistent cache, or null if there's no cache or source
+    private String sourceKey(VersionedIdentifier libraryIdentifier) {
+        if (this.persistentCache == null) {
+            return null;
+        }
+
+        try (InputStream source = getLibrarySourceLoader().getLibrarySource(libraryIdentifier)) {
+            return source != null
+                    ? this.persistentCache.key(ByteStreams.toByteArray(source), getCqlCompilerOptions())
+                    : null;
+        } catch (IOException e) {
+            logger.warn("Unable to read the source of library {}", libraryIdentifier.getId(), e);
+            return null;
+        }
+    }
+
+    private CompiledLibrary loadPersisted(VersionedIdentifier libraryIdentifier, String sourceKey) {
+        if (sourceKey == null) {
+            return null;
+        }
+
+        var library = this.persistentCache.get(libraryIdentifier, sourceKey);
+        return library != null ? elmCompiledLibrary(library) : null;
+    }
+
+    private static CompiledLibrary elmCompiledLibrary(Library library) {
+        var compiledLibrary = new ElmCompiledLibrary();
+        compiledLibrary.setLibrary(library);
+        compiledLibrary.setIdentifier(library.getIdentifier());
+        return compiledLibrary;
+    }
+
+    protected CompiledLibrary loadElm(VersionedIdentifier libraryIdentifier) {
+        for (LibraryContentType contentType : ELM_CONTENT_TYPES) {
+            InputStream content = getLibrarySourceLoader().getLibraryContent(libraryIdentifier, contentType);
+            if (content == null) {
+                continue;
+            }
+
+            Library library;
+            try (var reader = new InputStreamReader(content, StandardCharsets.UTF_8)) {
+                library = ElmLibraryReaderFactory.getReader(contentType.mimeType())
+                        .read(reader);
+            } catch (IOException | RuntimeException e) {
+                logger.warn(
+                        "Unable to read the {} content of library {}, version {}",
+                        contentType.mimeType(),
+                        libraryIdentifier.getId(),
+                        libraryIdentifier.getVersion(),
+                        e);
+                continue;
+            }
+
+            if (isCompatible(libraryIdentifier, library)) {
+                return elmCompiledLibrary(library);
+            }
+
+            logger.debug(
+                    "The {} content of library {}, version {} was not compiled with compatible options",
+                    contentType.mimeType(),
+                    libraryIdentifier.getId(),
+                    libraryIdentifier.getVersion());
+        }
+
+        return null;
+    }
+
+    protected boolean isCompatible(VersionedIdentifier libraryIdentifier, Library library) {
+        var identifier = library.getIdentifier();
+        if (identifier == null
+                || !libraryIdentifier.getId().equals(identifier.getId())
+                || (libraryIdentifier.getVersion() != null
+                        && !libraryIdentifier.getVersion().equals(identifier.getVersion()))) {
+            return false;
+        }
+
+        var info = library.getAnnotation().stream()
+                .filter(CqlToElmInfo.class::isInstance)
+                .map(CqlToElmInfo.class::cast)
+                .findFirst()
+                .orElse(null);
+        if (info == null) {
+            return false;
+        }
+
+        var options = getCqlCompilerOptions();
+        var signatureLevel = options.getSignatureLevel();
+        return options.getOptions().equals(CompilerOptions.getCompilerOptions(library))
+                && signatureLevel != null
+                && signatureLevel.name().equals(info.getSignatureLevel())
+                && majorVersion(TRANSLATOR_VERSION).equals(majorVersion(info.getTranslatorVersion()));
+    }
+
+    // An unknown version (e.g. when running from an IDE) is compatible with any version
+    private static String majorVersion(String version) {
+        if (version == null || TRANSLATOR_VERSION == null) {
+            return "";
+        }
+
+        int index = version.indexOf('.');
+        return index < 0 ? version : version.substring(0, index);
+    }
+}
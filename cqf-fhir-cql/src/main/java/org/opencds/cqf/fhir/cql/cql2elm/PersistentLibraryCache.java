@@ -0,0 +1,137 @@
+package org.opencds.cqf.fhir.cql.cql2elm;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeSet;
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.elm.serializing.ElmLibraryReaderFactory;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the ELM of translated libraries in a directory, so that it survives restarts of the JVM.
+ * Entries are keyed by the library identifier and a hash of the CQL source, the compiler options and
+ * the translator version. A change to any of those misses the cache, and storing the new ELM removes
+ * the entries for the previous source.
+ * <p>
+ * This class is thread-safe and the directory can be shared by multiple processes. Entries are
+ * written to a temporary file and moved into place.
+ */
+public class PersistentLibraryCache {
+    private static final Logger logger = LoggerFactory.getLogger(PersistentLibraryCache.class);
+
+    private static final String EXTENSION = ".json";
+
+    private static final String TRANSLATOR_VERSION =
+            CqlTranslator.class.getPackage().getImplementationVersion();
+
+    private final Path directory;
+
+    public PersistentLibraryCache(Path directory) {
+        this.directory = requireNonNull(directory, "directory can not be null");
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Returns a key for the CQL source of a library compiled with the given options.
+     */
+    public String key(byte[] source, CqlCompilerOptions options) {
+        requireNonNull(source, "source can not be null");
+        requireNonNull(options, "options can not be null");
+
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(String.valueOf(TRANSLATOR_VERSION), StandardCharsets.UTF_8);
+        for (var option : new TreeSet<>(options.getOptions())) {
+            hasher.putString(option.name(), StandardCharsets.UTF_8);
+        }
+        hasher.putString(String.valueOf(options.getSignatureLevel()), StandardCharsets.UTF_8);
+        hasher.putString(String.valueOf(options.getCompatibilityLevel()), StandardCharsets.UTF_8);
+        hasher.putBytes(source);
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Returns the ELM stored for the library and key, or null if there is none or it can't be read.
+     */
+    public Library get(VersionedIdentifier libraryIdentifier, String key) {
+        var path = path(libraryIdentifier, key);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        try (var reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return ElmLibraryReaderFactory.getReader(LibraryContentType.JSON.mimeType())
+                    .read(reader);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read the cached ELM at {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the ELM for the library and key and removes the entries stored for other keys of the
+     * library. Failures are logged, the cache is only an optimization.
+     */
+    public void put(VersionedIdentifier libraryIdentifier, String key, Library library) {
+        requireNonNull(library, "library can not be null");
+
+        var path = path(libraryIdentifier, key);
+        try {
+            Files.createDirectories(this.directory);
+            var temp = Files.createTempFile(this.directory, path.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, CqlTranslator.convertToJson(library).getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+
+            removeStale(libraryIdentifier, path);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to cache the ELM of library {} at {}", libraryIdentifier.getId(), path, e);
+        }
+    }
+
+    private void removeStale(VersionedIdentifier libraryIdentifier, Path current) throws IOException {
+        var prefix = prefix(libraryIdentifier);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.directory, prefix + "*" + EXTENSION)) {
+            for (Path entry : entries) {
+                if (!entry.equals(current)) {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        }
+    }
+
+    private Path path(VersionedIdentifier libraryIdentifier, String key) {
+        requireNonNull(libraryIdentifier, "libraryIdentifier can not be null");
+        requireNonNull(key, "key can not be null");
+        return this.directory.resolve(prefix(libraryIdentifier) + key + EXTENSION);
+    }
+
+    private static String prefix(VersionedIdentifier libraryIdentifier) {
+        return sanitize(libraryIdentifier.getSystem()) + "-" + sanitize(libraryIdentifier.getId()) + "-"
+                + sanitize(libraryIdentifier.getVersion()) + "-";
+    }
+
+    // Separators are replaced, so a prefix only matches the entries of a single library
+    private static String sanitize(String value) {
+        return value == null ? "" : value.replaceAll("[^A-Za-z0-9._]", "_");
+    }
+}
@@ -4,6 +4,9 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
 import org.cqframework.cql.cql2elm.LibraryContentType;
 import org.cqframework.cql.cql2elm.LibrarySourceProvider;
 import org.hl7.elm.r1.VersionedIdentifier;
@@ -16,11 +19,20 @@ import org.opencds.cqf.fhir.utility.adapter.LibraryAdapter;
 /**
  * This class implements logic for extracting content from a FHIR Library resource and provides an
  * extension point for implementing the fetch of a FHIR library matching a specific identifier.
+ * <p>
+ * The LibraryManager asks for precompiled ELM (JSON, then XML) before falling back to the CQL
+ * source, and only uses the ELM if it was compiled with matching options. The Library found by the
+ * first of those requests is reused by the rest of them on the same thread, so the probes for a
+ * single Library cost a single lookup. A request for a content type that was already asked for
+ * starts a new resolution with a fresh lookup.
  */
 public abstract class BaseFhirLibrarySourceProvider implements LibrarySourceProvider {
 
     protected AdapterFactory adapterFactory;
 
+    // The Library of the resolution in progress on each thread
+    private final ThreadLocal<Resolution> resolution = new ThreadLocal<>();
+
     protected BaseFhirLibrarySourceProvider(AdapterFactory adapterFactory) {
         this.adapterFactory = requireNonNull(adapterFactory, "adapterFactory can not be null");
     }
@@ -30,12 +42,41 @@ public abstract class BaseFhirLibrarySourceProvider implements LibrarySourceProv
         requireNonNull(libraryIdentifier, "versionedIdentifier can not be null.");
         requireNonNull(libraryContentType, "libraryContentType can not be null.");
 
-        IBaseResource library = this.getLibrary(libraryIdentifier);
+        IBaseResource library = this.resolveLibrary(libraryIdentifier, libraryContentType);
         if (library == null) {
+            this.resolution.remove();
             return null;
         }
 
-        return this.getContentStream(library, libraryContentType.mimeType());
+        InputStream content = this.getContentStream(library, libraryContentType.mimeType());
+
+        // CQL is the last content type requested, so once it's asked for or any content is found
+        // the resolution is complete.
+        if (content != null || libraryContentType == LibraryContentType.CQL) {
+            this.resolution.remove();
+        }
+
+        return content;
+    }
+
+    private IBaseResource resolveLibrary(VersionedIdentifier libraryIdentifier, LibraryContentType contentType) {
+        var current = this.resolution.get();
+        if (current != null
+                && current.identifier.equals(libraryIdentifier)
+                && current.requested.add(contentType)) {
+            return current.library;
+        }
+
+        var library = this.getLibrary(libraryIdentifier);
+        if (library != null) {
+            var next = new Resolution(libraryIdentifier, library);
+            next.requested.add(contentType);
+            this.resolution.set(next);
+        } else {
+            this.resolution.remove();
+        }
+
+        return library;
     }
 
     protected InputStream getContentStream(IBaseResource library, String contentType) {
@@ -45,7 +86,8 @@ public abstract class BaseFhirLibrarySourceProvider implements LibrarySourceProv
         if (libraryAdapter.hasContent()) {
             for (ICompositeType attachment : libraryAdapter.getContent()) {
                 AttachmentAdapter attachmentAdapter = this.adapterFactory.createAttachment(attachment);
-                if (attachmentAdapter.getContentType().equals(contentType)) {
+                if (contentTypeMatches(attachmentAdapter.getContentType(), contentType)
+                        && attachmentAdapter.getData() != null) {
                     return new ByteArrayInputStream(attachmentAdapter.getData());
                 }
             }
@@ -54,10 +96,39 @@ public abstract class BaseFhirLibrarySourceProvider implements LibrarySourceProv
         return null;
     }
 
+    /**
+     * Compares the media types, ignoring case and any parameters such as charset (e.g.
+     * "application/elm+json; charset=utf-8" matches "application/elm+json").
+     */
+    protected boolean contentTypeMatches(String attachmentContentType, String contentType) {
+        if (attachmentContentType == null) {
+            return false;
+        }
+
+        return mediaType(attachmentContentType).equals(mediaType(contentType));
+    }
+
+    private static String mediaType(String contentType) {
+        int index = contentType.indexOf(';');
+        var mediaType = index < 0 ? contentType : contentType.substring(0, index);
+        return mediaType.trim().toLowerCase(Locale.ROOT);
+    }
+
     @Override
     public InputStream getLibrarySource(VersionedIdentifier libraryIdentifier) {
         return getLibraryContent(libraryIdentifier, LibraryContentType.CQL);
     }
 
     protected abstract IBaseResource getLibrary(VersionedIdentifier libraryIdentifier);
+
+    private static class Resolution {
+        private final VersionedIdentifier identifier;
+        private final IBaseResource library;
+        private final Set<LibraryContentType> requested = EnumSet.noneOf(LibraryContentType.class);
+
+        Resolution(VersionedIdentifier identifier, IBaseResource library) {
+            this.identifier = identifier;
+            this.library = library;
+        }
+    }
 }
@@ -4,6 +4,7 @@ import static java.util.Objects.requireNonNull;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
@@ -100,74 +101,82 @@ public abstract class BaseRetrieveProvider implements RetrieveProvider {
         }
 
         return (IBaseResource res) -> {
-            final Optional<IBase> resContextValue = this.fhirPath.evaluateFirst(res, contextPath, IBase.class);
-            if (resContextValue.isPresent() && resContextValue.get() instanceof IIdType) {
-                String id = ((IIdType) resContextValue.get()).getIdPart();
+            var id = getContextValue(dataType, res, contextPath);
+            if (id == null) {
+                return false;
+            }
 
-                if (id == null) {
-                    logger.debug("Found null id for {} resource. Skipping.", dataType);
-                    return false;
-                }
+            if (!id.equals(contextValue)) {
+                logger.debug(
+                        "Found {} resource for context value: {} when expecting: {}. Skipping.",
+                        dataType,
+                        id,
+                        contextValue);
+                return false;
+            }
 
-                if (id.startsWith("urn:")) {
-                    logger.debug("Found {} with urn: prefix. Stripping.", dataType);
-                    id = stripUrnScheme(id);
-                }
-                if (!id.equals(contextValue)) {
-                    logger.debug("Found {} with id {}. Skipping.", dataType, id);
-                    return false;
-                }
-            } else if (resContextValue.isPresent() && resContextValue.get() instanceof IBaseReference) {
-                String reference = ((IBaseReference) resContextValue.get())
-                        .getReferenceElement()
-                        .getValue();
-                if (reference == null) {
-                    logger.debug("Found null reference for {} resource. Skipping.", dataType);
-                    return false;
-                }
+            return true;
+        };
+    }
 
-                if (reference.startsWith("urn:")) {
-                    logger.debug("Found reference on {} resource with urn: prefix. Stripping.", dataType);
-                    reference = stripUrnScheme(reference);
-                }
+    /**
+     * Returns the id of the context the resource is related to by the context path, or null if the
+     * resource isn't related to a context.
+     */
+    protected String getContextValue(final String dataType, final IBaseResource res, final String contextPath) {
+        final Optional<IBase> resContextValue = this.fhirPath.evaluateFirst(res, contextPath, IBase.class);
+        if (resContextValue.isPresent() && resContextValue.get() instanceof IIdType) {
+            String id = ((IIdType) resContextValue.get()).getIdPart();
+
+            if (id == null) {
+                logger.debug("Found null id for {} resource. Skipping.", dataType);
+                return null;
+            }
 
-                if (reference.contains("/")) {
-                    reference = reference.split("/")[1];
-                }
+            if (id.startsWith("urn:")) {
+                logger.debug("Found {} with urn: prefix. Stripping.", dataType);
+                id = stripUrnScheme(id);
+            }
 
-                if (!reference.equals(contextValue)) {
-                    logger.debug("Found {} with reference {}. Skipping.", dataType, reference);
-                    return false;
-                }
-            } else {
-                final Optional<IBase> reference = this.fhirPath.evaluateFirst(res, "reference", IBase.class);
-                if (!reference.isPresent()) {
-                    logger.debug("Found {} resource unrelated to context. Skipping.", dataType);
-                    return false;
-                }
+            return id;
+        } else if (resContextValue.isPresent() && resContextValue.get() instanceof IBaseReference) {
+            String reference = ((IBaseReference) resContextValue.get())
+                    .getReferenceElement()
+                    .getValue();
+            if (reference == null) {
+                logger.debug("Found null reference for {} resource. Skipping.", dataType);
+                return null;
+            }
 
-                String referenceString = ((IPrimitiveType<?>) reference.get()).getValueAsString();
-                if (referenceString.startsWith("urn:")) {
-                    logger.debug("Found reference on {} resource with urn: prefix. Stripping.", dataType);
-                    referenceString = stripUrnScheme(referenceString);
-                }
+            if (reference.startsWith("urn:")) {
+                logger.debug("Found reference on {} resource with urn: prefix. Stripping.", dataType);
+                reference = stripUrnScheme(reference);
+            }
 
-                if (referenceString.contains("/")) {
-                    referenceString = referenceString.substring(referenceString.indexOf("/") + 1);
-                }
+            if (reference.contains("/")) {
+                reference = reference.split("/")[1];
+            }
 
-                if (!referenceString.equals(contextValue)) {
-                    logger.debug(
-                            "Found {} resource for context value: {} when expecting: {}. Skipping.",
-                            dataType,
-                            referenceString,
-                            contextValue);
-                    return false;
-                }
+            return reference;
+        } else {
+            final Optional<IBase> reference = this.fhirPath.evaluateFirst(res, "reference", IBase.class);
+            if (!reference.isPresent()) {
+                logger.debug("Found {} resource unrelated to context. Skipping.", dataType);
+                return null;
             }
 
-            return true;
-        };
+            String referenceString = ((IPrimitiveType<?>) reference.get()).getValueAsString();
+            if (referenceString.startsWith("urn:")) {
+                logger.debug("Found reference on {} resource with urn: prefix. Stripping.", dataType);
+                referenceString = stripUrnScheme(referenceString);
+            }
+
+            if (referenceString.contains("/")) {
+                referenceString = referenceString.substring(referenceString.indexOf("/") + 1);
+            }
+
+            return referenceString;
+        }
     }
 
     public Predicate<IBaseResource> filterByTerminology(
@@ -203,6 +212,140 @@ public abstract class BaseRetrieveProvider implements RetrieveProvider {
         };
     }
 
+    /**
+     * Filters resources by a date range. A resource matches if its dates overlap the range, the
+     * same semantics as the ge and le date search prefixes that
+     * {@link #populateDateSearchParams(Map, String, String, String, String, Interval)} sends. The
+     * dates of a datePath cover their whole precision, and a Period without a start or end is
+     * unbounded on that side. The dateLowPath and dateHighPath are the start and end of an interval,
+     * which is unbounded on the side of a path that isn't given. Resources without a value for a
+     * given path don't match.
+     */
+    public Predicate<IBaseResource> filterByDates(
+            final String dataType,
+            final String datePath,
+            final String dateLowPath,
+            final String dateHighPath,
+            final Interval dateRange) {
+        if (dateRange == null || (datePath == null && dateLowPath == null && dateHighPath == null)) {
+            return resource -> true;
+        }
+
+        final Date start = toJavaDate(dateRange.getStart());
+        final Date end = toJavaDate(dateRange.getEnd());
+
+        if (StringUtils.isNotBlank(datePath)) {
+            final IParsedExpression path = parse(datePath);
+            return (IBaseResource res) -> {
+                for (var value : this.fhirPath.evaluate(res, path, IBase.class)) {
+                    var bounds = getDateBounds(value);
+                    if (bounds != null && overlaps(bounds.low, bounds.high, start, end)) {
+                        return true;
+                    }
+                }
+
+                logger.debug("Found {} resource with no {} in the date range. Skipping.", dataType, datePath);
+                return false;
+            };
+        }
+
+        final IParsedExpression lowPath = StringUtils.isNotBlank(dateLowPath) ? parse(dateLowPath) : null;
+        final IParsedExpression highPath = StringUtils.isNotBlank(dateHighPath) ? parse(dateHighPath) : null;
+        return (IBaseResource res) -> {
+            Date low = null;
+            if (lowPath != null) {
+                var bounds =
+                        this.fhirPath.evaluateFirst(res, lowPath, IBase.class).map(this::getDateBounds);
+                if (!bounds.isPresent() || bounds.get().low == null) {
+                    return false;
+                }
+
+                low = bounds.get().low;
+            }
+
+            Date high = null;
+            if (highPath != null) {
+                var bounds =
+                        this.fhirPath.evaluateFirst(res, highPath, IBase.class).map(this::getDateBounds);
+                if (!bounds.isPresent() || bounds.get().high == null) {
+                    return false;
+                }
+
+                high = bounds.get().high;
+            }
+
+            return overlaps(low, high, start, end);
+        };
+    }
+
+    private IParsedExpression parse(String path) {
+        try {
+            return this.fhirPath.parse(path);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(String.format("Unable to parse the date path: %s", path), e);
+        }
+    }
+
+    // The instants covered by a date, dateTime, instant or Period, or null if the value isn't one
+    private DateBounds getDateBounds(IBase value) {
+        if (value instanceof IPrimitiveType && ((IPrimitiveType<?>) value).getValue() instanceof Date) {
+            var date = (IPrimitiveType<?>) value;
+            return new DateBounds(getLowerBound(date), getUpperBound(date));
+        } else if (value.fhirType().equals("Period")) {
+            var periodStart = this.fhirPath.evaluateFirst(value, "start", IPrimitiveType.class);
+            var periodEnd = this.fhirPath.evaluateFirst(value, "end", IPrimitiveType.class);
+            return new DateBounds(
+                    periodStart.map(BaseRetrieveProvider::getLowerBound).orElse(null),
+                    periodEnd.map(BaseRetrieveProvider::getUpperBound).orElse(null));
+        }
+
+        return null;
+    }
+
+    private static Date getLowerBound(IPrimitiveType<?> date) {
+        return date.getValue() instanceof Date ? (Date) date.getValue() : null;
+    }
+
+    // The last instant within the precision of the date, e.g. the end of the day of a date
+    private static Date getUpperBound(IPrimitiveType<?> date) {
+        if (!(date.getValue() instanceof Date)) {
+            return null;
+        }
+
+        var precision = new DateParam(date.getValueAsString()).getPrecision();
+        return new Date(precision.add((Date) date.getValue(), 1).getTime() - 1);
+    }
+
+    private static class DateBounds {
+        private final Date low;
+        private final Date high;
+
+        DateBounds(Date low, Date high) {
+            this.low = low;
+            this.high = high;
+        }
+    }
+
+    // True if [low, high] and [start, end] share an instant. Null bounds are unbounded.
+    private static boolean overlaps(Date low, Date high, Date start, Date end) {
+        return (high == null || start == null || !high.before(start))
+                && (low == null || end == null || !low.after(end));
+    }
+
+    private static Date toJavaDate(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof DateTime) {
+            return ((DateTime) value).toJavaDate();
+        } else if (value instanceof org.opencds.cqf.cql.engine.runtime.Date) {
+            return ((org.opencds.cqf.cql.engine.runtime.Date) value).toJavaDate();
+        }
+
+        throw new UnsupportedOperationException(
+                "Expected Interval of type org.opencds.cqf.cql.engine.runtime.Date or org.opencds.cqf.cql.engine.runtime.DateTime, found "
+                        + value.getClass().getSimpleName());
+    }
+
     private String stripUrnScheme(String uri) {
         if (uri.startsWith("urn:uuid:")) {
             return uri.substring(9);
@@ -371,6 +514,14 @@ public abstract class BaseRetrieveProvider implements RetrieveProvider {
         return true;
     }
 
+    /**
+     * Adds the search parameters that match resources whose dates overlap a date range. A datePath
+     * is searched with ge on the start and le on the end of the range, which a FHIR server matches
+     * when the date overlaps the range. A dateLowPath is searched with le on the end of the range and
+     * a dateHighPath with ge on its start, so an interval matches if it starts before the range ends
+     * and ends after the range starts. These are the semantics of
+     * {@link #filterByDates(String, String, String, String, Interval)}.
+     */
     public void populateDateSearchParams(
             Map<String, List<IQueryParameterType>> searchParams,
             final String dataType,
@@ -378,7 +529,7 @@ public abstract class BaseRetrieveProvider implements RetrieveProvider {
             final String dateLowPath,
             final String dateHighPath,
             final Interval dateRange) {
-        if (datePath == null && dateHighPath == null && dateRange == null) {
+        if (datePath == null && dateLowPath == null && dateHighPath == null && dateRange == null) {
             return;
         }
 
@@ -386,45 +537,59 @@ public abstract class BaseRetrieveProvider implements RetrieveProvider {
             throw new IllegalStateException("A date range must be provided when filtering using date parameters");
         }
 
-        Date start;
-        Date end;
-        if (dateRange.getStart() instanceof DateTime) {
-            start = ((DateTime) dateRange.getStart()).toJavaDate();
-            end = ((DateTime) dateRange.getEnd()).toJavaDate();
-        } else if (dateRange.getStart() instanceof org.opencds.cqf.cql.engine.runtime.Date) {
-            start = ((org.opencds.cqf.cql.engine.runtime.Date) dateRange.getStart()).toJavaDate();
-            end = ((org.opencds.cqf.cql.engine.runtime.Date) dateRange.getEnd()).toJavaDate();
-        } else {
-            throw new UnsupportedOperationException(
-                    "Expected Interval of type org.opencds.cqf.cql.engine.runtime.Date or org.opencds.cqf.cql.engine.runtime.DateTime, found "
-                            + dateRange.getStart().getClass().getSimpleName());
-        }
+        final Date start = toJavaDate(dateRange.getStart());
+        final Date end = toJavaDate(dateRange.getEnd());
 
         if (StringUtils.isNotBlank(datePath)) {
-            List<IQueryParameterType> dateRangeParam = new ArrayList<>();
-            DateParam dateParam = new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, start);
-            dateRangeParam.add(dateParam);
-            dateParam = new DateParam(ParamPrefixEnum.LESSTHAN_OR_EQUALS, end);
-            dateRangeParam.add(dateParam);
-            var sp = this.resolver.getSearchParameterDefinition(dataType, datePath);
-            searchParams.put(sp.getName(), dateRangeParam);
-        } else if (StringUtils.isNotBlank(dateLowPath)) {
-            List<IQueryParameterType> dateRangeParam = new ArrayList<>();
-            DateParam dateParam = new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, start);
-            dateRangeParam.add(dateParam);
-            var sp = this.resolver.getSearchParameterDefinition(dataType, dateLowPath);
-            searchParams.put(sp.getName(), dateRangeParam);
-        } else if (StringUtils.isNotBlank(dateHighPath)) {
-            List<IQueryParameterType> dateRangeParam = new ArrayList<>();
-            DateParam dateParam = new DateParam(ParamPrefixEnum.LESSTHAN_OR_EQUALS, end);
-            dateRangeParam.add(dateParam);
-            var sp = this.resolver.getSearchParameterDefinition(dataType, dateHighPath);
-            searchParams.put(sp.getName(), dateRangeParam);
+            addDateParam(searchParams, dataType, datePath, ParamPrefixEnum.GREATERTHAN_OR_EQUALS, start);
+            addDateParam(searchParams, dataType, datePath, ParamPrefixEnum.LESSTHAN_OR_EQUALS, end);
+        } else if (StringUtils.isNotBlank(dateLowPath) || StringUtils.isNotBlank(dateHighPath)) {
+            if (StringUtils.isNotBlank(dateLowPath)) {
+                addDateParam(searchParams, dataType, dateLowPath, ParamPrefixEnum.LESSTHAN_OR_EQUALS, end);
+            }
+
+            if (StringUtils.isNotBlank(dateHighPath)) {
+                addDateParam(searchParams, dataType, dateHighPath, ParamPrefixEnum.GREATERTHAN_OR_EQUALS, start);
+            }
         } else {
             throw new IllegalStateException("A date path must be provided when filtering using date parameters");
         }
     }
 
+    // An unbounded side of the range has no parameter. The low and high paths may share a
+    // search parameter, so the parameters are added to those already there. The dates of a list
+    // are the bounds of a range and must all match, as the ResourceMatcher of the repositories and
+    // a FHIR server (which receives each one as a separate parameter) both treat them.
+    private void addDateParam(
+            Map<String, List<IQueryParameterType>> searchParams,
+            String dataType,
+            String path,
+            ParamPrefixEnum prefix,
+            Date date) {
+        var sp = this.resolver.getSearchParameterDefinition(dataType, path);
+        if (sp == null) {
+            throw new IllegalStateException(
+                    String.format("No search parameter found for the date path %s of %s", path, dataType));
+        }
+
+        if (date != null) {
+            searchParams.computeIfAbsent(sp.getName(), k -> new ArrayList<>()).add(new DateParam(prefix, date));
+        }
+    }
+
+    // The name of the search parameter for the path, or null if there's no such search parameter
+    protected String getSearchParameterName(
+            final String dataType, final String path, final RestSearchParameterTypeEnum type) {
+        if (StringUtils.isBlank(path)) {
+            return null;
+        }
+
+        var sp = type == null
+                ? this.resolver.getSearchParameterDefinition(dataType, path)
+                : this.resolver.getSearchParameterDefinition(dataType, path, type);
+        return sp == null ? null : sp.getName();
+    }
+
     protected CodeExtractor getCodeUtil() {
         return codeUtil;
     }
@@ -2,19 +2,52 @@ package org.opencds.cqf.fhir.cql.engine.retrieve;
 
 import com.google.common.collect.Iterables;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.fhir.utility.iterable.MemoizingIterable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * A DataProvider that combines the results of several RetrieveProviders.
+ * <p>
+ * If retrieves are cached, the results of a retrieve are kept for the current context value, so
+ * that the same retrieve in several expressions (e.g. [Encounter: "Inpatient"] in each population
+ * of a measure) is only sent to the providers once. The results for a context value are dropped
+ * when a retrieve for another context value is made, and results for retrieves without a context
+ * value are kept for the life of the provider. A provider is built for each evaluation, so data
+ * that changes during an evaluation may not be seen by later retrieves.
+ */
 public class FederatedDataProvider extends CompositeDataProvider {
+    private static final Logger logger = LoggerFactory.getLogger(FederatedDataProvider.class);
+
     protected final List<RetrieveProvider> retrieveProviders;
 
+    private final boolean cacheRetrieves;
+    private final Map<List<Object>, Iterable<Object>> cache = new HashMap<>();
+    private Object currentContextValue;
+    private long cacheHits;
+    private long cacheMisses;
+
     public FederatedDataProvider(ModelResolver modelResolver, List<RetrieveProvider> retrieveProviders) {
+        this(modelResolver, retrieveProviders, false);
+    }
+
+    public FederatedDataProvider(
+            ModelResolver modelResolver, List<RetrieveProvider> retrieveProviders, boolean cacheRetrieves) {
         super(modelResolver, null);
         this.retrieveProviders = retrieveProviders;
+        this.cacheRetrieves = cacheRetrieves;
     }
 
     @Override
@@ -31,6 +64,108 @@ public class FederatedDataProvider extends CompositeDataProvider {
             String dateLowPath,
             String dateHighPath,
             Interval dateRange) {
+        if (!this.cacheRetrieves) {
+            return Iterables.concat(retrieveAll(
+                    context,
+                    contextPath,
+                    contextValue,
+                    dataType,
+                    templateId,
+                    codePath,
+                    codes,
+                    valueSet,
+                    datePath,
+                    dateLowPath,
+                    dateHighPath,
+                    dateRange));
+        }
+
+        synchronized (this.cache) {
+            if (contextValue != null && !contextValue.equals(this.currentContextValue)) {
+                this.cache.keySet().removeIf(k -> k.get(2) != null);
+                this.currentContextValue = contextValue;
+            }
+
+            var key = Arrays.asList(
+                    context,
+                    contextPath,
+                    contextValue,
+                    dataType,
+                    templateId,
+                    codePath,
+                    normalize(codes),
+                    valueSet,
+                    datePath,
+                    dateLowPath,
+                    dateHighPath,
+                    normalize(dateRange));
+            var result = this.cache.get(key);
+            if (result != null) {
+                this.cacheHits++;
+                logger.debug("Retrieve of {} served from the cache", dataType);
+                return result;
+            }
+
+            this.cacheMisses++;
+            result = memoize(retrieveAll(
+                    context,
+                    contextPath,
+                    contextValue,
+                    dataType,
+                    templateId,
+                    codePath,
+                    codes,
+                    valueSet,
+                    datePath,
+                    dateLowPath,
+                    dateHighPath,
+                    dateRange));
+            this.cache.put(key, result);
+            return result;
+        }
+    }
+
+    /**
+     * Sets the subjects whose resources are fetched together by the RepositoryRetrieveProviders.
+     *
+     * @param context the context of the subjects, e.g. Patient
+     * @param contextValues the ids of the subjects, or null to fetch resources per retrieve again
+     * @see RepositoryRetrieveProvider#setSubjectBlock(String, Collection)
+     */
+    public void setSubjectBlock(String context, Collection<String> contextValues) {
+        for (var provider : this.retrieveProviders) {
+            if (provider instanceof RepositoryRetrieveProvider) {
+                ((RepositoryRetrieveProvider) provider).setSubjectBlock(context, contextValues);
+            }
+        }
+    }
+
+    /**
+     * Stops fetching pages ahead for the retrieves made so far by the RepositoryRetrieveProviders.
+     *
+     * @see RepositoryRetrieveProvider#stopPrefetch()
+     */
+    public void stopPrefetch() {
+        for (var provider : this.retrieveProviders) {
+            if (provider instanceof RepositoryRetrieveProvider) {
+                ((RepositoryRetrieveProvider) provider).stopPrefetch();
+            }
+        }
+    }
+
+    private List<Iterable<Object>> retrieveAll(
+            String context,
+            String contextPath,
+            Object contextValue,
+            String dataType,
+            String templateId,
+            String codePath,
+            Iterable<Code> codes,
+            String valueSet,
+            String datePath,
+            String dateLowPath,
+            String dateHighPath,
+            Interval dateRange) {
         List<Iterable<Object>> results = new ArrayList<>();
         for (var provider : this.retrieveProviders) {
             results.add(provider.retrieve(
@@ -48,6 +183,83 @@ public class FederatedDataProvider extends CompositeDataProvider {
                     dateRange));
         }
 
-        return Iterables.concat(results);
+        return results;
+    }
+
+    // The results are replayed when the retrieve is served from the cache. Results that the providers
+    // already memoize, such as those of a RepositoryRetrieveProvider, can be replayed as they are.
+    private static Iterable<Object> memoize(List<Iterable<Object>> results) {
+        if (results.stream().allMatch(MemoizingIterable.class::isInstance)) {
+            return results.size() == 1 ? results.get(0) : Iterables.concat(results);
+        }
+
+        return new MemoizingIterable<>(Iterables.concat(results).iterator());
+    }
+
+    // Codes are compared by value regardless of their order. The engine may also pass other values,
+    // such as strings, as codes.
+    private static Object normalize(Iterable<Code> codes) {
+        if (codes == null) {
+            return null;
+        }
+
+        var normalized = new TreeSet<String>();
+        for (Object value : codes) {
+            if (value instanceof Code) {
+                var code = (Code) value;
+                normalized.add(code.getSystem() + "|" + code.getVersion() + "|" + code.getCode());
+            } else {
+                normalized.add(String.valueOf(value));
+            }
+        }
+
+        return normalized;
+    }
+
+    private static Object normalize(Interval interval) {
+        if (interval == null) {
+            return null;
+        }
+
+        return Arrays.asList(
+                interval.getLowClosed(),
+                Objects.toString(interval.getLow(), null),
+                Objects.toString(interval.getHigh(), null),
+                interval.getHighClosed());
+    }
+
+    /**
+     * Returns the number of retrieves that were served from the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHits() {
+        synchronized (this.cache) {
+            return this.cacheHits;
+        }
+    }
+
+    /**
+     * Returns the number of retrieves that were sent to the RetrieveProviders while caching.
+     *
+     * @return the number of cache misses
+     */
+    public long getCacheMisses() {
+        synchronized (this.cache) {
+            return this.cacheMisses;
+        }
+    }
+
+    /**
+     * Returns the fraction of the retrieves that were served from the cache, or 0 if there were
+     * none.
+     *
+     * @return the cache hit rate
+     */
+    public double getCacheHitRate() {
+        synchronized (this.cache) {
+            var total = this.cacheHits + this.cacheMisses;
+            return total == 0 ? 0.0 : (double) this.cacheHits / total;
+        }
     }
 }
@@ -4,22 +4,45 @@ import static java.util.Objects.requireNonNull;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.fhir.api.Repository;
-import org.opencds.cqf.fhir.utility.iterable.BundleMappingIterable;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.SEARCH_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.TERMINOLOGY_FILTER_MODE;
+import org.opencds.cqf.fhir.utility.iterable.BundleMappingIterator;
+import org.opencds.cqf.fhir.utility.iterable.MemoizingIterable;
 
 public class RepositoryRetrieveProvider extends BaseRetrieveProvider {
     private final Repository repository;
     private final FhirContext fhirContext;
+    private SubjectBlock subjectBlock;
+    // The results that are fetched ahead for the current context value
+    private final List<BundleMappingIterator<IBaseBundle, IBaseResource>> prefetched = new ArrayList<>();
+    private Object prefetchContextValue;
 
     public RepositoryRetrieveProvider(
             final Repository repository, final TerminologyProvider terminologyProvider, RetrieveSettings settings) {
@@ -50,21 +73,278 @@ public class RepositoryRetrieveProvider extends BaseRetrieveProvider {
 
         var config = new SearchConfig();
         this.configureTerminology(config, dataType, codePath, codes, valueSet);
-        this.configureContext(config, dataType, context, contextPath, contextValue);
-        this.configureProfile(config, templateId);
+        this.configureProfile(config, dataType, templateId);
         this.configureDates(config, dataType, datePath, dateLowPath, dateHighPath, dateRange);
 
-        var resources = this.repository.search(bt, resourceType, config.searchParams);
+        if (isInSubjectBlock(dataType, context, contextPath, contextValue)) {
+            var key = blockKey(
+                    dataType,
+                    contextPath,
+                    templateId,
+                    codePath,
+                    codes,
+                    valueSet,
+                    datePath,
+                    dateLowPath,
+                    dateHighPath,
+                    dateRange);
+            return retrieveFromSubjectBlock(config, key, dataType, contextPath, contextValue);
+        }
+
+        this.configureContext(config, dataType, context, contextPath, contextValue);
+
+        // The results for the previous context value are usually abandoned once the next one is
+        // retrieved, so their pages are no longer fetched ahead
+        if (contextValue != null && !contextValue.equals(this.prefetchContextValue)) {
+            stopPrefetch();
+            this.prefetchContextValue = contextValue;
+        }
+
+        // The pages of the results are fetched and filtered as the results are consumed, so that
+        // evaluation can begin with the first page and stop without fetching the rest
+        Iterator<IBaseResource> resources;
+        if (config.chunkedParam == null) {
+            resources = search(bt, resourceType, config.searchParams);
+        } else {
+            resources = searchAll(bt, resourceType, chunk(config.searchParams, config.chunkedParam));
+        }
+
+        return new MemoizingIterable<Object>(Iterators.filter(resources, config.filter::test));
+    }
+
+    /**
+     * Sets the subjects whose resources are fetched together. The first retrieve for one of the
+     * subjects fetches the resources that match the retrieve for all the subjects with a single
+     * search, or one search per chunk of subjects. The codes, profile and dates of the retrieve are
+     * searched, or filtered in memory, exactly as they are for a single subject. The resources are
+     * then partitioned by subject, and the same retrieve for the other subjects is answered from
+     * them. This replaces a search per retrieve per subject with a search per retrieve for the block
+     * of subjects. The block belongs to this provider, and so to the engine that uses it.
+     *
+     * @param context the context of the subjects, e.g. Patient
+     * @param contextValues the ids of the subjects, or null to fetch resources per retrieve again
+     */
+    public void setSubjectBlock(String context, Collection<String> contextValues) {
+        this.subjectBlock = context == null || contextValues == null ? null : new SubjectBlock(context, contextValues);
+    }
+
+    private boolean isInSubjectBlock(String dataType, String context, String contextPath, Object contextValue) {
+        var block = this.subjectBlock;
+        return block != null
+                && block.context.equals(context)
+                && block.contextValues.contains(contextValue)
+                && this.getRetrieveSettings().getSearchParameterMode() != SEARCH_FILTER_MODE.FILTER_IN_MEMORY
+                && getSearchParameterName(dataType, contextPath, null) != null
+                && isSearchParamSupported(dataType, contextPath, null);
+    }
+
+    private Iterable<Object> retrieveFromSubjectBlock(
+            SearchConfig config, String key, String dataType, String contextPath, Object contextValue) {
+        var block = this.subjectBlock;
+        var resources = block.resources
+                .computeIfAbsent(key, k -> fetchSubjectBlock(block, config, dataType, contextPath))
+                .getOrDefault(contextValue, Collections.emptyList());
+        return Collections.<Object>unmodifiableList(resources);
+    }
+
+    // The retrieves that share a key return the same resources for a subject
+    private static String blockKey(
+            String dataType,
+            String contextPath,
+            String templateId,
+            String codePath,
+            Iterable<Code> codes,
+            String valueSet,
+            String datePath,
+            String dateLowPath,
+            String dateHighPath,
+            Interval dateRange) {
+        var key = new StringBuilder();
+        key.append(dataType).append('|').append(contextPath).append('|').append(templateId);
+        key.append('|').append(codePath).append('|').append(valueSet).append('|');
+        if (codes != null) {
+            for (var code : codes) {
+                key.append(code.getSystem()).append('#').append(code.getCode()).append(',');
+            }
+        }
+
+        key.append('|')
+                .append(datePath)
+                .append('|')
+                .append(dateLowPath)
+                .append('|')
+                .append(dateHighPath);
+        if (dateRange != null) {
+            key.append('|').append(dateRange.getStart()).append('|').append(dateRange.getEnd());
+        }
+
+        return key.toString();
+    }
+
+    // The resources that match the retrieve for each subject of the block
+    private Map<Object, List<IBaseResource>> fetchSubjectBlock(
+            SubjectBlock block, SearchConfig config, String dataType, String contextPath) {
+        var resourceType = fhirContext.getResourceDefinition(dataType).getImplementingClass();
+        @SuppressWarnings("unchecked")
+        var bt = (Class<? extends IBaseBundle>)
+                this.fhirContext.getResourceDefinition("Bundle").getImplementingClass();
 
-        var iter = new BundleMappingIterable<>(repository, resources, p -> p.getResource());
-        return iter.toStream().filter(config.filter).collect(Collectors.toList());
+        var name = getSearchParameterName(dataType, contextPath, null);
+        var values = new ArrayList<IQueryParameterType>();
+        for (var contextValue : block.contextValues) {
+            values.add(
+                    name.equals("_id")
+                            ? new TokenParam(contextValue)
+                            : new ReferenceParam(new IdDt(contextValue).withResourceType(block.context)));
+        }
+
+        var searchParams = new HashMap<>(config.searchParams);
+        searchParams.put(name, values);
+
+        // Both the subjects and the inline codes may be split into chunks
+        var searches = chunkAll(Collections.singletonList(searchParams), name);
+        if (config.chunkedParam != null) {
+            searches = chunkAll(searches, config.chunkedParam);
+        }
+
+        Iterator<IBaseResource> resources;
+        if (searches.size() == 1) {
+            resources = search(bt, resourceType, searches.get(0));
+        } else {
+            resources = searchAll(bt, resourceType, searches);
+        }
+
+        var bySubject = new HashMap<Object, List<IBaseResource>>();
+        while (resources.hasNext()) {
+            var resource = resources.next();
+            if (!config.filter.test(resource)) {
+                continue;
+            }
+
+            var contextValue = getContextValue(dataType, resource, contextPath);
+            if (contextValue != null && block.contextValues.contains(contextValue)) {
+                bySubject.computeIfAbsent(contextValue, k -> new ArrayList<>()).add(resource);
+            }
+        }
+
+        return bySubject;
+    }
+
+    private List<Map<String, List<IQueryParameterType>>> chunkAll(
+            List<Map<String, List<IQueryParameterType>>> searches, String name) {
+        var maxValues = this.getRetrieveSettings().getMaxCodesPerQuery();
+        var chunked = new ArrayList<Map<String, List<IQueryParameterType>>>();
+        for (var search : searches) {
+            if (maxValues <= 0 || search.get(name).size() <= maxValues) {
+                chunked.add(search);
+            } else {
+                chunked.addAll(chunk(search, name));
+            }
+        }
+
+        return chunked;
+    }
+
+    private Iterator<IBaseResource> search(
+            Class<? extends IBaseBundle> bundleType,
+            Class<? extends IBaseResource> resourceType,
+            Map<String, List<IQueryParameterType>> searchParams) {
+        return pages(this.repository.search(bundleType, resourceType, searchParams));
     }
 
-    private void configureProfile(SearchConfig config, String templateId) {
+    private Iterator<IBaseResource> pages(IBaseBundle bundle) {
+        var settings = this.getRetrieveSettings();
+        var iterator = new BundleMappingIterator<IBaseBundle, IBaseResource>(
+                repository, bundle, p -> p.getResource(), settings.getSearchExecutor(), settings.getPageLookahead());
+        if (settings.getSearchExecutor() != null && settings.getPageLookahead() > 0) {
+            synchronized (this.prefetched) {
+                this.prefetched.add(iterator);
+            }
+        }
+
+        return iterator;
+    }
+
+    /**
+     * Stops fetching pages ahead for the results of the retrieves made so far, cancelling the pages
+     * that are being fetched. The results are still complete, since a page that wasn't fetched ahead
+     * is fetched when it's reached. This is done when a retrieve is made for another context value,
+     * and should be done once an evaluation is finished, since the engine may stop iterating the
+     * results of a retrieve at any point.
+     */
+    public void stopPrefetch() {
+        synchronized (this.prefetched) {
+            this.prefetched.forEach(BundleMappingIterator::stopPrefetch);
+            this.prefetched.clear();
+        }
+    }
+
+    // The results of the searches, without the resources that are found by more than one search
+    private Iterator<IBaseResource> searchAll(
+            Class<? extends IBaseBundle> bundleType,
+            Class<? extends IBaseResource> resourceType,
+            List<Map<String, List<IQueryParameterType>>> searches) {
+        Iterator<Iterator<IBaseResource>> results;
+        var executor = this.getRetrieveSettings().getSearchExecutor();
+        if (executor == null) {
+            results = Iterators.transform(searches.iterator(), x -> search(bundleType, resourceType, x));
+        } else {
+            var bundles = new ArrayList<CompletableFuture<IBaseBundle>>(searches.size());
+            for (var search : searches) {
+                bundles.add(CompletableFuture.supplyAsync(
+                        () -> this.repository.search(bundleType, resourceType, search), executor));
+            }
+
+            results = Iterators.transform(bundles.iterator(), x -> pages(join(x)));
+        }
+
+        var ids = new HashSet<String>();
+        return Iterators.filter(Iterators.concat(results), x -> {
+            var id = x.getIdElement();
+            return id == null
+                    || id.getIdPart() == null
+                    || ids.add(id.toUnqualifiedVersionless().getValue());
+        });
+    }
+
+    private static IBaseBundle join(CompletableFuture<IBaseBundle> bundle) {
+        try {
+            return bundle.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    // A copy of the search for each chunk of the values of the parameter
+    private List<Map<String, List<IQueryParameterType>>> chunk(
+            Map<String, List<IQueryParameterType>> searchParams, String name) {
+        var searches = new ArrayList<Map<String, List<IQueryParameterType>>>();
+        for (var chunk : Lists.partition(
+                searchParams.get(name), this.getRetrieveSettings().getMaxCodesPerQuery())) {
+            var search = new HashMap<>(searchParams);
+            search.put(name, new ArrayList<>(chunk));
+            searches.add(search);
+        }
+
+        return searches;
+    }
+
+    private void configureProfile(SearchConfig config, String dataType, String templateId) {
         var mode = this.getRetrieveSettings().getSearchParameterMode();
+        if (mode == SEARCH_FILTER_MODE.AUTO) {
+            // Profiles are only offloaded to repositories that declare the _profile search parameter
+            mode = getCapabilities().isKnown() && getCapabilities().supportsSearchParam(dataType, "_profile")
+                    ? SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS
+                    : SEARCH_FILTER_MODE.FILTER_IN_MEMORY;
+        }
+
         switch (mode) {
             case FILTER_IN_MEMORY:
-            case AUTO: // TODO: Auto-detect based on CapabilityStatement
+            case AUTO:
                 config.filter = config.filter.and(filterByTemplateId(templateId, templateId));
                 break;
             case USE_SEARCH_PARAMETERS:
@@ -75,11 +355,15 @@ public class RepositoryRetrieveProvider extends BaseRetrieveProvider {
     private void configureContext(
             SearchConfig config, String dataType, String context, String contextPath, Object contextValue) {
         var mode = this.getRetrieveSettings().getSearchParameterMode();
+        if (mode == SEARCH_FILTER_MODE.AUTO && !isSearchParamSupported(dataType, contextPath, null)) {
+            mode = SEARCH_FILTER_MODE.FILTER_IN_MEMORY;
+        }
+
         switch (mode) {
             case FILTER_IN_MEMORY:
                 config.filter = config.filter.and(filterByContext(dataType, context, contextPath, contextValue));
                 break;
-            case AUTO: // TODO: offload detection based on CapabilityStatement
+            case AUTO:
             case USE_SEARCH_PARAMETERS:
                 populateContextSearchParams(config.searchParams, dataType, context, contextPath, contextValue);
                 break;
@@ -89,18 +373,57 @@ public class RepositoryRetrieveProvider extends BaseRetrieveProvider {
     private void configureTerminology(
             SearchConfig config, String dataType, String codePath, Iterable<Code> codes, String valueSet) {
         var mode = this.getRetrieveSettings().getTerminologyParameterMode();
+        if (mode == TERMINOLOGY_FILTER_MODE.AUTO
+                && !isSearchParamSupported(dataType, codePath, RestSearchParameterTypeEnum.TOKEN)) {
+            mode = TERMINOLOGY_FILTER_MODE.FILTER_IN_MEMORY;
+        }
+
         switch (mode) {
             case FILTER_IN_MEMORY:
                 config.filter = config.filter.and(filterByTerminology(dataType, codePath, codes, valueSet));
                 break;
-            case AUTO: // TODO: offload detection based on CapabilityStatement
+            case AUTO:
             case USE_INLINE_CODES:
             case USE_VALUE_SET_URL:
                 populateTerminologySearchParams(config.searchParams, dataType, codePath, codes, valueSet);
+                limitInlineCodes(config, dataType, codePath, codes, valueSet);
                 break;
         }
     }
 
+    // Inline codes are searched in chunks. Above the limit, a ValueSet is filtered with the :in
+    // modifier if the repository is known to support it, and otherwise the codes are filtered in
+    // memory.
+    private void limitInlineCodes(
+            SearchConfig config, String dataType, String codePath, Iterable<Code> codes, String valueSet) {
+        var settings = this.getRetrieveSettings();
+        var name = getSearchParameterName(dataType, codePath, RestSearchParameterTypeEnum.TOKEN);
+        var codeParams = name == null ? null : config.searchParams.get(name);
+        if (codeParams == null
+                || settings.getMaxCodesPerQuery() <= 0
+                || codeParams.size() <= settings.getMaxCodesPerQuery()) {
+            return;
+        }
+
+        if (codeParams.size() <= settings.getMaxInlineCodes()) {
+            config.chunkedParam = name;
+            return;
+        }
+
+        config.searchParams.remove(name);
+        if (codes == null
+                && valueSet != null
+                && getCapabilities().isKnown()
+                && getCapabilities().supportsInModifier(dataType, name)) {
+            config.searchParams.put(
+                    name,
+                    Collections.singletonList(
+                            new TokenParam().setModifier(TokenParamModifier.IN).setValue(valueSet)));
+        } else {
+            config.filter = config.filter.and(filterByTerminology(dataType, codePath, codes, valueSet));
+        }
+    }
+
     private void configureDates(
             SearchConfig config,
             String dataType,
@@ -109,20 +432,72 @@ public class RepositoryRetrieveProvider extends BaseRetrieveProvider {
             String dateHighPath,
             Interval dateRange) {
         var mode = this.getRetrieveSettings().getSearchParameterMode();
+        if (mode == SEARCH_FILTER_MODE.AUTO) {
+            // Dates are only offloaded to repositories that declare the search parameters of every
+            // path that is searched
+            var paths = StringUtils.isNotBlank(datePath)
+                    ? Collections.singletonList(datePath)
+                    : Arrays.asList(dateLowPath, dateHighPath);
+            var supported = dateRange != null && getCapabilities().isKnown();
+            var searched = false;
+            for (String path : paths) {
+                if (StringUtils.isBlank(path)) {
+                    continue;
+                }
+
+                var name = getSearchParameterName(dataType, path, null);
+                supported = supported && name != null && getCapabilities().supportsSearchParam(dataType, name);
+                searched = true;
+            }
+
+            mode = supported && searched
+                    ? SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS
+                    : SEARCH_FILTER_MODE.FILTER_IN_MEMORY;
+        }
+
         switch (mode) {
             case FILTER_IN_MEMORY:
-            case AUTO: // TODO: offload detection based on CapabilityStatement
-                if (datePath != null) {
-                    throw new UnsupportedOperationException("in-memory dateFilters are not supported");
-                }
+            case AUTO:
+                config.filter =
+                        config.filter.and(filterByDates(dataType, datePath, dateLowPath, dateHighPath, dateRange));
                 break;
             case USE_SEARCH_PARAMETERS:
                 populateDateSearchParams(config.searchParams, dataType, datePath, dateLowPath, dateHighPath, dateRange);
         }
     }
 
+    @Override
+    protected boolean inModifierSupported(String valueSet, String resourceName, String searchParamName) {
+        return getCapabilities().supportsInModifier(resourceName, searchParamName);
+    }
+
+    // True if the repository may support the search parameter for the path. The self-reference _id
+    // is always supported, and unknown capabilities support every search parameter.
+    private boolean isSearchParamSupported(String dataType, String path, RestSearchParameterTypeEnum type) {
+        var name = getSearchParameterName(dataType, path, type);
+        return name == null || name.equals("_id") || getCapabilities().supportsSearchParam(dataType, name);
+    }
+
+    private SearchCapabilities getCapabilities() {
+        return SearchCapabilities.forRepository(this.repository);
+    }
+
+    private static class SubjectBlock {
+        private final String context;
+        private final Set<String> contextValues;
+        // The resources of each subject by retrieve
+        private final Map<String, Map<Object, List<IBaseResource>>> resources = new HashMap<>();
+
+        private SubjectBlock(String context, Collection<String> contextValues) {
+            this.context = context;
+            this.contextValues = new HashSet<>(contextValues);
+        }
+    }
+
     private class SearchConfig {
         public Map<String, List<IQueryParameterType>> searchParams = new HashMap<>();
         public Predicate<IBaseResource> filter = x -> true;
+        // The parameter whose values are split into several searches
+        public String chunkedParam;
     }
 }
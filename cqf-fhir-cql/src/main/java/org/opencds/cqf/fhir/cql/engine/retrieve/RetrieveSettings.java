@@ -1,10 +1,24 @@
 package org.opencds.cqf.fhir.cql.engine.retrieve;
 
+import java.util.concurrent.Executor;
+
 public class RetrieveSettings {
 
+    // The number of inline codes sent in a single search
+    public static final int DEFAULT_MAX_CODES_PER_QUERY = 100;
+    // The number of codes above which codes aren't sent inline
+    public static final int DEFAULT_MAX_INLINE_CODES = 1000;
+    // The number of pages of a search fetched ahead of the page being consumed
+    public static final int DEFAULT_PAGE_LOOKAHEAD = 1;
+
     private SEARCH_FILTER_MODE searchParameterMode = SEARCH_FILTER_MODE.AUTO;
     private PROFILE_MODE profileMode = PROFILE_MODE.OFF;
     private TERMINOLOGY_FILTER_MODE terminologyParameterMode = TERMINOLOGY_FILTER_MODE.AUTO;
+    private int maxCodesPerQuery = DEFAULT_MAX_CODES_PER_QUERY;
+    private int maxInlineCodes = DEFAULT_MAX_INLINE_CODES;
+    private Executor searchExecutor;
+    private int pageLookahead = DEFAULT_PAGE_LOOKAHEAD;
+    private boolean cacheRetrieves = false;
 
     // Decreasing order of performance
     // Applies to all search parameters
@@ -87,4 +101,86 @@ public class RetrieveSettings {
         this.profileMode = profileMode;
         return this;
     }
+
+    public int getMaxCodesPerQuery() {
+        return this.maxCodesPerQuery;
+    }
+
+    /**
+     * Inline codes are split into searches of at most this many codes, so that the URLs of the
+     * searches stay within the limits of the server.
+     * @param maxCodesPerQuery the maximum number of codes in a search
+     * @return this
+     */
+    public RetrieveSettings setMaxCodesPerQuery(int maxCodesPerQuery) {
+        this.maxCodesPerQuery = maxCodesPerQuery;
+        return this;
+    }
+
+    public int getMaxInlineCodes() {
+        return this.maxInlineCodes;
+    }
+
+    /**
+     * Above this many codes, codes aren't sent inline. A ValueSet is then filtered with the :in
+     * modifier if the repository supports it, and otherwise the codes are filtered in memory.
+     * @param maxInlineCodes the maximum number of inline codes for a retrieve
+     * @return this
+     */
+    public RetrieveSettings setMaxInlineCodes(int maxInlineCodes) {
+        this.maxInlineCodes = maxInlineCodes;
+        return this;
+    }
+
+    public Executor getSearchExecutor() {
+        return this.searchExecutor;
+    }
+
+    /**
+     * The Executor that runs the searches of a retrieve that is split into several searches, and
+     * that fetches the next pages of the results ahead. If null, the searches and pages are fetched
+     * one after the other as the results are consumed.
+     * @param searchExecutor the executor for the searches
+     * @return this
+     */
+    public RetrieveSettings setSearchExecutor(Executor searchExecutor) {
+        this.searchExecutor = searchExecutor;
+        return this;
+    }
+
+    public int getPageLookahead() {
+        return this.pageLookahead;
+    }
+
+    /**
+     * While a page of results is consumed, up to this many next pages are fetched on the search
+     * Executor. Has no effect without a search Executor. 0 fetches each page when the previous one
+     * is consumed.
+     * @param pageLookahead the maximum number of pages fetched ahead
+     * @return this
+     */
+    public RetrieveSettings setPageLookahead(int pageLookahead) {
+        if (pageLookahead < 0) {
+            throw new IllegalArgumentException("pageLookahead can not be negative");
+        }
+        this.pageLookahead = pageLookahead;
+        return this;
+    }
+
+    public boolean getCacheRetrieves() {
+        return this.cacheRetrieves;
+    }
+
+    /**
+     * Caches the results of the retrieves of an evaluation for the current context value, so that
+     * repeated retrieves are only sent to the repository once. Disabled by default, as results are
+     * then held for the rest of the evaluation of a subject, and changes to the data made during the
+     * evaluation may not be seen.
+     * @param cacheRetrieves whether to cache retrieve results
+     * @return this
+     */
+    public RetrieveSettings setCacheRetrieves(boolean cacheRetrieves) {
+        this.cacheRetrieves = cacheRetrieves;
+        return this;
+    }
 }
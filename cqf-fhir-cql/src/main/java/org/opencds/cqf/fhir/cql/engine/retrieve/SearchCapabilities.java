@@ -0,0 +1,179 @@
+package org.opencds.cqf.fhir.cql.engine.retrieve;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.utility.FhirPathCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The search capabilities of a Repository, as declared by its CapabilityStatement. These are used
+ * by the AUTO retrieve modes to decide which filters the repository can apply and which must be
+ * applied in memory.
+ * <p>
+ * The CapabilityStatement of a repository is shared by all the retrieves against that repository,
+ * and is requested again once it is {@link #EXPIRE_AFTER_MINUTES} old. The request for one
+ * repository doesn't hold up the retrieves against others. Repositories that don't provide a
+ * CapabilityStatement have unknown capabilities.
+ */
+public class SearchCapabilities {
+    private static final Logger logger = LoggerFactory.getLogger(SearchCapabilities.class);
+
+    private static final SearchCapabilities UNKNOWN = new SearchCapabilities(null, false);
+
+    // The time after which the capabilities of a repository are requested again
+    public static final long EXPIRE_AFTER_MINUTES = 10;
+
+    private static final Cache<Repository, SearchCapabilities> CAPABILITIES = newCache(Ticker.systemTicker());
+
+    // The search parameters by resource type. Search parameters that apply to every resource type
+    // are kept under the empty type.
+    private final Map<String, Set<String>> searchParams;
+    private final boolean canExpand;
+
+    private SearchCapabilities(Map<String, Set<String>> searchParams, boolean canExpand) {
+        this.searchParams = searchParams;
+        this.canExpand = canExpand;
+    }
+
+    public static SearchCapabilities forRepository(Repository repository) {
+        return forRepository(repository, CAPABILITIES);
+    }
+
+    /**
+     * Discards the capabilities of the repository, so that they are requested again by the next
+     * retrieve.
+     */
+    public static void invalidate(Repository repository) {
+        requireNonNull(repository, "repository can not be null");
+        CAPABILITIES.invalidate(repository);
+    }
+
+    // Repositories are compared by identity, and are released once they are no longer in use.
+    // Concurrent requests for the capabilities of a repository wait for the one that fetches them.
+    static Cache<Repository, SearchCapabilities> newCache(Ticker ticker) {
+        return CacheBuilder.newBuilder()
+                .weakKeys()
+                .expireAfterWrite(EXPIRE_AFTER_MINUTES, TimeUnit.MINUTES)
+                .ticker(ticker)
+                .build();
+    }
+
+    static SearchCapabilities forRepository(Repository repository, Cache<Repository, SearchCapabilities> cache) {
+        requireNonNull(repository, "repository can not be null");
+        try {
+            return cache.get(repository, () -> fetch(repository));
+        } catch (ExecutionException e) {
+            logger.debug("Unable to read the CapabilityStatement of the repository", e);
+            return UNKNOWN;
+        }
+    }
+
+    private static SearchCapabilities fetch(Repository repository) {
+        IBaseConformance capabilities;
+        try {
+            @SuppressWarnings("unchecked")
+            var type = (Class<? extends IBaseConformance>) repository
+                    .fhirContext()
+                    .getResourceDefinition("CapabilityStatement")
+                    .getImplementingClass();
+            capabilities = repository.capabilities(type);
+        } catch (RuntimeException e) {
+            logger.debug("Unable to read the CapabilityStatement of the repository", e);
+            return UNKNOWN;
+        }
+
+        return capabilities == null ? UNKNOWN : parse(repository, capabilities);
+    }
+
+    private static SearchCapabilities parse(Repository repository, IBaseConformance capabilities) {
+        var fhirPath = FhirPathCache.cachedForContext(repository.fhirContext());
+        var searchParams = new HashMap<String, Set<String>>();
+        var canExpand = false;
+        for (var rest : fhirPath.evaluate(capabilities, "rest", IBase.class)) {
+            addValues(fhirPath.evaluate(rest, "searchParam.name", IPrimitiveType.class), searchParams, "");
+            canExpand |= hasExpand(fhirPath.evaluate(rest, "operation.name", IPrimitiveType.class));
+            for (var resource : fhirPath.evaluate(rest, "resource", IBase.class)) {
+                var type = fhirPath.evaluateFirst(resource, "type", IPrimitiveType.class);
+                if (type.isPresent()) {
+                    var resourceType = type.get().getValueAsString();
+                    addValues(
+                            fhirPath.evaluate(resource, "searchParam.name", IPrimitiveType.class),
+                            searchParams,
+                            resourceType);
+                    if (resourceType.equals("ValueSet")) {
+                        canExpand |= hasExpand(fhirPath.evaluate(resource, "operation.name", IPrimitiveType.class));
+                    }
+                }
+            }
+        }
+
+        return new SearchCapabilities(searchParams, canExpand);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void addValues(
+            Iterable<IPrimitiveType> values, Map<String, Set<String>> searchParams, String resourceType) {
+        for (var value : values) {
+            searchParams.computeIfAbsent(resourceType, t -> new HashSet<>()).add(value.getValueAsString());
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static boolean hasExpand(Iterable<IPrimitiveType> operations) {
+        for (var operation : operations) {
+            var name = operation.getValueAsString();
+            if ("expand".equals(name) || "$expand".equals(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if the repository provided its capabilities.
+     */
+    public boolean isKnown() {
+        return this.searchParams != null;
+    }
+
+    /**
+     * Returns true if the repository declares the search parameter for the resource type, or for
+     * every resource type. Unknown capabilities support every search parameter.
+     */
+    public boolean supportsSearchParam(String resourceType, String name) {
+        if (!isKnown()) {
+            return true;
+        }
+
+        return this.searchParams
+                        .getOrDefault(resourceType, Collections.emptySet())
+                        .contains(name)
+                || this.searchParams.getOrDefault("", Collections.emptySet()).contains(name);
+    }
+
+    /**
+     * Returns true if the repository is able to filter the search parameter with the :in modifier.
+     * CapabilityStatements don't declare the modifiers of a search parameter, so a repository
+     * that supports the search parameter and is able to expand ValueSets is assumed to support
+     * the modifier. Unknown capabilities support the modifier.
+     */
+    public boolean supportsInModifier(String resourceType, String name) {
+        return !isKnown() || (this.canExpand && supportsSearchParam(resourceType, name));
+    }
+}
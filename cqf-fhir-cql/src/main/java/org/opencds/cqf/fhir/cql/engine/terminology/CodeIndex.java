@@ -0,0 +1,102 @@
+package org.opencds.cqf.fhir.cql.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * An immutable expansion of a ValueSet, sorted by code, that indexes the systems of each code for
+ * membership checks. A check is a single hash lookup followed by a comparison against the systems
+ * the code is defined in, without allocating. The system strings are shared between codes.
+ * <p>
+ * The codes of an index never change. A {@link ValueSetCache} records on the index when it stops
+ * holding it, so that holders of the index can tell when to get it from the cache again.
+ */
+public class CodeIndex extends AbstractList<Code> implements RandomAccess {
+
+    private static final String[] NO_SYSTEMS = new String[0];
+
+    private static final Comparator<Code> CODE_COMPARATOR =
+            Comparator.comparing(Code::getCode, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final Code[] codes;
+    private final Map<String, String[]> systemsByCode;
+
+    // Set once the cache that held the index evicts, replaces or invalidates it
+    private volatile boolean removed;
+
+    // The Ticker time after which the cache that holds the index expires it, 0 if it doesn't expire
+    private volatile long expiresAt;
+
+    public CodeIndex(List<Code> codes) {
+        requireNonNull(codes, "codes can not be null");
+
+        this.codes = codes.toArray(new Code[0]);
+        Arrays.sort(this.codes, CODE_COMPARATOR);
+
+        var systems = new HashMap<String, String>();
+        this.systemsByCode = new HashMap<>(this.codes.length * 2);
+        for (Code code : this.codes) {
+            var system = code.getSystem() != null ? systems.computeIfAbsent(code.getSystem(), x -> x) : null;
+            var existing = this.systemsByCode.getOrDefault(code.getCode(), NO_SYSTEMS);
+            if (!contains(existing, system)) {
+                var updated = Arrays.copyOf(existing, existing.length + 1);
+                updated[existing.length] = system;
+                this.systemsByCode.put(code.getCode(), updated);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the expansion contains a code with the code value and system of the given
+     * code.
+     */
+    public boolean includes(Code code) {
+        var systems = this.systemsByCode.get(code.getCode());
+        return systems != null && contains(systems, code.getSystem());
+    }
+
+    boolean isRemoved() {
+        return this.removed;
+    }
+
+    void remove() {
+        this.removed = true;
+    }
+
+    long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    private static boolean contains(String[] systems, String system) {
+        for (String s : systems) {
+            if (Objects.equals(s, system)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Code get(int index) {
+        return this.codes[index];
+    }
+
+    @Override
+    public int size() {
+        return this.codes.length;
+    }
+}
@@ -4,12 +4,21 @@ import static java.util.Objects.requireNonNull;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.util.BundleUtil;
+import com.google.common.collect.Lists;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -23,51 +32,56 @@ import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings.VALUESET_
 import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings.VALUESET_PRE_EXPANSION_MODE;
 import org.opencds.cqf.fhir.cql.engine.utility.ValueSets;
 import org.opencds.cqf.fhir.utility.FhirPathCache;
+import org.opencds.cqf.fhir.utility.iterable.BundleIterable;
 import org.opencds.cqf.fhir.utility.search.Searches;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /*
- * The implementation of this class uses a sorted list to perform terminology membership operations.
- * I tried changing the implementation to use a TreeSet rather than a sorted list and a binary
- * search, but found that the performance was reduced by ~33%. Please run the benchmarks to verify
- * that changes to this class do not result in significant performance degradation.
+ * The expansions are cached as a CodeIndex, a list of the codes sorted by code value that indexes
+ * the systems of each code. Membership checks are a hash lookup on the code value, without
+ * allocation. Earlier implementations used a binary search of the sorted list and a TreeSet, which
+ * were slower. The expansions are held by a ValueSetCache that can be shared by many providers.
+ * Please run the benchmarks to verify that changes to this class do not result in
+ * significant performance degradation.
  */
 public class RepositoryTerminologyProvider implements TerminologyProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(RepositoryTerminologyProvider.class);
 
-    private static final Comparator<Code> CODE_COMPARATOR =
-            (x, y) -> x.getCode().compareTo(y.getCode());
+    // The number of urls in a single prefetch search, which keeps the query string of a GET short
+    static final int PREFETCH_BATCH_SIZE = 50;
+
     private final Repository repository;
     private final FhirContext fhirContext;
     private final IFhirPath fhirPath;
-    private final Map<String, List<Code>> valueSetIndex;
+    private final ValueSetCache valueSetCache;
     private final TerminologySettings terminologySettings;
 
-    // The cached expansions are sorted by code order
-    // This is used determine the range of codes to check
-    private static class Range {
-
-        public static final Range EMPTY = new Range(-1, -1);
-
-        public Range(int start, int end) {
-            this.start = start;
-            this.end = end;
-        }
-
-        public final int start;
-        public final int end;
-    }
+    // The expansions last used by ValueSet url and version (empty if there's none). Looking them up
+    // by parts avoids building the url|version key of the valueSetCache for every membership check.
+    // The expansions are weakly held, so that those the cache no longer holds can be collected, and
+    // are got from the cache again once it no longer holds them.
+    private final Map<String, Map<String, WeakReference<CodeIndex>>> codeIndexes = new ConcurrentHashMap<>();
 
+    /**
+     * Creates a provider that caches expansions in the cache shared by the providers of the
+     * repository.
+     *
+     * @see ValueSetCache#forRepository(Repository)
+     */
     public RepositoryTerminologyProvider(Repository repository, TerminologySettings terminologySettings) {
-        this(repository, new HashMap<>(), terminologySettings);
+        this(repository, ValueSetCache.forRepository(repository), terminologySettings);
     }
 
+    /**
+     * Creates a provider that caches expansions in the given cache. Providers that share a cache
+     * share the expansions, so engines should be given the same cache wherever possible.
+     */
     public RepositoryTerminologyProvider(
-            Repository repository, Map<String, List<Code>> valueSetIndex, TerminologySettings terminologySettings) {
+            Repository repository, ValueSetCache valueSetCache, TerminologySettings terminologySettings) {
         this.repository = requireNonNull(repository, "repository can not be null.");
-        this.valueSetIndex = requireNonNull(valueSetIndex, "valueSetIndex can not be null.");
+        this.valueSetCache = requireNonNull(valueSetCache, "valueSetCache can not be null.");
         this.terminologySettings = requireNonNull(terminologySettings, "terminologySettings can not be null.");
 
         this.fhirContext = repository.fhirContext();
@@ -75,7 +89,7 @@ public class RepositoryTerminologyProvider implements TerminologyProvider {
     }
 
     public RepositoryTerminologyProvider(Repository repository) {
-        this(repository, new HashMap<>(), new TerminologySettings());
+        this(repository, new TerminologySettings());
     }
 
     /**
@@ -92,20 +106,24 @@ public class RepositoryTerminologyProvider implements TerminologyProvider {
         // during evaluation
         requireNonNull(code, "code can not be null when using 'expand'");
         requireNonNull(valueSet, "valueSet can not be null when using 'expand'");
+        requireNonNull(valueSet.getId(), "valueSet id can not be null when using 'expand'");
 
-        List<Code> codes = this.expand(valueSet);
+        return this.codeIndex(valueSet).includes(code);
+    }
 
-        // This range includes all codes that have an equivalent code value,
-        // So we only need to check the code system.
-        Range range = this.getSearchRange(code, codes);
-        for (int i = range.start; i < range.end; i++) {
-            var c = codes.get(i);
-            if (c.getSystem().equals(code.getSystem())) {
-                return true;
-            }
+    private CodeIndex codeIndex(ValueSetInfo valueSet) {
+        var version = valueSet.getVersion() != null ? valueSet.getVersion() : "";
+        var versions = this.codeIndexes.get(valueSet.getId());
+        var reference = versions != null ? versions.get(version) : null;
+        var index = reference != null ? reference.get() : null;
+        if (index == null || !this.valueSetCache.holds(index)) {
+            index = this.expansion(valueSet);
+            this.codeIndexes
+                    .computeIfAbsent(valueSet.getId(), k -> new ConcurrentHashMap<>())
+                    .put(version, new WeakReference<>(index));
         }
 
-        return false;
+        return index;
     }
 
     /**
@@ -120,11 +138,14 @@ public class RepositoryTerminologyProvider implements TerminologyProvider {
     @Override
     public List<Code> expand(ValueSetInfo valueSet) {
         requireNonNull(valueSet, "valueSet can not be null when using 'expand'");
+        return this.expansion(valueSet);
+    }
 
+    private CodeIndex expansion(ValueSetInfo valueSet) {
         // create a url|version canonical url from the info
-        var url = valueSet.getId() + (valueSet.getVersion() != null ? ("|" + valueSet.getVersion()) : "");
+        var url = canonical(valueSet);
 
-        var expansion = this.valueSetIndex.computeIfAbsent(url, k -> tryExpand(valueSet));
+        var expansion = this.valueSetCache.get(url, k -> tryExpand(valueSet));
         if (expansion == null) {
             throw new IllegalArgumentException(
                     String.format("Unable to get expansion for ValueSet %s", valueSet.getId()));
@@ -143,9 +164,7 @@ public class RepositoryTerminologyProvider implements TerminologyProvider {
     // possible. A "naive" expansion includes only codes directly referenced in the ValueSet
     // It's not possible to run expansion filters without the support of a terminology server.
     private List<Code> tryExpand(ValueSetInfo valueSet) {
-        var codes = performExpansion(valueSet);
-        Collections.sort(codes, CODE_COMPARATOR);
-        return codes;
+        return performExpansion(valueSet);
     }
 
     private List<Code> tryExpandOperation(IBaseResource vs, ValueSetInfo valueSet) {
@@ -195,11 +214,7 @@ public class RepositoryTerminologyProvider implements TerminologyProvider {
                 ? Searches.byUrlAndVersion(valueSet.getId(), valueSet.getVersion())
                 : Searches.byUrl(valueSet.getId());
 
-        @SuppressWarnings("unchecked")
-        var results = this.repository.search(
-                (Class<? extends IBaseBundle>) classFor("Bundle"), classFor("ValueSet"), search, null);
-
-        var resources = BundleUtil.toListOfResources(fhirContext, results);
+        var resources = BundleUtil.toListOfResources(fhirContext, searchValueSets(search));
 
         if (resources.isEmpty()) {
             throw new IllegalArgumentException(String.format("Unable to locate ValueSet %s", valueSet.getId()));
@@ -209,7 +224,10 @@ public class RepositoryTerminologyProvider implements TerminologyProvider {
             throw new IllegalArgumentException(String.format("Multiple ValueSets resolved for %s", valueSet.getId()));
         }
 
-        var vs = resources.get(0);
+        return performExpansion(resources.get(0), valueSet);
+    }
+
+    private List<Code> performExpansion(IBaseResource vs, ValueSetInfo valueSet) {
         var codes = tryPreExpansion(vs, valueSet);
         if (codes != null) {
             return codes;
@@ -223,6 +241,85 @@ public class RepositoryTerminologyProvider implements TerminologyProvider {
         return tryNaiveExpansion(vs, valueSet);
     }
 
+    @SuppressWarnings("unchecked")
+    private IBaseBundle searchValueSets(Map<String, List<IQueryParameterType>> search) {
+        return this.repository.search(
+                (Class<? extends IBaseBundle>) classFor("Bundle"), classFor("ValueSet"), search, null);
+    }
+
+    /**
+     * Expands the ValueSets that are not cached yet, so that evaluation doesn't wait on terminology
+     * requests one ValueSet at a time. The ValueSets are fetched with a search per
+     * {@value #PREFETCH_BATCH_SIZE} urls and expanded on the executor. ValueSets that can't be
+     * resolved or expanded are skipped, and the error is reported when the ValueSet is used.
+     *
+     * @param valueSets the ValueSets to expand
+     * @param executor runs the expansions, e.g. to invoke $expand concurrently
+     */
+    public void prefetch(Collection<ValueSetInfo> valueSets, Executor executor) {
+        requireNonNull(valueSets, "valueSets can not be null");
+        requireNonNull(executor, "executor can not be null");
+
+        var pending = new LinkedHashMap<String, ValueSetInfo>();
+        for (var valueSet : valueSets) {
+            if (valueSet != null && valueSet.getId() != null) {
+                var url = canonical(valueSet);
+                if (!this.valueSetCache.contains(url)) {
+                    pending.putIfAbsent(url, valueSet);
+                }
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        var urls = pending.values().stream().map(ValueSetInfo::getId).distinct().collect(Collectors.toList());
+        var resourcesByUrl = new HashMap<String, List<IBaseResource>>();
+        for (var batch : Lists.partition(urls, PREFETCH_BATCH_SIZE)) {
+            try {
+                var bundle = searchValueSets(Searches.byUrl(batch.toArray(new String[0])));
+                for (var entry : new BundleIterable<>(this.repository, bundle)) {
+                    var resource = entry.getResource();
+                    if (resource != null) {
+                        resourcesByUrl
+                                .computeIfAbsent(ValueSets.getUrl(this.fhirContext, resource), k -> new ArrayList<>())
+                                .add(resource);
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Unable to prefetch ValueSets {}", batch, e);
+            }
+        }
+
+        var expansions = new ArrayList<CompletableFuture<?>>(pending.size());
+        for (var entry : pending.entrySet()) {
+            var valueSet = entry.getValue();
+            var candidates = resourcesByUrl.getOrDefault(valueSet.getId(), Collections.emptyList()).stream()
+                    .filter(x -> valueSet.getVersion() == null
+                            || valueSet.getVersion().equals(ValueSets.getVersion(this.fhirContext, x)))
+                    .collect(Collectors.toList());
+            if (candidates.size() != 1) {
+                continue;
+            }
+
+            expansions.add(CompletableFuture.runAsync(
+                            () -> this.valueSetCache.get(
+                                    entry.getKey(), k -> performExpansion(candidates.get(0), valueSet)),
+                            executor)
+                    .exceptionally(e -> {
+                        logger.debug("Unable to prefetch the expansion of ValueSet {}", entry.getKey(), e);
+                        return null;
+                    }));
+        }
+
+        CompletableFuture.allOf(expansions.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private static String canonical(ValueSetInfo valueSet) {
+        return valueSet.getId() + (valueSet.getVersion() != null ? ("|" + valueSet.getVersion()) : "");
+    }
+
     private List<Code> tryPreExpansion(IBaseResource vs, ValueSetInfo valueSet) {
         if (this.terminologySettings.getValuesetPreExpansionMode() == VALUESET_PRE_EXPANSION_MODE.IGNORE) {
             return null;
@@ -245,32 +342,6 @@ public class RepositoryTerminologyProvider implements TerminologyProvider {
         return codes;
     }
 
-    // Given a set of Codes sorted by ".code", find the range that matching codes
-    // occur in. This function first performs a binary search to find a matching element
-    // and then iterates backwards and forwards from there to get the set of candidate codes
-    private Range getSearchRange(Code code, List<Code> expansion) {
-        int index = Collections.binarySearch(expansion, code, CODE_COMPARATOR);
-
-        if (index < 0) {
-            return Range.EMPTY;
-        }
-
-        int first = index;
-        int last = index + 1;
-
-        var value = code.getCode();
-
-        while (first > 0 && expansion.get(first - 1).getCode().equals(value)) {
-            first--;
-        }
-
-        while (last < expansion.size() && expansion.get(last).getCode().equals(value)) {
-            last++;
-        }
-
-        return new Range(first, last);
-    }
-
     /**
      * Lookup is only partially implemented for this TerminologyProvider. Full implementation requires
      * the ability to access the full CodeSystem. This implementation only checks the code system of
@@ -60,6 +60,10 @@ public class TerminologySettings {
     private CODE_LOOKUP_MODE codeLookupMode = CODE_LOOKUP_MODE.AUTO;
     private VALUESET_PRE_EXPANSION_MODE valueSetPreExpansionMode = VALUESET_PRE_EXPANSION_MODE.USE_IF_PRESENT;
 
+    // Expand all the ValueSets of a library before evaluating it. Useful when the ValueSets are
+    // expanded by the CQL engine (e.g. terminology is filtered in memory) rather than by the server.
+    private boolean prefetchValueSets = false;
+
     public VALUESET_EXPANSION_MODE getValuesetExpansionMode() {
         return valuesetExpansionMode;
     }
@@ -96,4 +100,13 @@ public class TerminologySettings {
         this.valueSetPreExpansionMode = valuesetPreExpansionMode;
         return this;
     }
+
+    public boolean getPrefetchValueSets() {
+        return this.prefetchValueSets;
+    }
+
+    public TerminologySettings setPrefetchValueSets(boolean prefetchValueSets) {
+        this.prefetchValueSets = prefetchValueSets;
+        return this;
+    }
 }
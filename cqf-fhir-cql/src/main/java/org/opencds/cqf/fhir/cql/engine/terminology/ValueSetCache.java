@@ -0,0 +1,291 @@
+package org.opencds.cqf.fhir.cql.engine.terminology;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.fhir.api.Repository;
+
+/**
+ * A cache of ValueSet expansions, keyed by the url|version of the ValueSet. The cache is bounded by
+ * the total number of codes it holds, optionally expires expansions a fixed time after they were
+ * loaded, and records hit, miss and load time statistics. Concurrent requests for an expansion that
+ * isn't cached wait for a single load rather than each expanding the ValueSet.
+ * <p>
+ * This class is thread-safe, and a single instance can be shared by all the engines in a JVM.
+ */
+public class ValueSetCache {
+
+    // The number of codes retained by default
+    public static final long DEFAULT_MAXIMUM_CODES = 1_000_000;
+
+    // The caches of the providers that aren't given one, so that providers for the same repository
+    // share expansions. Repositories are compared by identity and released once no longer in use.
+    private static final Cache<Repository, ValueSetCache> BY_REPOSITORY =
+            CacheBuilder.newBuilder().weakKeys().build();
+
+    // The caches that adapt the maps of the deprecated Map-based settings, by map identity
+    private static final Cache<Map<String, List<Code>>, ValueSetCache> BY_MAP =
+            CacheBuilder.newBuilder().weakKeys().build();
+
+    private final Cache<String, CodeIndex> cache;
+    private final Map<String, List<Code>> mapView = new MapView();
+    private final Ticker ticker;
+    private final long expireAfterWriteNanos;
+
+    /**
+     * Creates a cache that holds up to {@link #DEFAULT_MAXIMUM_CODES} codes and does not expire
+     * expansions.
+     */
+    public ValueSetCache() {
+        this(DEFAULT_MAXIMUM_CODES, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a cache
+     *
+     * @param maximumCodes the maximum total number of codes in the cached expansions
+     * @param expireAfterWrite the time after which expansions are loaded again, 0 to never expire
+     * @param unit the unit of expireAfterWrite
+     */
+    public ValueSetCache(long maximumCodes, long expireAfterWrite, TimeUnit unit) {
+        this(maximumCodes, expireAfterWrite, unit, Ticker.systemTicker());
+    }
+
+    ValueSetCache(long maximumCodes, long expireAfterWrite, TimeUnit unit, Ticker ticker) {
+        checkArgument(maximumCodes >= 0, "maximumCodes can not be negative");
+        checkArgument(expireAfterWrite >= 0, "expireAfterWrite can not be negative");
+        requireNonNull(unit, "unit can not be null");
+        requireNonNull(ticker, "ticker can not be null");
+
+        this.ticker = ticker;
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+
+        var builder = CacheBuilder.newBuilder()
+                .maximumWeight(maximumCodes)
+                .<String, CodeIndex>weigher((key, codes) -> codes.size())
+                .removalListener(this::removed)
+                .ticker(ticker)
+                .recordStats();
+        if (this.expireAfterWriteNanos > 0) {
+            builder.expireAfterWrite(this.expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+        }
+
+        this.cache = builder.build();
+    }
+
+    private void removed(RemovalNotification<String, CodeIndex> notification) {
+        // An index put again under its key is still held
+        var index = notification.getValue();
+        if (index != null && this.cache.asMap().get(notification.getKey()) != index) {
+            index.remove();
+        }
+    }
+
+    /**
+     * Returns the cache shared by the providers of a repository that aren't given a cache.
+     *
+     * @param repository the repository, compared by identity
+     * @return the cache of the repository
+     */
+    public static ValueSetCache forRepository(Repository repository) {
+        requireNonNull(repository, "repository can not be null");
+        try {
+            return BY_REPOSITORY.get(repository, ValueSetCache::new);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns a cache for a map of expansions, for callers of the Map-based settings. A map returned
+     * by {@link #asMap()} gives back its cache. Any other map gives a cache that starts with its
+     * expansions, and the same map always gives the same cache, so settings that share a map share
+     * the expansions. Expansions added to the cache are not written to the map.
+     *
+     * @param map the expansions by url|version
+     * @return the cache for the map
+     */
+    public static ValueSetCache of(Map<String, List<Code>> map) {
+        requireNonNull(map, "map can not be null");
+        if (map instanceof ValueSetCache.MapView) {
+            return ((ValueSetCache.MapView) map).owner();
+        }
+
+        try {
+            return BY_MAP.get(map, () -> {
+                var cache = new ValueSetCache();
+                map.forEach(cache::put);
+                return cache;
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns a view of the cached expansions as a map. Changes to the map change the cache.
+     */
+    public Map<String, List<Code>> asMap() {
+        return this.mapView;
+    }
+
+    /**
+     * Returns the cached expansion for the key, loading it if it is not cached. Concurrent calls for
+     * the same key share a single load. Exceptions thrown by the loader are rethrown.
+     *
+     * @param key the url|version of the ValueSet
+     * @param loader expands the ValueSet
+     * @return the expansion, or null if the loader returned null
+     */
+    public CodeIndex get(String key, Function<String, List<Code>> loader) {
+        requireNonNull(key, "key can not be null");
+        requireNonNull(loader, "loader can not be null");
+
+        try {
+            return this.cache.get(key, () -> load(key, loader));
+        } catch (UncheckedExecutionException | ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IllegalStateException(e.getCause());
+        } catch (InvalidCacheLoadException e) {
+            return null;
+        }
+    }
+
+    private CodeIndex load(String key, Function<String, List<Code>> loader) {
+        var codes = loader.apply(key);
+        if (codes == null) {
+            return null;
+        }
+
+        var index = codes instanceof CodeIndex ? (CodeIndex) codes : new CodeIndex(codes);
+        if (this.expireAfterWriteNanos > 0) {
+            var expiresAt = this.ticker.read() + this.expireAfterWriteNanos;
+            index.setExpiresAt(expiresAt != 0 ? expiresAt : 1);
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns true if the cache still holds an expansion it returned, without counting a hit or
+     * miss. An expansion is no longer held once it has been evicted, replaced, invalidated or
+     * expired.
+     *
+     * @param index an expansion returned by this cache
+     * @return true if the expansion is still held
+     */
+    public boolean holds(CodeIndex index) {
+        if (index.isRemoved()) {
+            return false;
+        }
+
+        var expiresAt = index.getExpiresAt();
+        return expiresAt == 0 || this.ticker.read() - expiresAt < 0;
+    }
+
+    /**
+     * Returns the cached expansion for the key, or null if it is not cached.
+     */
+    public CodeIndex getIfPresent(String key) {
+        return this.cache.getIfPresent(key);
+    }
+
+    /**
+     * Returns true if an expansion is cached for the key, without counting a hit or miss.
+     */
+    public boolean contains(String key) {
+        return this.cache.asMap().containsKey(key);
+    }
+
+    /**
+     * Caches an expansion, replacing any expansion cached for the key.
+     */
+    public void put(String key, List<Code> codes) {
+        requireNonNull(key, "key can not be null");
+        requireNonNull(codes, "codes can not be null");
+        this.cache.put(key, load(key, k -> codes));
+    }
+
+    public void invalidate(String key) {
+        this.cache.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+
+    public long size() {
+        return this.cache.size();
+    }
+
+    /**
+     * The statistics of the expansions requested from this cache. A terminology provider answers the
+     * membership checks for a ValueSet from the expansion it last got from the cache, for as long as
+     * the cache {@link #holds(CodeIndex) holds} it, and those checks are not counted.
+     */
+    public CacheStats getStats() {
+        return this.cache.stats();
+    }
+
+    private class MapView extends AbstractMap<String, List<Code>> {
+        private ValueSetCache owner() {
+            return ValueSetCache.this;
+        }
+
+        @Override
+        public Set<Entry<String, List<Code>>> entrySet() {
+            return Collections.<String, List<Code>>unmodifiableMap(cache.asMap()).entrySet();
+        }
+
+        @Override
+        public List<Code> get(Object key) {
+            return cache.asMap().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return cache.asMap().containsKey(key);
+        }
+
+        @Override
+        public List<Code> put(String key, List<Code> codes) {
+            var previous = cache.asMap().get(key);
+            ValueSetCache.this.put(key, codes);
+            return previous;
+        }
+
+        @Override
+        public List<Code> remove(Object key) {
+            return cache.asMap().remove(key);
+        }
+
+        @Override
+        public void clear() {
+            cache.invalidateAll();
+        }
+
+        @Override
+        public int size() {
+            return cache.asMap().size();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.opencds.cqf.fhir.cql.engine.terminology;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.hl7.cql.model.NamespaceManager;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.ValueSetDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expands the ValueSets a library and the libraries it includes use before the library is
+ * evaluated, so that the first subject evaluated doesn't wait on one terminology request per
+ * ValueSet. See {@link RepositoryTerminologyProvider#prefetch}.
+ */
+public class ValueSetPrefetch {
+    private static final Logger logger = LoggerFactory.getLogger(ValueSetPrefetch.class);
+
+    private ValueSetPrefetch() {}
+
+    /**
+     * Returns the ValueSets defined by the library and the libraries it includes. Libraries that
+     * can't be resolved are skipped.
+     */
+    public static List<ValueSetInfo> getValueSets(
+            LibraryManager libraryManager, VersionedIdentifier libraryIdentifier) {
+        requireNonNull(libraryManager, "libraryManager can not be null");
+        requireNonNull(libraryIdentifier, "libraryIdentifier can not be null");
+
+        var valueSets = new ArrayList<ValueSetInfo>();
+        var visited = new HashSet<String>();
+        var queue = new ArrayDeque<VersionedIdentifier>();
+        queue.add(libraryIdentifier);
+        while (!queue.isEmpty()) {
+            var identifier = queue.remove();
+            if (!visited.add(identifier.getSystem() + "|" + identifier.getId() + "|" + identifier.getVersion())) {
+                continue;
+            }
+
+            Library library;
+            try {
+                library = libraryManager.resolveLibrary(identifier).getLibrary();
+            } catch (RuntimeException e) {
+                logger.debug("Unable to resolve library {} to prefetch its ValueSets", identifier.getId(), e);
+                continue;
+            }
+
+            if (library.getValueSets() != null) {
+                for (ValueSetDef def : library.getValueSets().getDef()) {
+                    valueSets.add(new ValueSetInfo().withId(def.getId()).withVersion(def.getVersion()));
+                }
+            }
+
+            if (library.getIncludes() != null) {
+                for (IncludeDef def : library.getIncludes().getDef()) {
+                    queue.add(new VersionedIdentifier()
+                            .withSystem(NamespaceManager.getUriPart(def.getPath()))
+                            .withId(NamespaceManager.getNamePart(def.getPath()))
+                            .withVersion(def.getVersion()));
+                }
+            }
+        }
+
+        return valueSets;
+    }
+
+    /**
+     * Expands the ValueSets used by the library with the terminology provider of the engine, using
+     * up to the given number of threads. Does nothing unless the engine uses a
+     * RepositoryTerminologyProvider.
+     */
+    public static void prefetch(CqlEngine engine, VersionedIdentifier libraryIdentifier, int threads) {
+        requireNonNull(engine, "engine can not be null");
+
+        var environment = engine.getEnvironment();
+        if (!(environment.getTerminologyProvider() instanceof RepositoryTerminologyProvider)) {
+            return;
+        }
+
+        var terminologyProvider = (RepositoryTerminologyProvider) environment.getTerminologyProvider();
+        var valueSets = getValueSets(environment.getLibraryManager(), libraryIdentifier);
+        if (threads <= 1 || valueSets.size() <= 1) {
+            terminologyProvider.prefetch(valueSets, MoreExecutors.directExecutor());
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, valueSets.size()));
+        try {
+            terminologyProvider.prefetch(valueSets, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
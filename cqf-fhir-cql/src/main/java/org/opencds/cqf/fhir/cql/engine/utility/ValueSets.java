@@ -263,6 +263,11 @@ public class ValueSets {
         return getStringValueFromPrimitiveAccessor(valueSet, urlDef.getAccessor());
     }
 
+    public static String getVersion(FhirContext fhirContext, IBaseResource valueSet) {
+        BaseRuntimeChildDefinition versionDef = getValueSetVersionDefinition(fhirContext);
+        return getStringValueFromPrimitiveAccessor(valueSet, versionDef.getAccessor());
+    }
+
     public static String getId(FhirContext fhirContext, IBaseResource valueSet) {
         BaseRuntimeChildDefinition idDef = getIdDefinition(fhirContext);
         return getStringValueFromPrimitiveAccessor(valueSet, idDef.getAccessor());
@@ -442,6 +447,11 @@ public class ValueSets {
         return def.getChildByName("url");
     }
 
+    private static BaseRuntimeChildDefinition getValueSetVersionDefinition(FhirContext fhirContext) {
+        RuntimeResourceDefinition def = fhirContext.getResourceDefinition("ValueSet");
+        return def.getChildByName("version");
+    }
+
     private static BaseRuntimeChildDefinition getIdDefinition(FhirContext fhirContext) {
         RuntimeResourceDefinition def = fhirContext.getResourceDefinition("ValueSet");
         return def.getChildByName("id");
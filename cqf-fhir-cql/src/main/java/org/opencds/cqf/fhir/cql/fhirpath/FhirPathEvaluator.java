@@ -0,0 +1,125 @@
+package org.opencds.cqf.fhir.cql.fhirpath;
+
+import static java.util.Objects.requireNonNull;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.opencds.cqf.fhir.cql.fhirpath.dstu3.Dstu3FhirPathEvaluator;
+import org.opencds.cqf.fhir.cql.fhirpath.r4.R4FhirPathEvaluator;
+import org.opencds.cqf.fhir.cql.fhirpath.r5.R5FhirPathEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates FHIRPath expressions with the FHIRPath engine of a FHIR version, binding external
+ * constants such as %subject to the values of named variables. Parsed expressions are cached, so
+ * evaluating an expression again doesn't parse it.
+ * <p>
+ * Evaluators are thread-safe, and a single evaluator per FHIR version is shared through
+ * {@link #forContext(FhirContext)}.
+ *
+ * @param <N> the type of a parsed expression
+ */
+public abstract class FhirPathEvaluator<N> {
+    private static final Logger logger = LoggerFactory.getLogger(FhirPathEvaluator.class);
+
+    // The number of distinct expressions for which the parsed expression is retained
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+
+    private static final Map<FhirVersionEnum, FhirPathEvaluator<?>> EVALUATORS = new ConcurrentHashMap<>();
+
+    // Expressions that fail to parse are cached as empty
+    private final Cache<String, Optional<N>> parsedExpressions =
+            CacheBuilder.newBuilder().maximumSize(DEFAULT_CACHE_SIZE).build();
+
+    public static FhirPathEvaluator<?> forContext(FhirContext fhirContext) {
+        requireNonNull(fhirContext, "fhirContext can not be null");
+        return EVALUATORS.computeIfAbsent(fhirContext.getVersion().getVersion(), v -> create(fhirContext));
+    }
+
+    private static FhirPathEvaluator<?> create(FhirContext fhirContext) {
+        switch (fhirContext.getVersion().getVersion()) {
+            case DSTU3:
+                return new Dstu3FhirPathEvaluator(fhirContext);
+            case R4:
+                return new R4FhirPathEvaluator(fhirContext);
+            case R5:
+                return new R5FhirPathEvaluator(fhirContext);
+            default:
+                throw new IllegalArgumentException(String.format(
+                        "unsupported FHIR version: %s",
+                        fhirContext.getVersion().getVersion().getFhirVersionString()));
+        }
+    }
+
+    /**
+     * Returns true if the expression is valid FHIRPath.
+     */
+    public boolean canEvaluate(String expression) {
+        return parsed(expression).isPresent();
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param expression the FHIRPath expression
+     * @param focus the focus of the expression, also %context and, if it is a resource, %resource
+     * @param variables the values of the external constants, by name without the leading %
+     * @return the result of the expression
+     */
+    public List<IBase> evaluate(String expression, IBase focus, Map<String, List<IBase>> variables) {
+        var parsed = parsed(expression)
+                .orElseThrow(() -> new IllegalArgumentException(
+                        String.format("Unable to parse the FHIRPath expression: %s", expression)));
+        return evaluate(parsed, focus, variables != null ? variables : new HashMap<>());
+    }
+
+    /**
+     * Returns the values of the parameters by name, without a leading %. Parameters with the same
+     * name are collected into a single variable.
+     */
+    public Map<String, List<IBase>> getVariables(IBaseParameters parameters) {
+        var variables = new HashMap<String, List<IBase>>();
+        if (parameters != null) {
+            collectVariables(parameters, (name, value) -> variables
+                    .computeIfAbsent(name.startsWith("%") ? name.substring(1) : name, k -> new ArrayList<>())
+                    .add(value));
+        }
+
+        return variables;
+    }
+
+    private Optional<N> parsed(String expression) {
+        requireNonNull(expression, "expression can not be null");
+        try {
+            return this.parsedExpressions.get(expression, () -> {
+                try {
+                    return Optional.of(parse(expression));
+                } catch (Exception e) {
+                    logger.debug("Unable to parse the FHIRPath expression: {}", expression, e);
+                    return Optional.empty();
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    protected abstract N parse(String expression) throws Exception;
+
+    protected abstract List<IBase> evaluate(N parsed, IBase focus, Map<String, List<IBase>> variables);
+
+    protected abstract void collectVariables(IBaseParameters parameters, BiConsumer<String, IBase> collector);
+}
@@ -0,0 +1,91 @@
+package org.opencds.cqf.fhir.cql.fhirpath.dstu3;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import org.hl7.fhir.dstu3.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.dstu3.model.Base;
+import org.hl7.fhir.dstu3.model.ExpressionNode;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.TypeDetails;
+import org.hl7.fhir.dstu3.utils.FHIRPathEngine;
+import org.hl7.fhir.dstu3.utils.FHIRPathUtilityClasses.FunctionDetails;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.opencds.cqf.fhir.cql.fhirpath.FhirPathEvaluator;
+
+public class Dstu3FhirPathEvaluator extends FhirPathEvaluator<ExpressionNode> {
+
+    private final FHIRPathEngine engine;
+
+    public Dstu3FhirPathEvaluator(FhirContext fhirContext) {
+        this.engine = new FHIRPathEngine(new HapiWorkerContext(fhirContext, fhirContext.getValidationSupport()));
+        this.engine.setHostServices(new Variables());
+    }
+
+    @Override
+    protected ExpressionNode parse(String expression) {
+        return this.engine.parse(expression);
+    }
+
+    @Override
+    protected List<IBase> evaluate(ExpressionNode parsed, IBase focus, Map<String, List<IBase>> variables) {
+        var resource = focus instanceof Resource ? (Resource) focus : null;
+        return new ArrayList<>(this.engine.evaluate(variables, resource, (Base) focus, parsed));
+    }
+
+    @Override
+    protected void collectVariables(IBaseParameters parameters, BiConsumer<String, IBase> collector) {
+        for (var parameter : ((Parameters) parameters).getParameter()) {
+            if (parameter.hasValue()) {
+                collector.accept(parameter.getName(), parameter.getValue());
+            } else if (parameter.hasResource()) {
+                collector.accept(parameter.getName(), parameter.getResource());
+            }
+        }
+    }
+
+    // Resolves external constants from the variables passed as the application context. DSTU3
+    // constants are single values, so only the first value of a variable is used.
+    private static class Variables implements FHIRPathEngine.IEvaluationContext {
+        @Override
+        @SuppressWarnings("unchecked")
+        public Base resolveConstant(Object appContext, String name) {
+            var values = ((Map<String, List<IBase>>) appContext).get(name);
+            return values == null || values.isEmpty() ? null : (Base) values.get(0);
+        }
+
+        @Override
+        public TypeDetails resolveConstantType(Object appContext, String name) {
+            return null;
+        }
+
+        @Override
+        public boolean log(String argument, List<Base> focus) {
+            return false;
+        }
+
+        @Override
+        public FunctionDetails resolveFunction(String functionName) {
+            return null;
+        }
+
+        @Override
+        public TypeDetails checkFunction(Object appContext, String functionName, List<TypeDetails> parameters) {
+            return null;
+        }
+
+        @Override
+        public List<Base> executeFunction(Object appContext, String functionName, List<List<Base>> parameters) {
+            return null;
+        }
+
+        @Override
+        public Base resolveReference(Object appContext, String url) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.opencds.cqf.fhir.cql.fhirpath.r4;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.TypeDetails;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+import org.hl7.fhir.r4.utils.FHIRPathUtilityClasses.FunctionDetails;
+import org.opencds.cqf.fhir.cql.fhirpath.FhirPathEvaluator;
+
+public class R4FhirPathEvaluator extends FhirPathEvaluator<ExpressionNode> {
+
+    private final FHIRPathEngine engine;
+
+    public R4FhirPathEvaluator(FhirContext fhirContext) {
+        this.engine = new FHIRPathEngine(new HapiWorkerContext(fhirContext, fhirContext.getValidationSupport()));
+        this.engine.setHostServices(new Variables());
+    }
+
+    @Override
+    protected ExpressionNode parse(String expression) {
+        return this.engine.parse(expression);
+    }
+
+    @Override
+    protected List<IBase> evaluate(ExpressionNode parsed, IBase focus, Map<String, List<IBase>> variables) {
+        var resource = focus instanceof Resource ? (Resource) focus : null;
+        return new ArrayList<>(this.engine.evaluate(variables, resource, resource, (Base) focus, parsed));
+    }
+
+    @Override
+    protected void collectVariables(IBaseParameters parameters, BiConsumer<String, IBase> collector) {
+        for (var parameter : ((Parameters) parameters).getParameter()) {
+            if (parameter.hasValue()) {
+                collector.accept(parameter.getName(), parameter.getValue());
+            } else if (parameter.hasResource()) {
+                collector.accept(parameter.getName(), parameter.getResource());
+            }
+        }
+    }
+
+    // Resolves external constants from the variables passed as the application context
+    private static class Variables implements FHIRPathEngine.IEvaluationContext {
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<Base> resolveConstant(Object appContext, String name, boolean beforeContext) {
+            var values = ((Map<String, List<IBase>>) appContext).get(name);
+            if (values == null) {
+                return new ArrayList<>();
+            }
+
+            var result = new ArrayList<Base>(values.size());
+            values.forEach(x -> result.add((Base) x));
+            return result;
+        }
+
+        @Override
+        public TypeDetails resolveConstantType(Object appContext, String name) {
+            return null;
+        }
+
+        @Override
+        public boolean log(String argument, List<Base> focus) {
+            return false;
+        }
+
+        @Override
+        public FunctionDetails resolveFunction(String functionName) {
+            return null;
+        }
+
+        @Override
+        public TypeDetails checkFunction(Object appContext, String functionName, List<TypeDetails> parameters) {
+            return null;
+        }
+
+        @Override
+        public List<Base> executeFunction(
+                Object appContext, List<Base> focus, String functionName, List<List<Base>> parameters) {
+            return null;
+        }
+
+        @Override
+        public Base resolveReference(Object appContext, String url, Base refContext) {
+            return null;
+        }
+
+        @Override
+        public boolean conformsToProfile(Object appContext, Base item, String url) throws FHIRException {
+            throw new FHIRException("conformsTo is not supported");
+        }
+
+        @Override
+        public ValueSet resolveValueSet(Object appContext, String url) {
+            return null;
+        }
+    }
+}
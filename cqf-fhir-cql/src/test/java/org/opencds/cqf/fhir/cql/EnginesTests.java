@@ -0,0 +1,126 @@
+package org.opencds.cqf.fhir.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.fhir.cql.cql2elm.ElmLibraryManager;
+import org.opencds.cqf.fhir.cql.cql2elm.PersistentLibraryCache;
+import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings;
+import org.opencds.cqf.fhir.test.TestRepositoryFactory;
+import org.opencds.cqf.fhir.utility.Constants;
+
+public class EnginesTests {
+
+    @Test
+    public void testSharedEnvironment() {
+        var repository = TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var settings = EvaluationSettings.getDefault();
+
+        // Engines share the caches of the settings
+        var first = Engines.forRepositoryAndSettings(settings, repository, null);
+        var second = Engines.forRepositoryAndSettings(settings, repository, null);
+        assertSame(
+                settings.getModelCache(),
+                first.getEnvironment().getLibraryManager().getModelManager().getGlobalCache());
+        assertSame(
+                settings.getLibraryCache(),
+                first.getEnvironment().getLibraryManager().getCompiledLibraries());
+        assertSame(
+                settings.getLibraryCache(),
+                second.getEnvironment().getLibraryManager().getCompiledLibraries());
+
+        // The ModelManager loads one version of each model, so it is built for each engine
+        assertNotSame(
+                first.getEnvironment().getLibraryManager().getModelManager(),
+                second.getEnvironment().getLibraryManager().getModelManager());
+        assertNotSame(first.getState(), second.getState());
+
+        // Engines without the library cache don't share compiled libraries
+        var uncached = Engines.forRepositoryAndSettings(settings, repository, null, null, false);
+        assertNotSame(
+                settings.getLibraryCache(),
+                uncached.getEnvironment().getLibraryManager().getCompiledLibraries());
+    }
+
+    @Test
+    public void testPersistentLibraryCacheWithoutElmContent(@TempDir Path directory) {
+        var repository = TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var settings =
+                EvaluationSettings.getDefault().withPersistentLibraryCache(new PersistentLibraryCache(directory));
+        assertFalse(settings.getCqlOptions().useElmContent());
+
+        var engine = Engines.forRepositoryAndSettings(settings, repository, null);
+        assertInstanceOf(ElmLibraryManager.class, engine.getEnvironment().getLibraryManager());
+
+        // Without a library cache, nothing is cached
+        var uncached = Engines.forRepositoryAndSettings(settings, repository, null, null, false);
+        assertFalse(uncached.getEnvironment().getLibraryManager() instanceof ElmLibraryManager);
+    }
+
+    @Test
+    public void testSecondEngineReusesProviders() {
+        var repository = TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var settings = EvaluationSettings.getDefault();
+
+        var misses = Engines.getSharedEnvironmentMisses();
+        var first = Engines.forRepositoryAndSettings(settings, repository, null);
+        assertEquals(misses + 1, Engines.getSharedEnvironmentMisses());
+
+        var hits = Engines.getSharedEnvironmentHits();
+        var second = Engines.forRepositoryAndSettings(settings, repository, null);
+        assertEquals(hits + 1, Engines.getSharedEnvironmentHits());
+        assertSame(
+                first.getEnvironment().getTerminologyProvider(),
+                second.getEnvironment().getTerminologyProvider());
+        // The data and retrieve providers hold the state of an evaluation, so each engine has its own
+        assertNotSame(first.getEnvironment().getDataProviders(), second.getEnvironment().getDataProviders());
+        assertNotSame(
+                first.getEnvironment().getDataProviders().get(Constants.FHIR_MODEL_URI),
+                second.getEnvironment().getDataProviders().get(Constants.FHIR_MODEL_URI));
+
+        // Other settings and other repositories get their own providers
+        var other = Engines.forRepositoryAndSettings(EvaluationSettings.getDefault(), repository, null);
+        assertNotSame(
+                first.getEnvironment().getTerminologyProvider(),
+                other.getEnvironment().getTerminologyProvider());
+        var otherRepository =
+                TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var otherEngine = Engines.forRepositoryAndSettings(settings, otherRepository, null);
+        assertNotSame(
+                first.getEnvironment().getTerminologyProvider(),
+                otherEngine.getEnvironment().getTerminologyProvider());
+
+        // Settings that no longer refer to the same caches get new providers
+        settings.setTerminologySettings(new TerminologySettings());
+        var changed = Engines.forRepositoryAndSettings(settings, repository, null);
+        assertNotSame(
+                first.getEnvironment().getTerminologyProvider(),
+                changed.getEnvironment().getTerminologyProvider());
+    }
+
+    @Test
+    public void testProvidersAreNotSharedAcrossThreads() throws Exception {
+        var repository = TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var settings = EvaluationSettings.getDefault();
+
+        var first = Engines.forRepositoryAndSettings(settings, repository, null);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var second = executor.submit(() -> Engines.forRepositoryAndSettings(settings, repository, null))
+                    .get();
+            assertNotSame(
+                    first.getEnvironment().getTerminologyProvider(),
+                    second.getEnvironment().getTerminologyProvider());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
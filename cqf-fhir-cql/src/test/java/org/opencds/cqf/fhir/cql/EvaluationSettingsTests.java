@@ -0,0 +1,74 @@
+package org.opencds.cqf.fhir.cql;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+public class EvaluationSettingsTests {
+
+    @Test
+    public void testInvalidateLibrary() {
+        var settings = EvaluationSettings.getDefault();
+        var changed = new VersionedIdentifier().withId("Common").withVersion("1.0.0");
+        var other = new VersionedIdentifier().withId("Other").withVersion("1.0.0");
+        settings.getLibraryCache().put(changed, new CompiledLibrary());
+        settings.getLibraryCache().put(other, new CompiledLibrary());
+
+        var including = new HashMap<VersionedIdentifier, CompiledLibrary>();
+        including.put(changed, new CompiledLibrary());
+        var repository = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        var expressions = settings.getExpressionCache().forRepository(repository);
+        expressions.put("including", including);
+        expressions.put("other", Collections.singletonMap(other, new CompiledLibrary()));
+
+        settings.invalidate(new Library().setName("Common").setVersion("1.0.0"));
+
+        assertFalse(settings.getLibraryCache().containsKey(changed));
+        assertTrue(settings.getLibraryCache().containsKey(other));
+        assertFalse(expressions.containsKey("including"));
+        assertTrue(expressions.containsKey("other"));
+    }
+
+    @Test
+    public void testInvalidateValueSet() {
+        var settings = EvaluationSettings.getDefault();
+        var url = "http://example.org/ValueSet/codes";
+        settings.getValueSetExpansionCache().put(url, Collections.emptyList());
+        settings.getValueSetExpansionCache().put("http://example.org/ValueSet/other", Collections.emptyList());
+
+        settings.invalidate(new ValueSet().setUrl(url));
+
+        assertFalse(settings.getValueSetExpansionCache().contains(url));
+        assertTrue(settings.getValueSetExpansionCache().contains("http://example.org/ValueSet/other"));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testValueSetCacheMap() {
+        var map = new HashMap<String, List<Code>>();
+        map.put("http://example.org/ValueSet/codes", Collections.emptyList());
+
+        var settings = new EvaluationSettings().withValueSetCache(map);
+        var other = new EvaluationSettings().withValueSetCache(map);
+        assertSame(settings.getValueSetExpansionCache(), other.getValueSetExpansionCache());
+        assertTrue(settings.getValueSetExpansionCache().contains("http://example.org/ValueSet/codes"));
+
+        // The map is a view of the expansion cache
+        settings.getValueSetCache().put("http://example.org/ValueSet/other", Collections.emptyList());
+        assertTrue(settings.getValueSetExpansionCache().contains("http://example.org/ValueSet/other"));
+        other.setValueSetCache(settings.getValueSetCache());
+        assertSame(settings.getValueSetExpansionCache(), other.getValueSetExpansionCache());
+    }
+}
@@ -1,10 +1,12 @@
 package org.opencds.cqf.fhir.cql;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.parameters;
 import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
 
 import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Practitioner;
@@ -38,4 +40,69 @@ public class LibraryEngineTests {
         var result2 = libraryEngine.resolveExpression(patientId, expression2, params, null);
         assertEquals("Provide discharge instructions for Alice", ((StringType) result2.get(0)).getValue());
     }
+
+    @Test
+    public void testExpressionCache() {
+        var repository = TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var settings = EvaluationSettings.getDefault();
+        var libraryEngine = new LibraryEngine(repository, settings);
+        var expression = new CqfExpression("text/cql-expression", "'Hello ' + %subject.name.given.first()", null);
+
+        var params = parameters();
+        params.addParameter(part("%subject", new Patient().addName(new HumanName().addGiven("Alice"))));
+        var result = libraryEngine.resolveExpression("Patient/Patient1", expression, params, null);
+        assertEquals("Hello Alice", ((StringType) result.get(0)).getValue());
+        assertEquals(1, settings.getExpressionCache().size());
+
+        // Same expression and parameter types with a different value reuses the compiled library
+        var params2 = parameters();
+        params2.addParameter(part("%subject", new Patient().addName(new HumanName().addGiven("Bob"))));
+        var result2 = libraryEngine.resolveExpression("Patient/Patient1", expression, params2, null);
+        assertEquals("Hello Bob", ((StringType) result2.get(0)).getValue());
+        assertEquals(1, settings.getExpressionCache().size());
+
+        // The included libraries may resolve differently in another repository, so it compiles its own
+        var other = TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var result3 =
+                new LibraryEngine(other, settings).resolveExpression("Patient/Patient1", expression, params, null);
+        assertEquals("Hello Alice", ((StringType) result3.get(0)).getValue());
+        assertEquals(2, settings.getExpressionCache().size());
+        assertEquals(1, settings.getExpressionCache().forRepository(repository).size());
+    }
+
+    @Test
+    public void testFhirPathIsNotTranslated() {
+        var repository = TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var settings = EvaluationSettings.getDefault();
+        var libraryEngine = new LibraryEngine(repository, settings);
+        var expression = new CqfExpression("text/fhirpath", "'Hello ' + %subject.name.given.first()", null);
+
+        var params = parameters();
+        params.addParameter(part("%subject", new Patient().addName(new HumanName().addGiven("Alice"))));
+        var result = libraryEngine.resolveExpression("Patient/Patient1", expression, params, null);
+        assertEquals("Hello Alice", ((StringType) result.get(0)).getValue());
+        assertEquals(0, settings.getExpressionCache().size());
+    }
+
+    @Test
+    public void testFhirPathSubject() {
+        var repository = TestRepositoryFactory.createRepository(FhirContext.forR4Cached(), this.getClass());
+        var libraryEngine = new LibraryEngine(repository, EvaluationSettings.getDefault());
+
+        var patient = new Patient().addName(new HumanName().addGiven("Alice").setFamily("Smith"));
+        patient.setId("Patient1");
+        var bundle = new Bundle();
+        bundle.addEntry().setResource(patient);
+
+        var expression = new CqfExpression(
+                "text/fhirpath",
+                "Patient.name.given.first() + ' ' + %resource.name.family.first() + ' ' + %subject.id",
+                null);
+        var result = libraryEngine.resolveExpression("Patient/Patient1", expression, null, bundle);
+        assertEquals("Alice Smith Patient1", ((StringType) result.get(0)).getValue());
+
+        // A subject that can't be found leaves the focus empty
+        var missing = new CqfExpression("text/fhirpath", "Patient.name.given", null);
+        assertNull(libraryEngine.resolveExpression("Patient/Patient2", missing, null, bundle));
+    }
 }
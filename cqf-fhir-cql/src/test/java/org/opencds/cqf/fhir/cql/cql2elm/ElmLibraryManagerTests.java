@@ -0,0 +1,151 @@
+package org.opencds.cqf.fhir.cql.cql2elm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryBuilder.SignatureLevel;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.fhir.cql.CqlOptions;
+import org.opencds.cqf.fhir.cql.cql2elm.ElmLibraryManager.ElmCompiledLibrary;
+import org.opencds.cqf.fhir.cql.cql2elm.content.RepositoryFhirLibrarySourceProvider;
+import org.opencds.cqf.fhir.cql.cql2elm.util.LibraryVersionSelector;
+import org.opencds.cqf.fhir.utility.adapter.r4.AdapterFactory;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+class ElmLibraryManagerTests {
+
+    private static final String CQL = "library Elm version '1.0.0'\n\ndefine \"Two\": 1 + 1\n";
+
+    private static final VersionedIdentifier IDENTIFIER =
+            new VersionedIdentifier().withId("Elm").withVersion("1.0.0");
+
+    private static String elm(CqlCompilerOptions options) {
+        return CqlTranslator.fromText(CQL, new LibraryManager(new ModelManager(), options))
+                .toJson();
+    }
+
+    private static ElmLibraryManager libraryManager(String elm) {
+        return libraryManager(elm, CQL, null);
+    }
+
+    private static ElmLibraryManager libraryManager(String elm, String cql, PersistentLibraryCache persistentCache) {
+        return libraryManager(elm, cql, persistentCache, true);
+    }
+
+    private static ElmLibraryManager libraryManager(
+            String elm, String cql, PersistentLibraryCache persistentCache, boolean useElmContent) {
+        var library = new Library().setName("Elm").setVersion("1.0.0");
+        library.setId("Elm");
+        if (elm != null) {
+            library.addContent().setContentType("application/elm+json").setData(elm.getBytes(StandardCharsets.UTF_8));
+        }
+        library.addContent().setContentType("text/cql").setData(cql.getBytes(StandardCharsets.UTF_8));
+
+        var repository = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        repository.update(library);
+        var adapterFactory = new AdapterFactory();
+
+        var libraryManager = new ElmLibraryManager(
+                new ModelManager(),
+                CqlOptions.defaultOptions().getCqlCompilerOptions(),
+                new HashMap<>(),
+                persistentCache,
+                useElmContent);
+        libraryManager
+                .getLibrarySourceLoader()
+                .registerProvider(new RepositoryFhirLibrarySourceProvider(
+                        repository, adapterFactory, new LibraryVersionSelector(adapterFactory)));
+        return libraryManager;
+    }
+
+    @Test
+    void testCompatibleElm() {
+        var libraryManager = libraryManager(elm(CqlOptions.defaultOptions().getCqlCompilerOptions()));
+
+        var compiled = libraryManager.resolveLibrary(IDENTIFIER);
+        assertInstanceOf(ElmCompiledLibrary.class, compiled);
+        assertFalse(compiled.getLibrary().getStatements().getDef().isEmpty());
+    }
+
+    @Test
+    void testIncompatibleElm() {
+        var options = CqlOptions.defaultOptions().getCqlCompilerOptions();
+        options.setSignatureLevel(SignatureLevel.Overloads);
+        var libraryManager = libraryManager(elm(options));
+
+        var compiled = libraryManager.resolveLibrary(IDENTIFIER);
+        assertFalse(compiled instanceof ElmCompiledLibrary);
+        assertNotNull(compiled.resolveExpressionRef("Two"));
+    }
+
+    @Test
+    void testIncludedLibrariesAreTranslated() {
+        var libraryManager = libraryManager(elm(CqlOptions.defaultOptions().getCqlCompilerOptions()));
+        assertInstanceOf(ElmCompiledLibrary.class, libraryManager.resolveLibrary(IDENTIFIER));
+
+        var translator = libraryManager.translating(() -> CqlTranslator.fromText(
+                "library Includes version '1.0.0'\n\ninclude Elm version '1.0.0'\n\ndefine \"Four\": Elm.\"Two\" + 2\n",
+                libraryManager));
+        assertTrue(translator.getErrors().isEmpty());
+        assertFalse(libraryManager.getCompiledLibraries().get(IDENTIFIER) instanceof ElmCompiledLibrary);
+    }
+
+    @Test
+    void testPersistentCache(@TempDir Path directory) throws IOException {
+        var persistentCache = new PersistentLibraryCache(directory);
+
+        // The first resolution translates the CQL and stores the ELM
+        var translated = libraryManager(null, CQL, persistentCache).resolveLibrary(IDENTIFIER);
+        assertFalse(translated instanceof ElmCompiledLibrary);
+        assertEquals(1, countEntries(directory));
+
+        // A new LibraryManager loads it from the persistent cache
+        var loaded = libraryManager(null, CQL, persistentCache).resolveLibrary(IDENTIFIER);
+        assertInstanceOf(ElmCompiledLibrary.class, loaded);
+        assertNotNull(loaded.getLibrary().getStatements());
+
+        // A change to the CQL misses the cache and replaces the entry
+        var changed = CQL.replace("1 + 1", "2");
+        var retranslated = libraryManager(null, changed, persistentCache).resolveLibrary(IDENTIFIER);
+        assertFalse(retranslated instanceof ElmCompiledLibrary);
+        assertEquals(1, countEntries(directory));
+        assertInstanceOf(
+                ElmCompiledLibrary.class,
+                libraryManager(null, changed, persistentCache).resolveLibrary(IDENTIFIER));
+    }
+
+    @Test
+    void testPersistentCacheWithoutElmContent(@TempDir Path directory) {
+        var persistentCache = new PersistentLibraryCache(directory);
+        var elm = elm(CqlOptions.defaultOptions().getCqlCompilerOptions());
+
+        // The ELM of the Library is ignored, but the translated ELM is still stored and loaded
+        var translated = libraryManager(elm, CQL, persistentCache, false).resolveLibrary(IDENTIFIER);
+        assertFalse(translated instanceof ElmCompiledLibrary);
+        assertInstanceOf(
+                ElmCompiledLibrary.class,
+                libraryManager(elm, CQL, persistentCache, false).resolveLibrary(IDENTIFIER));
+    }
+
+    private static long countEntries(Path directory) throws IOException {
+        try (var entries = Files.list(directory)) {
+            return entries.count();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.opencds.cqf.fhir.cql.cql2elm.content;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cql.cql2elm.util.LibraryVersionSelector;
+import org.opencds.cqf.fhir.utility.adapter.r4.AdapterFactory;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+class RepositoryFhirLibrarySourceProviderTests {
+
+    private static final String CQL = "library Elm version '1.0.0'\n\ndefine \"Two\": 1 + 1\n";
+
+    private static final AdapterFactory ADAPTER_FACTORY = new AdapterFactory();
+
+    private static VersionedIdentifier identifier() {
+        return new VersionedIdentifier().withId("Elm").withVersion("1.0.0");
+    }
+
+    private static Library library(String contentType, String content) {
+        var library = new Library().setName("Elm").setVersion("1.0.0");
+        library.setId("Elm");
+        library.addContent().setContentType(contentType).setData(content.getBytes(StandardCharsets.UTF_8));
+        return library;
+    }
+
+    private RepositoryFhirLibrarySourceProvider provider(Library library) {
+        var repository = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        repository.update(library);
+        return new RepositoryFhirLibrarySourceProvider(
+                repository, ADAPTER_FACTORY, new LibraryVersionSelector(ADAPTER_FACTORY));
+    }
+
+    @Test
+    void testContentTypeParameters() {
+        var provider = provider(library("application/elm+json; charset=utf-8", "{}"));
+
+        assertNotNull(provider.getLibraryContent(identifier(), LibraryContentType.JSON));
+        assertNull(provider.getLibraryContent(identifier(), LibraryContentType.XML));
+        assertNull(provider.getLibrarySource(identifier()));
+    }
+
+    @Test
+    void testCqlFallbackResolvesLibraryOnce() {
+        var counting = new CountingProvider(provider(library("text/cql", CQL)));
+
+        var libraryManager = new LibraryManager(new ModelManager());
+        libraryManager.getLibrarySourceLoader().registerProvider(counting);
+        var compiled = libraryManager.resolveLibrary(identifier());
+
+        assertNotNull(compiled.resolveExpressionRef("Two"));
+        assertEquals(1, counting.lookups);
+    }
+
+    @Test
+    void testLibraryIsReusedWithinAResolution() throws Exception {
+        var counting = new CountingProvider(provider(library("text/cql", CQL)));
+
+        assertNull(counting.getLibraryContent(identifier(), LibraryContentType.JSON));
+        assertNull(counting.getLibraryContent(identifier(), LibraryContentType.XML));
+        assertEquals(1, counting.lookups);
+
+        // Another thread starts its own resolution
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> counting.getLibraryContent(identifier(), LibraryContentType.XML))
+                    .get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2, counting.lookups);
+
+        // Asking for a content type again starts a new resolution
+        assertNull(counting.getLibraryContent(identifier(), LibraryContentType.JSON));
+        assertEquals(3, counting.lookups);
+        assertNotNull(counting.getLibrarySource(identifier()));
+        assertEquals(3, counting.lookups);
+    }
+
+    private static class CountingProvider extends BaseFhirLibrarySourceProvider {
+        private final RepositoryFhirLibrarySourceProvider delegate;
+        private int lookups;
+
+        CountingProvider(RepositoryFhirLibrarySourceProvider delegate) {
+            super(ADAPTER_FACTORY);
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected IBaseResource getLibrary(VersionedIdentifier libraryIdentifier) {
+            lookups++;
+            return delegate.getLibrary(libraryIdentifier);
+        }
+    }
+}
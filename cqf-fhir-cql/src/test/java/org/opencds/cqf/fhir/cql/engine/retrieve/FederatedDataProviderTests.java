@@ -0,0 +1,120 @@
+package org.opencds.cqf.fhir.cql.engine.retrieve;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.google.common.collect.Lists;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Encounter;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.fhir.utility.iterable.MemoizingIterable;
+
+class FederatedDataProviderTests {
+
+    private static final Code INPATIENT =
+            new Code().withSystem("http://example.org").withCode("inpatient");
+    private static final Code EMERGENCY =
+            new Code().withSystem("http://example.org").withCode("emergency");
+
+    private static RetrieveProvider countingProvider(AtomicInteger count) {
+        return (context,
+                contextPath,
+                contextValue,
+                dataType,
+                templateId,
+                codePath,
+                codes,
+                valueSet,
+                datePath,
+                dateLowPath,
+                dateHighPath,
+                dateRange) -> {
+            count.incrementAndGet();
+            return Collections.singletonList(new Encounter().setId("Encounter/" + contextValue));
+        };
+    }
+
+    private static List<Object> retrieve(FederatedDataProvider provider, String patient, Code... codes) {
+        return Lists.newArrayList(provider.retrieve(
+                "Patient",
+                "subject",
+                patient,
+                "Encounter",
+                null,
+                "type",
+                Arrays.asList(codes),
+                null,
+                null,
+                null,
+                null,
+                null));
+    }
+
+    @Test
+    void testRetrievesAreCachedForContextValue() {
+        var count = new AtomicInteger();
+        var provider = new FederatedDataProvider(
+                new R4FhirModelResolver(), Collections.singletonList(countingProvider(count)), true);
+
+        assertEquals(1, retrieve(provider, "p1", INPATIENT, EMERGENCY).size());
+        assertEquals(1, retrieve(provider, "p1", INPATIENT, EMERGENCY).size());
+        // The order of the codes doesn't matter
+        assertEquals(1, retrieve(provider, "p1", EMERGENCY, INPATIENT).size());
+        assertEquals(1, count.get());
+        assertEquals(2, provider.getCacheHits());
+
+        retrieve(provider, "p1", INPATIENT);
+        assertEquals(2, count.get());
+
+        // The results for a context value are dropped when the context value changes
+        retrieve(provider, "p2", INPATIENT);
+        retrieve(provider, "p1", INPATIENT);
+        assertEquals(4, count.get());
+        assertEquals(2, provider.getCacheHits());
+        assertEquals(4, provider.getCacheMisses());
+        assertEquals(2.0 / 6, provider.getCacheHitRate());
+    }
+
+    @Test
+    void testRetrievesAreNotCachedByDefault() {
+        var count = new AtomicInteger();
+        var provider = new FederatedDataProvider(
+                new R4FhirModelResolver(), Collections.singletonList(countingProvider(count)));
+
+        retrieve(provider, "p1", INPATIENT);
+        retrieve(provider, "p1", INPATIENT);
+        assertEquals(2, count.get());
+        assertEquals(0, provider.getCacheHits());
+        assertEquals(0.0, provider.getCacheHitRate());
+    }
+
+    @Test
+    void testMemoizedResultsAreCachedAsIs() {
+        var results = new MemoizingIterable<Object>(Collections.<Object>singletonList(new Encounter()).iterator());
+        RetrieveProvider memoizingProvider = (context,
+                contextPath,
+                contextValue,
+                dataType,
+                templateId,
+                codePath,
+                codes,
+                valueSet,
+                datePath,
+                dateLowPath,
+                dateHighPath,
+                dateRange) -> results;
+        var provider = new FederatedDataProvider(
+                new R4FhirModelResolver(), Collections.singletonList(memoizingProvider), true);
+
+        assertSame(
+                results,
+                provider.retrieve(
+                        "Patient", "subject", "p1", "Encounter", null, null, null, null, null, null, null, null));
+    }
+}
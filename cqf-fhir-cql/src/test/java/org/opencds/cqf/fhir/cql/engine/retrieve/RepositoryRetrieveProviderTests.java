@@ -0,0 +1,596 @@
+package org.opencds.cqf.fhir.cql.engine.retrieve;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.SEARCH_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.TERMINOLOGY_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.terminology.RepositoryTerminologyProvider;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+class RepositoryRetrieveProviderTests {
+
+    private static final Interval YEAR_2020 = new Interval(
+            new DateTime("2020-01-01T00:00:00.000", ZoneOffset.UTC),
+            true,
+            new DateTime("2020-12-31T23:59:59.999", ZoneOffset.UTC),
+            true);
+
+    private static final String GE_START =
+            "ge" + ((DateTime) YEAR_2020.getStart()).toJavaDate().getTime();
+    private static final String LE_END =
+            "le" + ((DateTime) YEAR_2020.getEnd()).toJavaDate().getTime();
+
+    private static RepositoryRetrieveProvider retrieveProvider(SEARCH_FILTER_MODE mode, Resource... resources) {
+        var repository = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        for (var resource : resources) {
+            repository.update(resource);
+        }
+
+        return new RepositoryRetrieveProvider(
+                repository,
+                new RepositoryTerminologyProvider(repository),
+                new RetrieveSettings().setSearchParameterMode(mode));
+    }
+
+    private static Encounter encounter(String id, String start, String end) {
+        var encounter = new Encounter();
+        encounter.setId("Encounter/" + id);
+        encounter.setSubject(new Reference("Patient/p1"));
+        var period = new Period();
+        if (start != null) {
+            period.setStartElement(new DateTimeType(start));
+        }
+        if (end != null) {
+            period.setEndElement(new DateTimeType(end));
+        }
+        encounter.setPeriod(period);
+        return encounter;
+    }
+
+    private static Observation observation(String id, String effective) {
+        var observation = new Observation();
+        observation.setId("Observation/" + id);
+        observation.setSubject(new Reference("Patient/p1"));
+        observation.setEffective(new DateTimeType(effective));
+        return observation;
+    }
+
+    private static List<String> ids(Iterable<Object> resources) {
+        var ids = new ArrayList<String>();
+        resources.forEach(r -> ids.add(((Resource) r).getIdElement().getIdPart()));
+        ids.sort(String::compareTo);
+        return ids;
+    }
+
+    @Test
+    void testInMemoryDatePathPeriod() {
+        var provider = retrieveProvider(
+                SEARCH_FILTER_MODE.FILTER_IN_MEMORY,
+                encounter("in", "2020-03-01", "2020-03-02"),
+                encounter("before", "2019-12-30", "2019-12-31"),
+                encounter("overlaps", "2020-12-31", "2021-01-01"),
+                encounter("open", "2020-05-01", null));
+
+        var result = provider.retrieve(
+                "Patient", "subject", "p1", "Encounter", null, null, null, null, "period", null, null, YEAR_2020);
+        assertEquals(List.of("in", "open", "overlaps"), ids(result));
+    }
+
+    @Test
+    void testInMemoryDatePathPrecision() {
+        var provider = retrieveProvider(
+                SEARCH_FILTER_MODE.AUTO,
+                observation("day", "2020-06-15"),
+                observation("month", "2020-12"),
+                observation("year", "2021"),
+                observation("leap-year", "2020"),
+                observation("day-before", "2019-12-31"));
+
+        var result = provider.retrieve(
+                "Patient", "subject", "p1", "Observation", null, null, null, null, "effective", null, null, YEAR_2020);
+        assertEquals(List.of("day", "leap-year", "month"), ids(result));
+    }
+
+    @Test
+    void testInMemoryDateLowAndHighPaths() {
+        var provider = retrieveProvider(
+                SEARCH_FILTER_MODE.FILTER_IN_MEMORY,
+                encounter("starts-in", "2020-03-01", "2021-03-02"),
+                encounter("starts-before", "2019-12-30", "2020-01-31"),
+                encounter("before", "2019-12-01", "2019-12-31"),
+                encounter("after", "2021-01-01", "2021-01-02"));
+
+        var low = provider.retrieve(
+                "Patient", "subject", "p1", "Encounter", null, null, null, null, null, "period.start", null, YEAR_2020);
+        assertEquals(List.of("before", "starts-before", "starts-in"), ids(low));
+
+        var high = provider.retrieve(
+                "Patient", "subject", "p1", "Encounter", null, null, null, null, null, null, "period.end", YEAR_2020);
+        assertEquals(List.of("after", "starts-before", "starts-in"), ids(high));
+
+        var both = provider.retrieve(
+                "Patient",
+                "subject",
+                "p1",
+                "Encounter",
+                null,
+                null,
+                null,
+                null,
+                null,
+                "period.start",
+                "period.end",
+                YEAR_2020);
+        assertEquals(List.of("starts-before", "starts-in"), ids(both));
+    }
+
+    @Test
+    void testDateSearchParamsOverlapTheRange() {
+        var provider = retrieveProvider(SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS);
+
+        var date = new HashMap<String, List<IQueryParameterType>>();
+        provider.populateDateSearchParams(date, "Observation", "effective", null, null, YEAR_2020);
+        assertEquals(List.of(GE_START, LE_END), dateParams(date, "date"));
+
+        var low = new HashMap<String, List<IQueryParameterType>>();
+        provider.populateDateSearchParams(low, "Encounter", null, "period", null, YEAR_2020);
+        assertEquals(List.of(LE_END), dateParams(low, "date"));
+
+        var high = new HashMap<String, List<IQueryParameterType>>();
+        provider.populateDateSearchParams(high, "Encounter", null, null, "period", YEAR_2020);
+        assertEquals(List.of(GE_START), dateParams(high, "date"));
+
+        var both = new HashMap<String, List<IQueryParameterType>>();
+        provider.populateDateSearchParams(both, "Encounter", null, "period", "period", YEAR_2020);
+        assertEquals(List.of(LE_END, GE_START), dateParams(both, "date"));
+    }
+
+    @Test
+    void testDateSearchExcludesResourcesOutsideTheRange() {
+        // The bounds of the range are searched together, so the repository matches the same
+        // resources as the in-memory filter
+        var encounters = retrieveProvider(
+                SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS,
+                encounter("in", "2020-03-01", "2020-03-02"),
+                encounter("before", "2019-12-30", "2019-12-31"),
+                encounter("overlaps", "2020-12-31", "2021-01-01"),
+                encounter("open", "2020-05-01", null),
+                encounter("after", "2021-02-01", "2021-02-02"));
+        var result = encounters.retrieve(
+                "Patient", "subject", "p1", "Encounter", null, null, null, null, "period", null, null, YEAR_2020);
+        assertEquals(List.of("in", "open", "overlaps"), ids(result));
+
+        var observations = retrieveProvider(
+                SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS,
+                observation("day", "2020-06-15"),
+                observation("month", "2020-12"),
+                observation("year", "2021"),
+                observation("leap-year", "2020"),
+                observation("day-before", "2019-12-31"));
+        result = observations.retrieve(
+                "Patient", "subject", "p1", "Observation", null, null, null, null, "effective", null, null, YEAR_2020);
+        assertEquals(List.of("day", "leap-year", "month"), ids(result));
+    }
+
+    private static List<String> dateParams(Map<String, List<IQueryParameterType>> searchParams, String name) {
+        var params = new ArrayList<String>();
+        searchParams.get(name).forEach(p -> {
+            var param = (DateParam) p;
+            params.add(param.getPrefix().getValue() + param.getValue().getTime());
+        });
+        return params;
+    }
+
+    private static class CapabilitiesRepository extends InMemoryFhirRepository {
+        private final CapabilityStatement capabilities;
+        private Map<String, List<IQueryParameterType>> lastSearch;
+        private final AtomicInteger observationSearches = new AtomicInteger();
+
+        CapabilitiesRepository(CapabilityStatement capabilities) {
+            super(FhirContext.forR4Cached());
+            this.capabilities = capabilities;
+            var valueSet = new ValueSet().setUrl("http://example.org/ValueSet/codes");
+            valueSet.setId("codes");
+            for (int i = 1; i <= 5; i++) {
+                valueSet.getExpansion()
+                        .addContains()
+                        .setSystem("http://loinc.org")
+                        .setCode(String.valueOf(i));
+            }
+            update(valueSet);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <C extends IBaseConformance> C capabilities(Class<C> resourceType, Map<String, String> headers) {
+            return (C) this.capabilities;
+        }
+
+        @Override
+        public <B extends IBaseBundle, T extends IBaseResource> B search(
+                Class<B> bundleType,
+                Class<T> resourceType,
+                Map<String, List<IQueryParameterType>> searchParameters,
+                Map<String, String> headers) {
+            if (resourceType.equals(Observation.class)) {
+                this.lastSearch = new HashMap<>(searchParameters);
+                this.observationSearches.incrementAndGet();
+            }
+            return super.search(bundleType, resourceType, searchParameters, headers);
+        }
+    }
+
+    private static CapabilityStatement capabilities(boolean expand, String... observationParams) {
+        var capabilities = new CapabilityStatement();
+        var rest = capabilities.addRest();
+        var observation = rest.addResource().setType("Observation");
+        for (var param : observationParams) {
+            observation.addSearchParam().setName(param);
+        }
+        if (expand) {
+            rest.addResource().setType("ValueSet").addOperation().setName("expand");
+        }
+        return capabilities;
+    }
+
+    private static Map<String, List<IQueryParameterType>> retrieveByValueSet(CapabilitiesRepository repository) {
+        var provider = new RepositoryRetrieveProvider(
+                repository, new RepositoryTerminologyProvider(repository), new RetrieveSettings());
+        provider.retrieve(
+                "Patient",
+                "subject",
+                "p1",
+                "Observation",
+                null,
+                "code",
+                null,
+                "http://example.org/ValueSet/codes",
+                null,
+                null,
+                null,
+                null);
+        return repository.lastSearch;
+    }
+
+    @Test
+    void testAutoUsesInModifierWhenRepositoryExpands() {
+        var search = retrieveByValueSet(new CapabilitiesRepository(capabilities(true, "subject", "code")));
+        assertTrue(search.containsKey("subject"));
+        assertEquals(1, search.get("code").size());
+        assertEquals(TokenParamModifier.IN, ((TokenParam) search.get("code").get(0)).getModifier());
+    }
+
+    @Test
+    void testAutoInlinesCodesWhenRepositoryDoesNotExpand() {
+        var search = retrieveByValueSet(new CapabilitiesRepository(capabilities(false, "subject", "code")));
+        assertEquals(5, search.get("code").size());
+        assertNull(((TokenParam) search.get("code").get(0)).getModifier());
+    }
+
+    @Test
+    void testAutoFiltersUnsupportedParametersInMemory() {
+        var search = retrieveByValueSet(new CapabilitiesRepository(capabilities(true, "subject")));
+        assertTrue(search.containsKey("subject"));
+        assertFalse(search.containsKey("code"));
+    }
+
+    private static Observation codedObservation(String id, String... codes) {
+        var observation = new Observation();
+        observation.setId("Observation/" + id);
+        observation.setSubject(new Reference("Patient/p1"));
+        for (var code : codes) {
+            observation.getCode().addCoding().setSystem("http://loinc.org").setCode(code);
+        }
+        return observation;
+    }
+
+    private static CapabilitiesRepository codedObservations() {
+        var repository = new CapabilitiesRepository(null);
+        repository.update(codedObservation("one", "1"));
+        repository.update(codedObservation("one-and-five", "1", "5"));
+        repository.update(codedObservation("other", "9"));
+        return repository;
+    }
+
+    private static List<String> retrieveByValueSet(CapabilitiesRepository repository, RetrieveSettings settings) {
+        var provider = new RepositoryRetrieveProvider(
+                repository,
+                new RepositoryTerminologyProvider(repository),
+                settings.setTerminologyParameterMode(TERMINOLOGY_FILTER_MODE.USE_INLINE_CODES));
+        return ids(provider.retrieve(
+                "Patient",
+                "subject",
+                "p1",
+                "Observation",
+                null,
+                "code",
+                null,
+                "http://example.org/ValueSet/codes",
+                null,
+                null,
+                null,
+                null));
+    }
+
+    @Test
+    void testInlineCodesAreChunked() {
+        var repository = codedObservations();
+        var result = retrieveByValueSet(repository, new RetrieveSettings().setMaxCodesPerQuery(2));
+        assertEquals(List.of("one", "one-and-five"), result);
+        assertEquals(3, repository.observationSearches.get());
+    }
+
+    @Test
+    void testInlineCodeChunksAreSearchedConcurrently() {
+        var repository = codedObservations();
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            var result = retrieveByValueSet(
+                    repository, new RetrieveSettings().setMaxCodesPerQuery(2).setSearchExecutor(executor));
+            assertEquals(List.of("one", "one-and-five"), result);
+            assertEquals(3, repository.observationSearches.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Returns the Observations o1 to o4 of p1, one per page
+    private static class PagedRepository extends InMemoryFhirRepository {
+        private static final int PAGES = 4;
+
+        private final List<Integer> fetchedPages = Collections.synchronizedList(new ArrayList<>());
+
+        PagedRepository() {
+            super(FhirContext.forR4Cached());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <B extends IBaseBundle, T extends IBaseResource> B search(
+                Class<B> bundleType,
+                Class<T> resourceType,
+                Map<String, List<IQueryParameterType>> searchParameters,
+                Map<String, String> headers) {
+            return (B) page(1);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <B extends IBaseBundle> B link(Class<B> bundleType, String url, Map<String, String> headers) {
+            return (B) page(Integer.parseInt(url.substring(url.indexOf('=') + 1)));
+        }
+
+        private Bundle page(int number) {
+            fetchedPages.add(number);
+            var bundle = new Bundle();
+            bundle.addEntry().setResource(observation("o" + number, "2020-01-01"));
+            if (number < PAGES) {
+                bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://paged/fhir?page=" + (number + 1));
+            }
+
+            return bundle;
+        }
+    }
+
+    @Test
+    void testPagesAreFetchedAsResultsAreConsumed() {
+        var repository = new PagedRepository();
+        var provider = new RepositoryRetrieveProvider(
+                repository,
+                new RepositoryTerminologyProvider(repository),
+                new RetrieveSettings().setSearchParameterMode(SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS));
+
+        var results = provider.retrieve(
+                "Patient", "subject", "p1", "Observation", null, null, null, null, null, null, null, null);
+        assertEquals(List.of(1), repository.fetchedPages);
+
+        // The next page is fetched once the last entry of a page is taken
+        var iterator = results.iterator();
+        iterator.next();
+        assertEquals(List.of(1, 2), repository.fetchedPages);
+
+        // Results that are no longer consumed don't fetch the remaining pages
+        provider.retrieve(
+                "Patient", "subject", "p2", "Observation", null, null, null, null, null, null, null, null);
+        assertEquals(List.of(1, 2, 1), repository.fetchedPages);
+    }
+
+    @Test
+    void testAbandonedResultsAreStillComplete() {
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var repository = new PagedRepository();
+            var provider = new RepositoryRetrieveProvider(
+                    repository,
+                    new RepositoryTerminologyProvider(repository),
+                    new RetrieveSettings()
+                            .setSearchParameterMode(SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS)
+                            .setSearchExecutor(executor)
+                            .setPageLookahead(2));
+
+            var first = provider.retrieve(
+                    "Patient", "subject", "p1", "Observation", null, null, null, null, null, null, null, null);
+            first.iterator().next();
+
+            // The pages of the first retrieve are no longer fetched ahead, but are fetched when reached
+            provider.retrieve(
+                    "Patient", "subject", "p2", "Observation", null, null, null, null, null, null, null, null);
+            assertEquals(List.of("o1", "o2", "o3", "o4"), ids(first));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testTooManyInlineCodesAreFilteredInMemory() {
+        var repository = codedObservations();
+        var result = retrieveByValueSet(
+                repository, new RetrieveSettings().setMaxCodesPerQuery(2).setMaxInlineCodes(4));
+        assertEquals(List.of("one", "one-and-five"), result);
+        assertEquals(1, repository.observationSearches.get());
+        assertFalse(repository.lastSearch.containsKey("code"));
+    }
+
+    private static Observation patientObservation(String id, String patient, String code) {
+        var observation = codedObservation(id, code);
+        observation.setSubject(new Reference("Patient/" + patient));
+        return observation;
+    }
+
+    private static List<String> retrieveForPatient(RepositoryRetrieveProvider provider, String patient) {
+        return ids(provider.retrieve(
+                "Patient",
+                "subject",
+                patient,
+                "Observation",
+                null,
+                "code",
+                null,
+                "http://example.org/ValueSet/codes",
+                null,
+                null,
+                null,
+                null));
+    }
+
+    @Test
+    void testSubjectBlockIsFetchedTogether() {
+        var repository = new CapabilitiesRepository(null);
+        repository.update(patientObservation("p1-coded", "p1", "1"));
+        repository.update(patientObservation("p1-other", "p1", "9"));
+        repository.update(patientObservation("p2-coded", "p2", "2"));
+        repository.update(patientObservation("p4-coded", "p4", "3"));
+        var provider = new RepositoryRetrieveProvider(
+                repository,
+                new RepositoryTerminologyProvider(repository),
+                new RetrieveSettings().setTerminologyParameterMode(TERMINOLOGY_FILTER_MODE.USE_INLINE_CODES));
+
+        provider.setSubjectBlock("Patient", List.of("p1", "p2", "p3"));
+        assertEquals(List.of("p1-coded"), retrieveForPatient(provider, "p1"));
+        assertEquals(List.of("p2-coded"), retrieveForPatient(provider, "p2"));
+        assertEquals(List.of(), retrieveForPatient(provider, "p3"));
+        assertEquals(List.of("p1-coded"), retrieveForPatient(provider, "p1"));
+        assertEquals(1, repository.observationSearches.get());
+        assertEquals(3, repository.lastSearch.get("subject").size());
+        assertEquals(5, repository.lastSearch.get("code").size());
+
+        // Subjects outside the block are searched separately
+        assertEquals(List.of("p4-coded"), retrieveForPatient(provider, "p4"));
+        assertEquals(2, repository.observationSearches.get());
+
+        provider.setSubjectBlock(null, null);
+        assertEquals(List.of("p1-coded"), retrieveForPatient(provider, "p1"));
+        assertEquals(3, repository.observationSearches.get());
+    }
+
+    @Test
+    void testSubjectBlockIsSearchedInChunks() {
+        var repository = new CapabilitiesRepository(null);
+        repository.update(patientObservation("p1-coded", "p1", "1"));
+        repository.update(patientObservation("p3-coded", "p3", "3"));
+        var provider = new RepositoryRetrieveProvider(
+                repository,
+                new RepositoryTerminologyProvider(repository),
+                new RetrieveSettings()
+                        .setMaxCodesPerQuery(2)
+                        .setTerminologyParameterMode(TERMINOLOGY_FILTER_MODE.USE_INLINE_CODES));
+
+        provider.setSubjectBlock("Patient", List.of("p1", "p2", "p3"));
+        assertEquals(List.of("p1-coded"), retrieveForPatient(provider, "p1"));
+        assertEquals(List.of("p3-coded"), retrieveForPatient(provider, "p3"));
+
+        // Two chunks of subjects, each searched with three chunks of codes
+        assertEquals(6, repository.observationSearches.get());
+    }
+
+    @Test
+    void testSubjectBlockMatchesSingleSubjectRetrieves() {
+        var repository = new CapabilitiesRepository(null);
+        var resources = new ArrayList<Observation>();
+        resources.add(patientObservation("p1-in", "p1", "1"));
+        resources.add(patientObservation("p1-before", "p1", "1"));
+        resources.add(patientObservation("p2-overlaps", "p2", "2"));
+        resources.add(patientObservation("p2-other", "p2", "9"));
+        resources.get(0).setEffective(new DateTimeType("2020-06-01"));
+        resources.get(1).setEffective(new DateTimeType("2019-06-01"));
+        resources
+                .get(2)
+                .setEffective(new Period()
+                        .setStartElement(new DateTimeType("2019-12-01"))
+                        .setEndElement(new DateTimeType("2020-01-15")));
+        resources.get(3).setEffective(new DateTimeType("2020-06-01"));
+        resources.forEach(repository::update);
+
+        var settings = new RetrieveSettings().setTerminologyParameterMode(TERMINOLOGY_FILTER_MODE.USE_INLINE_CODES);
+        var single =
+                new RepositoryRetrieveProvider(repository, new RepositoryTerminologyProvider(repository), settings);
+        var blocked =
+                new RepositoryRetrieveProvider(repository, new RepositoryTerminologyProvider(repository), settings);
+        blocked.setSubjectBlock("Patient", List.of("p1", "p2"));
+
+        for (var patient : List.of("p1", "p2")) {
+            for (var dateRange : new Interval[] {YEAR_2020, null}) {
+                assertEquals(
+                        ids(retrieveForPatient(single, patient, dateRange)),
+                        ids(retrieveForPatient(blocked, patient, dateRange)));
+            }
+        }
+
+        assertEquals(List.of("p1-in"), ids(retrieveForPatient(blocked, "p1", YEAR_2020)));
+        assertEquals(List.of("p2-overlaps"), ids(retrieveForPatient(blocked, "p2", YEAR_2020)));
+
+        // Each distinct retrieve is fetched once for the block
+        repository.observationSearches.set(0);
+        retrieveForPatient(blocked, "p1", YEAR_2020);
+        retrieveForPatient(blocked, "p2", null);
+        assertEquals(0, repository.observationSearches.get());
+    }
+
+    private static Iterable<Object> retrieveForPatient(
+            RepositoryRetrieveProvider provider, String patient, Interval dateRange) {
+        return provider.retrieve(
+                "Patient",
+                "subject",
+                patient,
+                "Observation",
+                null,
+                "code",
+                null,
+                "http://example.org/ValueSet/codes",
+                "effective",
+                null,
+                null,
+                dateRange);
+    }
+}
@@ -0,0 +1,121 @@
+package org.opencds.cqf.fhir.cql.engine.retrieve;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.base.Ticker;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Enumerations.SearchParamType;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+class SearchCapabilitiesTests {
+
+    private static class CountingRepository extends InMemoryFhirRepository {
+        private final AtomicInteger requests = new AtomicInteger();
+        private final CountDownLatch release;
+
+        CountingRepository(CountDownLatch release) {
+            super(FhirContext.forR4Cached());
+            this.release = release;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <C extends IBaseConformance> C capabilities(Class<C> resourceType, Map<String, String> headers) {
+            requests.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            var capabilities = new CapabilityStatement();
+            capabilities
+                    .addRest()
+                    .addResource()
+                    .setType("Observation")
+                    .addSearchParam()
+                    .setName("code")
+                    .setType(SearchParamType.TOKEN);
+            return (C) capabilities;
+        }
+    }
+
+    private static class ManualTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(duration));
+        }
+    }
+
+    @Test
+    void testCapabilitiesExpire() {
+        var ticker = new ManualTicker();
+        var cache = SearchCapabilities.newCache(ticker);
+        var repository = new CountingRepository(new CountDownLatch(0));
+
+        var capabilities = SearchCapabilities.forRepository(repository, cache);
+        assertTrue(capabilities.isKnown());
+        assertTrue(capabilities.supportsSearchParam("Observation", "code"));
+        assertFalse(capabilities.supportsSearchParam("Observation", "date"));
+
+        SearchCapabilities.forRepository(repository, cache);
+        assertEquals(1, repository.requests.get());
+
+        ticker.advance(SearchCapabilities.EXPIRE_AFTER_MINUTES + 1, TimeUnit.MINUTES);
+        SearchCapabilities.forRepository(repository, cache);
+        assertEquals(2, repository.requests.get());
+    }
+
+    @Test
+    void testInvalidate() {
+        var repository = new CountingRepository(new CountDownLatch(0));
+
+        SearchCapabilities.forRepository(repository);
+        SearchCapabilities.forRepository(repository);
+        assertEquals(1, repository.requests.get());
+
+        SearchCapabilities.invalidate(repository);
+        SearchCapabilities.forRepository(repository);
+        assertEquals(2, repository.requests.get());
+    }
+
+    @Test
+    void testSlowRepositoryDoesNotBlockOthers() throws Exception {
+        var cache = SearchCapabilities.newCache(Ticker.systemTicker());
+        var release = new CountDownLatch(1);
+        var slow = new CountingRepository(release);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var pending = executor.submit(() -> SearchCapabilities.forRepository(slow, cache));
+            while (slow.requests.get() == 0) {
+                Thread.sleep(10);
+            }
+
+            var fast = new CountingRepository(new CountDownLatch(0));
+            assertTrue(SearchCapabilities.forRepository(fast, cache).isKnown());
+            assertFalse(pending.isDone());
+
+            release.countDown();
+            assertTrue(pending.get(5, TimeUnit.SECONDS).isKnown());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
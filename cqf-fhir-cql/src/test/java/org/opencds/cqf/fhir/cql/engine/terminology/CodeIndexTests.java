@@ -0,0 +1,39 @@
+package org.opencds.cqf.fhir.cql.engine.terminology;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+class CodeIndexTests {
+
+    private static Code code(String system, String code) {
+        return new Code().withSystem(system).withCode(code);
+    }
+
+    @Test
+    void testIncludes() {
+        var index = new CodeIndex(Arrays.asList(
+                code("http://b", "2"), code("http://a", "1"), code("http://b", "1"), code("http://a", "1")));
+
+        assertTrue(index.includes(code(new String("http://a"), new String("1"))));
+        assertTrue(index.includes(code("http://b", "1")));
+        assertTrue(index.includes(code("http://b", "2")));
+        assertFalse(index.includes(code("http://a", "2")));
+        assertFalse(index.includes(code("http://c", "1")));
+        assertFalse(index.includes(code(null, "1")));
+        assertFalse(index.includes(code("http://a", "3")));
+    }
+
+    @Test
+    void testSortedByCode() {
+        var index = new CodeIndex(Arrays.asList(code("http://a", "3"), code("http://a", "1"), code("http://a", "2")));
+
+        assertEquals(3, index.size());
+        assertEquals("1", index.get(0).getCode());
+        assertEquals("3", index.get(2).getCode());
+    }
+}
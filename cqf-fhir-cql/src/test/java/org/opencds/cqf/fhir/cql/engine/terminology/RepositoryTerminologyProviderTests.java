@@ -0,0 +1,175 @@
+package org.opencds.cqf.fhir.cql.engine.terminology;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+import org.opencds.cqf.fhir.utility.repository.RestRepository;
+
+class RepositoryTerminologyProviderTests {
+
+    private static class CountingRepository extends InMemoryFhirRepository {
+        private int searches;
+
+        CountingRepository(FhirContext context) {
+            super(context);
+        }
+
+        @Override
+        public <B extends IBaseBundle, T extends IBaseResource> B search(
+                Class<B> bundleType,
+                Class<T> resourceType,
+                Map<String, List<IQueryParameterType>> searchParameters,
+                Map<String, String> headers) {
+            this.searches++;
+            return super.search(bundleType, resourceType, searchParameters, headers);
+        }
+    }
+
+    private static ValueSet valueSet(String id, String url, String version, String code) {
+        var valueSet = new ValueSet().setUrl(url).setVersion(version);
+        valueSet.setId(id);
+        valueSet.getExpansion().addContains().setSystem("http://a").setCode(code);
+        return valueSet;
+    }
+
+    private static CountingRepository repository() {
+        var repository = new CountingRepository(FhirContext.forR4Cached());
+        repository.update(valueSet("a", "http://vs/a", null, "1"));
+        repository.update(valueSet("b1", "http://vs/b", "1", "2"));
+        repository.update(valueSet("b2", "http://vs/b", "2", "3"));
+        return repository;
+    }
+
+    @Test
+    void testPrefetch() {
+        var repository = repository();
+        var cache = new ValueSetCache();
+        var provider = new RepositoryTerminologyProvider(repository, cache, new TerminologySettings());
+
+        var a = new ValueSetInfo().withId("http://vs/a");
+        var b = new ValueSetInfo().withId("http://vs/b").withVersion("2");
+        var missing = new ValueSetInfo().withId("http://vs/missing");
+        provider.prefetch(Arrays.asList(a, b, missing, a), MoreExecutors.directExecutor());
+
+        assertEquals(1, repository.searches);
+        assertEquals(2, cache.size());
+
+        assertTrue(provider.in(new Code().withSystem("http://a").withCode("1"), a));
+        assertTrue(provider.in(new Code().withSystem("http://a").withCode("3"), b));
+        assertFalse(provider.in(new Code().withSystem("http://a").withCode("2"), b));
+        assertEquals(1, repository.searches);
+
+        // ValueSets that weren't prefetched report the error on use
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> provider.in(new Code().withSystem("http://a").withCode("1"), missing));
+    }
+
+    @Test
+    void testPrefetchSkipsAmbiguousAndCached() throws Exception {
+        var repository = repository();
+        var cache = new ValueSetCache();
+        var provider = new RepositoryTerminologyProvider(repository, cache, new TerminologySettings());
+
+        var a = new ValueSetInfo().withId("http://vs/a");
+        provider.expand(a);
+        assertEquals(1, repository.searches);
+
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            provider.prefetch(Arrays.asList(a, new ValueSetInfo().withId("http://vs/b")), executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        // The unversioned url resolves to two ValueSets, which is an error reported on use
+        assertEquals(2, repository.searches);
+        assertEquals(1, cache.size());
+
+        provider.prefetch(Arrays.asList(a), MoreExecutors.directExecutor());
+        assertEquals(2, repository.searches);
+    }
+
+    @Test
+    void testMembershipChecksReuseTheExpansionWhileCached() {
+        var repository = repository();
+        var cache = new ValueSetCache();
+        var provider = new RepositoryTerminologyProvider(repository, cache, new TerminologySettings());
+        var code = new Code().withSystem("http://a").withCode("3");
+
+        assertTrue(provider.in(code, new ValueSetInfo().withId("http://vs/b").withVersion("2")));
+        assertTrue(provider.in(code, new ValueSetInfo().withId("http://vs/b").withVersion("2")));
+        assertEquals(1, cache.getStats().requestCount());
+
+        // The expansion is got from the cache again once the cache no longer holds it
+        cache.invalidate("http://vs/b|2");
+        assertTrue(provider.in(code, new ValueSetInfo().withId("http://vs/b").withVersion("2")));
+        assertEquals(2, cache.getStats().requestCount());
+        assertEquals(2, repository.searches);
+    }
+
+    @Test
+    void testProvidersShareTheRepositoryCache() {
+        var repository = repository();
+        var a = new ValueSetInfo().withId("http://vs/a");
+
+        new RepositoryTerminologyProvider(repository).expand(a);
+        new RepositoryTerminologyProvider(repository, new TerminologySettings()).expand(a);
+        assertEquals(1, repository.searches);
+        assertSame(ValueSetCache.forRepository(repository), ValueSetCache.forRepository(repository));
+
+        // Other repositories have their own cache
+        var other = repository();
+        new RepositoryTerminologyProvider(other).expand(a);
+        assertEquals(1, other.searches);
+    }
+
+    @Test
+    void testPrefetchSearchesTheUrlsOfABatchAsAlternatives() {
+        var fhirContext = FhirContext.forR4();
+        fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        var client = fhirContext.newRestfulGenericClient("http://localhost/fhir");
+        var urls = new ArrayList<String>();
+        client.registerInterceptor(new IClientInterceptor() {
+            @Override
+            public void interceptRequest(IHttpRequest request) {
+                urls.add(URLDecoder.decode(request.getUri(), StandardCharsets.UTF_8));
+                throw new IllegalStateException("not sent");
+            }
+
+            @Override
+            public void interceptResponse(IHttpResponse response) {}
+        });
+        var repository = new RestRepository(client);
+        var provider = new RepositoryTerminologyProvider(repository, new ValueSetCache(), new TerminologySettings());
+
+        provider.prefetch(
+                Arrays.asList(new ValueSetInfo().withId("http://vs/a"), new ValueSetInfo().withId("http://vs/b")),
+                MoreExecutors.directExecutor());
+        assertEquals(List.of("http://localhost/fhir/ValueSet?url=http://vs/a,http://vs/b"), urls);
+    }
+}
@@ -0,0 +1,199 @@
+package org.opencds.cqf.fhir.cql.engine.terminology;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Ticker;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+class ValueSetCacheTests {
+
+    private static List<Code> codes(String... values) {
+        return Arrays.stream(values)
+                .map(x -> new Code().withSystem("http://a").withCode(x))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void testLoadsOnce() {
+        var cache = new ValueSetCache();
+        var loads = new AtomicInteger();
+
+        var first = cache.get("http://vs|1", k -> {
+            loads.incrementAndGet();
+            return codes("1", "2");
+        });
+        var second = cache.get("http://vs|1", k -> {
+            loads.incrementAndGet();
+            return codes("1", "2");
+        });
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(1, cache.getStats().missCount());
+        assertEquals(1, cache.getStats().loadSuccessCount());
+    }
+
+    @Test
+    void testNullAndFailedLoads() {
+        var cache = new ValueSetCache();
+
+        assertNull(cache.get("http://vs", k -> null));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> cache.get("http://vs", k -> {
+                    throw new IllegalArgumentException("expansion failed");
+                }));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getStats().loadExceptionCount());
+    }
+
+    @Test
+    void testEvictsByCodeCount() {
+        var cache = new ValueSetCache(4, 0, TimeUnit.SECONDS);
+
+        var first = cache.get("http://vs1", k -> codes("1", "2", "3"));
+        assertSame(first, cache.getIfPresent("http://vs1"));
+
+        var second = cache.get("http://vs2", k -> codes("1", "2"));
+        assertFalse(cache.holds(first));
+        assertTrue(cache.holds(second));
+        assertNull(cache.getIfPresent("http://vs1"));
+        assertSame(second, cache.getIfPresent("http://vs2"));
+        assertEquals(1, cache.getStats().evictionCount());
+    }
+
+    @Test
+    void testExpiresAfterWrite() {
+        var ticker = new ManualTicker();
+        var cache = new ValueSetCache(ValueSetCache.DEFAULT_MAXIMUM_CODES, 1, TimeUnit.SECONDS, ticker);
+
+        var first = cache.get("http://vs", k -> codes("1"));
+        ticker.advance(999, TimeUnit.MILLISECONDS);
+        assertTrue(cache.holds(first));
+        assertSame(first, cache.getIfPresent("http://vs"));
+
+        ticker.advance(1, TimeUnit.MILLISECONDS);
+        assertFalse(cache.holds(first));
+        assertNull(cache.getIfPresent("http://vs"));
+
+        var second = cache.get("http://vs", k -> codes("1"));
+        assertNotSame(first, second);
+        assertSame(second, cache.getIfPresent("http://vs"));
+    }
+
+    @Test
+    void testInvalidate() {
+        var cache = new ValueSetCache();
+        cache.put("http://vs", codes("1"));
+        var index = cache.getIfPresent("http://vs");
+        assertTrue(cache.holds(index));
+
+        // An index put again is still held
+        cache.put("http://vs", index);
+        assertTrue(cache.holds(index));
+
+        cache.invalidate("http://vs");
+
+        assertFalse(cache.holds(index));
+        assertNull(cache.getIfPresent("http://vs"));
+    }
+
+    @Test
+    void testConcurrentLoadsAreShared() throws Exception {
+        var cache = new ValueSetCache();
+        var loads = new AtomicInteger();
+        var loading = new CountDownLatch(1);
+        var requested = new CountDownLatch(1);
+        var second = new AtomicReference<CodeIndex>();
+
+        var waiter = new Thread(() -> {
+            try {
+                loading.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            requested.countDown();
+            second.set(cache.get("http://vs", k -> {
+                loads.incrementAndGet();
+                return codes("1");
+            }));
+        });
+        waiter.start();
+
+        var first = cache.get("http://vs", k -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            try {
+                // The load finishes once the other request waits for it
+                requested.await();
+                while (waiter.getState() != Thread.State.WAITING) {
+                    Thread.onSpinWait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return codes("1");
+        });
+        waiter.join();
+
+        assertSame(first, second.get());
+        assertEquals(1, loads.get());
+    }
+
+    private static class ManualTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(duration));
+        }
+    }
+
+    @Test
+    void testMapView() {
+        var cache = new ValueSetCache();
+        var map = cache.asMap();
+
+        map.put("http://vs", codes("1"));
+        assertTrue(cache.contains("http://vs"));
+        assertSame(cache.getIfPresent("http://vs"), map.get("http://vs"));
+        assertSame(cache, ValueSetCache.of(map));
+
+        map.remove("http://vs");
+        assertFalse(cache.contains("http://vs"));
+    }
+
+    @Test
+    void testOfMap() {
+        var map = new HashMap<String, List<Code>>();
+        map.put("http://vs", codes("1", "2"));
+
+        var cache = ValueSetCache.of(map);
+        assertEquals(2, cache.getIfPresent("http://vs").size());
+        assertSame(cache, ValueSetCache.of(map));
+        assertNotSame(cache, ValueSetCache.of(new HashMap<>(map)));
+    }
+}
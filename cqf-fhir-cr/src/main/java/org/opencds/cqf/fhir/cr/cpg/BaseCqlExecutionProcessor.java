@@ -3,15 +3,18 @@ package org.opencds.cqf.fhir.cr.cpg;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Library;
 import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cql.cql2elm.ElmLibraryManager;
 import org.opencds.cqf.fhir.utility.Canonicals;
 
 public class BaseCqlExecutionProcessor {
@@ -54,8 +57,11 @@ public class BaseCqlExecutionProcessor {
             String content, IBaseResource library, LibraryManager libraryManager) {
 
         if (!StringUtils.isBlank(content)) {
-            var translatedLibrary =
-                    CqlTranslator.fromText(content, libraryManager).getTranslatedLibrary();
+            Supplier<CompiledLibrary> translation =
+                    () -> CqlTranslator.fromText(content, libraryManager).getTranslatedLibrary();
+            var translatedLibrary = libraryManager instanceof ElmLibraryManager
+                    ? ((ElmLibraryManager) libraryManager).translating(translation)
+                    : translation.get();
             return new VersionedIdentifier()
                     .withId(translatedLibrary.getIdentifier().getId())
                     .withVersion(translatedLibrary.getIdentifier().getVersion());
@@ -2,6 +2,17 @@ package org.opencds.cqf.fhir.cr.measure;
 
 public class CareGapsProperties {
     private boolean myThreadedCareGapsEnabled = true;
+    /**
+     * The maximum number of Measure evaluations that are submitted to the executor at once when
+     * threaded care gaps are enabled.
+     **/
+    private int myThreadedCareGapsMaxConcurrency = 16;
+    /**
+     * The time allowed for all the patients of a threaded care gaps request to be evaluated. Patients
+     * that are not complete when it elapses are reported with an OperationOutcome. A value of 0 waits
+     * indefinitely.
+     **/
+    private long myThreadedCareGapsTimeoutSeconds = 0;
     /**
      * Implements the reporter element of the
      * <a href= "https://www.hl7.org/fhir/measurereport.html">MeasureReport</a> FHIR Resource. This is
@@ -36,6 +47,28 @@ public class CareGapsProperties {
         return myThreadedCareGapsEnabled;
     }
 
+    public int getThreadedCareGapsMaxConcurrency() {
+        return myThreadedCareGapsMaxConcurrency;
+    }
+
+    public void setThreadedCareGapsMaxConcurrency(int theThreadedCareGapsMaxConcurrency) {
+        if (theThreadedCareGapsMaxConcurrency < 1) {
+            throw new IllegalArgumentException("threadedCareGapsMaxConcurrency must be at least 1");
+        }
+        myThreadedCareGapsMaxConcurrency = theThreadedCareGapsMaxConcurrency;
+    }
+
+    public long getThreadedCareGapsTimeoutSeconds() {
+        return myThreadedCareGapsTimeoutSeconds;
+    }
+
+    public void setThreadedCareGapsTimeoutSeconds(long theThreadedCareGapsTimeoutSeconds) {
+        if (theThreadedCareGapsTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("threadedCareGapsTimeoutSeconds can not be negative");
+        }
+        myThreadedCareGapsTimeoutSeconds = theThreadedCareGapsTimeoutSeconds;
+    }
+
     public String getMyFhirBaseUrl() {
         return myFhirBaseUrl;
     }
@@ -2,6 +2,7 @@ package org.opencds.cqf.fhir.cr.measure;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import org.opencds.cqf.fhir.cql.EvaluationSettings;
 import org.opencds.cqf.fhir.utility.ValidationProfile;
 
@@ -9,6 +10,8 @@ public class MeasureEvaluationOptions {
     public static MeasureEvaluationOptions defaultOptions() {
         var options = new MeasureEvaluationOptions();
         options.setEvaluationSettings(EvaluationSettings.getDefault());
+        // The populations of a measure often repeat the same retrieves for each subject
+        options.getEvaluationSettings().getRetrieveSettings().setCacheRetrieves(true);
         return options;
     }
 
@@ -17,6 +20,21 @@ public class MeasureEvaluationOptions {
 
     private EvaluationSettings evaluationSettings = null;
 
+    // Number of worker threads used to evaluate subjects. A value of 1 evaluates serially.
+    private int numThreads = 1;
+
+    // When greater than 0, population reports are evaluated one page of subjects at a time so that
+    // only a page of subjects and results is held in memory. A value of 0 evaluates all subjects at once.
+    private int subjectPageSize = 0;
+
+    // When greater than 0, the data of this many subjects is fetched with a single search per resource
+    // type, and the retrieves for each subject are served from memory. A value of 0 fetches the data of
+    // each subject separately.
+    private int subjectPrefetchSize = 0;
+
+    // Runs the workers of a parallel evaluation. If null, a thread pool shared by all evaluations is used.
+    private Executor evaluationExecutor = null;
+
     public boolean isValidationEnabled() {
         return this.isValidationEnabled;
     }
@@ -40,4 +58,45 @@ public class MeasureEvaluationOptions {
     public EvaluationSettings getEvaluationSettings() {
         return this.evaluationSettings;
     }
+
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1");
+        }
+        this.numThreads = numThreads;
+    }
+
+    public int getSubjectPageSize() {
+        return this.subjectPageSize;
+    }
+
+    public void setSubjectPageSize(int subjectPageSize) {
+        if (subjectPageSize < 0) {
+            throw new IllegalArgumentException("subjectPageSize can not be negative");
+        }
+        this.subjectPageSize = subjectPageSize;
+    }
+
+    public int getSubjectPrefetchSize() {
+        return this.subjectPrefetchSize;
+    }
+
+    public void setSubjectPrefetchSize(int subjectPrefetchSize) {
+        if (subjectPrefetchSize < 0) {
+            throw new IllegalArgumentException("subjectPrefetchSize can not be negative");
+        }
+        this.subjectPrefetchSize = subjectPrefetchSize;
+    }
+
+    public Executor getEvaluationExecutor() {
+        return this.evaluationExecutor;
+    }
+
+    public void setEvaluationExecutor(Executor evaluationExecutor) {
+        this.evaluationExecutor = evaluationExecutor;
+    }
 }
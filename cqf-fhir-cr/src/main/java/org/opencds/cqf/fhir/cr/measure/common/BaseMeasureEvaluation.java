@@ -1,7 +1,12 @@
 package org.opencds.cqf.fhir.cr.measure.common;
 
+import com.google.common.collect.Iterators;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 import org.opencds.cqf.cql.engine.execution.CqlEngine;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 
@@ -12,6 +17,10 @@ public abstract class BaseMeasureEvaluation<MeasureT, MeasureReportT, SubjectT>
     protected CqlEngine context;
     protected MeasureT measure;
     protected String measurementPeriodParameterName;
+    protected Supplier<CqlEngine> contextFactory;
+    protected int numThreads;
+    protected int subjectPrefetchSize;
+    protected Executor executor;
 
     protected BaseMeasureEvaluation(
             CqlEngine context,
@@ -32,6 +41,17 @@ public abstract class BaseMeasureEvaluation<MeasureT, MeasureReportT, SubjectT>
             MeasureDefBuilder<MeasureT> measureDefBuilder,
             MeasureReportBuilder<MeasureT, MeasureReportT, SubjectT> measureReportBuilder,
             String measurementPeriodParameterName) {
+        this(context, measure, measureDefBuilder, measureReportBuilder, measurementPeriodParameterName, null, 1);
+    }
+
+    protected BaseMeasureEvaluation(
+            CqlEngine context,
+            MeasureT measure,
+            MeasureDefBuilder<MeasureT> measureDefBuilder,
+            MeasureReportBuilder<MeasureT, MeasureReportT, SubjectT> measureReportBuilder,
+            String measurementPeriodParameterName,
+            Supplier<CqlEngine> contextFactory,
+            int numThreads) {
         this.context = Objects.requireNonNull(context, "context is a required argument");
         this.measure = Objects.requireNonNull(measure, "measure is a required argument");
         this.measureDefBuilder = Objects.requireNonNull(measureDefBuilder, "measureDefBuilder is a required argument");
@@ -39,6 +59,28 @@ public abstract class BaseMeasureEvaluation<MeasureT, MeasureReportT, SubjectT>
                 Objects.requireNonNull(measureReportBuilder, "measureReportBuilder is a required argument");
         this.measurementPeriodParameterName = Objects.requireNonNull(
                 measurementPeriodParameterName, "measurementPeriodParameterName is a required argument");
+        this.contextFactory = contextFactory;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Sets the number of subjects of a population whose data is fetched with a single search per
+     * resource type, rather than a search per retrieve per subject.
+     *
+     * @param subjectPrefetchSize the number of subjects fetched together, or 0 to fetch each separately
+     */
+    public void setSubjectPrefetchSize(int subjectPrefetchSize) {
+        this.subjectPrefetchSize = subjectPrefetchSize;
+    }
+
+    /**
+     * Sets the Executor that runs the workers when subjects are evaluated in parallel.
+     *
+     * @param executor the Executor for the workers, or null to use a thread pool shared by all
+     *        evaluations
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
     }
 
     public MeasureReportT evaluate(MeasureEvalType measureEvalType, List<String> subjectIds) {
@@ -51,7 +93,13 @@ public abstract class BaseMeasureEvaluation<MeasureT, MeasureReportT, SubjectT>
         Objects.requireNonNull(measureEvalType, "measureEvalType is a required parameter");
 
         MeasureDef measureDef = this.measureDefBuilder.build(measure);
-        MeasureEvaluator measureEvaluation = new MeasureEvaluator(context, this.measurementPeriodParameterName);
+        MeasureEvaluator measureEvaluation = new MeasureEvaluator(
+                context,
+                this.measurementPeriodParameterName,
+                this.contextFactory,
+                this.numThreads,
+                this.subjectPrefetchSize);
+        measureEvaluation.setExecutor(this.executor);
         measureDef = measureEvaluation.evaluate(measureDef, measureEvalType, subjectIds, measurementPeriod);
 
         // TODO: This is a bit hokey. Need to figure out a better way get/set the period.
@@ -61,6 +109,56 @@ public abstract class BaseMeasureEvaluation<MeasureT, MeasureReportT, SubjectT>
                 measure, measureDef, this.evalTypeToReportType(measureEvalType), actualPeriod, subjectIds);
     }
 
+    /**
+     * Evaluates a summary report over subjects that are pulled from the iterator one page at a time.
+     * Each page is evaluated against a fresh MeasureDef and reduced to a partial report, which is then
+     * folded into the result, so only a single page of subjects and their results is held in memory.
+     *
+     * @param subjectIds the subjects to evaluate
+     * @param measurementPeriod the measurement period, may be null
+     * @param pageSize the number of subjects evaluated per page
+     * @return the summary report for all the subjects
+     */
+    public MeasureReportT evaluatePaged(Iterator<String> subjectIds, Interval measurementPeriod, int pageSize) {
+        Objects.requireNonNull(subjectIds, "subjectIds is a required parameter");
+        var aggregator = this.getMeasureReportAggregator();
+        if (aggregator == null) {
+            throw new UnsupportedOperationException("Paged evaluation is not supported for this Measure model");
+        }
+
+        var pages = Iterators.partition(subjectIds, pageSize);
+        MeasureReportT report = null;
+        do {
+            List<String> page = pages.hasNext() ? pages.next() : Collections.emptyList();
+            MeasureDef measureDef = this.measureDefBuilder.build(measure);
+            MeasureEvaluator measureEvaluation = new MeasureEvaluator(
+                    context,
+                    this.measurementPeriodParameterName,
+                    this.contextFactory,
+                    this.numThreads,
+                    this.subjectPrefetchSize);
+            measureEvaluation.setExecutor(this.executor);
+            measureDef = measureEvaluation.evaluate(measureDef, MeasureEvalType.POPULATION, page, measurementPeriod);
+
+            var actualPeriod = (Interval) context.getState().getParameters().get(this.measurementPeriodParameterName);
+            var pageReport =
+                    this.measureReportBuilder.build(measure, measureDef, MeasureReportType.SUMMARY, actualPeriod, page);
+
+            if (report == null) {
+                report = pageReport;
+            } else {
+                aggregator.aggregate(report, pageReport, measureDef.scoring());
+            }
+        } while (pages.hasNext());
+
+        return report;
+    }
+
+    // Paged evaluation is only available for models that can combine partial reports
+    protected MeasureReportAggregator<MeasureReportT> getMeasureReportAggregator() {
+        return null;
+    }
+
     protected MeasureReportType evalTypeToReportType(MeasureEvalType measureEvalType) {
         switch (measureEvalType) {
             case PATIENT:
@@ -10,12 +10,24 @@ import static org.opencds.cqf.fhir.cr.measure.common.MeasurePopulationType.MEASU
 import static org.opencds.cqf.fhir.cr.measure.common.MeasurePopulationType.NUMERATOR;
 import static org.opencds.cqf.fhir.cr.measure.common.MeasurePopulationType.NUMERATOREXCLUSION;
 
+import com.google.common.collect.Lists;
 import java.time.OffsetDateTime;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.elm.r1.FunctionDef;
 import org.hl7.elm.r1.IntervalTypeSpecifier;
@@ -28,6 +40,7 @@ import org.opencds.cqf.cql.engine.execution.Variable;
 import org.opencds.cqf.cql.engine.runtime.Date;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.fhir.cql.engine.retrieve.FederatedDataProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,13 +67,85 @@ public class MeasureEvaluator {
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureEvaluator.class);
 
+    // Each worker evaluates this many partitions on average, which evens out skew between subjects
+    private static final int PARTITIONS_PER_THREAD = 4;
+
     protected CqlEngine context;
     protected String measurementPeriodParameterName = null;
+    protected Supplier<CqlEngine> contextFactory;
+    protected int numThreads;
+    protected int subjectPrefetchSize;
+    protected Executor executor;
+
+    // Runs the workers of the parallel evaluations that aren't given an Executor. Threads are kept
+    // between evaluations, and the number in use is bounded by the workers of each evaluation.
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            var thread = new Thread(runnable, "measure-evaluator-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public MeasureEvaluator(CqlEngine context, String measurementPeriodParameterName) {
+        this(context, measurementPeriodParameterName, null, 1);
+    }
+
+    /**
+     * Creates an evaluator that is able to evaluate subjects in parallel.
+     *
+     * @param context the engine used for serial evaluation and to resolve the measurement period
+     * @param measurementPeriodParameterName the name of the measurement period parameter
+     * @param contextFactory creates a new engine, initialized with the same library and parameters as
+     *        the context, for each worker. If null, subjects are evaluated serially.
+     * @param numThreads the maximum number of worker threads
+     */
+    public MeasureEvaluator(
+            CqlEngine context,
+            String measurementPeriodParameterName,
+            Supplier<CqlEngine> contextFactory,
+            int numThreads) {
         this.context = Objects.requireNonNull(context, "context is a required argument");
         this.measurementPeriodParameterName = Objects.requireNonNull(
                 measurementPeriodParameterName, "measurementPeriodParameterName is a required argument");
+        this.contextFactory = contextFactory;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Creates an evaluator that is able to evaluate subjects in parallel, fetching the data of
+     * blocks of subjects together.
+     *
+     * @param context the engine used for serial evaluation and to resolve the measurement period
+     * @param measurementPeriodParameterName the name of the measurement period parameter
+     * @param contextFactory creates a new engine, initialized with the same library and parameters as
+     *        the context, for each worker. If null, subjects are evaluated serially.
+     * @param numThreads the maximum number of worker threads
+     * @param subjectPrefetchSize the number of subjects whose data is fetched with a single search per
+     *        resource type. A value of 0 fetches the data of each subject separately.
+     */
+    public MeasureEvaluator(
+            CqlEngine context,
+            String measurementPeriodParameterName,
+            Supplier<CqlEngine> contextFactory,
+            int numThreads,
+            int subjectPrefetchSize) {
+        this(context, measurementPeriodParameterName, contextFactory, numThreads);
+        this.subjectPrefetchSize = subjectPrefetchSize;
+    }
+
+    /**
+     * Sets the Executor that runs the workers of a parallel evaluation. The calling thread waits for
+     * the workers, so it should not be a thread of a bounded Executor that may be full.
+     *
+     * @param executor the Executor for the workers, or null to use a thread pool shared by all
+     *        evaluations
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
     }
 
     public MeasureDef evaluate(
@@ -215,6 +300,36 @@ public class MeasureEvaluator {
                 type.toCode(),
                 subjectIds.size());
 
+        if (this.contextFactory != null && this.numThreads > 1 && subjectIds.size() > 1) {
+            return evaluateParallel(measureDef, subjectIds);
+        }
+
+        return evaluateSubjects(measureDef, subjectIds);
+    }
+
+    protected MeasureDef evaluateSubjects(MeasureDef measureDef, List<String> subjectIds) {
+        try {
+            if (this.subjectPrefetchSize <= 0 || subjectIds.size() <= 1) {
+                return evaluateSubjectBlock(measureDef, subjectIds);
+            }
+
+            try {
+                for (List<String> block : Lists.partition(subjectIds, this.subjectPrefetchSize)) {
+                    prefetchSubjects(block);
+                    evaluateSubjectBlock(measureDef, block);
+                }
+            } finally {
+                setSubjectBlock(null, null);
+            }
+
+            return measureDef;
+        } finally {
+            // The engine may have stopped iterating the results of any retrieve
+            stopPrefetch();
+        }
+    }
+
+    protected MeasureDef evaluateSubjectBlock(MeasureDef measureDef, List<String> subjectIds) {
         Map<GroupDef, MeasureScoring> scoring = measureDef.scoring();
 
         for (String subjectId : subjectIds) {
@@ -231,6 +346,177 @@ public class MeasureEvaluator {
         return measureDef;
     }
 
+    // The data of the subjects of the block is fetched together. Blocks usually hold subjects of a
+    // single type, and only the subjects of the type of the first one are fetched together.
+    protected void prefetchSubjects(List<String> subjectIds) {
+        String subjectType = null;
+        List<String> ids = new ArrayList<>();
+        for (String subjectId : subjectIds) {
+            if (subjectId == null) {
+                continue;
+            }
+
+            Pair<String, String> subjectInfo = this.getSubjectTypeAndId(subjectId);
+            if (subjectType == null) {
+                subjectType = subjectInfo.getLeft();
+            }
+
+            if (subjectType.equals(subjectInfo.getLeft())) {
+                ids.add(subjectInfo.getRight());
+            }
+        }
+
+        setSubjectBlock(subjectType, ids);
+    }
+
+    private void setSubjectBlock(String subjectType, List<String> ids) {
+        for (var dataProvider : this.context.getEnvironment().getDataProviders().values()) {
+            if (dataProvider instanceof FederatedDataProvider) {
+                ((FederatedDataProvider) dataProvider).setSubjectBlock(subjectType, ids);
+            }
+        }
+    }
+
+    private void stopPrefetch() {
+        for (var dataProvider : this.context.getEnvironment().getDataProviders().values()) {
+            if (dataProvider instanceof FederatedDataProvider) {
+                ((FederatedDataProvider) dataProvider).stopPrefetch();
+            }
+        }
+    }
+
+    /**
+     * Splits the subjects into contiguous partitions and evaluates them on worker threads, each with
+     * its own engine. Every partition is evaluated against an empty copy of the MeasureDef and the
+     * results are merged back in partition order, so the merged MeasureDef matches the serial
+     * evaluation of the same subjects.
+     */
+    protected MeasureDef evaluateParallel(MeasureDef measureDef, List<String> subjectIds) {
+        int partitionSize =
+                Math.max(1, (int) Math.ceil((double) subjectIds.size() / (numThreads * PARTITIONS_PER_THREAD)));
+        List<List<String>> partitions = Lists.partition(subjectIds, partitionSize);
+        MeasureDef[] partitionResults = new MeasureDef[partitions.size()];
+
+        var measurementPeriod = this.context.getState().getParameters().get(this.measurementPeriodParameterName);
+        var nextPartition = new AtomicInteger();
+        int workerCount = Math.min(numThreads, partitions.size());
+
+        logger.info("Evaluating {} partition(s) with {} worker(s)", partitions.size(), workerCount);
+
+        var workerExecutor = this.executor != null ? this.executor : SHARED_EXECUTOR;
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(CompletableFuture.runAsync(
+                    () -> {
+                        var worker = new MeasureEvaluator(
+                                this.contextFactory.get(),
+                                this.measurementPeriodParameterName,
+                                null,
+                                1,
+                                this.subjectPrefetchSize);
+                        if (measurementPeriod != null) {
+                            worker.context
+                                    .getState()
+                                    .setParameter(null, this.measurementPeriodParameterName, measurementPeriod);
+                        }
+
+                        int p;
+                        while ((p = nextPartition.getAndIncrement()) < partitions.size()) {
+                            try {
+                                partitionResults[p] = worker.evaluateSubjects(copyOf(measureDef), partitions.get(p));
+                            } catch (RuntimeException e) {
+                                // The other workers stop once they finish their current partition
+                                nextPartition.set(partitions.size());
+                                throw e;
+                            }
+                        }
+                    },
+                    workerExecutor));
+        }
+
+        try {
+            CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[workers.size()]))
+                    .join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+
+        for (MeasureDef result : partitionResults) {
+            merge(measureDef, result);
+        }
+
+        return measureDef;
+    }
+
+    // Creates a MeasureDef with the same structure as the original and no results
+    protected MeasureDef copyOf(MeasureDef measureDef) {
+        Map<GroupDef, MeasureScoring> scoring = new HashMap<>();
+        List<GroupDef> groups = new ArrayList<>();
+        for (GroupDef groupDef : measureDef.groups()) {
+            List<StratifierDef> stratifiers = new ArrayList<>();
+            for (StratifierDef sd : groupDef.stratifiers()) {
+                List<StratifierComponentDef> components = new ArrayList<>();
+                for (StratifierComponentDef scd : sd.components()) {
+                    components.add(new StratifierComponentDef(scd.id(), scd.code(), scd.expression()));
+                }
+                stratifiers.add(new StratifierDef(sd.id(), sd.code(), sd.expression(), components));
+            }
+
+            List<PopulationDef> populations = new ArrayList<>();
+            for (PopulationDef pd : groupDef.populations()) {
+                populations.add(new PopulationDef(pd.id(), pd.code(), pd.type(), pd.expression()));
+            }
+
+            var copy = new GroupDef(groupDef.id(), groupDef.code(), stratifiers, populations);
+            groups.add(copy);
+            scoring.put(copy, measureDef.scoring().get(groupDef));
+        }
+
+        List<SdeDef> sdes = new ArrayList<>();
+        for (SdeDef sde : measureDef.sdes()) {
+            sdes.add(new SdeDef(sde.id(), sde.code(), sde.expression()));
+        }
+
+        var copy = new MeasureDef(measureDef.id(), measureDef.url(), measureDef.version(), scoring, groups, sdes);
+        copy.setDefaultMeasurementPeriod(measureDef.getDefaultMeasurementPeriod());
+        return copy;
+    }
+
+    // Adds the results of a partial evaluation to the target. The source must be a copy of the target.
+    protected void merge(MeasureDef target, MeasureDef source) {
+        for (int i = 0; i < target.groups().size(); i++) {
+            GroupDef targetGroup = target.groups().get(i);
+            GroupDef sourceGroup = source.groups().get(i);
+            for (int j = 0; j < targetGroup.populations().size(); j++) {
+                PopulationDef targetPopulation = targetGroup.populations().get(j);
+                PopulationDef sourcePopulation = sourceGroup.populations().get(j);
+                targetPopulation.getEvaluatedResources().addAll(sourcePopulation.getEvaluatedResources());
+                targetPopulation.getResources().addAll(sourcePopulation.getResources());
+                targetPopulation.getSubjects().addAll(sourcePopulation.getSubjects());
+            }
+
+            for (int j = 0; j < targetGroup.stratifiers().size(); j++) {
+                StratifierDef targetStratifier = targetGroup.stratifiers().get(j);
+                StratifierDef sourceStratifier = sourceGroup.stratifiers().get(j);
+                targetStratifier.getResults().putAll(sourceStratifier.getResults());
+                for (int k = 0; k < targetStratifier.components().size(); k++) {
+                    targetStratifier
+                            .components()
+                            .get(k)
+                            .getResults()
+                            .putAll(sourceStratifier.components().get(k).getResults());
+                }
+            }
+        }
+
+        for (int i = 0; i < target.sdes().size(); i++) {
+            target.sdes().get(i).getResults().putAll(source.sdes().get(i).getResults());
+        }
+    }
+
     protected void evaluateSubject(
             MeasureDef measureDef, Map<GroupDef, MeasureScoring> scoring, String subjectType, String subjectId) {
         evaluateSdes(subjectId, measureDef.sdes());
@@ -390,7 +676,8 @@ public class MeasureEvaluator {
                     for (Object resource : measurePopulation.getResources()) {
                         Object observationResult = evaluateObservationCriteria(
                                 resource, measureObservation.expression(), measureObservation.getEvaluatedResources());
-                        measureObservation.addResource(observationResult);
+                        // Observations are kept per resource, so that equal values are each counted
+                        measureObservation.addResource(new SimpleImmutableEntry<>(resource, observationResult));
                     }
                 }
             }
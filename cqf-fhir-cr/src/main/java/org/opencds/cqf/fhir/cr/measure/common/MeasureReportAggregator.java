@@ -0,0 +1,19 @@
+package org.opencds.cqf.fhir.cr.measure.common;
+
+import java.util.Map;
+
+/**
+ * Combines summary MeasureReports that were built from disjoint sets of subjects, so that a
+ * population can be reported on one page of subjects at a time.
+ */
+public interface MeasureReportAggregator<MeasureReportT> {
+    /**
+     * Adds the population, stratum and supplemental data counts of the source report to the target
+     * report and rescores the target.
+     *
+     * @param target the report accumulated so far
+     * @param source a report for the next page of subjects, built from the same Measure
+     * @param measureScoring the scoring of the Measure groups
+     */
+    void aggregate(MeasureReportT target, MeasureReportT source, Map<GroupDef, MeasureScoring> measureScoring);
+}
@@ -1,10 +1,12 @@
 package org.opencds.cqf.fhir.cr.measure.dstu3;
 
+import java.util.function.Supplier;
 import org.hl7.fhir.dstu3.model.DomainResource;
 import org.hl7.fhir.dstu3.model.Measure;
 import org.hl7.fhir.dstu3.model.MeasureReport;
 import org.opencds.cqf.cql.engine.execution.CqlEngine;
 import org.opencds.cqf.fhir.cr.measure.common.BaseMeasureEvaluation;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureConstants;
 
 /**
  * Implementation of MeasureEvaluation on top of HAPI FHIR DSTU3 structures.
@@ -14,4 +16,16 @@ public class Dstu3MeasureEvaluation extends BaseMeasureEvaluation<Measure, Measu
     public Dstu3MeasureEvaluation(CqlEngine context, Measure measure) {
         super(context, measure, new Dstu3MeasureDefBuilder(), new Dstu3MeasureReportBuilder());
     }
+
+    public Dstu3MeasureEvaluation(
+            CqlEngine context, Measure measure, Supplier<CqlEngine> contextFactory, int numThreads) {
+        super(
+                context,
+                measure,
+                new Dstu3MeasureDefBuilder(),
+                new Dstu3MeasureReportBuilder(),
+                MeasureConstants.MEASUREMENT_PERIOD_PARAMETER_NAME,
+                contextFactory,
+                numThreads);
+    }
 }
@@ -16,10 +16,12 @@ import org.hl7.fhir.dstu3.model.MeasureReport;
 import org.hl7.fhir.dstu3.model.Parameters;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
 import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.fhir.api.Repository;
 import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.engine.terminology.ValueSetPrefetch;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.cr.measure.common.MeasureEvalType;
 import org.opencds.cqf.fhir.cr.measure.common.MeasureReportType;
@@ -83,14 +85,49 @@ public class Dstu3MeasureProcessor {
         var reference = measure.getLibrary().get(0);
 
         var library = this.repository.read(Library.class, reference.getReferenceElement());
+        var id = new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion());
 
+        var context = buildContext(id, additionalData, parameters);
+        prefetchValueSets(context, id);
+
+        var actualRepo = this.repository;
+        if (additionalData != null) {
+            actualRepo = new FederatedRepository(
+                    this.repository, new InMemoryFhirRepository(this.repository.fhirContext(), additionalData));
+        }
+
+        var evalType = MeasureEvalType.fromCode(reportType)
+                .orElse(
+                        subjectIds == null || subjectIds.isEmpty() || subjectIds.get(0) == null
+                                ? MeasureEvalType.POPULATION
+                                : MeasureEvalType.SUBJECT);
+
+        var subjects =
+                subjectProvider.getSubjects(actualRepo, evalType, subjectIds).collect(Collectors.toList());
+
+        var numThreads = this.measureEvaluationOptions.getNumThreads();
+        Dstu3MeasureEvaluation measureEvaluator = new Dstu3MeasureEvaluation(
+                context, measure, () -> buildContext(id, additionalData, parameters), numThreads);
+        measureEvaluator.setSubjectPrefetchSize(this.measureEvaluationOptions.getSubjectPrefetchSize());
+        measureEvaluator.setExecutor(this.measureEvaluationOptions.getEvaluationExecutor());
+        return measureEvaluator.evaluate(evalType, subjects, measurementPeriod);
+    }
+
+    // Expands the ValueSets of the library up front when configured, rather than on first use
+    protected void prefetchValueSets(CqlEngine context, VersionedIdentifier id) {
+        var evaluationSettings = this.measureEvaluationOptions.getEvaluationSettings();
+        if (evaluationSettings.getTerminologySettings().getPrefetchValueSets()) {
+            ValueSetPrefetch.prefetch(context, id, this.measureEvaluationOptions.getNumThreads());
+        }
+    }
+
+    // Builds an engine with the primary library and parameters loaded. Engines are not thread-safe, so
+    // parallel evaluation builds one per worker, sharing the caches in the EvaluationSettings.
+    protected CqlEngine buildContext(VersionedIdentifier id, IBaseBundle additionalData, Parameters parameters) {
         var context = Engines.forRepositoryAndSettings(
                 this.measureEvaluationOptions.getEvaluationSettings(), this.repository, additionalData);
 
-        var lib = context.getEnvironment()
-                .getLibraryManager()
-                .resolveLibrary(
-                        new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
+        var lib = context.getEnvironment().getLibraryManager().resolveLibrary(id);
 
         context.getState().init(lib.getLibrary());
 
@@ -110,23 +147,7 @@ public class Dstu3MeasureProcessor {
             }
         }
 
-        var actualRepo = this.repository;
-        if (additionalData != null) {
-            actualRepo = new FederatedRepository(
-                    this.repository, new InMemoryFhirRepository(this.repository.fhirContext(), additionalData));
-        }
-
-        var evalType = MeasureEvalType.fromCode(reportType)
-                .orElse(
-                        subjectIds == null || subjectIds.isEmpty() || subjectIds.get(0) == null
-                                ? MeasureEvalType.POPULATION
-                                : MeasureEvalType.SUBJECT);
-
-        var subjects =
-                subjectProvider.getSubjects(actualRepo, evalType, subjectIds).collect(Collectors.toList());
-
-        Dstu3MeasureEvaluation measureEvaluator = new Dstu3MeasureEvaluation(context, measure);
-        return measureEvaluator.evaluate(evalType, subjects, measurementPeriod);
+        return context;
     }
 
     protected MeasureReportType evalTypeToReportType(MeasureEvalType measureEvalType) {
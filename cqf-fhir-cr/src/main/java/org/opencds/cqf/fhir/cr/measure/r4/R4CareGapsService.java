@@ -28,8 +28,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
@@ -46,6 +54,7 @@ import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
@@ -150,21 +159,22 @@ public class R4CareGapsService {
                     Msg.code(2275) + "Only the subject parameter has been implemented.");
         }
 
-        List<CompletableFuture<ParametersParameterComponent>> futures = new ArrayList<>();
+        // A single processor is shared by all the evaluations so they share the compiled library and
+        // value set caches of the evaluation settings
+        R4MeasureProcessor measureProcessor = new R4MeasureProcessor(
+                myRepository,
+                myMeasureEvaluationOptions,
+                R4RepositorySubjectProvider.fromOptions(myMeasureEvaluationOptions));
         Parameters result = initializeResult();
         if (myCareGapsProperties.getThreadedCareGapsEnabled()) {
-            patients.forEach(patient -> {
-                Parameters.ParametersParameterComponent patientReports = patientReports(
-                        thePeriodStart.getValueAsString(),
-                        thePeriodEnd.getValueAsString(),
-                        patient,
-                        theStatuses,
-                        measures,
-                        theOrganization);
-                futures.add(CompletableFuture.supplyAsync(() -> patientReports, myCqlExecutor));
-            });
-
-            futures.forEach(x -> result.addParameter(x.join()));
+            patientReportsThreaded(
+                    thePeriodStart.getValueAsString(),
+                    thePeriodEnd.getValueAsString(),
+                    patients,
+                    theStatuses,
+                    measures,
+                    measureProcessor,
+                    result);
         } else {
             patients.forEach(patient -> {
                 Parameters.ParametersParameterComponent patientReports = patientReports(
@@ -173,7 +183,8 @@ public class R4CareGapsService {
                         patient,
                         theStatuses,
                         measures,
-                        theOrganization);
+                        theOrganization,
+                        measureProcessor);
                 if (patientReports != null) {
                     result.addParameter(patientReports);
                 }
@@ -182,6 +193,153 @@ public class R4CareGapsService {
         return result;
     }
 
+    // Each patient and Measure pair is evaluated as a separate task on the executor, with at most
+    // the configured number of evaluations in flight. The reports for a patient are assembled once
+    // all of its evaluations are complete. A patient whose evaluation fails or does not complete in
+    // time, or whose evaluations the executor rejects, is reported with an OperationOutcome rather
+    // than failing the whole request. Once the timeout has passed no more evaluations are submitted,
+    // and the ones in flight are cancelled.
+    private void patientReportsThreaded(
+            String thePeriodStart,
+            String thePeriodEnd,
+            List<Patient> thePatients,
+            List<String> theStatuses,
+            List<Measure> theMeasures,
+            R4MeasureProcessor theMeasureProcessor,
+            Parameters theResult) {
+        Semaphore permits = new Semaphore(myCareGapsProperties.getThreadedCareGapsMaxConcurrency());
+        long timeoutSeconds = myCareGapsProperties.getThreadedCareGapsTimeoutSeconds();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        String timeoutMessage = String.format("Care gaps evaluation timed out after %d seconds", timeoutSeconds);
+
+        List<List<Future<MeasureReport>>> tasks = new ArrayList<>();
+        // The errors of the patients whose evaluations couldn't be submitted, by position
+        Map<Integer, String> rejected = new HashMap<>();
+        try {
+            submit:
+            for (Patient patient : thePatients) {
+                List<Future<MeasureReport>> patientTasks = new ArrayList<>();
+                tasks.add(patientTasks);
+                for (Measure measure : theMeasures) {
+                    if (!acquire(permits, timeoutSeconds, deadline)) {
+                        break submit;
+                    }
+
+                    FutureTask<MeasureReport> task = permitted(
+                            permits,
+                            () -> evaluateReport(thePeriodStart, thePeriodEnd, patient, measure, theMeasureProcessor));
+                    try {
+                        myCqlExecutor.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // The task never runs, so it won't release its permit
+                        permits.release();
+                        cancel(patientTasks);
+                        rejected.put(tasks.size() - 1, errorMessage(e));
+                        continue submit;
+                    }
+
+                    patientTasks.add(task);
+                }
+            }
+
+            for (int i = 0; i < thePatients.size(); i++) {
+                Patient patient = thePatients.get(i);
+                List<Future<MeasureReport>> patientTasks = i < tasks.size() ? tasks.get(i) : Collections.emptyList();
+                if (rejected.containsKey(i)) {
+                    theResult.addParameter(patientError(patient, rejected.get(i)));
+                    continue;
+                }
+
+                if (patientTasks.size() < theMeasures.size()) {
+                    cancel(patientTasks);
+                    theResult.addParameter(patientError(patient, timeoutMessage));
+                    continue;
+                }
+
+                try {
+                    List<MeasureReport> reports = new ArrayList<>();
+                    for (Future<MeasureReport> task : patientTasks) {
+                        reports.add(
+                                timeoutSeconds > 0
+                                        ? task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                                        : task.get());
+                    }
+
+                    ParametersParameterComponent patientReports =
+                            patientReports(patient, theStatuses, theMeasures, reports);
+                    if (patientReports != null) {
+                        theResult.addParameter(patientReports);
+                    }
+                } catch (TimeoutException e) {
+                    cancel(patientTasks);
+                    theResult.addParameter(patientError(patient, timeoutMessage));
+                } catch (ExecutionException e) {
+                    cancel(patientTasks);
+                    theResult.addParameter(patientError(patient, errorMessage(e.getCause())));
+                }
+            }
+        } catch (InterruptedException e) {
+            tasks.forEach(this::cancel);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for care gaps evaluation", e);
+        }
+    }
+
+    // A task that releases its permit once its evaluation has finished. An evaluation doesn't stop
+    // when its task is cancelled, so a cancelled task that started keeps the permit until the
+    // evaluation returns. A task cancelled before it started releases the permit, and won't start.
+    static FutureTask<MeasureReport> permitted(Semaphore thePermits, Callable<MeasureReport> theEvaluation) {
+        AtomicBoolean started = new AtomicBoolean();
+        return new FutureTask<MeasureReport>(() -> {
+            if (!started.compareAndSet(false, true)) {
+                return null;
+            }
+
+            try {
+                return theEvaluation.call();
+            } finally {
+                thePermits.release();
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (isCancelled() && started.compareAndSet(false, true)) {
+                    thePermits.release();
+                }
+            }
+        };
+    }
+
+    private boolean acquire(Semaphore thePermits, long theTimeoutSeconds, long theDeadline)
+            throws InterruptedException {
+        if (theTimeoutSeconds <= 0) {
+            thePermits.acquire();
+            return true;
+        }
+
+        return thePermits.tryAcquire(Math.max(0, theDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private void cancel(List<Future<MeasureReport>> theTasks) {
+        theTasks.forEach(x -> x.cancel(true));
+    }
+
+    // Exceptions such as a NullPointerException may have no message
+    private static String errorMessage(Throwable theThrowable) {
+        return theThrowable.getMessage() != null ? theThrowable.getMessage() : theThrowable.toString();
+    }
+
+    private Parameters.ParametersParameterComponent patientError(Patient thePatient, String theMessage) {
+        ourLog.warn("Unable to evaluate care gaps for {}: {}", Ids.simple(thePatient), theMessage);
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.setId(UUID.randomUUID().toString());
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.EXCEPTION)
+                .setDiagnostics(theMessage);
+        return initializePatientParameter(thePatient).setResource(outcome);
+    }
+
     public void validateConfiguration() {
         checkNotNull(myCareGapsProperties, "Setting care-gaps properties are required for the $care-gaps operation.");
         checkArgument(
@@ -331,20 +489,24 @@ public class R4CareGapsService {
             Patient thePatient,
             List<String> theStatuses,
             List<Measure> theMeasures,
-            String theOrganization) {
+            String theOrganization,
+            R4MeasureProcessor theMeasureProcessor) {
         // TODO: add organization to report, if it exists.
+        List<MeasureReport> reports = new ArrayList<>();
+        for (Measure measure : theMeasures) {
+            reports.add(evaluateReport(thePeriodStart, thePeriodEnd, thePatient, measure, theMeasureProcessor));
+        }
+
+        return patientReports(thePatient, theStatuses, theMeasures, reports);
+    }
+
+    private Parameters.ParametersParameterComponent patientReports(
+            Patient thePatient, List<String> theStatuses, List<Measure> theMeasures, List<MeasureReport> theReports) {
         Composition composition = getComposition(thePatient);
         List<DetectedIssue> detectedIssues = new ArrayList<>();
         Map<String, Resource> evalPlusSDE = new HashMap<>();
-        List<MeasureReport> reports = getReports(
-                thePeriodStart,
-                thePeriodEnd,
-                thePatient,
-                theStatuses,
-                theMeasures,
-                composition,
-                detectedIssues,
-                evalPlusSDE);
+        List<MeasureReport> reports =
+                getReports(thePatient, theStatuses, theMeasures, theReports, composition, detectedIssues, evalPlusSDE);
 
         if (reports.isEmpty()) {
             return null;
@@ -354,35 +516,39 @@ public class R4CareGapsService {
                 .setResource(addBundleEntries(myServerBase, composition, detectedIssues, reports, evalPlusSDE));
     }
 
-    private List<MeasureReport> getReports(
+    MeasureReport evaluateReport(
             String thePeriodStart,
             String thePeriodEnd,
+            Patient thePatient,
+            Measure theMeasure,
+            R4MeasureProcessor theMeasureProcessor) {
+        String theReportType = MeasureReportType.INDIVIDUAL.toString();
+        List<String> subjects = Collections.singletonList(Ids.simple(thePatient));
+
+        return theMeasureProcessor.evaluateMeasure(
+                Eithers.forMiddle3(theMeasure.getIdElement()),
+                thePeriodStart,
+                thePeriodEnd,
+                theReportType,
+                subjects,
+                null,
+                null);
+    }
+
+    private List<MeasureReport> getReports(
             Patient thePatient,
             List<String> theStatuses,
             List<Measure> theMeasures,
+            List<MeasureReport> theEvaluatedReports,
             Composition theComposition,
             List<DetectedIssue> theDetectedIssues,
             Map<String, Resource> theEvalPlusSDEs) {
 
         List<MeasureReport> reports = new ArrayList<>();
-        MeasureReport report;
-
-        String theReportType = MeasureReportType.INDIVIDUAL.toString();
-        R4MeasureProcessor r4MeasureProcessor =
-                new R4MeasureProcessor(myRepository, myMeasureEvaluationOptions, new R4RepositorySubjectProvider());
-
-        for (Measure measure : theMeasures) {
-
-            List<String> subjects = Collections.singletonList(Ids.simple(thePatient));
 
-            report = r4MeasureProcessor.evaluateMeasure(
-                    Eithers.forMiddle3(measure.getIdElement()),
-                    thePeriodStart,
-                    thePeriodEnd,
-                    theReportType,
-                    subjects,
-                    null,
-                    null);
+        for (int i = 0; i < theMeasures.size(); i++) {
+            Measure measure = theMeasures.get(i);
+            MeasureReport report = theEvaluatedReports.get(i);
 
             if (!report.hasGroup()) {
                 ourLog.info(
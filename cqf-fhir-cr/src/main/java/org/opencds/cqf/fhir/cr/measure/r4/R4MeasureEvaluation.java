@@ -1,10 +1,13 @@
 package org.opencds.cqf.fhir.cr.measure.r4;
 
+import java.util.function.Supplier;
 import org.hl7.fhir.r4.model.DomainResource;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.opencds.cqf.cql.engine.execution.CqlEngine;
 import org.opencds.cqf.fhir.cr.measure.common.BaseMeasureEvaluation;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureConstants;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureReportAggregator;
 
 /**
  * Implementation of MeasureEvaluation on top of HAPI FHIR R4 structures.
@@ -14,4 +17,20 @@ public class R4MeasureEvaluation extends BaseMeasureEvaluation<Measure, MeasureR
     public R4MeasureEvaluation(CqlEngine context, Measure measure) {
         super(context, measure, new R4MeasureDefBuilder(), new R4MeasureReportBuilder());
     }
+
+    public R4MeasureEvaluation(CqlEngine context, Measure measure, Supplier<CqlEngine> contextFactory, int numThreads) {
+        super(
+                context,
+                measure,
+                new R4MeasureDefBuilder(),
+                new R4MeasureReportBuilder(),
+                MeasureConstants.MEASUREMENT_PERIOD_PARAMETER_NAME,
+                contextFactory,
+                numThreads);
+    }
+
+    @Override
+    protected MeasureReportAggregator<MeasureReport> getMeasureReportAggregator() {
+        return new R4MeasureReportAggregator();
+    }
 }
@@ -9,6 +9,7 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.r4.model.Bundle;
@@ -17,11 +18,13 @@ import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
 import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
 import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.fhir.api.Repository;
 import org.opencds.cqf.fhir.cql.Engines;
 import org.opencds.cqf.fhir.cql.VersionedIdentifiers;
+import org.opencds.cqf.fhir.cql.engine.terminology.ValueSetPrefetch;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.cr.measure.common.MeasureEvalType;
 import org.opencds.cqf.fhir.cr.measure.common.MeasureReportType;
@@ -39,7 +42,7 @@ public class R4MeasureProcessor {
     private final SubjectProvider subjectProvider;
 
     public R4MeasureProcessor(Repository repository, MeasureEvaluationOptions measureEvaluationOptions) {
-        this(repository, measureEvaluationOptions, new R4RepositorySubjectProvider());
+        this(repository, measureEvaluationOptions, R4RepositorySubjectProvider.fromOptions(measureEvaluationOptions));
     }
 
     public R4MeasureProcessor(
@@ -70,11 +73,22 @@ public class R4MeasureProcessor {
             actualRepo = new FederatedRepository(
                     this.repository, new InMemoryFhirRepository(this.repository.fhirContext(), additionalData));
         }
-        var subjects =
-                subjectProvider.getSubjects(actualRepo, evalType, subjectIds).collect(Collectors.toList());
+        List<String> subjectList;
+        // Closing the subjects cancels the pages of subjects that are still being fetched
+        try (var subjects = subjectProvider.getSubjects(actualRepo, evalType, subjectIds)) {
+            var pageSize = this.measureEvaluationOptions.getSubjectPageSize();
+            if (evalType == MeasureEvalType.POPULATION && pageSize > 0) {
+                var m = measure.fold(this::resolveByUrl, this::resolveById, Function.identity());
+                var measureEvaluation = this.buildMeasureEvaluation(m, additionalData, parameters);
+                return measureEvaluation.evaluatePaged(
+                        subjects.iterator(), this.buildMeasurementPeriod(periodStart, periodEnd), pageSize);
+            }
+
+            subjectList = subjects.collect(Collectors.toList());
+        }
 
         return this.evaluateMeasure(
-                measure, periodStart, periodEnd, reportType, subjects, additionalData, parameters, evalType);
+                measure, periodStart, periodEnd, reportType, subjectList, additionalData, parameters, evalType);
     }
 
     public MeasureReport evaluateMeasure(
@@ -101,17 +115,49 @@ public class R4MeasureProcessor {
             Parameters parameters,
             MeasureEvalType evalType) {
 
+        var measureEvaluator = this.buildMeasureEvaluation(measure, additionalData, parameters);
+        var measurementPeriod = this.buildMeasurementPeriod(periodStart, periodEnd);
+
+        if (evalType == null) {
+            evalType = MeasureEvalType.fromCode(reportType)
+                    .orElse(
+                            subjectIds == null || subjectIds.isEmpty() || subjectIds.get(0) == null
+                                    ? MeasureEvalType.POPULATION
+                                    : MeasureEvalType.SUBJECT);
+        }
+
+        return measureEvaluator.evaluate(evalType, subjectIds, measurementPeriod);
+    }
+
+    protected R4MeasureEvaluation buildMeasureEvaluation(
+            Measure measure, IBaseBundle additionalData, Parameters parameters) {
         if (!measure.hasLibrary()) {
             throw new IllegalArgumentException(
                     String.format("Measure %s does not have a primary library specified", measure.getUrl()));
         }
 
-        Interval measurementPeriod = null;
-        if (StringUtils.isNotBlank(periodStart) && StringUtils.isNotBlank(periodEnd)) {
-            measurementPeriod = this.buildMeasurementPeriod(periodStart, periodEnd);
+        var id = VersionedIdentifiers.forUrl(measure.getLibrary().get(0).asStringValue());
+        var context = buildContext(id, additionalData, parameters);
+        prefetchValueSets(context, id);
+        var numThreads = this.measureEvaluationOptions.getNumThreads();
+        var measureEvaluation = new R4MeasureEvaluation(
+                context, measure, () -> buildContext(id, additionalData, parameters), numThreads);
+        measureEvaluation.setSubjectPrefetchSize(this.measureEvaluationOptions.getSubjectPrefetchSize());
+        measureEvaluation.setExecutor(this.measureEvaluationOptions.getEvaluationExecutor());
+        return measureEvaluation;
+    }
+
+    // Expands the ValueSets of the library up front when configured, rather than on first use
+    protected void prefetchValueSets(CqlEngine context, VersionedIdentifier id) {
+        var evaluationSettings = this.measureEvaluationOptions.getEvaluationSettings();
+        if (evaluationSettings.getTerminologySettings().getPrefetchValueSets()) {
+            ValueSetPrefetch.prefetch(context, id, this.measureEvaluationOptions.getNumThreads());
         }
+    }
 
-        var id = VersionedIdentifiers.forUrl(measure.getLibrary().get(0).asStringValue());
+    // Builds an engine with the primary library and parameters loaded. Engines are not thread-safe, so
+    // parallel evaluation builds one per worker, sharing the caches in the EvaluationSettings.
+    protected CqlEngine buildContext(VersionedIdentifier id, IBaseBundle additionalData, Parameters parameters) {
         var context = Engines.forRepositoryAndSettings(
                 this.measureEvaluationOptions.getEvaluationSettings(), this.repository, additionalData);
 
@@ -135,16 +181,7 @@ public class R4MeasureProcessor {
             }
         }
 
-        if (evalType == null) {
-            evalType = MeasureEvalType.fromCode(reportType)
-                    .orElse(
-                            subjectIds == null || subjectIds.isEmpty() || subjectIds.get(0) == null
-                                    ? MeasureEvalType.POPULATION
-                                    : MeasureEvalType.SUBJECT);
-        }
-
-        R4MeasureEvaluation measureEvaluator = new R4MeasureEvaluation(context, measure);
-        return measureEvaluator.evaluate(evalType, subjectIds, measurementPeriod);
+        return context;
     }
 
     protected Measure resolveByUrl(CanonicalType url) {
@@ -175,6 +212,10 @@ public class R4MeasureProcessor {
     }
 
     private Interval buildMeasurementPeriod(String periodStart, String periodEnd) {
+        if (StringUtils.isBlank(periodStart) || StringUtils.isBlank(periodEnd)) {
+            return null;
+        }
+
         // resolve the measurement period
         return new Interval(
                 DateHelper.resolveRequestDate(periodStart, true),
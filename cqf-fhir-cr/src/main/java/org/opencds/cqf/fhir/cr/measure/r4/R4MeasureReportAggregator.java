@@ -0,0 +1,256 @@
+package org.opencds.cqf.fhir.cr.measure.r4;
+
+import static org.opencds.cqf.fhir.cr.measure.common.MeasureConstants.EXT_CRITERIA_REFERENCE_URL;
+import static org.opencds.cqf.fhir.cr.measure.common.MeasureConstants.EXT_SDE_REFERENCE_URL;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupPopulationComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupStratifierComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupPopulationComponent;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.fhir.cr.measure.common.GroupDef;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureReportAggregator;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureReportScorer;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureScoring;
+
+/**
+ * Combines R4 summary MeasureReports built by the {@link R4MeasureReportBuilder} for disjoint sets of
+ * subjects. Population and stratum counts are summed, strata are matched by value and components,
+ * and the aggregated supplemental data Observations are matched by SDE and value and have their
+ * counts summed. Evaluated resources are unioned, and the contained measure observations of the
+ * source are renumbered after those of the target.
+ */
+public class R4MeasureReportAggregator implements MeasureReportAggregator<MeasureReport> {
+
+    protected MeasureReportScorer<MeasureReport> measureReportScorer;
+
+    public R4MeasureReportAggregator() {
+        this.measureReportScorer = new R4MeasureReportScorer();
+    }
+
+    @Override
+    public void aggregate(MeasureReport target, MeasureReport source, Map<GroupDef, MeasureScoring> measureScoring) {
+        if (target.getGroup().size() != source.getGroup().size()) {
+            throw new IllegalArgumentException("The MeasureReports have a different number of groups");
+        }
+
+        for (int i = 0; i < target.getGroup().size(); i++) {
+            aggregateGroup(target.getGroup().get(i), source.getGroup().get(i));
+        }
+
+        aggregateSupplementalData(target, source);
+        aggregateEvaluatedResources(target, source);
+
+        for (MeasureReportGroupComponent group : target.getGroup()) {
+            group.setMeasureScore(null);
+            for (MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+                for (StratifierGroupComponent stratum : stratifier.getStratum()) {
+                    stratum.setMeasureScore(null);
+                }
+            }
+        }
+
+        this.measureReportScorer.score(measureScoring, target);
+    }
+
+    protected void aggregateGroup(MeasureReportGroupComponent target, MeasureReportGroupComponent source) {
+        addCounts(target.getPopulation(), source.getPopulation());
+
+        for (int i = 0; i < target.getStratifier().size(); i++) {
+            var targetStratifier = target.getStratifier().get(i);
+            for (StratifierGroupComponent sourceStratum :
+                    source.getStratifier().get(i).getStratum()) {
+                var targetStratum = findStratum(targetStratifier, sourceStratum);
+                if (targetStratum == null) {
+                    targetStratifier.addStratum(sourceStratum);
+                } else {
+                    addStratumCounts(targetStratum.getPopulation(), sourceStratum.getPopulation());
+                }
+            }
+        }
+    }
+
+    protected StratifierGroupComponent findStratum(
+            MeasureReportGroupStratifierComponent stratifier, StratifierGroupComponent stratum) {
+        for (StratifierGroupComponent candidate : stratifier.getStratum()) {
+            if (candidate.getValue().equalsDeep(stratum.getValue())
+                    && Base.compareDeep(candidate.getComponent(), stratum.getComponent(), true)) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private void addCounts(
+            List<MeasureReportGroupPopulationComponent> target, List<MeasureReportGroupPopulationComponent> source) {
+        for (int i = 0; i < target.size(); i++) {
+            var population = target.get(i);
+            population.setCount(population.getCount() + source.get(i).getCount());
+        }
+    }
+
+    private void addStratumCounts(
+            List<StratifierGroupPopulationComponent> target, List<StratifierGroupPopulationComponent> source) {
+        for (int i = 0; i < target.size(); i++) {
+            var population = target.get(i);
+            population.setCount(population.getCount() + source.get(i).getCount());
+        }
+    }
+
+    // Supplemental data is referenced from report extensions. Aggregated values are contained
+    // Observations that hold a count, everything else is carried over once.
+    protected void aggregateSupplementalData(MeasureReport target, MeasureReport source) {
+        var targetContained = indexContained(target);
+        var targetObservations = new HashMap<String, Observation>();
+        for (Extension ext : target.getExtensionsByUrl(EXT_SDE_REFERENCE_URL)) {
+            var observation = countObservation(targetContained, (Reference) ext.getValue());
+            if (observation != null) {
+                targetObservations.put(observationKey((Reference) ext.getValue(), observation), observation);
+            }
+        }
+
+        var sourceContained = indexContained(source);
+        var merged = new HashSet<String>();
+        for (Extension ext : source.getExtensionsByUrl(EXT_SDE_REFERENCE_URL)) {
+            var reference = (Reference) ext.getValue();
+            var observation = countObservation(sourceContained, reference);
+            if (observation != null) {
+                var targetObservation = targetObservations.get(observationKey(reference, observation));
+                if (targetObservation != null) {
+                    var count = (IntegerType) targetObservation.getValue();
+                    count.setValue(count.getValue() + ((IntegerType) observation.getValue()).getValue());
+                    merged.add(observation.getIdElement().getIdPart());
+                    continue;
+                }
+            }
+
+            if (!hasReference(target, reference)) {
+                target.addExtension(ext);
+            }
+        }
+
+        var observationCounts = countMeasureObservations(target);
+        for (Resource resource : source.getContained()) {
+            var id = resource.getIdElement().getIdPart();
+            if (merged.contains(id)) {
+                continue;
+            }
+
+            var observationName = measureObservationName(resource);
+            if (observationName != null) {
+                var number = observationCounts.merge(observationName, 1, Integer::sum);
+                id = R4MeasureReportBuilder.MEASURE_OBSERVATION_ID_PREFIX + observationName + "-" + number;
+                resource.setId(id);
+            }
+
+            if (!targetContained.containsKey(id)) {
+                target.addContained(resource);
+                targetContained.put(id, resource);
+            }
+        }
+    }
+
+    // Evaluated resources are matched by reference, and the criteria they were evaluated for are
+    // merged.
+    protected void aggregateEvaluatedResources(MeasureReport target, MeasureReport source) {
+        var targetReferences = new HashMap<String, Reference>();
+        for (Reference reference : target.getEvaluatedResource()) {
+            targetReferences.put(reference.getReference(), reference);
+        }
+
+        for (Reference reference : source.getEvaluatedResource()) {
+            var targetReference = targetReferences.get(reference.getReference());
+            if (targetReference == null) {
+                target.addEvaluatedResource(reference);
+                targetReferences.put(reference.getReference(), reference);
+                continue;
+            }
+
+            for (Extension ext : reference.getExtension()) {
+                if (targetReference.getExtension().stream().noneMatch(x -> x.equalsDeep(ext))) {
+                    targetReference.addExtension(ext);
+                }
+            }
+        }
+    }
+
+    // The measure observations of a report are numbered per observation name
+    private Map<String, Integer> countMeasureObservations(MeasureReport report) {
+        var counts = new HashMap<String, Integer>();
+        for (Resource resource : report.getContained()) {
+            var observationName = measureObservationName(resource);
+            if (observationName != null) {
+                counts.merge(observationName, 1, Integer::sum);
+            }
+        }
+
+        return counts;
+    }
+
+    private String measureObservationName(Resource resource) {
+        if (!(resource instanceof Observation)) {
+            return null;
+        }
+
+        var observationName = ((Observation) resource).getCode().getText();
+        var id = resource.getIdElement().getIdPart();
+        if (observationName == null
+                || id == null
+                || !id.startsWith(R4MeasureReportBuilder.MEASURE_OBSERVATION_ID_PREFIX + observationName + "-")) {
+            return null;
+        }
+
+        return observationName;
+    }
+
+    private Map<String, Resource> indexContained(MeasureReport report) {
+        var index = new HashMap<String, Resource>();
+        for (Resource resource : report.getContained()) {
+            index.put(resource.getIdElement().getIdPart(), resource);
+        }
+
+        return index;
+    }
+
+    private Observation countObservation(Map<String, Resource> contained, Reference reference) {
+        var ref = reference.getReference();
+        if (ref == null || !ref.startsWith("#")) {
+            return null;
+        }
+
+        var resource = contained.get(ref.substring(1));
+        if (resource instanceof Observation && ((Observation) resource).getValue() instanceof IntegerType) {
+            return (Observation) resource;
+        }
+
+        return null;
+    }
+
+    private String observationKey(Reference reference, Observation observation) {
+        var criteria = reference.getExtensionByUrl(EXT_CRITERIA_REFERENCE_URL);
+        var criteriaId = criteria != null ? criteria.getValue().primitiveValue() : null;
+        return criteriaId + "|" + observation.getCode().getCodingFirstRep().getCode();
+    }
+
+    private boolean hasReference(MeasureReport report, Reference reference) {
+        for (Extension ext : report.getExtensionsByUrl(EXT_SDE_REFERENCE_URL)) {
+            if (((Reference) ext.getValue()).equalsDeep(reference)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -66,6 +66,8 @@ public class R4MeasureReportBuilder implements MeasureReportBuilder<Measure, Mea
 
     protected static final String POPULATION_SUBJECT_SET = "POPULATION_SUBJECT_SET";
 
+    protected static final String MEASURE_OBSERVATION_ID_PREFIX = "measure-observation-";
+
     protected static final String MISSING_ID_NO_CRITERIA_REF_EXT = String.join(
             "Id for a Measure element is null.",
             "Unable to create criteriaReference extensions.",
@@ -467,7 +469,7 @@ public class R4MeasureReportBuilder implements MeasureReportBuilder<Measure, Mea
         for (int i = 0; i < resources.size(); i++) {
             // TODO: Do something with the resource...
             Observation observation = createMeasureObservation(
-                    bc, "measure-observation-" + observationName + "-" + (i + 1), observationName);
+                    bc, MEASURE_OBSERVATION_ID_PREFIX + observationName + "-" + (i + 1), observationName);
             bc.addContained(observation);
         }
     }
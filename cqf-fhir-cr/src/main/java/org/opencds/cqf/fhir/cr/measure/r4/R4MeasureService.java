@@ -61,7 +61,10 @@ public class R4MeasureService {
             String practitioner) {
 
         var repo = Repositories.proxy(repository, dataEndpoint, contentEndpoint, terminologyEndpoint);
-        var processor = new R4MeasureProcessor(repo, this.measureEvaluationOptions, new R4RepositorySubjectProvider());
+        var processor = new R4MeasureProcessor(
+                repo,
+                this.measureEvaluationOptions,
+                R4RepositorySubjectProvider.fromOptions(this.measureEvaluationOptions));
 
         ensureSupplementalDataElementSearchParameter();
 
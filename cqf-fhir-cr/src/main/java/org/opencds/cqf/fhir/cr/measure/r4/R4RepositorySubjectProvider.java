@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.stream.Stream;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Bundle;
@@ -17,6 +18,7 @@ import org.hl7.fhir.r4.model.Group.GroupType;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Patient;
 import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.cr.measure.common.MeasureEvalType;
 import org.opencds.cqf.fhir.cr.measure.common.SubjectProvider;
 import org.opencds.cqf.fhir.utility.iterable.BundleIterator;
@@ -25,6 +27,35 @@ import org.opencds.cqf.fhir.utility.search.Searches;
 
 public class R4RepositorySubjectProvider implements SubjectProvider {
 
+    private final Executor executor;
+    private final int pageLookahead;
+
+    public R4RepositorySubjectProvider() {
+        this(null, 0);
+    }
+
+    /**
+     * @param executor the executor that fetches the next pages of Patients ahead while a page is
+     *     consumed, or null to fetch each page when the previous one is consumed
+     * @param pageLookahead the maximum number of pages fetched ahead
+     */
+    public R4RepositorySubjectProvider(Executor executor, int pageLookahead) {
+        this.executor = executor;
+        this.pageLookahead = pageLookahead;
+    }
+
+    // Fetches the pages of Patients ahead with the search executor of the retrieve settings, if any
+    static R4RepositorySubjectProvider fromOptions(MeasureEvaluationOptions options) {
+        var settings = options == null ? null : options.getEvaluationSettings();
+        if (settings == null || settings.getRetrieveSettings() == null) {
+            return new R4RepositorySubjectProvider();
+        }
+
+        var retrieveSettings = settings.getRetrieveSettings();
+        return new R4RepositorySubjectProvider(
+                retrieveSettings.getSearchExecutor(), retrieveSettings.getPageLookahead());
+    }
+
     @Override
     public Stream<String> getSubjects(Repository repository, MeasureEvalType measureEvalType, String subjectId) {
         return getSubjects(repository, measureEvalType, Collections.singletonList(subjectId));
@@ -38,10 +69,15 @@ public class R4RepositorySubjectProvider implements SubjectProvider {
                 || subjectIds.get(0) == null
                 || subjectIds.get(0).isEmpty()) {
             var bundle = repository.search(Bundle.class, Patient.class, Searches.ALL);
-            return new BundleMappingIterable<>(repository, bundle, x -> x.getResource()
-                            .getIdElement()
-                            .toUnqualifiedVersionless()
-                            .getValue())
+            return new BundleMappingIterable<>(
+                            repository,
+                            bundle,
+                            x -> x.getResource()
+                                    .getIdElement()
+                                    .toUnqualifiedVersionless()
+                                    .getValue(),
+                            executor,
+                            pageLookahead)
                     .toStream();
         }
 
@@ -121,13 +157,13 @@ public class R4RepositorySubjectProvider implements SubjectProvider {
                                 : "Practitioner/" + thePractitioner)));
 
         var bundle = repository.search(Bundle.class, Patient.class, map);
-        var iterator = new BundleIterator<>(repository, bundle);
-
-        while (iterator.hasNext()) {
-            var patient = iterator.next().getResource();
-            var refString = patient.getIdElement().getResourceType() + "/"
-                    + patient.getIdElement().getIdPart();
-            patients.add(refString);
+        try (var iterator = new BundleIterator<>(repository, bundle, executor, pageLookahead)) {
+            while (iterator.hasNext()) {
+                var patient = iterator.next().getResource();
+                var refString = patient.getIdElement().getResourceType() + "/"
+                        + patient.getIdElement().getIdPart();
+                patients.add(refString);
+            }
         }
     }
 }
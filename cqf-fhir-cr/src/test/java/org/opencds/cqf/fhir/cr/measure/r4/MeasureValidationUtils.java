@@ -3,14 +3,20 @@ package org.opencds.cqf.fhir.cr.measure.r4;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import ca.uhn.fhir.context.FhirContext;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.MeasureReport;
 import org.hl7.fhir.r4.model.Reference;
@@ -151,4 +157,91 @@ public class MeasureValidationUtils {
             }
         }
     }
+
+    /**
+     * Asserts that two MeasureReports are the same, apart from their date, the ids of their contained
+     * resources and the order of the elements that is not significant.
+     */
+    protected static void validateMeasureReportEquality(MeasureReport actual, MeasureReport expected) {
+        var parser = FhirContext.forR4Cached().newJsonParser().setPrettyPrint(true);
+        assertEquals(
+                parser.encodeResourceToString(normalize(expected)), parser.encodeResourceToString(normalize(actual)));
+    }
+
+    private static MeasureReport normalize(MeasureReport report) {
+        var fhirContext = FhirContext.forR4Cached();
+        var parser = fhirContext.newJsonParser();
+        var copy = report.copy();
+        copy.setDate(null);
+
+        for (Resource resource : copy.getContained()) {
+            if (resource instanceof ListResource) {
+                ((ListResource) resource).getEntry().sort(Comparator.comparing(x -> x.getItem()
+                        .getReference()));
+            }
+        }
+
+        // Contained resources are ordered and renamed by their content
+        var keys = new IdentityHashMap<Resource, String>();
+        for (Resource resource : copy.getContained()) {
+            var anonymous = resource.copy();
+            anonymous.setId((String) null);
+            keys.put(resource, parser.encodeResourceToString(anonymous));
+        }
+
+        var contained = new ArrayList<>(copy.getContained());
+        contained.sort(Comparator.comparing(keys::get));
+        var ids = new HashMap<String, String>();
+        for (int i = 0; i < contained.size(); i++) {
+            var resource = contained.get(i);
+            ids.put("#" + resource.getIdElement().getIdPart(), "#contained-" + (i + 1));
+            resource.setId("contained-" + (i + 1));
+        }
+
+        copy.setContained(contained);
+        for (Reference reference : fhirContext.newTerser().getAllPopulatedChildElementsOfType(copy, Reference.class)) {
+            if (ids.containsKey(reference.getReference())) {
+                reference.setReference(ids.get(reference.getReference()));
+            }
+        }
+
+        copy.getExtension().sort(Comparator.comparing(MeasureValidationUtils::extensionKey));
+        copy.getEvaluatedResource().sort(Comparator.comparing(Reference::getReference));
+        for (Reference reference : copy.getEvaluatedResource()) {
+            reference.getExtension().sort(Comparator.comparing(MeasureValidationUtils::extensionKey));
+        }
+
+        for (MeasureReport.MeasureReportGroupComponent group : copy.getGroup()) {
+            for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+                stratifier.getStratum().sort(Comparator.comparing(MeasureValidationUtils::stratumKey));
+            }
+        }
+
+        return copy;
+    }
+
+    private static String extensionKey(Extension extension) {
+        var value = extension.getValue();
+        var key = value instanceof Reference ? ((Reference) value).getReference() : value.primitiveValue();
+        return extension.getUrl() + "|" + key;
+    }
+
+    private static String stratumKey(MeasureReport.StratifierGroupComponent stratum) {
+        var key = new StringBuilder(conceptKey(stratum.getValue()));
+        for (MeasureReport.StratifierGroupComponentComponent component : stratum.getComponent()) {
+            key.append('|')
+                    .append(conceptKey(component.getCode()))
+                    .append('=')
+                    .append(conceptKey(component.getValue()));
+        }
+
+        return key.toString();
+    }
+
+    private static String conceptKey(CodeableConcept concept) {
+        return concept.getText()
+                + concept.getCoding().stream()
+                        .map(x -> x.getSystem() + "#" + x.getCode())
+                        .collect(Collectors.joining(","));
+    }
 }
@@ -0,0 +1,334 @@
+package org.opencds.cqf.fhir.cr.measure.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.SEARCH_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.TERMINOLOGY_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings.VALUESET_EXPANSION_MODE;
+import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.test.TestRepositoryFactory;
+import org.opencds.cqf.fhir.utility.repository.FederatedRepository;
+import org.opencds.cqf.fhir.utility.repository.IGLayoutMode;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+public class R4CareGapsServiceTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    private static final List<String> PATIENTS = List.of("denom-EXM125", "neg-denom-EXM125", "numer-EXM125");
+
+    private Repository repository;
+    private MeasureEvaluationOptions evaluationOptions;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setup() {
+        var content = TestRepositoryFactory.createRepository(
+                fhirContext,
+                this.getClass(),
+                Measure.CLASS_PATH + "/BreastCancerScreeningFHIR",
+                IGLayoutMode.DIRECTORY);
+
+        var local = new InMemoryFhirRepository(fhirContext);
+        local.update(new Organization().setName("Reporter").setId("Organization/reporter"));
+        local.update(new Organization().setName("Author").setId("Organization/author"));
+
+        var group = new Group().setType(Group.GroupType.PERSON).setActual(true);
+        group.setId("Group/care-gaps");
+        for (String id : PATIENTS) {
+            group.addMember().setEntity(new Reference("Patient/" + id));
+        }
+        local.update(group);
+
+        this.repository = new FederatedRepository(local, content);
+        this.evaluationOptions = MeasureEvaluationOptions.defaultOptions();
+        this.evaluationOptions
+                .getEvaluationSettings()
+                .getRetrieveSettings()
+                .setSearchParameterMode(SEARCH_FILTER_MODE.FILTER_IN_MEMORY)
+                .setTerminologyParameterMode(TERMINOLOGY_FILTER_MODE.FILTER_IN_MEMORY);
+        this.evaluationOptions
+                .getEvaluationSettings()
+                .getTerminologySettings()
+                .setValuesetExpansionMode(VALUESET_EXPANSION_MODE.PERFORM_NAIVE_EXPANSION);
+        this.executor = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    private CareGapsProperties properties(int maxConcurrency, long timeoutSeconds) {
+        var properties = new CareGapsProperties();
+        properties.setCareGapsReporter("Organization/reporter");
+        properties.setCareGapsCompositionSectionAuthor("Organization/author");
+        properties.setThreadedCareGapsEnabled(true);
+        properties.setThreadedCareGapsMaxConcurrency(maxConcurrency);
+        properties.setThreadedCareGapsTimeoutSeconds(timeoutSeconds);
+        return properties;
+    }
+
+    private Parameters careGaps(R4CareGapsService service) {
+        return service.getCareGapsReport(
+                new DateType("2019-01-01"),
+                new DateType("2019-12-31"),
+                null,
+                "Group/care-gaps",
+                null,
+                null,
+                Arrays.asList("open-gap", "closed-gap"),
+                Collections.singletonList("BreastCancerScreeningFHIR"),
+                null,
+                null,
+                null);
+    }
+
+    // The patients that have care gaps reported when they are evaluated one at a time
+    private List<String> serialSubjects() {
+        var properties = properties(1, 0);
+        properties.setThreadedCareGapsEnabled(false);
+        var result = careGaps(
+                new R4CareGapsService(properties, repository, evaluationOptions, executor, "http://localhost/fhir"));
+        return result.getParameter().stream().map(x -> x.getId()).collect(Collectors.toList());
+    }
+
+    private static ParametersParameterComponent subject(Parameters result, String id) {
+        return result.getParameter().stream()
+                .filter(x -> x.getId().equals("subject-" + id))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static String diagnostics(Parameters result, String id) {
+        var resource = subject(result, id).getResource();
+        assertTrue(resource instanceof OperationOutcome);
+        return ((OperationOutcome) resource).getIssueFirstRep().getDiagnostics();
+    }
+
+    @Test
+    public void evaluationsAreBounded() {
+        var active = new AtomicInteger();
+        var maxActive = new AtomicInteger();
+        var service =
+                new R4CareGapsService(
+                        properties(2, 0), repository, evaluationOptions, executor, "http://localhost/fhir") {
+                    @Override
+                    MeasureReport evaluateReport(
+                            String thePeriodStart,
+                            String thePeriodEnd,
+                            Patient thePatient,
+                            org.hl7.fhir.r4.model.Measure theMeasure,
+                            R4MeasureProcessor theMeasureProcessor) {
+                        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(50);
+                            return super.evaluateReport(
+                                    thePeriodStart, thePeriodEnd, thePatient, theMeasure, theMeasureProcessor);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RuntimeException(e);
+                        } finally {
+                            active.decrementAndGet();
+                        }
+                    }
+                };
+
+        var result = careGaps(service);
+
+        assertFalse(result.getParameter().isEmpty());
+        assertEquals(
+                serialSubjects(),
+                result.getParameter().stream().map(x -> x.getId()).collect(Collectors.toList()));
+        assertTrue(result.getParameter().stream().allMatch(x -> x.getResource() instanceof Bundle));
+        assertTrue(maxActive.get() <= 2);
+    }
+
+    @Test
+    public void timedOutEvaluationsAreCancelled() throws InterruptedException {
+        var started = new AtomicInteger();
+        var interrupted = new CountDownLatch(1);
+        var service =
+                new R4CareGapsService(
+                        properties(1, 1), repository, evaluationOptions, executor, "http://localhost/fhir") {
+                    @Override
+                    MeasureReport evaluateReport(
+                            String thePeriodStart,
+                            String thePeriodEnd,
+                            Patient thePatient,
+                            org.hl7.fhir.r4.model.Measure theMeasure,
+                            R4MeasureProcessor theMeasureProcessor) {
+                        started.incrementAndGet();
+                        try {
+                            Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                        } catch (InterruptedException e) {
+                            interrupted.countDown();
+                        }
+
+                        return null;
+                    }
+                };
+
+        var result = careGaps(service);
+
+        // The only permit is held by the first evaluation, so the other patients are never submitted
+        assertEquals(1, started.get());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(PATIENTS.size(), result.getParameter().size());
+        for (String id : PATIENTS) {
+            assertTrue(diagnostics(result, id).contains("timed out"));
+        }
+    }
+
+    @Test
+    public void failedEvaluationsAreReportedPerPatient() {
+        var service =
+                new R4CareGapsService(
+                        properties(4, 0), repository, evaluationOptions, executor, "http://localhost/fhir") {
+                    @Override
+                    MeasureReport evaluateReport(
+                            String thePeriodStart,
+                            String thePeriodEnd,
+                            Patient thePatient,
+                            org.hl7.fhir.r4.model.Measure theMeasure,
+                            R4MeasureProcessor theMeasureProcessor) {
+                        if (thePatient.getIdElement().getIdPart().equals("denom-EXM125")) {
+                            throw new IllegalStateException("evaluation failed");
+                        }
+
+                        return super.evaluateReport(
+                                thePeriodStart, thePeriodEnd, thePatient, theMeasure, theMeasureProcessor);
+                    }
+                };
+
+        var result = careGaps(service);
+
+        assertEquals("evaluation failed", diagnostics(result, "denom-EXM125"));
+        var outcome = (OperationOutcome) subject(result, "denom-EXM125").getResource();
+        assertEquals(
+                OperationOutcome.IssueSeverity.ERROR, outcome.getIssueFirstRep().getSeverity());
+        for (String id : serialSubjects()) {
+            if (!id.equals("subject-denom-EXM125")) {
+                assertTrue(subject(result, id.substring("subject-".length())).getResource() instanceof Bundle);
+            }
+        }
+    }
+
+    @Test
+    public void rejectedEvaluationsReleaseTheirPermits() {
+        // The first submission is rejected. With a single permit, the other patients are only
+        // evaluated if the rejected task gave its permit back.
+        var submissions = new AtomicInteger();
+        Executor rejectingFirst = task -> {
+            if (submissions.getAndIncrement() == 0) {
+                throw new RejectedExecutionException("queue is full");
+            }
+
+            executor.execute(task);
+        };
+        var service = new R4CareGapsService(
+                properties(1, 30), repository, evaluationOptions, rejectingFirst, "http://localhost/fhir");
+
+        var result = careGaps(service);
+
+        assertEquals("queue is full", diagnostics(result, "denom-EXM125"));
+        for (String id : serialSubjects()) {
+            if (!id.equals("subject-denom-EXM125")) {
+                assertTrue(subject(result, id.substring("subject-".length())).getResource() instanceof Bundle);
+            }
+        }
+    }
+
+    @Test
+    public void failuresWithoutMessagesAreReported() {
+        var service =
+                new R4CareGapsService(
+                        properties(4, 0), repository, evaluationOptions, executor, "http://localhost/fhir") {
+                    @Override
+                    MeasureReport evaluateReport(
+                            String thePeriodStart,
+                            String thePeriodEnd,
+                            Patient thePatient,
+                            org.hl7.fhir.r4.model.Measure theMeasure,
+                            R4MeasureProcessor theMeasureProcessor) {
+                        throw new NullPointerException();
+                    }
+                };
+
+        var result = careGaps(service);
+
+        for (String id : PATIENTS) {
+            assertEquals("java.lang.NullPointerException", diagnostics(result, id));
+        }
+    }
+
+    @Test
+    public void cancelledEvaluationsKeepTheirPermitsUntilTheyFinish() throws Exception {
+        var permits = new Semaphore(0);
+        var running = new CountDownLatch(1);
+        var finish = new CountDownLatch(1);
+        var task = R4CareGapsService.permitted(permits, () -> {
+            running.countDown();
+            // Ignores the interrupt, as an evaluation in the engine does
+            while (!finish.await(10, TimeUnit.SECONDS)) {}
+            return null;
+        });
+        var thread = new Thread(task);
+        thread.start();
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        task.cancel(true);
+        assertEquals(0, permits.availablePermits());
+
+        finish.countDown();
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+        assertEquals(1, permits.availablePermits());
+    }
+
+    @Test
+    public void evaluationsCancelledBeforeStartingReleaseTheirPermits() {
+        var permits = new Semaphore(0);
+        var evaluated = new AtomicInteger();
+        var task = R4CareGapsService.permitted(permits, () -> {
+            evaluated.incrementAndGet();
+            return null;
+        });
+
+        task.cancel(true);
+        assertEquals(1, permits.availablePermits());
+
+        task.run();
+        assertEquals(0, evaluated.get());
+        assertEquals(1, permits.availablePermits());
+    }
+}
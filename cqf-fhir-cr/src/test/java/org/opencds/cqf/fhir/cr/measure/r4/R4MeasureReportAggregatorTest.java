@@ -0,0 +1,156 @@
+package org.opencds.cqf.fhir.cr.measure.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.opencds.cqf.fhir.cr.measure.common.MeasureConstants.EXT_CRITERIA_REFERENCE_URL;
+import static org.opencds.cqf.fhir.cr.measure.r4.MeasureValidationUtils.validateMeasureReportEquality;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponent;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.SEARCH_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.TERMINOLOGY_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings.VALUESET_EXPANSION_MODE;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.GroupDef;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureScoring;
+import org.opencds.cqf.fhir.cr.measure.r4.Measure.Given;
+
+public class R4MeasureReportAggregatorTest {
+
+    private static final Map<GroupDef, MeasureScoring> scoring =
+            Map.of(new GroupDef("group-1", null, List.of(), List.of()), MeasureScoring.CONTINUOUSVARIABLE);
+
+    private static MeasureReport evaluate(Given given) {
+        return given.when()
+                .measureId("CMS111")
+                .periodStart("2019-01-01")
+                .periodEnd("2020-01-01")
+                .reportType("population")
+                .evaluate()
+                .then()
+                .report();
+    }
+
+    @Test
+    public void pagedContinuousVariableReportMatchesSerial() {
+        var serial = evaluate(Measure.given().repositoryFor("CMS111"));
+
+        var options = MeasureEvaluationOptions.defaultOptions();
+        options.setSubjectPageSize(1);
+        options.getEvaluationSettings()
+                .getRetrieveSettings()
+                .setSearchParameterMode(SEARCH_FILTER_MODE.FILTER_IN_MEMORY)
+                .setTerminologyParameterMode(TERMINOLOGY_FILTER_MODE.FILTER_IN_MEMORY);
+        options.getEvaluationSettings()
+                .getTerminologySettings()
+                .setValuesetExpansionMode(VALUESET_EXPANSION_MODE.PERFORM_NAIVE_EXPANSION);
+        var paged = evaluate(Measure.given().repositoryFor("CMS111").evaluationOptions(options));
+
+        // Each page numbers its measure observations from 1
+        assertTrue(paged.getContained().stream()
+                        .filter(x -> x.getIdElement().getIdPart().startsWith("measure-observation-"))
+                        .count()
+                > 1);
+        validateMeasureReportEquality(paged, serial);
+    }
+
+    @Test
+    public void measureObservationsAreRenumbered() {
+        var target = report(observation("MeasureObservation", 1), observation("MeasureObservation", 2));
+        var source = report(observation("MeasureObservation", 1));
+
+        new R4MeasureReportAggregator().aggregate(target, source, scoring);
+
+        assertEquals(
+                List.of(
+                        "measure-observation-MeasureObservation-1",
+                        "measure-observation-MeasureObservation-2",
+                        "measure-observation-MeasureObservation-3"),
+                target.getContained().stream()
+                        .map(x -> x.getIdElement().getIdPart())
+                        .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void strataAreMatchedByValueAndComponents() {
+        var target = report();
+        var stratifier = target.getGroupFirstRep().addStratifier();
+        stratifier.addStratum(stratum("male", "65+", 1));
+        stratifier.addStratum(stratum("male", "18-64", 2));
+
+        var source = report();
+        var sourceStratifier = source.getGroupFirstRep().addStratifier();
+        sourceStratifier.addStratum(stratum("male", "18-64", 3));
+        sourceStratifier.addStratum(stratum("male", "0-17", 4));
+
+        new R4MeasureReportAggregator().aggregate(target, source, scoring);
+
+        var counts = target.getGroupFirstRep().getStratifierFirstRep().getStratum().stream()
+                .collect(Collectors.toMap(
+                        x -> x.getComponentFirstRep().getValue().getText(),
+                        x -> x.getPopulationFirstRep().getCount()));
+        assertEquals(Map.of("65+", 1, "18-64", 5, "0-17", 4), counts);
+    }
+
+    @Test
+    public void evaluatedResourcesAreUnioned() {
+        var target = report();
+        target.addEvaluatedResource(evaluatedResource("Encounter/1", "initial-population"));
+        target.addEvaluatedResource(evaluatedResource("Encounter/2", "initial-population"));
+
+        var source = report();
+        source.addEvaluatedResource(evaluatedResource("Encounter/2", "measure-population"));
+        source.addEvaluatedResource(evaluatedResource("Encounter/3", "initial-population"));
+
+        new R4MeasureReportAggregator().aggregate(target, source, scoring);
+
+        assertEquals(
+                List.of("Encounter/1", "Encounter/2", "Encounter/3"),
+                target.getEvaluatedResource().stream()
+                        .map(Reference::getReference)
+                        .collect(Collectors.toList()));
+        assertEquals(2, target.getEvaluatedResource().get(1).getExtension().size());
+    }
+
+    private static MeasureReport report(Resource... contained) {
+        var report = new MeasureReport();
+        report.addGroup().setId("group-1");
+        for (Resource resource : contained) {
+            report.addContained(resource);
+        }
+
+        return report;
+    }
+
+    private static Observation observation(String name, int number) {
+        var observation = new Observation();
+        observation.setId(R4MeasureReportBuilder.MEASURE_OBSERVATION_ID_PREFIX + name + "-" + number);
+        observation.setCode(new CodeableConcept().setText(name));
+        return observation;
+    }
+
+    private static StratifierGroupComponent stratum(String value, String component, int count) {
+        var stratum = new StratifierGroupComponent();
+        stratum.setValue(new CodeableConcept().setText(value));
+        stratum.addComponent()
+                .setCode(new CodeableConcept().setText("age"))
+                .setValue(new CodeableConcept().setText(component));
+        stratum.addPopulation().setCount(count);
+        return stratum;
+    }
+
+    private static Reference evaluatedResource(String reference, String criteria) {
+        var evaluatedResource = new Reference(reference);
+        evaluatedResource.addExtension(EXT_CRITERIA_REFERENCE_URL, new StringType(criteria));
+        return evaluatedResource;
+    }
+}
@@ -1,10 +1,35 @@
 package org.opencds.cqf.fhir.cr.measure.r4;
 
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.opencds.cqf.fhir.cr.measure.r4.MeasureValidationUtils.validateMeasureReportEquality;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.BundleUtil;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MeasureReport;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.SEARCH_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings.TERMINOLOGY_FILTER_MODE;
+import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings.VALUESET_EXPANSION_MODE;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.cr.measure.r4.Measure.Given;
+import org.opencds.cqf.fhir.test.TestRepositoryFactory;
+import org.opencds.cqf.fhir.utility.repository.CompartmentFileRepository;
+import org.opencds.cqf.fhir.utility.repository.IGLayoutMode;
+import org.opencds.cqf.fhir.utility.search.Searches;
 
 public class StratifierMeasureProcessorTest {
 
+    @TempDir
+    Path tempDir;
+
     protected static Given given =
             Measure.given().repositoryFor("PrimaryCariesPreventionasOfferedbyPCPsincludingDentistsFHIR");
 
@@ -185,4 +210,93 @@ public class StratifierMeasureProcessorTest {
         // validateStratifier(mrgc.getStratifierFirstRep(), "false", "numerator", 4);
         // validateStratumScore(mrgc.getStratifierFirstRep(), "false", new BigDecimal("0.5"));
     }
+
+    // The options and repositories that evaluate the population in other ways, and must report
+    // exactly what the serial evaluation reports
+    private Given given(String strategy, Executor executor) {
+        var options = MeasureEvaluationOptions.defaultOptions();
+        options.setEvaluationExecutor(executor);
+        var retrieveSettings = options.getEvaluationSettings()
+                .getRetrieveSettings()
+                .setSearchParameterMode(SEARCH_FILTER_MODE.FILTER_IN_MEMORY)
+                .setTerminologyParameterMode(TERMINOLOGY_FILTER_MODE.FILTER_IN_MEMORY);
+        options.getEvaluationSettings()
+                .getTerminologySettings()
+                .setValuesetExpansionMode(VALUESET_EXPANSION_MODE.PERFORM_NAIVE_EXPANSION);
+
+        var given = Measure.given().repositoryFor("PrimaryCariesPreventionasOfferedbyPCPsincludingDentistsFHIR");
+        switch (strategy) {
+            case "threaded":
+                options.setNumThreads(4);
+                break;
+            case "paged":
+                options.setSubjectPageSize(2);
+                break;
+            case "prefetched":
+                options.setSubjectPrefetchSize(4);
+                retrieveSettings.setSearchParameterMode(SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS);
+                break;
+            case "compartments":
+                options.setSubjectPrefetchSize(4);
+                retrieveSettings.setSearchParameterMode(SEARCH_FILTER_MODE.USE_SEARCH_PARAMETERS);
+                given = Measure.given().repository(compartmentStore());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown strategy " + strategy);
+        }
+
+        return given.evaluationOptions(options);
+    }
+
+    // The test data, stored in patient compartments that are scanned in pages of 3
+    private CompartmentFileRepository compartmentStore() {
+        var fhirContext = FhirContext.forR4Cached();
+        var source = TestRepositoryFactory.createRepository(
+                fhirContext,
+                Measure.class,
+                Measure.CLASS_PATH + "/PrimaryCariesPreventionasOfferedbyPCPsincludingDentistsFHIR",
+                IGLayoutMode.DIRECTORY);
+        var store = new CompartmentFileRepository(fhirContext, tempDir, 3, 4);
+        for (var type : fhirContext.getResourceTypes()) {
+            var resources = source.search(
+                    Bundle.class, fhirContext.getResourceDefinition(type).getImplementingClass(), Searches.ALL);
+            store.load(BundleUtil.toListOfResources(fhirContext, resources));
+        }
+
+        return store;
+    }
+
+    private static MeasureReport evaluatePopulation(Given given) {
+        return given.when()
+                .measureId("PrimaryCariesPreventionasOfferedbyPCPsincludingDentistsFHIR")
+                .periodStart("2019-01-01")
+                .periodEnd("2020-01-01")
+                .reportType("population")
+                .evaluate()
+                .then()
+                .report();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"threaded", "paged", "prefetched", "compartments"})
+    public void exm74_population_matchesSerial(String strategy) {
+        validateMeasureReportEquality(evaluatePopulation(given(strategy, null)), evaluatePopulation(given));
+    }
+
+    @Test
+    public void exm74_population_threaded_onGivenExecutor() {
+        var tasks = new AtomicInteger();
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var threaded = given("threaded", x -> {
+                tasks.incrementAndGet();
+                executor.execute(x);
+            });
+
+            validateMeasureReportEquality(evaluatePopulation(threaded), evaluatePopulation(given));
+            assertTrue(tasks.get() > 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
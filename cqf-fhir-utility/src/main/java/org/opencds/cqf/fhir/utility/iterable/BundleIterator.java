@@ -2,24 +2,65 @@ package org.opencds.cqf.fhir.utility.iterable;
 
 import ca.uhn.fhir.util.BundleUtil;
 import ca.uhn.fhir.util.bundle.BundleEntryParts;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.opencds.cqf.fhir.api.Repository;
 
-public class BundleIterator<B extends IBaseBundle> implements Iterator<BundleEntryParts> {
+/**
+ * Iterates the entries of a Bundle, fetching the next pages from the Repository as the entries are
+ * consumed. If an Executor is given, up to lookahead next pages are fetched on the Executor while
+ * the current page is consumed, so that a page boundary only waits for a page that is not yet
+ * back. The Repository must then support concurrent link calls. Closing the iterator cancels the
+ * pages that are still being fetched. An iterator that may be consumed later can instead stop
+ * fetching ahead, so that it keeps its entries and fetches each page when it is reached.
+ */
+public class BundleIterator<B extends IBaseBundle> implements Iterator<BundleEntryParts>, AutoCloseable {
 
     protected final Repository repository;
     protected B bundle;
     protected int index = 0;
     protected List<BundleEntryParts> parts;
 
+    private final Class<B> bundleType;
+    private final Executor executor;
+    private final int lookahead;
+    private final Deque<CompletableFuture<B>> pending = new ArrayDeque<>();
+    private volatile boolean closed = false;
+    private boolean prefetching;
+
     public BundleIterator(Repository repository, B bundle) {
+        this(repository, bundle, null, 0);
+    }
+
+    /**
+     * @param repository the repository that resolves the next links
+     * @param bundle the first page
+     * @param executor the executor that fetches the next pages, or null to fetch each page when
+     *     the previous one is consumed
+     * @param lookahead the maximum number of pages fetched ahead of the current one
+     */
+    @SuppressWarnings("unchecked")
+    public BundleIterator(Repository repository, B bundle, Executor executor, int lookahead) {
+        if (lookahead < 0) {
+            throw new IllegalArgumentException("lookahead can not be negative");
+        }
+
         this.repository = repository;
         this.bundle = bundle;
+        this.bundleType = (Class<B>) bundle.getClass();
+        this.executor = lookahead > 0 ? executor : null;
+        this.lookahead = lookahead;
+        this.prefetching = this.executor != null;
         this.parts = BundleUtil.toListOfEntries(repository.fhirContext(), bundle);
+        prefetch(bundle);
     }
 
     @Override
@@ -47,30 +88,98 @@ public class BundleIterator<B extends IBaseBundle> implements Iterator<BundleEnt
         // Reset internal counter
         index = 0;
 
-        var nextLink = BundleUtil.getLinkUrlOfType(this.repository.fhirContext(), bundle, IBaseBundle.LINK_NEXT);
+        // Bundles that return an empty set are skipped
+        do {
+            this.bundle = this.prefetching ? takePrefetched() : fetchNext(bundle);
+
+            // No next Bundle, no parts.
+            if (bundle == null) {
+                this.parts = Collections.emptyList();
+                return;
+            }
+
+            this.parts = BundleUtil.toListOfEntries(repository.fhirContext(), bundle);
+        } while (this.parts.isEmpty());
+    }
 
-        // No next Bundle, no parts.
-        if (nextLink == null) {
-            this.parts = Collections.emptyList();
+    /**
+     * Cancels the pages that are being fetched ahead. The iterator has no more entries afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        pending.forEach(x -> x.cancel(false));
+        pending.clear();
+        index = 0;
+        parts = Collections.emptyList();
+    }
+
+    /**
+     * Cancels the pages that are being fetched ahead, and fetches each next page when the previous
+     * one is consumed from then on. Unlike {@link #close()}, the iterator keeps all of its entries.
+     */
+    public void stopPrefetch() {
+        if (!prefetching) {
             return;
         }
 
-        @SuppressWarnings("unchecked")
-        var clazz = (Class<B>) bundle.getClass();
+        prefetching = false;
+        pending.forEach(x -> x.cancel(false));
+        pending.clear();
+    }
+
+    private B fetchNext(B current) {
+        if (current == null || closed) {
+            return null;
+        }
+
+        var nextLink = BundleUtil.getLinkUrlOfType(this.repository.fhirContext(), current, IBaseBundle.LINK_NEXT);
+        return nextLink == null ? null : this.repository.link(bundleType, nextLink);
+    }
 
-        this.bundle = this.repository.link(clazz, nextLink);
+    private B takePrefetched() {
+        var next = pending.poll();
+        if (next == null) {
+            return null;
+        }
 
-        // No Bundle returned, no parts
-        if (bundle == null) {
-            this.parts = Collections.emptyList();
-            return;
+        B result;
+        try {
+            result = next.join();
+        } catch (CompletionException e) {
+            close();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
         }
 
-        this.parts = BundleUtil.toListOfEntries(repository.fhirContext(), bundle);
+        // The pages past the last one resolve to null without a request, so stop queueing them
+        if (result != null) {
+            prefetch(result);
+        } else {
+            pending.forEach(x -> x.cancel(false));
+            pending.clear();
+        }
 
-        // Bundle returned an empty set, try the next one.
-        if (this.parts.isEmpty()) {
-            getNextBundle();
+        return result;
+    }
+
+    // Each page is fetched once the page before it is back, since its link is in that page. The
+    // current page is the one the first pending page follows.
+    private void prefetch(B current) {
+        if (!prefetching || closed) {
+            return;
+        }
+
+        while (pending.size() < lookahead) {
+            var last = pending.peekLast();
+            if (last == null) {
+                pending.add(CompletableFuture.supplyAsync(() -> fetchNext(current), executor));
+            } else {
+                pending.add(last.thenApplyAsync(this::fetchNext, executor));
+            }
         }
     }
 }
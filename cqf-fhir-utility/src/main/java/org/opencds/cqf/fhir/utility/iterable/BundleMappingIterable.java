@@ -1,9 +1,9 @@
 package org.opencds.cqf.fhir.utility.iterable;
 
 import ca.uhn.fhir.util.bundle.BundleEntryParts;
-import java.util.Iterator;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -13,7 +13,8 @@ import org.opencds.cqf.fhir.api.Repository;
 /**
  * This class allows you to iterate a Bundle (including fetching the next links
  * from the Repository) and provide a mapping function
- * for each Bundle entry.
+ * for each Bundle entry. If an Executor is given, the next pages are fetched
+ * ahead on it while the current page is consumed.
  *
  */
 public class BundleMappingIterable<B extends IBaseBundle, T> implements Iterable<T> {
@@ -21,19 +22,42 @@ public class BundleMappingIterable<B extends IBaseBundle, T> implements Iterable
     private final Repository repository;
     private final B bundle;
     private final Function<BundleEntryParts, T> mapper;
+    private final Executor executor;
+    private final int lookahead;
 
     public BundleMappingIterable(Repository repository, B bundle, Function<BundleEntryParts, T> mapper) {
+        this(repository, bundle, mapper, null, 0);
+    }
+
+    /**
+     * @param repository the repository that resolves the next links
+     * @param bundle the first page
+     * @param mapper the mapping function for each Bundle entry
+     * @param executor the executor that fetches the next pages ahead, or null to fetch each page
+     *     when the previous one is consumed
+     * @param lookahead the maximum number of pages fetched ahead of the current one
+     */
+    public BundleMappingIterable(
+            Repository repository, B bundle, Function<BundleEntryParts, T> mapper, Executor executor, int lookahead) {
         this.repository = repository;
         this.bundle = bundle;
         this.mapper = mapper;
+        this.executor = executor;
+        this.lookahead = lookahead;
     }
 
     @Override
-    public Iterator<T> iterator() {
-        return new BundleMappingIterator<>(repository, bundle, mapper);
+    public BundleMappingIterator<B, T> iterator() {
+        return new BundleMappingIterator<>(repository, bundle, mapper, executor, lookahead);
     }
 
+    /**
+     * Closing the Stream cancels the pages that are still being fetched ahead.
+     * @return the mapped entries of all the pages
+     */
     public Stream<T> toStream() {
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED), false);
+        var iterator = iterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                .onClose(iterator::close);
     }
 }
@@ -3,17 +3,23 @@ package org.opencds.cqf.fhir.utility.iterable;
 import ca.uhn.fhir.util.bundle.BundleEntryParts;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.opencds.cqf.fhir.api.Repository;
 
-public class BundleMappingIterator<B extends IBaseBundle, T> implements Iterator<T> {
+public class BundleMappingIterator<B extends IBaseBundle, T> implements Iterator<T>, AutoCloseable {
 
     private final Function<BundleEntryParts, T> mapper;
     private final BundleIterator<B> inner;
 
     public BundleMappingIterator(Repository repository, B bundle, Function<BundleEntryParts, T> mapper) {
-        this.inner = new BundleIterator<>(repository, bundle);
+        this(repository, bundle, mapper, null, 0);
+    }
+
+    public BundleMappingIterator(
+            Repository repository, B bundle, Function<BundleEntryParts, T> mapper, Executor executor, int lookahead) {
+        this.inner = new BundleIterator<>(repository, bundle, executor, lookahead);
         this.mapper = mapper;
     }
 
@@ -31,4 +37,16 @@ public class BundleMappingIterator<B extends IBaseBundle, T> implements Iterator
         var next = inner.next();
         return this.mapper.apply(next);
     }
+
+    /**
+     * @see BundleIterator#stopPrefetch()
+     */
+    public void stopPrefetch() {
+        inner.stopPrefetch();
+    }
+
+    @Override
+    public void close() {
+        inner.close();
+    }
 }
@@ -0,0 +1,60 @@
+package org.opencds.cqf.fhir.utility.iterable;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * This class allows you to iterate the elements of an Iterator more than once. Elements are taken
+ * from the Iterator only as they are first consumed, and are kept so that later iterations replay
+ * them before continuing with the Iterator.
+ * <p>
+ * A Bundle can be iterated lazily this way, fetching the next page only when the previous one has
+ * been consumed, without fetching the pages again for each iteration.
+ */
+public class MemoizingIterable<T> implements Iterable<T> {
+
+    private final Iterator<? extends T> source;
+    private final List<T> consumed = new ArrayList<>();
+
+    public MemoizingIterable(Iterator<? extends T> source) {
+        this.source = requireNonNull(source, "source can not be null");
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return has(index);
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return get(index++);
+            }
+        };
+    }
+
+    // True if the element at the index has been consumed, taking it from the source if needed
+    private synchronized boolean has(int index) {
+        while (consumed.size() <= index && source.hasNext()) {
+            consumed.add(source.next());
+        }
+
+        return consumed.size() > index;
+    }
+
+    private synchronized T get(int index) {
+        return consumed.get(index);
+    }
+}
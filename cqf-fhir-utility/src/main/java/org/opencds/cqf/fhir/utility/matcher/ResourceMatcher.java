@@ -6,6 +6,7 @@ import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
@@ -68,7 +69,9 @@ public interface ResourceMatcher {
 
     public Map<SPPathKey, IParsedExpression> getPathCache();
 
-    // The list here is an OR list. Meaning, if any element matches it's a match
+    // The list here is an OR list. Meaning, if any element matches it's a match. The exception is a
+    // list of dates, which are the bounds of a range (e.g. date=ge2020-01-01&date=le2020-12-31), so
+    // every element must match.
     default boolean matches(String name, List<IQueryParameterType> params, IBaseResource resource) {
         boolean match = true;
 
@@ -112,6 +115,24 @@ public interface ResourceMatcher {
             return false;
         }
 
+        if (!params.isEmpty() && params.stream().allMatch(DateParam.class::isInstance)) {
+            for (IQueryParameterType param : params) {
+                boolean any = false;
+                for (var r : pathResult) {
+                    if (isMatchDate((DateParam) param, r)) {
+                        any = true;
+                        break;
+                    }
+                }
+
+                if (!any) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
         for (IQueryParameterType param : params) {
             for (var r : pathResult) {
                 if (param instanceof ReferenceParam) {
@@ -173,14 +194,14 @@ public interface ResourceMatcher {
         return false;
     }
 
+    // The eq prefix matches dates within the range of the parameter, and the other prefixes match
+    // dates that overlap it, as a FHIR server does
     default boolean isMatchDate(DateParam param, IBase pathResult) {
         DateRangeParam dateRange;
         // date, dateTime and instant are PrimitiveType<Date>
         if (pathResult instanceof IPrimitiveType) {
-            var result = ((IPrimitiveType<?>) pathResult).getValue();
-            if (result instanceof Date) {
-                dateRange = new DateRangeParam((Date) result, (Date) result);
-            } else {
+            dateRange = getDateRange((IPrimitiveType<?>) pathResult);
+            if (dateRange == null) {
                 throw new UnsupportedOperationException(
                         "Expected date, found " + pathResult.getClass().getSimpleName());
             }
@@ -191,7 +212,10 @@ public interface ResourceMatcher {
                     "Expected element of type date, dateTime, instant, Timing or Period, found "
                             + pathResult.getClass().getSimpleName());
         }
-        return matchesDateBounds(dateRange, new DateRangeParam(param));
+        var paramRange = new DateRangeParam(param);
+        return param.getPrefix() == null || param.getPrefix() == ParamPrefixEnum.EQUAL
+                ? matchesDateBounds(dateRange, paramRange)
+                : overlapsDateBounds(dateRange, paramRange);
     }
 
     default boolean isMatchToken(TokenParam param, IBase pathResult) {
@@ -247,6 +271,7 @@ public interface ResourceMatcher {
                 + pathResult.getClass().getSimpleName());
     }
 
+    // True if the resource range is within the parameter range. A missing bound is unbounded.
     default boolean matchesDateBounds(DateRangeParam theResourceRange, DateRangeParam theParamRange) {
         Date resourceLowerBound = theResourceRange.getLowerBoundAsInstant();
         Date resourceUpperBound = theResourceRange.getUpperBoundAsInstant();
@@ -257,19 +282,59 @@ public interface ResourceMatcher {
         } else {
             boolean result = true;
             if (paramLowerBound != null) {
-                result &= resourceLowerBound.after(paramLowerBound) || resourceLowerBound.equals(paramLowerBound);
-                result &= resourceUpperBound.after(paramLowerBound) || resourceUpperBound.equals(paramLowerBound);
+                result &= resourceLowerBound != null && !resourceLowerBound.before(paramLowerBound);
             }
 
             if (paramUpperBound != null) {
-                result &= resourceLowerBound.before(paramUpperBound) || resourceLowerBound.equals(paramUpperBound);
-                result &= resourceUpperBound.before(paramUpperBound) || resourceUpperBound.equals(paramUpperBound);
+                result &= resourceUpperBound != null && !resourceUpperBound.after(paramUpperBound);
             }
 
             return result;
         }
     }
 
+    // True if the resource range and the parameter range share an instant. A missing bound is
+    // unbounded.
+    default boolean overlapsDateBounds(DateRangeParam theResourceRange, DateRangeParam theParamRange) {
+        Date resourceLowerBound = theResourceRange.getLowerBoundAsInstant();
+        Date resourceUpperBound = theResourceRange.getUpperBoundAsInstant();
+        Date paramLowerBound = theParamRange.getLowerBoundAsInstant();
+        Date paramUpperBound = theParamRange.getUpperBoundAsInstant();
+        if (paramLowerBound == null && paramUpperBound == null) {
+            return false;
+        }
+
+        boolean endsAfterStart =
+                paramLowerBound == null || resourceUpperBound == null || !resourceUpperBound.before(paramLowerBound);
+        boolean startsBeforeEnd =
+                paramUpperBound == null || resourceLowerBound == null || !resourceLowerBound.after(paramUpperBound);
+        return endsAfterStart && startsBeforeEnd;
+    }
+
+    // The instants covered by a date, dateTime or instant, e.g. the whole day of a date, or null if
+    // the value isn't a date. The bounds are those of the value in its own timezone, which HAPI
+    // would otherwise widen by the range of timezones for a date.
+    default DateRangeParam getDateRange(IPrimitiveType<?> date) {
+        if (!(date.getValue() instanceof Date)) {
+            return null;
+        }
+
+        return getDateRange(date, date);
+    }
+
+    // The instants from the start of one date to the end of another, e.g. of a Period. A side
+    // without a date is unbounded.
+    default DateRangeParam getDateRange(IPrimitiveType<?> start, IPrimitiveType<?> end) {
+        var low = start != null && start.getValue() instanceof Date ? (Date) start.getValue() : null;
+        Date high = null;
+        if (end != null && end.getValue() instanceof Date) {
+            var precision = new DateParam(end.getValueAsString()).getPrecision();
+            high = new Date(precision.add((Date) end.getValue(), 1).getTime() - 1);
+        }
+
+        return new DateRangeParam(low, high);
+    }
+
     DateRangeParam getDateRange(ICompositeType type);
 
     List<TokenParam> getCodes(IBase codeElement);
@@ -7,9 +7,9 @@ import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.NotImplementedException;
 import org.hl7.fhir.instance.model.api.IBase;
@@ -23,7 +23,8 @@ import org.opencds.cqf.fhir.utility.FhirPathCache;
 
 public class ResourceMatcherR5 implements ResourceMatcher {
 
-    private Map<SPPathKey, IParsedExpression> pathCache = new HashMap<>();
+    // The parsed search parameter paths are shared by all the matchers of the FHIR version
+    private static final Map<SPPathKey, IParsedExpression> pathCache = new ConcurrentHashMap<>();
 
     @Override
     public IFhirPath getEngine() {
@@ -38,7 +39,7 @@ public class ResourceMatcherR5 implements ResourceMatcher {
     @Override
     public DateRangeParam getDateRange(ICompositeType type) {
         if (type instanceof Period) {
-            return new DateRangeParam(((Period) type).getStart(), ((Period) type).getEnd());
+            return getDateRange(((Period) type).getStartElement(), ((Period) type).getEndElement());
         } else if (type instanceof Timing) {
             throw new NotImplementedException("Timing resolution has not yet been implemented");
         } else {
@@ -0,0 +1,930 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import static java.util.Objects.requireNonNull;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.BundleBuilder;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterators;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.NotImplementedException;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.utility.matcher.ResourceMatcher;
+
+/**
+ * A Repository that stores its resources in files partitioned by Patient compartment, so that
+ * populations that don't fit in memory can be evaluated one patient at a time.
+ * <p>
+ * The resources in the compartment of a patient are serialized together in one file per patient,
+ * and each Patient is kept in a file of its own, which is replaced when the Patient is written.
+ * Resources that aren't in a Patient compartment are kept in a file per resource type. The files of
+ * the compartments and of the types are append-only logs of serialized resources, where the last
+ * line written for a resource wins, so writing a resource other than a Patient never rewrites a
+ * file. Deleting a Patient deletes its compartment, and the resources that were in no other
+ * compartment. Resources are parsed
+ * only when they're read, and only the files of the most recently used compartments are held in
+ * memory, so the heap used is proportional to the compartments being evaluated rather than to the
+ * whole population.
+ * <p>
+ * Searches by a Patient compartment parameter, such as the retrieves of an evaluation in the
+ * Patient context, read only the compartments of the patients searched for. Searches of the
+ * Patients, and other searches of the resources in compartments, scan the files and are returned in
+ * pages, so the subjects of a population can be iterated with a
+ * {@link org.opencds.cqf.fhir.utility.iterable.BundleIterator} without holding all of them. The
+ * next link of a page holds the position of the page in the scan, so a page can be read again, or
+ * by several threads at once.
+ * <p>
+ * The repository is thread-safe. Writes are serialized, and are meant for loading the data before
+ * it's evaluated.
+ */
+public class CompartmentFileRepository implements Repository {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final int DEFAULT_COMPARTMENT_CACHE_SIZE = 16;
+
+    private static final String PATIENT = "Patient";
+    private static final String EXTENSION = ".ndjson";
+    private static final String PATIENT_EXTENSION = ".json";
+    private static final String PATIENTS = "patients";
+    private static final String COMPARTMENTS = "compartments";
+    private static final String SHARED = "shared";
+    private static final String IDS = "ids";
+    private static final String PAGE = "page";
+    private static final String SHARD = "shard";
+    private static final String FILE = "file";
+    private static final String OFFSET = "offset";
+    // The number of characters buffered by a bulk load before they're written
+    private static final int LOAD_BUFFER_SIZE = 1 << 23;
+
+    private final FhirContext fhirContext;
+    private final Path root;
+    private final int pageSize;
+
+    // The recently used files, by path
+    private final Cache<Path, Partition> partitions;
+    // The scans that were returned in pages, by the id in their next links
+    private final Cache<String, Scan> scans = CacheBuilder.newBuilder()
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .maximumSize(1000)
+            .build();
+
+    private final Object writeLock = new Object();
+
+    public CompartmentFileRepository(FhirContext fhirContext, Path root) {
+        this(fhirContext, root, DEFAULT_PAGE_SIZE, DEFAULT_COMPARTMENT_CACHE_SIZE);
+    }
+
+    /**
+     * Opens the store in the directory, which is created if it doesn't exist.
+     *
+     * @param fhirContext the FhirContext of the resources
+     * @param root the directory of the store
+     * @param pageSize the number of resources in each page of the searches that scan the store
+     * @param compartmentCacheSize the number of files that are held in memory
+     */
+    public CompartmentFileRepository(FhirContext fhirContext, Path root, int pageSize, int compartmentCacheSize) {
+        this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null");
+        this.root = requireNonNull(root, "root can not be null");
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+
+        if (compartmentCacheSize < 0) {
+            throw new IllegalArgumentException("compartmentCacheSize can not be negative");
+        }
+
+        this.pageSize = pageSize;
+        this.partitions =
+                CacheBuilder.newBuilder().maximumSize(compartmentCacheSize).build();
+        try {
+            Files.createDirectories(root);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The resources of a file, which are parsed as they're used
+    private class Partition {
+        // "Type/id" -> the serialized resource, which is empty for deleted resources
+        private final Map<String, String> serialized = new LinkedHashMap<>();
+        private final Map<String, IBaseResource> parsed = new ConcurrentHashMap<>();
+
+        Partition(Path file) {
+            String content;
+            try {
+                content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            // A line that isn't terminated is still being written, and is skipped
+            int start = 0;
+            int end;
+            while ((end = content.indexOf('\n', start)) >= 0) {
+                var type = content.indexOf('\t', start);
+                var id = type < 0 ? -1 : content.indexOf('\t', type + 1);
+                if (id >= 0 && id < end) {
+                    serialized.put(
+                            content.substring(start, type) + "/" + content.substring(type + 1, id),
+                            content.substring(id + 1, end));
+                }
+
+                start = end + 1;
+            }
+        }
+
+        IBaseResource get(String type, String id) {
+            var key = type + "/" + id;
+            var json = serialized.get(key);
+            if (json == null || json.isEmpty()) {
+                return null;
+            }
+
+            return parsed.computeIfAbsent(key, k -> fhirContext.newJsonParser().parseResource(json));
+        }
+
+        List<IBaseResource> resources(String type) {
+            var prefix = type + "/";
+            var resources = new ArrayList<IBaseResource>();
+            for (var key : serialized.keySet()) {
+                if (key.startsWith(prefix)) {
+                    var resource = get(type, key.substring(prefix.length()));
+                    if (resource != null) {
+                        resources.add(resource);
+                    }
+                }
+            }
+
+            return resources;
+        }
+    }
+
+    private Partition partition(Path file) {
+        try {
+            return partitions.get(file, () -> new Partition(file));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Ids are hashed to spread the files of the store over directories of a bounded size
+    private static String shard(String id, int mask) {
+        return Integer.toHexString(id.hashCode() & mask);
+    }
+
+    // Ids that differ only in case must not share a file on a case-insensitive file system, so an
+    // upper case letter is written as '_' and the letter in lower case. Other characters that aren't
+    // allowed in a FHIR id are percent-encoded.
+    private static String fileName(String id) {
+        var name = new StringBuilder(id.length());
+        for (var b : id.getBytes(StandardCharsets.UTF_8)) {
+            if (b >= 'A' && b <= 'Z') {
+                name.append('_').append((char) (b + ('a' - 'A')));
+            } else if ((b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-' || b == '.') {
+                name.append((char) b);
+            } else {
+                name.append('%').append(String.format("%02x", b & 0xff));
+            }
+        }
+
+        return name.toString();
+    }
+
+    // The id of a file name, less its extension
+    private static String idOf(String fileName) {
+        var id = new ByteArrayOutputStream(fileName.length());
+        for (int i = 0; i < fileName.length(); i++) {
+            var c = fileName.charAt(i);
+            if (c == '_') {
+                id.write(fileName.charAt(++i) - ('a' - 'A'));
+            } else if (c == '%') {
+                id.write(Integer.parseInt(fileName.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                id.write(c);
+            }
+        }
+
+        return new String(id.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private Path patientFile(String id) {
+        return root.resolve(PATIENTS).resolve(shard(id, 0xff)).resolve(fileName(id) + PATIENT_EXTENSION);
+    }
+
+    private Path compartmentFile(String patient) {
+        return root.resolve(COMPARTMENTS).resolve(shard(patient, 0xff)).resolve(fileName(patient) + EXTENSION);
+    }
+
+    private Path sharedFile(String type) {
+        return root.resolve(SHARED).resolve(type + EXTENSION);
+    }
+
+    private Path idsFile(String type, String id) {
+        return root.resolve(IDS).resolve(type).resolve(shard(id, 0xfff) + EXTENSION);
+    }
+
+    // True if resources of the type may be in a Patient compartment
+    private boolean isCompartmentType(String type) {
+        return !fhirContext
+                .getResourceDefinition(type)
+                .getSearchParamsForCompartmentName(PATIENT)
+                .isEmpty();
+    }
+
+    // The ids of the patients whose compartments the resource belongs to, other than its own
+    private Set<String> getPatients(IBaseResource resource) {
+        var patients = new LinkedHashSet<String>();
+        if (!isCompartmentType(resource.fhirType())) {
+            return patients;
+        }
+
+        for (var owner : fhirContext.newTerser().getCompartmentOwnersForResource(PATIENT, resource, null)) {
+            if (owner.getIdPart() != null
+                    && (owner.getResourceType() == null || PATIENT.equals(owner.getResourceType()))) {
+                patients.add(owner.getIdPart());
+            }
+        }
+
+        return patients;
+    }
+
+    // The patients whose compartments the resource was last written to, an empty list if it was
+    // written to the file of its type or deleted, or null if it was never written
+    private List<String> getLocation(String type, String id) {
+        String line;
+        try (Stream<String> lines = Files.lines(idsFile(type, id), StandardCharsets.UTF_8)) {
+            var prefix = id + "\t";
+            line = lines.filter(l -> l.startsWith(prefix))
+                    .reduce((first, second) -> second)
+                    .orElse(null);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (UncheckedIOException e) {
+            if (e.getCause() instanceof NoSuchFileException) {
+                return null;
+            }
+
+            throw e;
+        }
+
+        if (line == null) {
+            return null;
+        }
+
+        var patients = line.substring(id.length() + 1);
+        return patients.isEmpty() ? Collections.emptyList() : Arrays.asList(patients.split(","));
+    }
+
+    private static void append(Path file, String content) {
+        try {
+            Files.createDirectories(file.getParent());
+            Files.write(
+                    file,
+                    content.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String line(String type, String id, String json) {
+        return type + "\t" + id + "\t" + json + "\n";
+    }
+
+    private void appendResource(Path file, String type, String id, String json) {
+        append(file, line(type, id, json));
+        partitions.invalidate(file);
+    }
+
+    // The lines to append to each file, which are written together so that a file is opened once
+    // for all of them
+    private class Writes {
+        private final Map<Path, StringBuilder> lines = new LinkedHashMap<>();
+        private int size;
+
+        void append(Path file, String content) {
+            lines.computeIfAbsent(file, f -> new StringBuilder()).append(content);
+            size += content.length();
+        }
+
+        void flush() {
+            for (var entry : lines.entrySet()) {
+                CompartmentFileRepository.append(entry.getKey(), entry.getValue().toString());
+                partitions.invalidate(entry.getKey());
+            }
+
+            lines.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Adds a resource that isn't in the store yet, without looking for an earlier version of it.
+     * This is faster than an update when the data is first loaded.
+     *
+     * @param resource the resource
+     */
+    public void load(IBaseResource resource) {
+        write(resource, false);
+    }
+
+    /**
+     * Adds resources that aren't in the store yet, as {@link #load(IBaseResource)} does. The lines
+     * written to each file are buffered, so that a file is opened once for many resources rather
+     * than once for each of them.
+     *
+     * @param resources the resources
+     */
+    public void load(Iterable<? extends IBaseResource> resources) {
+        requireNonNull(resources, "resources can not be null");
+        synchronized (writeLock) {
+            var writes = new Writes();
+            for (var resource : resources) {
+                write(requireNonNull(resource, "resource can not be null"), false, writes);
+                if (writes.size >= LOAD_BUFFER_SIZE) {
+                    writes.flush();
+                }
+            }
+
+            writes.flush();
+        }
+    }
+
+    private boolean write(IBaseResource resource, boolean replace) {
+        requireNonNull(resource, "resource can not be null");
+        synchronized (writeLock) {
+            var writes = new Writes();
+            var created = write(resource, replace, writes);
+            writes.flush();
+            return created;
+        }
+    }
+
+    // Writes a Patient, or adds the lines of any other resource to the writes
+    private boolean write(IBaseResource resource, boolean replace, Writes writes) {
+        var type = resource.fhirType();
+        var id = requireNonNull(resource.getIdElement().getIdPart(), "resource id can not be null");
+        var json = fhirContext.newJsonParser().encodeResourceToString(resource);
+
+        if (PATIENT.equals(type)) {
+            var file = patientFile(id);
+            var created = !Files.exists(file);
+            try {
+                Files.createDirectories(file.getParent());
+                Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return created;
+        }
+
+        var patients = getPatients(resource);
+        List<String> previous = replace ? getLocation(type, id) : null;
+        if (previous != null) {
+            // Remove the resource from the files that it's no longer in
+            if (previous.isEmpty() && !patients.isEmpty()) {
+                writes.append(sharedFile(type), line(type, id, ""));
+            }
+
+            for (var patient : previous) {
+                if (!patients.contains(patient)) {
+                    writes.append(compartmentFile(patient), line(type, id, ""));
+                }
+            }
+        }
+
+        if (patients.isEmpty()) {
+            writes.append(sharedFile(type), line(type, id, json));
+        } else {
+            for (var patient : patients) {
+                writes.append(compartmentFile(patient), line(type, id, json));
+            }
+        }
+
+        if (isCompartmentType(type)) {
+            writes.append(idsFile(type, id), id + "\t" + String.join(",", patients) + "\n");
+        }
+
+        return previous == null;
+    }
+
+    private IBaseResource find(String type, String id) {
+        if (PATIENT.equals(type)) {
+            try {
+                return fhirContext
+                        .newJsonParser()
+                        .parseResource(new String(Files.readAllBytes(patientFile(id)), StandardCharsets.UTF_8));
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        if (!isCompartmentType(type)) {
+            return partition(sharedFile(type)).get(type, id);
+        }
+
+        var patients = getLocation(type, id);
+        if (patients == null) {
+            return null;
+        }
+
+        return patients.isEmpty()
+                ? partition(sharedFile(type)).get(type, id)
+                : partition(compartmentFile(patients.get(0))).get(type, id);
+    }
+
+    @Override
+    public FhirContext fhirContext() {
+        return this.fhirContext;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends IBaseResource, I extends IIdType> T read(
+            Class<T> resourceType, I id, Map<String, String> headers) {
+        requireNonNull(resourceType, "resourceType can not be null");
+        requireNonNull(id, "id can not be null");
+
+        var resource = find(resourceType.getSimpleName(), id.getIdPart());
+        if (resource == null) {
+            throw new ResourceNotFoundException(id);
+        }
+
+        return (T) resource;
+    }
+
+    @Override
+    public <T extends IBaseResource> MethodOutcome create(T resource, Map<String, String> headers) {
+        requireNonNull(resource, "resource can not be null");
+        var outcome = new MethodOutcome(resource.getIdElement());
+        outcome.setCreated(write(resource, true));
+        return outcome;
+    }
+
+    @Override
+    public <I extends IIdType, P extends IBaseParameters> MethodOutcome patch(
+            I id, P patchParameters, Map<String, String> headers) {
+        throw new NotImplementedException("The PATCH operation is not currently supported");
+    }
+
+    @Override
+    public <T extends IBaseResource> MethodOutcome update(T resource, Map<String, String> headers) {
+        requireNonNull(resource, "resource can not be null");
+        var outcome = new MethodOutcome(resource.getIdElement());
+        outcome.setCreated(write(resource, true));
+        return outcome;
+    }
+
+    @Override
+    public <T extends IBaseResource, I extends IIdType> MethodOutcome delete(
+            Class<T> resourceType, I id, Map<String, String> headers) {
+        requireNonNull(resourceType, "resourceType can not be null");
+        requireNonNull(id, "id can not be null");
+
+        var type = resourceType.getSimpleName();
+        var idPart = id.getIdPart();
+        synchronized (writeLock) {
+            if (find(type, idPart) == null) {
+                throw new ResourceNotFoundException("Resource not found with id " + id);
+            }
+
+            if (PATIENT.equals(type)) {
+                try {
+                    Files.delete(patientFile(idPart));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                deleteCompartment(idPart);
+            } else if (!isCompartmentType(type)) {
+                appendResource(sharedFile(type), type, idPart, "");
+            } else {
+                var patients = getLocation(type, idPart);
+                if (patients.isEmpty()) {
+                    appendResource(sharedFile(type), type, idPart, "");
+                }
+
+                for (var patient : patients) {
+                    appendResource(compartmentFile(patient), type, idPart, "");
+                }
+
+                append(idsFile(type, idPart), idPart + "\t\n");
+            }
+        }
+
+        return new MethodOutcome(id);
+    }
+
+    // Removes the compartment of the patient from the index of each of its resources, which are
+    // deleted if they were in no other compartment
+    private void deleteCompartment(String patient) {
+        var file = compartmentFile(patient);
+        var partition = new Partition(file);
+        for (var entry : partition.serialized.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+
+            var separator = entry.getKey().indexOf('/');
+            var type = entry.getKey().substring(0, separator);
+            var id = entry.getKey().substring(separator + 1);
+            var patients = getLocation(type, id);
+            if (patients != null && patients.contains(patient)) {
+                var remaining = new ArrayList<>(patients);
+                remaining.remove(patient);
+                append(idsFile(type, id), id + "\t" + String.join(",", remaining) + "\n");
+            }
+        }
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        partitions.invalidate(file);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <B extends IBaseBundle, T extends IBaseResource> B search(
+            Class<B> bundleType,
+            Class<T> resourceType,
+            Map<String, List<IQueryParameterType>> searchParameters,
+            Map<String, String> headers) {
+        var type = resourceType.getSimpleName();
+        var parameters = searchParameters == null
+                ? new LinkedHashMap<String, List<IQueryParameterType>>()
+                : new LinkedHashMap<>(searchParameters);
+
+        // Only the scans are returned in pages. The other results are read from files that are held
+        // in memory anyway.
+        Iterator<IBaseResource> candidates;
+        List<String> patients;
+        if (parameters.containsKey("_id")) {
+            var resources = new ArrayList<IBaseResource>();
+            for (var param : parameters.remove("_id")) {
+                var resource = find(type, ((TokenParam) param).getValue());
+                if (resource != null) {
+                    resources.add(resource);
+                }
+            }
+
+            candidates = resources.iterator();
+        } else if (PATIENT.equals(type)) {
+            return (B) page(new Scan(type, parameters, listShards(PATIENTS)), null, 0, null, 0);
+        } else if (!isCompartmentType(type)) {
+            candidates = partition(sharedFile(type)).resources(type).iterator();
+        } else if ((patients = compartmentPatients(type, parameters)) != null) {
+            // A resource may be in the compartments of several of the patients
+            var seen = new HashSet<String>();
+            candidates = Iterators.filter(
+                    Iterators.concat(Iterators.transform(
+                            patients.iterator(),
+                            p -> partition(compartmentFile(p)).resources(type).iterator())),
+                    r -> seen.add(r.getIdElement().getIdPart()));
+        } else {
+            // The file of the type is scanned after the compartments
+            var shards = new ArrayList<>(listShards(COMPARTMENTS));
+            shards.add(sharedFile(type));
+            return (B) page(new Scan(type, parameters, shards), null, 0, null, 0);
+        }
+
+        var builder = new BundleBuilder(this.fhirContext);
+        var resourceMatcher = getResourceMatcher();
+        while (candidates.hasNext()) {
+            var resource = candidates.next();
+            if (matches(resourceMatcher, parameters, resource)) {
+                builder.addCollectionEntry(resource);
+            }
+        }
+
+        builder.setType("searchset");
+        return (B) builder.getBundle();
+    }
+
+    private static boolean matches(
+            ResourceMatcher resourceMatcher,
+            Map<String, List<IQueryParameterType>> parameters,
+            IBaseResource resource) {
+        for (var entry : parameters.entrySet()) {
+            if (!resourceMatcher.matches(entry.getKey(), entry.getValue(), resource)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // The patients referenced by a Patient compartment parameter of the search, or null if no
+    // parameter references only patients
+    private List<String> compartmentPatients(String type, Map<String, List<IQueryParameterType>> searchParameters) {
+        var compartmentParams =
+                fhirContext.getResourceDefinition(type).getSearchParamsForCompartmentName(PATIENT).stream()
+                        .map(RuntimeSearchParam::getName)
+                        .collect(Collectors.toSet());
+        for (var entry : searchParameters.entrySet()) {
+            // The patient parameter references a subject or a participant that's in the compartment
+            if (!compartmentParams.contains(entry.getKey()) && !"patient".equals(entry.getKey())) {
+                continue;
+            }
+
+            var patients = new ArrayList<String>();
+            for (var param : entry.getValue()) {
+                if (!(param instanceof ReferenceParam)) {
+                    patients = null;
+                    break;
+                }
+
+                var reference = (ReferenceParam) param;
+                var referenceType = reference.getResourceType();
+                if (reference.getChain() != null
+                        || reference.getIdPart() == null
+                        || (referenceType == null
+                                ? !"patient".equals(entry.getKey())
+                                : !PATIENT.equals(referenceType))) {
+                    patients = null;
+                    break;
+                }
+
+                patients.add(reference.getIdPart());
+            }
+
+            if (patients != null && !patients.isEmpty()) {
+                return patients;
+            }
+        }
+
+        return null;
+    }
+
+    // The shards of a directory of the store
+    private List<Path> listShards(String directory) {
+        return Collections.unmodifiableList(list(root.resolve(directory)));
+    }
+
+    private static List<Path> list(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // A search that scans files and is returned in pages. The files are listed one shard at a time,
+    // and a shard may also be a single file. A scan holds no progress, so that the position of a page
+    // is in its link, and any page can be read again or concurrently.
+    private class Scan {
+        private final String type;
+        private final Map<String, List<IQueryParameterType>> parameters;
+        private final List<Path> shards;
+
+        Scan(String type, Map<String, List<IQueryParameterType>> parameters, List<Path> shards) {
+            this.type = type;
+            this.parameters = Collections.unmodifiableMap(parameters);
+            this.shards = shards;
+        }
+
+        // The files of the shard, from the named one on
+        List<Path> files(int shard, String from) {
+            var path = shards.get(shard);
+            var files = Files.isDirectory(path) ? list(path) : Collections.singletonList(path);
+            if (from == null) {
+                return files;
+            }
+
+            return files.stream()
+                    .filter(f -> f.getFileName().toString().compareTo(from) >= 0)
+                    .collect(Collectors.toList());
+        }
+
+        List<IBaseResource> resources(Path file) {
+            var name = file.getFileName().toString();
+            if (PATIENT.equals(type)) {
+                var resource = find(PATIENT, idOf(name.substring(0, name.length() - PATIENT_EXTENSION.length())));
+                return resource == null ? Collections.emptyList() : Collections.singletonList(resource);
+            }
+
+            if (file.equals(sharedFile(type))) {
+                return partition(file).resources(type);
+            }
+
+            // A resource in several compartments is returned from the first of them that still
+            // exists. The compartments aren't cached, since each is read once.
+            var patient = idOf(name.substring(0, name.length() - EXTENSION.length()));
+            var resources = new Partition(file).resources(type);
+            resources.removeIf(r -> {
+                for (var owner : getPatients(r)) {
+                    if (owner.equals(patient)) {
+                        return false;
+                    }
+
+                    if (Files.exists(compartmentFile(owner))) {
+                        return true;
+                    }
+                }
+
+                return false;
+            });
+            return resources;
+        }
+    }
+
+    // Returns the page of the scan that starts at the resource at the offset of the named file of
+    // the shard. The scan is kept for the next page under the id, which is created for the first
+    // page.
+    private IBaseBundle page(Scan scan, String id, int shard, String file, int offset) {
+        var builder = new BundleBuilder(this.fhirContext);
+        var resourceMatcher = getResourceMatcher();
+        var count = 0;
+        String next = null;
+        scan:
+        for (; shard < scan.shards.size(); shard++, file = null, offset = 0) {
+            for (var path : scan.files(shard, file)) {
+                var resources = scan.resources(path);
+                for (; offset < resources.size(); offset++) {
+                    if (count == pageSize) {
+                        next = path.getFileName().toString();
+                        break scan;
+                    }
+
+                    var resource = resources.get(offset);
+                    if (matches(resourceMatcher, scan.parameters, resource)) {
+                        builder.addCollectionEntry(resource);
+                        count++;
+                    }
+                }
+
+                offset = 0;
+            }
+        }
+
+        builder.setType("searchset");
+        var bundle = builder.getBundle();
+        if (next != null) {
+            if (id == null) {
+                id = UUID.randomUUID().toString();
+                scans.put(id, scan);
+            }
+
+            var terser = fhirContext.newTerser();
+            var link = terser.addElement(bundle, "link");
+            terser.setElement(link, "relation", IBaseBundle.LINK_NEXT);
+            terser.setElement(
+                    link,
+                    "url",
+                    root.toUri() + "?" + PAGE + "=" + id + "&" + SHARD + "=" + shard + "&" + FILE + "=" + next + "&"
+                            + OFFSET + "=" + offset);
+        }
+
+        return bundle;
+    }
+
+    private ResourceMatcher getResourceMatcher() {
+        return Repositories.getResourceMatcher(this.fhirContext);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <B extends IBaseBundle> B link(Class<B> bundleType, String url, Map<String, String> headers) {
+        requireNonNull(url, "url can not be null");
+        var query = url.indexOf('?') < 0 ? "" : url.substring(url.indexOf('?') + 1);
+        var values = new HashMap<String, String>();
+        for (var parameter : query.split("&")) {
+            var separator = parameter.indexOf('=');
+            if (separator > 0) {
+                values.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+            }
+        }
+
+        var id = values.get(PAGE);
+        var scan = id == null ? null : scans.getIfPresent(id);
+        int shard;
+        int offset;
+        try {
+            shard = Integer.parseInt(values.getOrDefault(SHARD, "-1"));
+            offset = Integer.parseInt(values.getOrDefault(OFFSET, "-1"));
+        } catch (NumberFormatException e) {
+            shard = -1;
+            offset = -1;
+        }
+
+        if (scan == null || shard < 0 || shard > scan.shards.size() || offset < 0 || !values.containsKey(FILE)) {
+            throw new IllegalArgumentException(String.format("The page %s is unknown or has expired", url));
+        }
+
+        return (B) page(scan, id, shard, values.get(FILE), offset);
+    }
+
+    @Override
+    public <C extends IBaseConformance> C capabilities(Class<C> resourceType, Map<String, String> headers) {
+        throw new NotImplementedException("The capabilities interaction is not currently supported");
+    }
+
+    @Override
+    public <B extends IBaseBundle> B transaction(B transaction, Map<String, String> headers) {
+        throw new NotImplementedException("The transaction operation is not currently supported");
+    }
+
+    @Override
+    public <R extends IBaseResource, P extends IBaseParameters> R invoke(
+            String name, P parameters, Class<R> returnType, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <P extends IBaseParameters> MethodOutcome invoke(String name, P parameters, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <R extends IBaseResource, P extends IBaseParameters, T extends IBaseResource> R invoke(
+            Class<T> resourceType, String name, P parameters, Class<R> returnType, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <P extends IBaseParameters, T extends IBaseResource> MethodOutcome invoke(
+            Class<T> resourceType, String name, P parameters, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <R extends IBaseResource, P extends IBaseParameters, I extends IIdType> R invoke(
+            I id, String name, P parameters, Class<R> returnType, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <P extends IBaseParameters, I extends IIdType> MethodOutcome invoke(
+            I id, String name, P parameters, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <B extends IBaseBundle, P extends IBaseParameters> B history(
+            P parameters, Class<B> returnType, Map<String, String> headers) {
+        throw new NotImplementedException("The history interaction is not currently supported");
+    }
+
+    @Override
+    public <B extends IBaseBundle, P extends IBaseParameters, T extends IBaseResource> B history(
+            Class<T> resourceType, P parameters, Class<B> returnType, Map<String, String> headers) {
+        throw new NotImplementedException("The history interaction is not currently supported");
+    }
+
+    @Override
+    public <B extends IBaseBundle, P extends IBaseParameters, I extends IIdType> B history(
+            I id, P parameters, Class<B> returnType, Map<String, String> headers) {
+        throw new NotImplementedException("The history interaction is not currently supported");
+    }
+}
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
@@ -25,9 +26,29 @@ import org.opencds.cqf.fhir.utility.iterable.BundleIterator;
 public class FederatedRepository implements Repository {
     private Repository local;
     private List<Repository> repositoryList;
+    private Executor pageExecutor;
+    private int pageLookahead;
 
     public FederatedRepository(Repository local, Repository... repositories) {
+        this(null, 0, local, repositories);
+    }
+
+    /**
+     * @param pageExecutor the executor that fetches the next pages of each search while a page is
+     *     collected, or null to fetch each page when the previous one is collected. The searches
+     *     wait on these pages, so it should not be an executor that runs the searches.
+     * @param pageLookahead the maximum number of pages of each search fetched ahead
+     * @param local the repository searched first
+     * @param repositories the other repositories
+     */
+    public FederatedRepository(Executor pageExecutor, int pageLookahead, Repository local, Repository... repositories) {
+        if (pageLookahead < 0) {
+            throw new IllegalArgumentException("pageLookahead can not be negative");
+        }
+
         this.local = local;
+        this.pageExecutor = pageExecutor;
+        this.pageLookahead = pageLookahead;
         repositoryList = new ArrayList<>();
         repositoryList.addAll(Arrays.asList(repositories));
     }
@@ -97,8 +118,9 @@ public class FederatedRepository implements Repository {
             Map<String, String> headers) {
         List<T> results = new ArrayList<>();
         var bundle = repository.search(bundleType, resourceType, searchParameters, headers);
-        var iterator = new BundleIterator<>(repository, bundle);
-        iterator.forEachRemaining(b -> results.add((T) b.getResource()));
+        try (var iterator = new BundleIterator<>(repository, bundle, pageExecutor, pageLookahead)) {
+            iterator.forEachRemaining(b -> results.add((T) b.getResource()));
+        }
         return results;
     }
 
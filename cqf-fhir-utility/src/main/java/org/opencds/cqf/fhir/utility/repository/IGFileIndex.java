@@ -0,0 +1,213 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition.ChildTypeEnum;
+import ca.uhn.fhir.context.FhirContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+/**
+ * An index of the files of an IG. The files of each resource type are indexed by id when the IG is
+ * opened, using the ids in the file names, so no files are parsed. The canonical resources of a
+ * type are indexed by url and by name the first time they are looked up, which parses each file of
+ * the type once.
+ */
+class IGFileIndex {
+
+    static final String URL = "url";
+    static final String NAME = "name";
+
+    private final FhirContext fhirContext;
+
+    // type -> id -> path
+    private final Map<String, Map<String, String>> pathsByTypeAndId = new ConcurrentHashMap<>();
+    // type -> the url and name indexes of the type
+    private final Map<String, CanonicalIndex> canonicalIndexes = new ConcurrentHashMap<>();
+
+    IGFileIndex(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    void clear() {
+        pathsByTypeAndId.clear();
+        canonicalIndexes.clear();
+    }
+
+    void put(String resourceType, String id, String path) {
+        pathsByTypeAndId
+                .computeIfAbsent(resourceType, t -> new ConcurrentHashMap<>())
+                .put(id, path);
+    }
+
+    void remove(String resourceType, String id) {
+        var path = pathsByTypeAndId
+                .getOrDefault(resourceType, Collections.emptyMap())
+                .remove(id);
+        var canonicalIndex = canonicalIndexes.get(resourceType);
+        if (path != null && canonicalIndex != null) {
+            canonicalIndex.remove(path);
+        }
+    }
+
+    /**
+     * Returns the path of the file of the resource, or null if there's no such file.
+     */
+    String path(String resourceType, String id) {
+        return pathsByTypeAndId
+                .getOrDefault(resourceType, Collections.emptyMap())
+                .get(id);
+    }
+
+    /**
+     * Returns the paths of the files of the resource type.
+     */
+    Collection<String> paths(String resourceType) {
+        return new ArrayList<>(pathsByTypeAndId
+                .getOrDefault(resourceType, Collections.emptyMap())
+                .values());
+    }
+
+    /**
+     * Updates the url and name of a resource that was written to the path, if the resources of its
+     * type are indexed.
+     */
+    void update(String path, IBaseResource resource) {
+        var canonicalIndex = canonicalIndexes.get(resource.fhirType());
+        if (canonicalIndex != null) {
+            canonicalIndex.add(path, resource);
+        }
+    }
+
+    /**
+     * Returns true if the url and name of the resources of the type have been indexed.
+     */
+    boolean isLoaded(String resourceType) {
+        return canonicalIndexes.containsKey(resourceType);
+    }
+
+    /**
+     * Removes the url and name of the resource in the path, if the resources of the type are
+     * indexed, so that the path isn't returned until it's updated again.
+     */
+    void discard(String resourceType, String path) {
+        var canonicalIndex = canonicalIndexes.get(resourceType);
+        if (canonicalIndex != null) {
+            canonicalIndex.remove(path);
+        }
+    }
+
+    /**
+     * Returns true if the values of the search parameter are indexed for the resource type. Only
+     * the url and name of canonical resources are indexed, where the search parameter is the value
+     * of a single primitive element.
+     */
+    boolean isIndexed(String resourceType, String name) {
+        if (!URL.equals(name) && !NAME.equals(name)) {
+            return false;
+        }
+
+        var definition = fhirContext.getResourceDefinition(resourceType);
+        var searchParam = definition.getSearchParam(name);
+        var child = definition.getChildByName(name);
+        return searchParam != null
+                && (resourceType + "." + name).equals(searchParam.getPath())
+                && child != null
+                && child.getChildByName(name).getChildType() == ChildTypeEnum.PRIMITIVE_DATATYPE;
+    }
+
+    /**
+     * Returns the paths of the files of the resources with any of the values of the search
+     * parameter. The resource type is indexed the first time, reading its files with the reader.
+     */
+    Set<String> lookup(String resourceType, String name, List<String> values, Function<String, IBaseResource> reader) {
+        var canonicalIndex = canonicalIndexes.computeIfAbsent(resourceType, t -> {
+            var index = new CanonicalIndex();
+            for (var path : paths(t)) {
+                IBaseResource resource;
+                try {
+                    resource = reader.apply(path);
+                } catch (RuntimeException e) {
+                    continue;
+                }
+
+                if (resource != null && resource.fhirType().equals(t)) {
+                    index.add(path, resource);
+                }
+            }
+
+            return index;
+        });
+
+        return canonicalIndex.lookup(name, values);
+    }
+
+    private class CanonicalIndex {
+        // "url" or "name" -> value -> paths
+        private final Map<String, Map<String, Set<String>>> pathsByValue = new ConcurrentHashMap<>();
+        // path -> "url" or "name" -> value, so that entries can be removed after the file changes
+        private final Map<String, Map<String, String>> valuesByPath = new ConcurrentHashMap<>();
+
+        synchronized void add(String path, IBaseResource resource) {
+            remove(path);
+            var values = new ConcurrentHashMap<String, String>();
+            for (var name : new String[] {URL, NAME}) {
+                var value = getValue(resource, name);
+                if (value != null) {
+                    values.put(name, value);
+                    pathsByValue
+                            .computeIfAbsent(name, n -> new ConcurrentHashMap<>())
+                            .computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet())
+                            .add(path);
+                }
+            }
+
+            valuesByPath.put(path, values);
+        }
+
+        synchronized void remove(String path) {
+            var values = valuesByPath.remove(path);
+            if (values == null) {
+                return;
+            }
+
+            for (var entry : values.entrySet()) {
+                var paths = pathsByValue.get(entry.getKey()).get(entry.getValue());
+                if (paths != null) {
+                    paths.remove(path);
+                }
+            }
+        }
+
+        synchronized Set<String> lookup(String name, List<String> values) {
+            var byValue = pathsByValue.getOrDefault(name, Collections.emptyMap());
+            var paths = new LinkedHashSet<String>();
+            for (var value : values) {
+                paths.addAll(byValue.getOrDefault(value, Collections.emptySet()));
+            }
+
+            return paths;
+        }
+
+        private String getValue(IBaseResource resource, String name) {
+            var definition = fhirContext.getResourceDefinition(resource).getChildByName(name);
+            if (definition == null) {
+                return null;
+            }
+
+            var values = definition.getAccessor().getValues(resource);
+            if (values.isEmpty() || !(values.get(0) instanceof IPrimitiveType)) {
+                return null;
+            }
+
+            return ((IPrimitiveType<?>) values.get(0)).getValueAsString();
+        }
+    }
+}
@@ -7,24 +7,33 @@ import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
 import ca.uhn.fhir.util.BundleBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseConformance;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
@@ -38,6 +47,12 @@ import org.opencds.cqf.fhir.utility.matcher.ResourceMatcher;
  * This class implements the Repository interface on onto a directory structure
  * that matches the
  * standard IG layout.
+ * <p>
+ * The files are indexed by resource type and id when the repository is created, and the canonical
+ * resources are indexed by url and name when they are first searched, so searches don't list or
+ * parse the directories again. Files that are added, changed or removed outside of the repository
+ * are seen after {@link #clearCache()}, or as they change while the repository is watched with
+ * {@link #watch()}.
  */
 public class IGFileStructureRepository implements Repository {
 
@@ -48,7 +63,13 @@ public class IGFileStructureRepository implements Repository {
     private final IParser parser;
     private final ResourceMatcher resourceMatcher;
 
-    private final Map<String, IBaseResource> resourceCache = new HashMap<>();
+    private final Map<String, IBaseResource> resourceCache = new ConcurrentHashMap<>();
+    private final IGFileIndex index;
+    // The resource types by the lowercase names of their directories
+    private final Map<String, String> typesByDirectory;
+    // The cql files by the locations of the Libraries that include them
+    private final Map<Path, Set<String>> libraryLocationsByCql = new ConcurrentHashMap<>();
+    private IGFileWatcher watcher;
 
     private static final Map<ResourceCategory, String> categoryDirectories = new ImmutableMap.Builder<
                     ResourceCategory, String>()
@@ -73,7 +94,7 @@ public class IGFileStructureRepository implements Repository {
                 return fhirContext.newRDFParser();
             case NDJSON:
             default:
-                throw new IllegalArgumentException("NDJSON is not supported");
+                throw new IllegalArgumentException("NDJSON is not supported, NdjsonRepository reads NDJSON files");
         }
     }
 
@@ -89,10 +110,198 @@ public class IGFileStructureRepository implements Repository {
         this.encodingEnum = encodingEnum;
         this.parser = parserForEncoding(fhirContext, encodingEnum);
         this.resourceMatcher = Repositories.getResourceMatcher(this.fhirContext);
+        this.index = new IGFileIndex(fhirContext);
+        this.typesByDirectory = new HashMap<>();
+        for (var type : fhirContext.getResourceTypes()) {
+            this.typesByDirectory.put(type.toLowerCase(), type);
+        }
+
+        this.indexFiles();
     }
 
     public void clearCache() {
         this.resourceCache.clear();
+        this.index.clear();
+        this.indexFiles();
+    }
+
+    /**
+     * Starts watching the files of the repository, so that the files that change are parsed again
+     * and indexed as they change, without clearing the cache. The watcher notifies its listeners
+     * of the resources that were cached for the changed files, so that content derived from them
+     * can be evicted too. The same watcher is returned until it's closed.
+     *
+     * @return the watcher of the files
+     * @throws IOException if the file system can't be watched
+     */
+    public synchronized IGFileWatcher watch() throws IOException {
+        if (this.watcher == null || this.watcher.isClosed()) {
+            this.watcher = new IGFileWatcher(this);
+        }
+
+        return this.watcher;
+    }
+
+    // The directories to watch for changes: the category directories, the resource type
+    // directories and the directories of the cql files that were read
+    synchronized List<Path> watchedDirectories() {
+        var directories = new ArrayList<Path>();
+        for (var directory : categoryDirectories()) {
+            directories.add(directory.toPath());
+            if (layoutMode == IGLayoutMode.DIRECTORY) {
+                for (var file : listFiles(directory)) {
+                    if (file.isDirectory() && typesByDirectory.containsKey(file.getName())) {
+                        directories.add(file.toPath());
+                    }
+                }
+            }
+        }
+
+        for (var cql : libraryLocationsByCql.keySet()) {
+            if (cql.getParent() != null) {
+                directories.add(cql.getParent());
+            }
+        }
+
+        return directories;
+    }
+
+    // Evicts the resources read from the file, and indexes the file again. The resources that were
+    // cached for the file are returned.
+    List<IBaseResource> refresh(Path file) {
+        var previous = new ArrayList<IBaseResource>();
+        var libraries = libraryLocationsByCql.get(file.normalize());
+        if (libraries != null) {
+            for (var location : libraries) {
+                var library = this.resourceCache.remove(location);
+                if (library != null) {
+                    previous.add(library);
+                }
+            }
+        }
+
+        var location = file.toString();
+        var resource = this.resourceCache.remove(location);
+        if (resource != null) {
+            previous.add(resource);
+        }
+
+        var typeAndId = resourceTypeAndId(file);
+        if (typeAndId == null) {
+            return previous;
+        }
+
+        var type = typeAndId[0];
+        var id = typeAndId[1];
+        if (!file.toFile().isFile()) {
+            if (location.equals(this.index.path(type, id))) {
+                this.index.remove(type, id);
+            }
+        } else {
+            this.index.put(type, id, location);
+            if (this.index.isLoaded(type)) {
+                try {
+                    this.index.update(
+                            location,
+                            readLocation(fhirContext.getResourceDefinition(type).getImplementingClass(), location));
+                } catch (RuntimeException e) {
+                    // The file may be partially written, and is indexed again once it's complete
+                    this.index.discard(type, location);
+                }
+            }
+        }
+
+        return previous;
+    }
+
+    // Evicts and indexes all the files again. The resources that were cached are returned.
+    List<IBaseResource> refreshAll() {
+        var previous = new ArrayList<>(this.resourceCache.values());
+        clearCache();
+        return previous;
+    }
+
+    // Indexes the files of each resource type by the ids in their names, without parsing them
+    protected void indexFiles() {
+        for (var directory : categoryDirectories()) {
+            for (var file : listFiles(directory)) {
+                if (layoutMode == IGLayoutMode.DIRECTORY) {
+                    for (var typeFile : listFiles(file)) {
+                        indexFile(typeFile);
+                    }
+                } else {
+                    indexFile(file);
+                }
+            }
+        }
+    }
+
+    private void indexFile(File file) {
+        var typeAndId = file.isFile() ? resourceTypeAndId(file.toPath()) : null;
+        if (typeAndId != null) {
+            this.index.put(typeAndId[0], typeAndId[1], file.getPath());
+        }
+    }
+
+    private List<File> categoryDirectories() {
+        var directories = new ArrayList<File>();
+        for (var directory : categoryDirectories.values()) {
+            directories.add(new File((root.endsWith("/") ? root : root + "/") + directory));
+        }
+
+        return directories;
+    }
+
+    // The type and id of the resource stored in the file, from the location of the file in the
+    // layout, or null if the file isn't a resource file of the layout
+    private String[] resourceTypeAndId(Path file) {
+        var extension = fileExtensions.get(this.encodingEnum);
+        var fileName = file.getFileName().toString();
+        if (!fileName.endsWith(extension)) {
+            return null;
+        }
+
+        var name = fileName.substring(0, fileName.length() - extension.length());
+        String type;
+        String id;
+        Path categoryDirectory;
+        if (layoutMode == IGLayoutMode.DIRECTORY) {
+            var typeDirectory = file.getParent();
+            if (typeDirectory == null) {
+                return null;
+            }
+
+            type = typesByDirectory.get(typeDirectory.getFileName().toString());
+            id = name;
+            categoryDirectory = typeDirectory.getParent();
+        } else {
+            var separator = name.indexOf('-');
+            type = separator > 0
+                    ? typesByDirectory.get(name.substring(0, separator).toLowerCase())
+                    : null;
+            if (type != null && !type.equals(name.substring(0, separator))) {
+                type = null;
+            }
+
+            id = name.substring(separator + 1);
+            categoryDirectory = file.getParent();
+        }
+
+        if (type == null
+                || categoryDirectory == null
+                || !categoryDirectory
+                        .getFileName()
+                        .toString()
+                        .equals(categoryDirectories.get(ResourceCategory.forType(type)))) {
+            return null;
+        }
+
+        return new String[] {type, id};
+    }
+
+    private static List<File> listFiles(File directory) {
+        var files = directory.listFiles();
+        return files == null ? Collections.emptyList() : Arrays.asList(files);
     }
 
     protected <T extends IBaseResource, I extends IIdType> String locationForResource(Class<T> resourceType, I id) {
@@ -130,14 +339,25 @@ public class IGFileStructureRepository implements Repository {
     @SuppressWarnings("unchecked")
     protected <T extends IBaseResource, I extends IIdType> T readLocation(Class<T> resourceClass, String location) {
 
-        return (T) this.resourceCache.computeIfAbsent(location, l -> {
-            try {
-                var x = parser.parseResource(resourceClass, new FileInputStream(l));
-                return handleLibrary(x, l);
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
+        return (T) this.resourceCache.computeIfAbsent(
+                location, l -> handleLibrary(parser.parseResource(resourceClass, readContent(l)), l));
+    }
+
+    // Reads the content of the file with a single read of its channel
+    protected String readContent(String location) {
+        try (var channel = FileChannel.open(Paths.get(location))) {
+            var content = new byte[(int) channel.size()];
+            var buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read until the buffer is full or the end of the file
             }
-        });
+
+            return new String(content, 0, buffer.position(), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            throw new RuntimeException(new FileNotFoundException(location));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -175,6 +395,7 @@ public class IGFileStructureRepository implements Repository {
 
     protected String getCqlContent(String rootPath, String relativePath) {
         var p = Paths.get(rootPath).getParent().resolve(relativePath).normalize();
+        trackCql(p, rootPath);
         try {
             return Files.asCharSource(p.toFile(), StandardCharsets.UTF_8).read();
 
@@ -183,11 +404,29 @@ public class IGFileStructureRepository implements Repository {
         }
     }
 
+    // Records the Library that includes the cql file, so that the Library is read again when the
+    // cql file changes
+    private void trackCql(Path cql, String location) {
+        var locations = libraryLocationsByCql.computeIfAbsent(cql, c -> ConcurrentHashMap.newKeySet());
+        if (locations.add(location)) {
+            IGFileWatcher current;
+            synchronized (this) {
+                current = this.watcher;
+            }
+
+            if (current != null && cql.getParent() != null) {
+                current.register(cql.getParent());
+            }
+        }
+    }
+
     protected <T extends IBaseResource> MethodOutcome writeLocation(T resource, String location) {
         try (var os = new FileOutputStream(location)) {
             String result = parser.encodeResourceToString(resource);
             os.write(result.getBytes());
             this.resourceCache.put(location, resource);
+            this.index.put(resource.fhirType(), resource.getIdElement().getIdPart(), location);
+            this.index.update(location, resource);
         } catch (IOException e) {
             throw new UnclassifiedServerFailureException(
                     500, String.format("unable to write resource to location %s", location));
@@ -197,29 +436,68 @@ public class IGFileStructureRepository implements Repository {
     }
 
     protected <T extends IBaseResource> Map<IIdType, T> readLocation(Class<T> resourceClass) {
-        var location = this.directoryForResource(resourceClass);
+        return readLocations(resourceClass, this.index.paths(resourceClass.getSimpleName()));
+    }
+
+    protected <T extends IBaseResource> Map<IIdType, T> readLocations(
+            Class<T> resourceClass, Collection<String> locations) {
         var resources = new HashMap<IIdType, T>();
-        var inputDir = new File(location);
-        if (inputDir.isDirectory()) {
-            for (var file : inputDir.listFiles()) {
-                if ((this.layoutMode.equals(IGLayoutMode.DIRECTORY))
-                        || (this.layoutMode.equals(IGLayoutMode.TYPE_PREFIX)
-                                && file.getName().startsWith(resourceClass.getSimpleName() + "-"))) {
-                    try {
-                        var r = this.readLocation(resourceClass, file.getPath());
-                        if (r.fhirType().equals(resourceClass.getSimpleName())) {
-                            resources.put(r.getIdElement().toUnqualifiedVersionless(), r);
-                        }
-                    } catch (RuntimeException e) {
-                        // intentionally empty
-                    }
+        for (var location : locations) {
+            try {
+                var r = this.readLocation(resourceClass, location);
+                if (r.fhirType().equals(resourceClass.getSimpleName())) {
+                    resources.put(r.getIdElement().toUnqualifiedVersionless(), r);
                 }
+            } catch (RuntimeException e) {
+                // intentionally empty
             }
         }
 
         return resources;
     }
 
+    // The resource with the id, if its file is named for its id
+    private <T extends IBaseResource> T readIndexed(Class<T> resourceClass, IIdType id) {
+        var location = this.index.path(resourceClass.getSimpleName(), id.getIdPart());
+        if (location == null) {
+            return null;
+        }
+
+        var resources = readLocations(resourceClass, Collections.singletonList(location));
+        return resources.get(id);
+    }
+
+    // The locations of the resources that may match the url or name parameter, or null if the
+    // search can't be looked up in the index
+    private <T extends IBaseResource> Set<String> indexedLocations(
+            Class<T> resourceClass, Map<String, List<IQueryParameterType>> searchParameters) {
+        var resourceType = resourceClass.getSimpleName();
+        for (var name : new String[] {IGFileIndex.URL, IGFileIndex.NAME}) {
+            var params = searchParameters.get(name);
+            if (params == null || params.isEmpty() || !this.index.isIndexed(resourceType, name)) {
+                continue;
+            }
+
+            var values = new ArrayList<String>();
+            for (var param : params) {
+                if (param instanceof UriParam && ((UriParam) param).getQualifier() == null) {
+                    values.add(((UriParam) param).getValue());
+                } else if (param instanceof StringParam && !((StringParam) param).isContains()) {
+                    values.add(((StringParam) param).getValue());
+                } else {
+                    values = null;
+                    break;
+                }
+            }
+
+            if (values != null) {
+                return this.index.lookup(resourceType, name, values, l -> readLocation(resourceClass, l));
+            }
+        }
+
+        return null;
+    }
+
     @Override
     public FhirContext fhirContext() {
         return this.fhirContext;
@@ -292,6 +570,8 @@ public class IGFileStructureRepository implements Repository {
         requireNonNull(id, "id can not be null");
 
         var location = this.locationForResource(resourceType, id);
+        this.resourceCache.remove(location);
+        this.index.remove(resourceType.getSimpleName(), id.getIdPart());
 
         try {
             new File(location).delete();
@@ -311,34 +591,44 @@ public class IGFileStructureRepository implements Repository {
             Map<String, String> headers) {
         BundleBuilder builder = new BundleBuilder(this.fhirContext);
 
-        var resourceIdMap = readLocation(resourceType);
         if (searchParameters == null || searchParameters.isEmpty()) {
-            resourceIdMap.values().forEach(builder::addCollectionEntry);
+            readLocation(resourceType).values().forEach(builder::addCollectionEntry);
             builder.setType("searchset");
             return (B) builder.getBundle();
         }
 
         Collection<T> candidates;
+        Set<String> indexedLocations;
         if (searchParameters.containsKey("_id")) {
             // We are consuming the _id parameter in this if statement
             var idQueries = searchParameters.get("_id");
             searchParameters.remove("_id");
 
+            Map<IIdType, T> resourceIdMap = null;
             var idResources = new ArrayList<T>(idQueries.size());
             for (var idQuery : idQueries) {
                 var idToken = (TokenParam) idQuery;
                 // Need to construct the equivalent "UnqualifiedVersionless" id that the map is
                 // indexed by. If an id has a version it won't match. Need apples-to-apples Ids types
                 var id = Ids.newId(fhirContext, resourceType.getSimpleName(), idToken.getValue());
-                var r = resourceIdMap.get(id);
+                var r = readIndexed(resourceType, id);
+                if (r == null) {
+                    // The file of the resource may not be named for its id
+                    if (resourceIdMap == null) {
+                        resourceIdMap = readLocation(resourceType);
+                    }
+                    r = resourceIdMap.get(id);
+                }
                 if (r != null) {
                     idResources.add(r);
                 }
             }
 
             candidates = idResources;
+        } else if ((indexedLocations = indexedLocations(resourceType, searchParameters)) != null) {
+            candidates = readLocations(resourceType, indexedLocations).values();
         } else {
-            candidates = resourceIdMap.values();
+            candidates = readLocation(resourceType).values();
         }
 
         for (var resource : candidates) {
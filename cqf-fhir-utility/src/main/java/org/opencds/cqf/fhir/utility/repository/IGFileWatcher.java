@@ -0,0 +1,154 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the files of an {@link IGFileStructureRepository} for changes made outside of the
+ * repository. Only the files that change are evicted, parsed again and indexed again; the rest of
+ * the cache and of the index is kept. A change to a cql file evicts the Libraries that include it.
+ * <p>
+ * Listeners are notified of each resource that was cached for a file that changed or was deleted,
+ * so that content compiled or expanded from it can be evicted as well. Listeners are called on the
+ * watcher thread.
+ */
+public class IGFileWatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(IGFileWatcher.class);
+
+    private final IGFileStructureRepository repository;
+    private final WatchService watchService;
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<IBaseResource>> listeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    IGFileWatcher(IGFileStructureRepository repository) throws IOException {
+        this.repository = requireNonNull(repository, "repository can not be null");
+        this.watchService = FileSystems.getDefault().newWatchService();
+        for (var directory : repository.watchedDirectories()) {
+            register(directory);
+        }
+
+        this.thread = new Thread(this::run, "ig-file-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Adds a listener that is notified of the resources that were cached for the files that changed.
+     *
+     * @param listener the listener
+     * @return this watcher
+     */
+    public IGFileWatcher addListener(Consumer<IBaseResource> listener) {
+        this.listeners.add(requireNonNull(listener, "listener can not be null"));
+        return this;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.watchService.close();
+        this.thread.interrupt();
+    }
+
+    void register(Path directory) {
+        if (this.closed || !directory.toFile().isDirectory() || !this.directories.add(directory)) {
+            return;
+        }
+
+        try {
+            directory.register(
+                    this.watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | ClosedWatchServiceException e) {
+            this.directories.remove(directory);
+            logger.warn("Unable to watch the directory {}", directory, e);
+        }
+    }
+
+    private void run() {
+        while (!this.closed) {
+            WatchKey key;
+            try {
+                key = this.watchService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            var directory = (Path) key.watchable();
+            for (var event : key.pollEvents()) {
+                try {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, so nothing that was read can be trusted
+                        notifyListeners(this.repository.refreshAll());
+                        for (var watched : this.repository.watchedDirectories()) {
+                            register(watched);
+                        }
+                    } else {
+                        changed(directory.resolve((Path) event.context()));
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn("Unable to refresh the files of the directory {}", directory, e);
+                }
+            }
+
+            if (!key.reset()) {
+                this.directories.remove(directory);
+            }
+        }
+    }
+
+    private void changed(Path file) {
+        if (file.toFile().isDirectory()) {
+            // A new resource type directory, which may already have files
+            register(file);
+            var files = file.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    notifyListeners(this.repository.refresh(f.toPath()));
+                }
+            }
+        } else {
+            notifyListeners(this.repository.refresh(file));
+        }
+    }
+
+    private void notifyListeners(List<IBaseResource> resources) {
+        for (var resource : resources) {
+            for (var listener : this.listeners) {
+                try {
+                    listener.accept(resource);
+                } catch (RuntimeException e) {
+                    logger.warn("Listener failed for the changed resource {}", resource.getIdElement(), e);
+                }
+            }
+        }
+    }
+}
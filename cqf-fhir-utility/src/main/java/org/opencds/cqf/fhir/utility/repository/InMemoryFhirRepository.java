@@ -7,12 +7,18 @@ import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.util.BundleBuilder;
 import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.NotImplementedException;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
@@ -22,19 +28,44 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.opencds.cqf.fhir.api.Repository;
 import org.opencds.cqf.fhir.utility.Ids;
-
+import org.opencds.cqf.fhir.utility.matcher.ResourceMatcher;
+
+/**
+ * A Repository that holds its resources in memory. Searches by reference, token, uri and date
+ * parameters are answered from indexes of the parameter values. An index is built the first time a
+ * parameter is searched, and is kept up to date by create, update and delete.
+ * <p>
+ * The repository stores copies of the resources it is given and returns copies from reads and
+ * searches, so changes to a resource are only seen once it is updated, and the indexes always
+ * describe the stored resources.
+ * <p>
+ * The repository is thread-safe, so a single dataset can be shared by concurrent evaluations.
+ * Reads and searches run in parallel, while create, update and delete wait for them to complete,
+ * so a search sees the resources either before or after a change, and never during it.
+ */
 public class InMemoryFhirRepository implements Repository {
 
     private final Map<String, Map<IIdType, IBaseResource>> resourceMap;
     private final FhirContext context;
+    private final FhirTerser terser;
+
+    // Guards the resources and the contents of the indexes. Searches hold the read lock, and may
+    // build a missing index, which is why the maps of the indexes are concurrent.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // The indexes of the search parameters, by resource type and parameter name. An empty index
+    // marks a parameter that can't be indexed.
+    private final Map<String, Map<String, Optional<SearchParameterIndex>>> indexes = new ConcurrentHashMap<>();
 
     public InMemoryFhirRepository(FhirContext context) {
         this.context = context;
+        this.terser = context.newTerser();
         this.resourceMap = new HashMap<>();
     }
 
     public InMemoryFhirRepository(FhirContext context, Class<?> clazz, List<String> directoryList, boolean recursive) {
         this.context = context;
+        this.terser = context.newTerser();
         // TODO: Resource loader.
         this.resourceMap = new HashMap<>();
         // var resourceLoader = new FhirResourceLoader(context, clazz, directoryList,
@@ -46,39 +77,53 @@ public class InMemoryFhirRepository implements Repository {
 
     public InMemoryFhirRepository(FhirContext context, IBaseBundle bundle) {
         this.context = context;
+        this.terser = context.newTerser();
         var resources = BundleUtil.toListOfResources(this.context, bundle);
         this.resourceMap = resources.stream()
                 .collect(Collectors.groupingBy(
                         IBaseResource::fhirType,
-                        Collectors.toMap(r -> r.getIdElement().toUnqualifiedVersionless(), Function.identity())));
+                        Collectors.toMap(r -> r.getIdElement().toUnqualifiedVersionless(), this::copy)));
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public <T extends IBaseResource, I extends IIdType> T read(
             Class<T> resourceType, I id, Map<String, String> headers) {
-        var resources = this.resourceMap.computeIfAbsent(resourceType.getSimpleName(), x -> new HashMap<>());
-
-        var resource = resources.get(id.toUnqualifiedVersionless());
+        IBaseResource resource;
+        lock.readLock().lock();
+        try {
+            resource = this.resourceMap
+                    .getOrDefault(resourceType.getSimpleName(), Collections.emptyMap())
+                    .get(id.toUnqualifiedVersionless());
+        } finally {
+            lock.readLock().unlock();
+        }
 
         if (resource == null) {
             throw new ResourceNotFoundException(id);
         }
 
-        return (T) resource;
+        return (T) copy(resource);
     }
 
     @Override
     public <T extends IBaseResource> MethodOutcome create(T resource, Map<String, String> headers) {
         var outcome = new MethodOutcome();
-        var resources = resourceMap.computeIfAbsent(resource.fhirType(), r -> new HashMap<>());
-        var theId = Ids.newRandomId(context, resource.fhirType());
-        while (resources.containsKey(theId)) {
-            theId = Ids.newRandomId(context, resource.fhirType());
+        lock.writeLock().lock();
+        try {
+            var resources = resourceMap.computeIfAbsent(resource.fhirType(), r -> new HashMap<>());
+            var theId = Ids.newRandomId(context, resource.fhirType());
+            while (resources.containsKey(theId)) {
+                theId = Ids.newRandomId(context, resource.fhirType());
+            }
+            resource.setId(theId);
+            outcome.setCreated(true);
+            var stored = copy(resource);
+            resources.put(theId.toUnqualifiedVersionless(), stored);
+            index(theId.toUnqualifiedVersionless(), stored);
+        } finally {
+            lock.writeLock().unlock();
         }
-        resource.setId(theId);
-        outcome.setCreated(true);
-        resources.put(theId.toUnqualifiedVersionless(), resource);
         return outcome;
     }
 
@@ -91,12 +136,19 @@ public class InMemoryFhirRepository implements Repository {
     @Override
     public <T extends IBaseResource> MethodOutcome update(T resource, Map<String, String> headers) {
         var outcome = new MethodOutcome();
-        var resources = resourceMap.computeIfAbsent(resource.fhirType(), r -> new HashMap<>());
-        var theId = resource.getIdElement().toUnqualifiedVersionless();
-        if (!resources.containsKey(theId)) {
-            outcome.setCreated(true);
+        lock.writeLock().lock();
+        try {
+            var resources = resourceMap.computeIfAbsent(resource.fhirType(), r -> new HashMap<>());
+            var theId = resource.getIdElement().toUnqualifiedVersionless();
+            if (!resources.containsKey(theId)) {
+                outcome.setCreated(true);
+            }
+            var stored = copy(resource);
+            resources.put(theId, stored);
+            index(theId, stored);
+        } finally {
+            lock.writeLock().unlock();
         }
-        resources.put(theId, resource);
         return outcome;
     }
 
@@ -104,12 +156,20 @@ public class InMemoryFhirRepository implements Repository {
     public <T extends IBaseResource, I extends IIdType> MethodOutcome delete(
             Class<T> resourceType, I id, Map<String, String> headers) {
         var outcome = new MethodOutcome();
-        var resources = resourceMap.computeIfAbsent(id.getResourceType(), r -> new HashMap<>());
-        var keyId = id.toUnqualifiedVersionless();
-        if (resources.containsKey(keyId)) {
-            resources.remove(keyId);
-        } else {
-            throw new ResourceNotFoundException("Resource not found with id " + id);
+        lock.writeLock().lock();
+        try {
+            var resources = resourceMap.getOrDefault(id.getResourceType(), Collections.emptyMap());
+            var keyId = id.toUnqualifiedVersionless();
+            if (resources.containsKey(keyId)) {
+                resources.remove(keyId);
+                indexes.getOrDefault(id.getResourceType(), Collections.emptyMap())
+                        .values()
+                        .forEach(index -> index.ifPresent(i -> i.remove(keyId)));
+            } else {
+                throw new ResourceNotFoundException("Resource not found with id " + id);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
         return outcome;
     }
@@ -121,13 +181,23 @@ public class InMemoryFhirRepository implements Repository {
             Class<T> resourceType,
             Map<String, List<IQueryParameterType>> searchParameters,
             Map<String, String> headers) {
+        lock.readLock().lock();
+        try {
+            return (B) searchResources(resourceType, searchParameters);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private IBaseBundle searchResources(
+            Class<? extends IBaseResource> resourceType, Map<String, List<IQueryParameterType>> searchParameters) {
         BundleBuilder builder = new BundleBuilder(this.context);
-        var resourceIdMap = resourceMap.computeIfAbsent(resourceType.getSimpleName(), r -> new HashMap<>());
+        var resourceIdMap = resourceMap.getOrDefault(resourceType.getSimpleName(), Collections.emptyMap());
 
         if (searchParameters == null || searchParameters.isEmpty()) {
-            resourceIdMap.values().forEach(builder::addCollectionEntry);
+            resourceIdMap.values().forEach(r -> builder.addCollectionEntry(copy(r)));
             builder.setType("searchset");
-            return (B) builder.getBundle();
+            return builder.getBundle();
         }
 
         Collection<IBaseResource> candidates;
@@ -151,11 +221,11 @@ public class InMemoryFhirRepository implements Repository {
 
             candidates = idResources;
         } else {
-            candidates = resourceIdMap.values();
+            candidates = indexedCandidates(resourceType.getSimpleName(), resourceIdMap, searchParameters);
         }
 
         // Apply the rest of the filters
-        var resourceMatcher = Repositories.getResourceMatcher(this.context);
+        var resourceMatcher = getResourceMatcher();
         for (var resource : candidates) {
             boolean include = true;
             for (var nextEntry : searchParameters.entrySet()) {
@@ -167,12 +237,84 @@ public class InMemoryFhirRepository implements Repository {
             }
 
             if (include) {
-                builder.addCollectionEntry(resource);
+                builder.addCollectionEntry(copy(resource));
             }
         }
 
         builder.setType("searchset");
-        return (B) builder.getBundle();
+        return builder.getBundle();
+    }
+
+    // The resources that may match the parameter with the fewest candidates in its index, or all the
+    // resources if none of the parameters can be looked up in an index
+    private Collection<IBaseResource> indexedCandidates(
+            String resourceType,
+            Map<IIdType, IBaseResource> resourceIdMap,
+            Map<String, List<IQueryParameterType>> searchParameters) {
+        Set<IIdType> candidateIds = null;
+        for (var entry : searchParameters.entrySet()) {
+            var index = getIndex(resourceType, entry.getKey(), resourceIdMap);
+            if (index == null) {
+                continue;
+            }
+
+            var ids = index.lookup(entry.getValue());
+            if (ids == null) {
+                continue;
+            }
+
+            if (candidateIds == null || ids.size() < candidateIds.size()) {
+                candidateIds = ids;
+            }
+        }
+
+        if (candidateIds == null) {
+            return resourceIdMap.values();
+        }
+
+        var candidates = new ArrayList<IBaseResource>(candidateIds.size());
+        for (var id : candidateIds) {
+            var resource = resourceIdMap.get(id);
+            if (resource != null) {
+                candidates.add(resource);
+            }
+        }
+
+        return candidates;
+    }
+
+    private SearchParameterIndex getIndex(String resourceType, String name, Map<IIdType, IBaseResource> resourceIdMap) {
+        // Concurrent searches build a missing index once. The caller holds the read lock, so the
+        // resources don't change while the index is built.
+        return indexes.computeIfAbsent(resourceType, t -> new ConcurrentHashMap<>())
+                .computeIfAbsent(name, n -> {
+                    var index = SearchParameterIndex.create(getResourceMatcher(), resourceType, n);
+                    if (index != null) {
+                        resourceIdMap.forEach(index::add);
+                    }
+
+                    return Optional.ofNullable(index);
+                })
+                .orElse(null);
+    }
+
+    private void index(IIdType id, IBaseResource resource) {
+        var typeIndexes = indexes.get(resource.fhirType());
+        if (typeIndexes != null) {
+            typeIndexes.values().forEach(index -> index.ifPresent(i -> i.add(id, resource)));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends IBaseResource> T copy(T resource) {
+        var copy = context.getResourceDefinition(resource).newInstance();
+        terser.cloneInto(resource, copy, false);
+        copy.setId(resource.getIdElement().getValue());
+        return (T) copy;
+    }
+
+    private ResourceMatcher getResourceMatcher() {
+        return Repositories.getResourceMatcher(this.context);
     }
 
     @Override
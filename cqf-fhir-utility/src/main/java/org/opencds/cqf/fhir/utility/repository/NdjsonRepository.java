@@ -0,0 +1,1006 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import static java.util.Objects.requireNonNull;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.FhirTerser;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.NotImplementedException;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.utility.matcher.ResourceMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only Repository over a directory of NDJSON files, such as the output of a FHIR Bulk Data
+ * $export. Each line of a file is a resource of any type.
+ * <p>
+ * The files are streamed once to build an index of the location of each resource, and of hashes of
+ * its id and of the Patient compartments it belongs to. The index is held in primitive arrays, a
+ * few dozen bytes per resource, and is written to a file that is reused while the NDJSON files are
+ * unchanged, so later opens don't read the files again. Resources are read by seeking into the
+ * files, and are parsed as they're read, so searching the resources of a patient parses only the
+ * resources of that patient. A resource that is in the files more than once is read from the last
+ * of its lines, in the order of the file names.
+ * <p>
+ * Searches are returned in pages, and each page parses only the resources it examines, so the
+ * resources of a type can be iterated with a
+ * {@link org.opencds.cqf.fhir.utility.iterable.BundleIterator} without holding all of them.
+ * <p>
+ * The repository is thread-safe. It holds the files open until it's closed.
+ */
+public class NdjsonRepository implements Repository, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(NdjsonRepository.class);
+
+    public static final String EXTENSION = ".ndjson";
+    public static final String DEFAULT_INDEX_FILE = ".ndjson-index";
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final int INDEX_VERSION = 2;
+    private static final String PATIENT = "Patient";
+    private static final String SEARCH = "search";
+    private static final String OFFSET = "offset";
+
+    private final FhirContext fhirContext;
+    private final Path directory;
+    private final int pageSize;
+    private final List<Path> files;
+    private final FileChannel[] channels;
+    private final Index index;
+
+    // The searches that were returned in pages, by the id in their next links
+    private final Cache<String, Scan> scans = CacheBuilder.newBuilder()
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .maximumSize(1000)
+            .build();
+
+    /**
+     * Opens the NDJSON files of the directory, with the index in the directory.
+     *
+     * @param fhirContext the FhirContext of the resources
+     * @param directory the directory of the NDJSON files
+     */
+    public NdjsonRepository(FhirContext fhirContext, Path directory) {
+        this(
+                fhirContext,
+                directory,
+                requireNonNull(directory, "directory can not be null").resolve(DEFAULT_INDEX_FILE));
+    }
+
+    /**
+     * Opens the NDJSON files of the directory. The index is read from the index file if it was
+     * built for the current files, and is otherwise built and written to the index file.
+     *
+     * @param fhirContext the FhirContext of the resources
+     * @param directory the directory of the NDJSON files
+     * @param indexFile the file of the index
+     */
+    public NdjsonRepository(FhirContext fhirContext, Path directory, Path indexFile) {
+        this(fhirContext, directory, indexFile, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Opens the NDJSON files of the directory. The index is read from the index file if it was
+     * built for the current files, and is otherwise built and written to the index file.
+     *
+     * @param fhirContext the FhirContext of the resources
+     * @param directory the directory of the NDJSON files
+     * @param indexFile the file of the index
+     * @param pageSize the maximum number of resources in each page of a search
+     */
+    public NdjsonRepository(FhirContext fhirContext, Path directory, Path indexFile, int pageSize) {
+        this.fhirContext = requireNonNull(fhirContext, "fhirContext can not be null");
+        this.directory = requireNonNull(directory, "directory can not be null");
+        requireNonNull(indexFile, "indexFile can not be null");
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+
+        this.pageSize = pageSize;
+        try (Stream<Path> list = Files.list(directory)) {
+            this.files = list.filter(p -> p.getFileName().toString().endsWith(EXTENSION) && Files.isRegularFile(p))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        this.channels = new FileChannel[this.files.size()];
+        var read = readIndex(indexFile);
+        if (read == null) {
+            read = buildIndex();
+            writeIndex(read, indexFile);
+        }
+
+        this.index = read;
+    }
+
+    // The resources are numbered in the order of their types, then of their files and offsets, so
+    // the resources of a type are a range of numbers
+    private static class Index {
+        // The sorted resource types, and the first resource of each, followed by the resource count
+        private final String[] types;
+        private final int[] typeStarts;
+
+        // The line of each resource
+        private final int[] files;
+        private final long[] offsets;
+        private final int[] lengths;
+
+        // The resources by the hash of their "Type/id"
+        private final Lookup ids;
+        // The resources by the hash of the ids of the patients whose compartments they're in
+        private final Lookup patients;
+
+        Index(
+                String[] types,
+                int[] typeStarts,
+                int[] files,
+                long[] offsets,
+                int[] lengths,
+                Lookup ids,
+                Lookup patients) {
+            this.types = types;
+            this.typeStarts = typeStarts;
+            this.files = files;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.ids = ids;
+            this.patients = patients;
+        }
+
+        // The index of the type, or a negative number if there's no resource of the type
+        int type(String type) {
+            return Arrays.binarySearch(types, type);
+        }
+
+        int start(int type) {
+            return type < 0 ? 0 : typeStarts[type];
+        }
+
+        int end(int type) {
+            return type < 0 ? 0 : typeStarts[type + 1];
+        }
+    }
+
+    // Resources by the hashes of a key, sorted by hash. A hash may be shared by other keys, so the
+    // resources found are checked.
+    private static class Lookup {
+        private final long[] hashes;
+        private final int[] resources;
+
+        Lookup(long[] hashes, int[] resources) {
+            this.hashes = hashes;
+            this.resources = resources;
+        }
+
+        // The first position of the hash, or hashes.length if it isn't there
+        int first(long hash) {
+            int low = 0;
+            int high = hashes.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (hashes[mid] < hash) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        // The same resources with their new numbers, sorted by hash, without those numbered -1
+        Lookup renumber(int[] numbers) {
+            var keptHashes = new LongArray();
+            var keptResources = new IntArray();
+            for (int i = 0; i < hashes.length; i++) {
+                if (numbers[resources[i]] >= 0) {
+                    keptHashes.add(hashes[i]);
+                    keptResources.add(numbers[resources[i]]);
+                }
+            }
+
+            return sorted(keptHashes.toArray(), keptResources.toArray());
+        }
+
+        // Sorts the resources by hash, keeping the order of the resources that share a hash
+        static Lookup sorted(long[] hashes, int[] resources) {
+            mergeSort(hashes.clone(), resources.clone(), hashes, resources, 0, hashes.length);
+            return new Lookup(hashes, resources);
+        }
+
+        // Sorts the range of the source into the destination, which hold the same entries
+        private static void mergeSort(
+                long[] srcHashes, int[] srcResources, long[] hashes, int[] resources, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            mergeSort(hashes, resources, srcHashes, srcResources, from, mid);
+            mergeSort(hashes, resources, srcHashes, srcResources, mid, to);
+            for (int i = from, j = mid, k = from; k < to; k++) {
+                if (j >= to || (i < mid && srcHashes[i] <= srcHashes[j])) {
+                    hashes[k] = srcHashes[i];
+                    resources[k] = srcResources[i++];
+                } else {
+                    hashes[k] = srcHashes[j];
+                    resources[k] = srcResources[j++];
+                }
+            }
+        }
+    }
+
+    private static long hash(String value) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private static String idKey(String type, String id) {
+        return type + "/" + id;
+    }
+
+    private static class LongArray {
+        private long[] values = new long[64];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class IntArray {
+        private int[] values = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    // The resources are first numbered in the order they're read, and are renumbered by type once
+    // the duplicates are removed
+    private Index buildIndex() {
+        var parser = fhirContext.newJsonParser();
+        var terser = fhirContext.newTerser();
+        var typeNumbers = new HashMap<String, Integer>();
+        var types = new IntArray();
+        var resourceFiles = new IntArray();
+        var offsets = new LongArray();
+        var lengths = new IntArray();
+        var idHashes = new LongArray();
+        var idResources = new IntArray();
+        var patientHashes = new LongArray();
+        var patientResources = new IntArray();
+        for (int i = 0; i < files.size(); i++) {
+            var file = i;
+            try {
+                forEachLine(files.get(i), (offset, line) -> {
+                    IBaseResource resource;
+                    try {
+                        resource = parser.parseResource(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    } catch (RuntimeException e) {
+                        logger.warn("Skipping the line at offset {} of {}", offset, files.get(file), e);
+                        return;
+                    }
+
+                    var type = fhirContext
+                            .getResourceDefinition(resource.fhirType())
+                            .getName();
+                    var id = resource.getIdElement().getIdPart();
+                    var number = types.size();
+                    types.add(typeNumbers.computeIfAbsent(type, t -> typeNumbers.size()));
+                    resourceFiles.add(file);
+                    offsets.add(offset);
+                    lengths.add(line.size());
+                    if (id != null) {
+                        idHashes.add(hash(idKey(type, id)));
+                        idResources.add(number);
+                    }
+
+                    for (var patient : getPatients(terser, resource, id)) {
+                        patientHashes.add(hash(patient));
+                        patientResources.add(number);
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        var typeNames = new String[typeNumbers.size()];
+        typeNumbers.forEach((name, number) -> typeNames[number] = name);
+        var byRead = new Index(
+                typeNames,
+                null,
+                resourceFiles.toArray(),
+                offsets.toArray(),
+                lengths.toArray(),
+                Lookup.sorted(idHashes.toArray(), idResources.toArray()),
+                new Lookup(patientHashes.toArray(), patientResources.toArray()));
+        return renumber(byRead, types.toArray(), removeDuplicates(byRead, types.toArray()));
+    }
+
+    // The resources whose id is also the id of a later resource of the same type
+    private boolean[] removeDuplicates(Index index, int[] types) {
+        var removed = new boolean[types.length];
+        var ids = index.ids;
+        for (int i = 0; i < ids.hashes.length; ) {
+            int end = i + 1;
+            while (end < ids.hashes.length && ids.hashes[end] == ids.hashes[i]) {
+                end++;
+            }
+
+            // The hash is shared, so the resources are read to compare their ids
+            if (end - i > 1) {
+                var last = new HashMap<String, Integer>();
+                for (int j = i; j < end; j++) {
+                    var resource = ids.resources[j];
+                    var key = idKey(
+                            index.types[types[resource]],
+                            read(index, resource).getIdElement().getIdPart());
+                    var previous = last.put(key, resource);
+                    if (previous != null) {
+                        removed[Math.min(previous, resource)] = true;
+                        last.put(key, Math.max(previous, resource));
+                    }
+                }
+            }
+
+            i = end;
+        }
+
+        return removed;
+    }
+
+    // Numbers the resources that are kept in the order of their types
+    private static Index renumber(Index index, int[] types, boolean[] removed) {
+        var names = index.types.clone();
+        Arrays.sort(names);
+        var ranks = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            ranks[i] = Arrays.binarySearch(names, index.types[i]);
+        }
+
+        var typeStarts = new int[names.length + 1];
+        for (int resource = 0; resource < types.length; resource++) {
+            if (!removed[resource]) {
+                typeStarts[ranks[types[resource]] + 1]++;
+            }
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            typeStarts[i + 1] += typeStarts[i];
+        }
+
+        var next = Arrays.copyOf(typeStarts, names.length);
+        var count = typeStarts[names.length];
+        var numbers = new int[types.length];
+        var files = new int[count];
+        var offsets = new long[count];
+        var lengths = new int[count];
+        for (int resource = 0; resource < types.length; resource++) {
+            if (removed[resource]) {
+                numbers[resource] = -1;
+                continue;
+            }
+
+            var number = next[ranks[types[resource]]]++;
+            numbers[resource] = number;
+            files[number] = index.files[resource];
+            offsets[number] = index.offsets[resource];
+            lengths[number] = index.lengths[resource];
+        }
+
+        return new Index(
+                names,
+                typeStarts,
+                files,
+                offsets,
+                lengths,
+                index.ids.renumber(numbers),
+                index.patients.renumber(numbers));
+    }
+
+    // The ids of the patients whose compartments the resource belongs to
+    private Set<String> getPatients(FhirTerser terser, IBaseResource resource, String id) {
+        var patients = new HashSet<String>();
+        if (PATIENT.equals(resource.fhirType()) && id != null) {
+            patients.add(id);
+        }
+
+        for (var owner : terser.getCompartmentOwnersForResource(PATIENT, resource, null)) {
+            if (owner.getIdPart() != null
+                    && (owner.getResourceType() == null || PATIENT.equals(owner.getResourceType()))) {
+                patients.add(owner.getIdPart());
+            }
+        }
+
+        return patients;
+    }
+
+    private interface LineConsumer {
+        void accept(long offset, ByteArrayOutputStream line);
+    }
+
+    // Calls the consumer with the offset and the content of each line of the file that isn't blank
+    private static void forEachLine(Path file, LineConsumer consumer) throws IOException {
+        try (var in = Files.newInputStream(file)) {
+            var buffer = new byte[1 << 16];
+            var line = new ByteArrayOutputStream();
+            long position = 0;
+            long lineOffset = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        line.write(buffer, start, i - start);
+                        acceptLine(lineOffset, line, consumer);
+                        start = i + 1;
+                        lineOffset = position + start;
+                    }
+                }
+
+                line.write(buffer, start, read - start);
+                position += read;
+            }
+
+            acceptLine(lineOffset, line, consumer);
+        }
+    }
+
+    private static void acceptLine(long offset, ByteArrayOutputStream line, LineConsumer consumer) {
+        var bytes = line.toByteArray();
+        for (var b : bytes) {
+            if (!Character.isWhitespace(b)) {
+                consumer.accept(offset, line);
+                break;
+            }
+        }
+
+        line.reset();
+    }
+
+    // Reads the index if it was built for the current files
+    private Index readIndex(Path indexFile) {
+        if (!Files.isRegularFile(indexFile)) {
+            return null;
+        }
+
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION || in.readInt() != files.size()) {
+                return null;
+            }
+
+            for (var file : files) {
+                if (!in.readUTF().equals(file.getFileName().toString())
+                        || in.readLong() != Files.size(file)
+                        || in.readLong() != Files.getLastModifiedTime(file).toMillis()) {
+                    return null;
+                }
+            }
+
+            var types = new String[in.readInt()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = fhirContext.getResourceDefinition(in.readUTF()).getName();
+            }
+
+            var typeStarts = readInts(in, types.length + 1);
+            var count = in.readInt();
+            var resourceFiles = new int[count];
+            var offsets = new long[count];
+            var lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                resourceFiles[i] = in.readInt();
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+            }
+
+            return new Index(types, typeStarts, resourceFiles, offsets, lengths, readLookup(in), readLookup(in));
+        } catch (IOException | RuntimeException e) {
+            logger.info("Unable to read the index {}, the files are indexed again", indexFile, e);
+            return null;
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        var values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+        }
+
+        return values;
+    }
+
+    private static Lookup readLookup(DataInputStream in) throws IOException {
+        var hashes = new long[in.readInt()];
+        var resources = new int[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = in.readLong();
+            resources[i] = in.readInt();
+        }
+
+        return new Lookup(hashes, resources);
+    }
+
+    // Writes the index, so that it's read rather than built the next time the files are opened
+    private void writeIndex(Index index, Path indexFile) {
+        try {
+            var temp = Files.createTempFile(indexFile.toAbsolutePath().getParent(), "index", ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(files.size());
+                for (var file : files) {
+                    out.writeUTF(file.getFileName().toString());
+                    out.writeLong(Files.size(file));
+                    out.writeLong(Files.getLastModifiedTime(file).toMillis());
+                }
+
+                out.writeInt(index.types.length);
+                for (var type : index.types) {
+                    out.writeUTF(type);
+                }
+
+                for (var start : index.typeStarts) {
+                    out.writeInt(start);
+                }
+
+                out.writeInt(index.files.length);
+                for (int i = 0; i < index.files.length; i++) {
+                    out.writeInt(index.files[i]);
+                    out.writeLong(index.offsets[i]);
+                    out.writeInt(index.lengths[i]);
+                }
+
+                writeLookup(out, index.ids);
+                writeLookup(out, index.patients);
+            }
+
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Unable to write the index {}, the files will be indexed again when opened", indexFile, e);
+        }
+    }
+
+    private static void writeLookup(DataOutputStream out, Lookup lookup) throws IOException {
+        out.writeInt(lookup.hashes.length);
+        for (int i = 0; i < lookup.hashes.length; i++) {
+            out.writeLong(lookup.hashes[i]);
+            out.writeInt(lookup.resources[i]);
+        }
+    }
+
+    private synchronized FileChannel channel(int file) throws IOException {
+        if (channels[file] == null) {
+            channels[file] = FileChannel.open(files.get(file));
+        }
+
+        return channels[file];
+    }
+
+    private IBaseResource read(Index index, int resource) {
+        var length = index.lengths[resource];
+        var buffer = ByteBuffer.allocate(length);
+        try {
+            var channel = channel(index.files[resource]);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, index.offsets[resource] + buffer.position()) < 0) {
+                    throw new EOFException(files.get(index.files[resource]).toString());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return fhirContext.newJsonParser().parseResource(new String(buffer.array(), 0, length, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                channels[i].close();
+                channels[i] = null;
+            }
+        }
+    }
+
+    @Override
+    public FhirContext fhirContext() {
+        return this.fhirContext;
+    }
+
+    // Adds the resources of the type whose id has the same hash as the id. Other ids may share the
+    // hash, so the ids of the resources are still to be checked once they're parsed.
+    private void addCandidates(String type, String id, Set<Integer> resources) {
+        var typeIndex = index.type(type);
+        if (typeIndex < 0 || id == null) {
+            return;
+        }
+
+        var hash = hash(idKey(type, id));
+        var ids = index.ids;
+        for (int i = ids.first(hash); i < ids.hashes.length && ids.hashes[i] == hash; i++) {
+            var resource = ids.resources[i];
+            if (resource >= index.start(typeIndex) && resource < index.end(typeIndex)) {
+                resources.add(resource);
+            }
+        }
+    }
+
+    // The resource of the type with the id, or null if there's none
+    private IBaseResource find(String type, String id) {
+        var candidates = new TreeSet<Integer>();
+        addCandidates(type, id, candidates);
+        for (var candidate : candidates) {
+            var resource = read(index, candidate);
+            if (id.equals(resource.getIdElement().getIdPart())) {
+                return resource;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends IBaseResource, I extends IIdType> T read(
+            Class<T> resourceType, I id, Map<String, String> headers) {
+        requireNonNull(resourceType, "resourceType can not be null");
+        requireNonNull(id, "id can not be null");
+
+        var resource = find(resourceType.getSimpleName(), id.getIdPart());
+        if (resource == null) {
+            throw new ResourceNotFoundException(id);
+        }
+
+        return (T) resource;
+    }
+
+    // A search that is returned in pages. It holds the resources to examine rather than the
+    // progress through them, so any of its pages can be read, and read concurrently.
+    private static class Scan {
+        private final Map<String, List<IQueryParameterType>> parameters;
+        // The ids of the resources to match, or null to match any id
+        private final Set<String> ids;
+        // The resources to examine, or null to examine the range
+        private final int[] candidates;
+        private final int start;
+        private final int end;
+
+        Scan(Map<String, List<IQueryParameterType>> parameters, Set<String> ids, int[] candidates, int start, int end) {
+            this.parameters = parameters;
+            this.ids = ids;
+            this.candidates = candidates;
+            this.start = start;
+            this.end = end;
+        }
+
+        int size() {
+            return candidates != null ? candidates.length : end - start;
+        }
+
+        int get(int position) {
+            return candidates != null ? candidates[position] : start + position;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <B extends IBaseBundle, T extends IBaseResource> B search(
+            Class<B> bundleType,
+            Class<T> resourceType,
+            Map<String, List<IQueryParameterType>> searchParameters,
+            Map<String, String> headers) {
+        var type = resourceType.getSimpleName();
+        var parameters = searchParameters == null
+                ? new HashMap<String, List<IQueryParameterType>>()
+                : new HashMap<>(searchParameters);
+
+        Scan scan;
+        if (parameters.containsKey("_id")) {
+            // The ids are checked as the page parses the resources, so each is parsed once
+            var ids = new HashSet<String>();
+            var resources = new TreeSet<Integer>();
+            for (var param : parameters.remove("_id")) {
+                var id = ((TokenParam) param).getValue();
+                ids.add(id);
+                addCandidates(type, id, resources);
+            }
+
+            scan = new Scan(parameters, ids, resources.stream().mapToInt(x -> x).toArray(), 0, 0);
+        } else {
+            var candidates = compartmentCandidates(type, parameters);
+            var typeIndex = index.type(type);
+            scan = new Scan(parameters, null, candidates, index.start(typeIndex), index.end(typeIndex));
+        }
+
+        return (B) page(scan, null, 0);
+    }
+
+    // The resources of the type in the compartments of the patients referenced by a compartment
+    // search parameter, or null if no parameter references patients. The parameter is still
+    // matched, which drops the resources of other patients with the same hash.
+    private int[] compartmentCandidates(String type, Map<String, List<IQueryParameterType>> searchParameters) {
+        var compartmentParams =
+                fhirContext.getResourceDefinition(type).getSearchParamsForCompartmentName(PATIENT).stream()
+                        .map(RuntimeSearchParam::getName)
+                        .collect(Collectors.toSet());
+        for (var entry : searchParameters.entrySet()) {
+            // The patient parameter references a subject or a participant that's in the compartment
+            var isCompartmentParam = compartmentParams.contains(entry.getKey())
+                    || ("patient".equals(entry.getKey()) && !compartmentParams.isEmpty());
+            if (!isCompartmentParam) {
+                continue;
+            }
+
+            var patients = new ArrayList<String>();
+            for (var param : entry.getValue()) {
+                if (!(param instanceof ReferenceParam)) {
+                    patients = null;
+                    break;
+                }
+
+                var reference = (ReferenceParam) param;
+                var referenceType = reference.getResourceType();
+                if (reference.getChain() != null
+                        || reference.getIdPart() == null
+                        || (referenceType == null
+                                ? !"patient".equals(entry.getKey())
+                                : !PATIENT.equals(referenceType))) {
+                    patients = null;
+                    break;
+                }
+
+                patients.add(reference.getIdPart());
+            }
+
+            if (patients != null && !patients.isEmpty()) {
+                var typeIndex = index.type(type);
+                var start = index.start(typeIndex);
+                var end = index.end(typeIndex);
+                var lookup = index.patients;
+                var candidates = new TreeSet<Integer>();
+                for (var patient : patients) {
+                    var hash = hash(patient);
+                    for (int i = lookup.first(hash); i < lookup.hashes.length && lookup.hashes[i] == hash; i++) {
+                        if (lookup.resources[i] >= start && lookup.resources[i] < end) {
+                            candidates.add(lookup.resources[i]);
+                        }
+                    }
+                }
+
+                return candidates.stream().mapToInt(x -> x).toArray();
+            }
+        }
+
+        return null;
+    }
+
+    // Returns the page of the matches that starts at the position of the scan. The scan is kept
+    // for the next page under the id, which is created for the first page.
+    private IBaseBundle page(Scan scan, String id, int position) {
+        var builder = new BundleBuilder(this.fhirContext);
+        var resourceMatcher = getResourceMatcher();
+        var count = 0;
+        while (count < pageSize && position < scan.size()) {
+            var resource = read(index, scan.get(position++));
+            boolean include = scan.ids == null || scan.ids.contains(resource.getIdElement().getIdPart());
+            for (var entry : scan.parameters.entrySet()) {
+                if (!include || !resourceMatcher.matches(entry.getKey(), entry.getValue(), resource)) {
+                    include = false;
+                    break;
+                }
+            }
+
+            if (include) {
+                builder.addCollectionEntry(resource);
+                count++;
+            }
+        }
+
+        builder.setType("searchset");
+        var bundle = builder.getBundle();
+        if (position < scan.size()) {
+            if (id == null) {
+                id = UUID.randomUUID().toString();
+                scans.put(id, scan);
+            }
+
+            var terser = fhirContext.newTerser();
+            var link = terser.addElement(bundle, "link");
+            terser.setElement(link, "relation", IBaseBundle.LINK_NEXT);
+            terser.setElement(link, "url", directory.toUri() + "?" + SEARCH + "=" + id + "&" + OFFSET + "=" + position);
+        }
+
+        return bundle;
+    }
+
+    private ResourceMatcher getResourceMatcher() {
+        return Repositories.getResourceMatcher(this.fhirContext);
+    }
+
+    @Override
+    public <T extends IBaseResource> MethodOutcome create(T resource, Map<String, String> headers) {
+        throw new NotImplementedException("NDJSON repositories are read-only");
+    }
+
+    @Override
+    public <I extends IIdType, P extends IBaseParameters> MethodOutcome patch(
+            I id, P patchParameters, Map<String, String> headers) {
+        throw new NotImplementedException("NDJSON repositories are read-only");
+    }
+
+    @Override
+    public <T extends IBaseResource> MethodOutcome update(T resource, Map<String, String> headers) {
+        throw new NotImplementedException("NDJSON repositories are read-only");
+    }
+
+    @Override
+    public <T extends IBaseResource, I extends IIdType> MethodOutcome delete(
+            Class<T> resourceType, I id, Map<String, String> headers) {
+        throw new NotImplementedException("NDJSON repositories are read-only");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <B extends IBaseBundle> B link(Class<B> bundleType, String url, Map<String, String> headers) {
+        requireNonNull(url, "url can not be null");
+        var query = url.indexOf('?') < 0 ? "" : url.substring(url.indexOf('?') + 1);
+        String id = null;
+        var position = -1;
+        for (var parameter : query.split("&")) {
+            if (parameter.startsWith(SEARCH + "=")) {
+                id = parameter.substring(SEARCH.length() + 1);
+            } else if (parameter.startsWith(OFFSET + "=")) {
+                try {
+                    position = Integer.parseInt(parameter.substring(OFFSET.length() + 1));
+                } catch (NumberFormatException e) {
+                    position = -1;
+                }
+            }
+        }
+
+        var scan = id == null ? null : scans.getIfPresent(id);
+        if (scan == null || position < 0 || position > scan.size()) {
+            throw new IllegalArgumentException(String.format("The page %s is unknown or has expired", url));
+        }
+
+        return (B) page(scan, id, position);
+    }
+
+    @Override
+    public <C extends IBaseConformance> C capabilities(Class<C> resourceType, Map<String, String> headers) {
+        throw new NotImplementedException("The capabilities interaction is not currently supported");
+    }
+
+    @Override
+    public <B extends IBaseBundle> B transaction(B transaction, Map<String, String> headers) {
+        throw new NotImplementedException("NDJSON repositories are read-only");
+    }
+
+    @Override
+    public <R extends IBaseResource, P extends IBaseParameters> R invoke(
+            String name, P parameters, Class<R> returnType, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <P extends IBaseParameters> MethodOutcome invoke(String name, P parameters, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <R extends IBaseResource, P extends IBaseParameters, T extends IBaseResource> R invoke(
+            Class<T> resourceType, String name, P parameters, Class<R> returnType, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <P extends IBaseParameters, T extends IBaseResource> MethodOutcome invoke(
+            Class<T> resourceType, String name, P parameters, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <R extends IBaseResource, P extends IBaseParameters, I extends IIdType> R invoke(
+            I id, String name, P parameters, Class<R> returnType, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <P extends IBaseParameters, I extends IIdType> MethodOutcome invoke(
+            I id, String name, P parameters, Map<String, String> headers) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public <B extends IBaseBundle, P extends IBaseParameters> B history(
+            P parameters, Class<B> returnType, Map<String, String> headers) {
+        throw new NotImplementedException("The history interaction is not currently supported");
+    }
+
+    @Override
+    public <B extends IBaseBundle, P extends IBaseParameters, T extends IBaseResource> B history(
+            Class<T> resourceType, P parameters, Class<B> returnType, Map<String, String> headers) {
+        throw new NotImplementedException("The history interaction is not currently supported");
+    }
+
+    @Override
+    public <B extends IBaseBundle, P extends IBaseParameters, I extends IIdType> B history(
+            I id, P parameters, Class<B> returnType, Map<String, String> headers) {
+        throw new NotImplementedException("The history interaction is not currently supported");
+    }
+}
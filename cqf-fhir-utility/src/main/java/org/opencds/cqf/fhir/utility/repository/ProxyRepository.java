@@ -5,11 +5,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.util.BundleUtil;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseConformance;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
@@ -28,6 +30,9 @@ public class ProxyRepository implements Repository {
     private Repository content;
     private Repository terminology;
 
+    // The repositories that returned pages, by the base of their next links
+    private final Map<String, Repository> linkBases = new ConcurrentHashMap<>();
+
     public ProxyRepository(Repository local, Repository data, Repository content, Repository terminology) {
         checkNotNull(local);
 
@@ -86,18 +91,41 @@ public class ProxyRepository implements Repository {
             Class<T> resourceType,
             Map<String, List<IQueryParameterType>> searchParameters,
             Map<String, String> headers) {
+        Repository repository;
         if (isTerminologyResource(resourceType.getSimpleName())) {
-            return terminology.search(bundleType, resourceType, searchParameters, headers);
+            repository = terminology;
         } else if (isContentResource(resourceType.getSimpleName())) {
-            return content.search(bundleType, resourceType, searchParameters, headers);
+            repository = content;
         } else {
-            return data.search(bundleType, resourceType, searchParameters, headers);
+            repository = data;
         }
+
+        return remember(repository, repository.search(bundleType, resourceType, searchParameters, headers));
     }
 
     @Override
     public <B extends IBaseBundle> B link(Class<B> bundleType, String url, Map<String, String> headers) {
-        return null;
+        // The next page is read from the repository that returned the page before it. Links that
+        // weren't returned through this repository are almost always against patient data.
+        var repository = linkBases.getOrDefault(base(url), data);
+        return remember(repository, repository.link(bundleType, url, headers));
+    }
+
+    private <B extends IBaseBundle> B remember(Repository repository, B bundle) {
+        if (bundle != null) {
+            var next = BundleUtil.getLinkUrlOfType(repository.fhirContext(), bundle, IBaseBundle.LINK_NEXT);
+            if (next != null) {
+                linkBases.put(base(next), repository);
+            }
+        }
+
+        return bundle;
+    }
+
+    // The part of a link before its query
+    private static String base(String url) {
+        var query = url.indexOf('?');
+        return query < 0 ? url : url.substring(0, query);
     }
 
     @Override
@@ -1,7 +1,10 @@
 package org.opencds.cqf.fhir.utility.repository;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang3.NotImplementedException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.fhir.api.Repository;
@@ -13,6 +16,8 @@ import org.opencds.cqf.fhir.utility.matcher.ResourceMatcherR5;
 
 public class Repositories {
 
+    private static final Map<FhirVersionEnum, ResourceMatcher> RESOURCE_MATCHERS = new ConcurrentHashMap<>();
+
     private Repositories() {
         // intentionally empty
     }
@@ -52,8 +57,16 @@ public class Repositories {
         return new ProxyRepository(localRepository, data, content, terminology);
     }
 
+    /**
+     * Returns the ResourceMatcher for the FHIR version of the context. Matchers are thread-safe,
+     * and a single matcher per FHIR version is shared, so search parameter paths are parsed once.
+     */
     public static ResourceMatcher getResourceMatcher(FhirContext context) {
-        var fhirVersion = context.getVersion().getVersion();
+        return RESOURCE_MATCHERS.computeIfAbsent(
+                context.getVersion().getVersion(), Repositories::createResourceMatcher);
+    }
+
+    private static ResourceMatcher createResourceMatcher(FhirVersionEnum fhirVersion) {
         switch (fhirVersion) {
             case DSTU3:
                 return new ResourceMatcherDSTU3();
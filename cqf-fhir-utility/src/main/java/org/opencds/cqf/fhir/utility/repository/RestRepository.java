@@ -6,10 +6,14 @@ import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.IClientExecutable;
 import ca.uhn.fhir.rest.gclient.IHistoryTyped;
+import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.util.ParametersUtil;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.StringJoiner;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseConformance;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
@@ -71,7 +75,7 @@ public class RestRepository implements Repository {
             Map<String, String> headers) {
         var op = this.client.search().forResource(resourceType).returnBundle(bundleType);
         if (searchParameters != null) {
-            op = op.where(searchParameters);
+            op = op.whereMap(toQuery(searchParameters));
         }
 
         if (headers != null) {
@@ -83,6 +87,36 @@ public class RestRepository implements Repository {
         return this.addHeaders(op, headers).execute();
     }
 
+    // The parameters of a list are alternatives, which are sent as a single comma-separated value,
+    // e.g. url=a,b. A server reads repeated parameters as all required, so only the dates of a list,
+    // which are the bounds of a range, are sent as separate parameters, e.g. date=ge2020&date=le2021.
+    private Map<String, List<String>> toQuery(Map<String, List<IQueryParameterType>> searchParameters) {
+        var fhirContext = this.client.getFhirContext();
+        var query = new LinkedHashMap<String, List<String>>();
+        for (var entry : searchParameters.entrySet()) {
+            var isRange = !entry.getValue().isEmpty()
+                    && entry.getValue().stream().allMatch(DateParam.class::isInstance);
+            var alternatives = new LinkedHashMap<String, StringJoiner>();
+            for (var param : entry.getValue()) {
+                var qualifier = param.getQueryParameterQualifier();
+                var name = qualifier == null ? entry.getKey() : entry.getKey() + qualifier;
+                var value = param.getValueAsQueryToken(fhirContext);
+                if (isRange) {
+                    query.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+                } else {
+                    alternatives.computeIfAbsent(name, k -> new StringJoiner(",")).add(value);
+                }
+            }
+
+            for (var alternative : alternatives.entrySet()) {
+                query.computeIfAbsent(alternative.getKey(), k -> new ArrayList<>())
+                        .add(alternative.getValue().toString());
+            }
+        }
+
+        return query;
+    }
+
     @Override
     public <C extends IBaseConformance> C capabilities(Class<C> resourceType, Map<String, String> headers) {
         var op = this.client.capabilities().ofType(resourceType);
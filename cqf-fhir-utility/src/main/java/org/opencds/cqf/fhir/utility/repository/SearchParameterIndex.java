@@ -0,0 +1,411 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.ICompositeType;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.fhir.utility.matcher.ResourceMatcher;
+import org.opencds.cqf.fhir.utility.matcher.ResourceMatcher.SPPathKey;
+
+/**
+ * An index of the values of a search parameter for the resources of one type. Date parameters are
+ * indexed by the ranges of their values. Other parameters are indexed by reference strings,
+ * primitive values, ids and codes, which covers the reference, token and uri search parameters.
+ * <p>
+ * Lookups return a superset of the resources that match, so the candidates must still be checked
+ * with the {@link ResourceMatcher}. Resources with values that can't be indexed are always
+ * returned.
+ */
+abstract class SearchParameterIndex {
+
+    protected final ResourceMatcher resourceMatcher;
+    private final IParsedExpression path;
+
+    protected final Set<IIdType> unindexed = new LinkedHashSet<>();
+
+    private SearchParameterIndex(ResourceMatcher resourceMatcher, IParsedExpression path) {
+        this.resourceMatcher = resourceMatcher;
+        this.path = path;
+    }
+
+    /**
+     * Creates an empty index of the search parameter, or returns null if the resource type has no
+     * such search parameter.
+     */
+    static SearchParameterIndex create(ResourceMatcher resourceMatcher, String resourceType, String name) {
+        var definition = resourceMatcher.getContext().getResourceDefinition(resourceType);
+        var searchParam = definition.getSearchParam(name);
+        if (searchParam == null) {
+            return null;
+        }
+
+        var path = searchParam.getPath();
+        if (path.isEmpty() && name.startsWith("_")) {
+            path = name.substring(1);
+        }
+
+        if (path.isEmpty()) {
+            return null;
+        }
+
+        IParsedExpression parsed;
+        try {
+            parsed = resourceMatcher.getPathCache().computeIfAbsent(new SPPathKey(resourceType, path), p -> {
+                try {
+                    return resourceMatcher.getEngine().parse(p.path());
+                } catch (Exception e) {
+                    throw new IllegalArgumentException(e);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        return searchParam.getParamType() == RestSearchParameterTypeEnum.DATE
+                ? new DateIndex(resourceMatcher, parsed)
+                : new ValueIndex(resourceMatcher, parsed);
+    }
+
+    abstract void add(IIdType id, IBaseResource resource);
+
+    abstract void remove(IIdType id);
+
+    /**
+     * Returns the ids of the resources that may match the parameters, or null if the parameters
+     * can't be looked up in the index. A resource matches any of the values of a list, except for a
+     * list of dates, which are the bounds of a range.
+     */
+    abstract Set<IIdType> lookup(List<IQueryParameterType> params);
+
+    // The values of the search parameter, or null if they can't be evaluated
+    protected List<IBase> evaluate(IBaseResource resource) {
+        try {
+            var values = resourceMatcher.getEngine().evaluate(resource, path, IBase.class);
+            return values == null ? Collections.emptyList() : values;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // An index of the reference strings, primitive values, ids and codes of the resources
+    private static class ValueIndex extends SearchParameterIndex {
+
+        private final Map<String, Set<IIdType>> idsByKey = new HashMap<>();
+        // The keys a resource was indexed with, so that it can be removed after it changes
+        private final Map<IIdType, Set<String>> keysById = new HashMap<>();
+
+        ValueIndex(ResourceMatcher resourceMatcher, IParsedExpression path) {
+            super(resourceMatcher, path);
+        }
+
+        @Override
+        void add(IIdType id, IBaseResource resource) {
+            remove(id);
+            var keys = getKeys(resource);
+            if (keys == null) {
+                unindexed.add(id);
+                return;
+            }
+
+            keysById.put(id, keys);
+            for (var key : keys) {
+                idsByKey.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(id);
+            }
+        }
+
+        @Override
+        void remove(IIdType id) {
+            unindexed.remove(id);
+            var keys = keysById.remove(id);
+            if (keys == null) {
+                return;
+            }
+
+            for (var key : keys) {
+                var ids = idsByKey.get(key);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        idsByKey.remove(key);
+                    }
+                }
+            }
+        }
+
+        @Override
+        Set<IIdType> lookup(List<IQueryParameterType> params) {
+            if (params.isEmpty()) {
+                return null;
+            }
+
+            var ids = new LinkedHashSet<IIdType>();
+            for (var param : params) {
+                var key = getKey(param);
+                if (key == null) {
+                    return null;
+                }
+
+                ids.addAll(idsByKey.getOrDefault(key, Collections.emptySet()));
+            }
+
+            ids.addAll(unindexed);
+            return ids;
+        }
+
+        // The value a parameter is looked up by, or null if the parameter can't be looked up
+        private static String getKey(IQueryParameterType param) {
+            if (param instanceof ReferenceParam) {
+                return ((ReferenceParam) param).getValue();
+            } else if (param instanceof TokenParam) {
+                // Tokens without a value match everything, and modifiers aren't indexed
+                var token = (TokenParam) param;
+                return token.getModifier() == null ? token.getValue() : null;
+            } else if (param instanceof UriParam) {
+                var uri = (UriParam) param;
+                return uri.getQualifier() == null ? uri.getValue() : null;
+            }
+
+            return null;
+        }
+
+        // The keys of the values of the search parameter, or null if a value can't be indexed
+        private Set<String> getKeys(IBaseResource resource) {
+            var values = evaluate(resource);
+            if (values == null) {
+                return null;
+            }
+
+            var keys = new HashSet<String>();
+            for (var value : values) {
+                if (value instanceof IBaseReference) {
+                    var reference = ((IBaseReference) value).getReferenceElement().getValue();
+                    if (reference == null) {
+                        return null;
+                    }
+
+                    keys.add(reference);
+                } else if (value instanceof IPrimitiveType) {
+                    var primitive = ((IPrimitiveType<?>) value).getValueAsString();
+                    if (primitive == null) {
+                        return null;
+                    }
+
+                    keys.add(primitive);
+                    if (value instanceof IIdType && ((IIdType) value).getIdPart() != null) {
+                        keys.add(((IIdType) value).getIdPart());
+                    }
+                } else {
+                    var codes = resourceMatcher.getCodes(value);
+                    if (codes == null || codes.isEmpty()) {
+                        return null;
+                    }
+
+                    for (var code : codes) {
+                        if (code.getValue() != null) {
+                            keys.add(code.getValue());
+                        }
+                    }
+                }
+            }
+
+            return keys;
+        }
+    }
+
+    // An index of the date ranges of the resources, as the instants the ResourceMatcher compares.
+    // Bounded ranges are sorted by their start, so a lookup only visits the ranges that start
+    // within the longest indexed range of the searched interval.
+    private static class DateIndex extends SearchParameterIndex {
+
+        private final TreeMap<Long, Set<IIdType>> idsByLow = new TreeMap<>();
+        // Ranges without a start or an end are checked on every lookup
+        private final Set<IIdType> open = new LinkedHashSet<>();
+        private final Map<IIdType, long[]> rangesById = new HashMap<>();
+        // The longest bounded range that has been indexed. It is not reduced by removals, which
+        // only makes lookups visit more ranges.
+        private long maxSpan = 0;
+
+        DateIndex(ResourceMatcher resourceMatcher, IParsedExpression path) {
+            super(resourceMatcher, path);
+        }
+
+        @Override
+        void add(IIdType id, IBaseResource resource) {
+            remove(id);
+            var values = evaluate(resource);
+            if (values == null) {
+                unindexed.add(id);
+                return;
+            }
+
+            if (values.isEmpty()) {
+                // Resources without a value never match
+                return;
+            }
+
+            long low = Long.MAX_VALUE;
+            long high = Long.MIN_VALUE;
+            for (var value : values) {
+                var range = getRange(value);
+                if (range == null) {
+                    unindexed.add(id);
+                    return;
+                }
+
+                low = Math.min(low, range[0]);
+                high = Math.max(high, range[1]);
+            }
+
+            rangesById.put(id, new long[] {low, high});
+            if (low == Long.MIN_VALUE || high == Long.MAX_VALUE) {
+                open.add(id);
+            } else {
+                idsByLow.computeIfAbsent(low, l -> new LinkedHashSet<>()).add(id);
+                maxSpan = Math.max(maxSpan, high - low);
+            }
+        }
+
+        @Override
+        void remove(IIdType id) {
+            unindexed.remove(id);
+            open.remove(id);
+            var range = rangesById.remove(id);
+            if (range == null) {
+                return;
+            }
+
+            var ids = idsByLow.get(range[0]);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    idsByLow.remove(range[0]);
+                }
+            }
+        }
+
+        // The dates of a list are the bounds of a range, so the resources must match all of them
+        @Override
+        Set<IIdType> lookup(List<IQueryParameterType> params) {
+            if (params.isEmpty()) {
+                return null;
+            }
+
+            var low = Long.MIN_VALUE;
+            var high = Long.MAX_VALUE;
+            for (var param : params) {
+                var interval = getInterval(param);
+                if (interval == null) {
+                    return null;
+                }
+
+                low = Math.max(low, interval[0]);
+                high = Math.min(high, interval[1]);
+            }
+
+            var ids = new LinkedHashSet<IIdType>();
+            addOverlapping(low, high, ids);
+            ids.addAll(unindexed);
+            return ids;
+        }
+
+        // Adds the ids of the ranges that start by the high end and end from the low end, which
+        // includes the ranges that overlap the interval and the ranges within it
+        private void addOverlapping(long low, long high, Set<IIdType> ids) {
+            var from = low < Long.MIN_VALUE + maxSpan ? Long.MIN_VALUE : low - maxSpan;
+            if (from <= high) {
+                for (var candidates : idsByLow.subMap(from, true, high, true).values()) {
+                    for (var id : candidates) {
+                        if (rangesById.get(id)[1] >= low) {
+                            ids.add(id);
+                        }
+                    }
+                }
+            }
+
+            for (var id : open) {
+                var range = rangesById.get(id);
+                if (range[0] <= high && range[1] >= low) {
+                    ids.add(id);
+                }
+            }
+        }
+
+        // The instants of the searched interval, or null if the parameter can't be looked up
+        private static long[] getInterval(IQueryParameterType param) {
+            if (!(param instanceof DateParam)) {
+                return null;
+            }
+
+            var date = (DateParam) param;
+            if (date.getValue() == null || date.getMissing() != null) {
+                return null;
+            }
+
+            var prefix = date.getPrefix();
+            if (prefix != null) {
+                switch (prefix) {
+                    case EQUAL:
+                    case GREATERTHAN:
+                    case GREATERTHAN_OR_EQUALS:
+                    case LESSTHAN:
+                    case LESSTHAN_OR_EQUALS:
+                        break;
+                    default:
+                        return null;
+                }
+            }
+
+            var range = new DateRangeParam(date);
+            return new long[] {toLow(range.getLowerBoundAsInstant()), toHigh(range.getUpperBoundAsInstant())};
+        }
+
+        // The instants the ResourceMatcher compares for a value, or null if it isn't a date
+        private long[] getRange(IBase value) {
+            DateRangeParam range;
+            try {
+                if (value instanceof IPrimitiveType) {
+                    range = resourceMatcher.getDateRange((IPrimitiveType<?>) value);
+                } else if (value instanceof ICompositeType) {
+                    range = resourceMatcher.getDateRange((ICompositeType) value);
+                } else {
+                    return null;
+                }
+            } catch (Exception e) {
+                return null;
+            }
+
+            if (range == null) {
+                return null;
+            }
+
+            return new long[] {toLow(range.getLowerBoundAsInstant()), toHigh(range.getUpperBoundAsInstant())};
+        }
+
+        private static long toLow(Date date) {
+            return date == null ? Long.MIN_VALUE : date.getTime();
+        }
+
+        private static long toHigh(Date date) {
+            return date == null ? Long.MAX_VALUE : date.getTime();
+        }
+    }
+}
@@ -50,6 +50,10 @@ public class Searches {
         return builder().withUriParam("url", url).build();
     }
 
+    public static Map<String, List<IQueryParameterType>> byUrl(String... urls) {
+        return builder().withUriParam("url", urls).build();
+    }
+
     public static Map<String, List<IQueryParameterType>> byUrlAndVersion(String url, String version) {
         return builder()
                 .withUriParam("url", url)
@@ -116,6 +120,21 @@ public class Searches {
             return this;
         }
 
+        SearchBuilder withUriParam(String name, String... values) {
+            if (this.values == null) {
+                this.values = new HashMap<>();
+            }
+
+            var params = new ArrayList<IQueryParameterType>(values.length);
+            for (var v : values) {
+                params.add(new UriParam(v));
+            }
+
+            this.values.put(name, params);
+
+            return this;
+        }
+
         SearchBuilder withTokenParam(String name, String... values) {
             if (this.values == null) {
                 this.values = new HashMap<>();
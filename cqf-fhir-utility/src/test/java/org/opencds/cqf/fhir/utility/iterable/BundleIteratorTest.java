@@ -0,0 +1,108 @@
+package org.opencds.cqf.fhir.utility.iterable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.fhir.utility.repository.CompartmentFileRepository;
+import org.opencds.cqf.fhir.utility.search.Searches;
+
+public class BundleIteratorTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    @TempDir
+    Path tempDir;
+
+    // Patients are returned two per page
+    private CompartmentFileRepository repository() {
+        var repository = new CompartmentFileRepository(fhirContext, tempDir, 2, 2);
+        for (int i = 0; i < 7; i++) {
+            repository.load(new Patient().setId("p" + i));
+        }
+
+        return repository;
+    }
+
+    @Test
+    public void pagesAreFetchedAhead() {
+        var repository = repository();
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int lookahead = 0; lookahead < 4; lookahead++) {
+                var ids = new ArrayList<String>();
+                var bundle = repository.search(Bundle.class, Patient.class, Searches.ALL);
+                try (var iterator = new BundleIterator<>(repository, bundle, executor, lookahead)) {
+                    iterator.forEachRemaining(
+                            x -> ids.add(x.getResource().getIdElement().getIdPart()));
+                }
+
+                assertEquals(
+                        List.of("p0", "p1", "p2", "p3", "p4", "p5", "p6"),
+                        ids.stream().sorted().collect(Collectors.toList()));
+            }
+
+            var bundle = repository.search(Bundle.class, Patient.class, Searches.ALL);
+            var mapped = new BundleMappingIterable<>(
+                            repository,
+                            bundle,
+                            x -> x.getResource().getIdElement().getIdPart(),
+                            executor,
+                            2)
+                    .toStream()
+                    .sorted()
+                    .collect(Collectors.toList());
+            assertEquals(List.of("p0", "p1", "p2", "p3", "p4", "p5", "p6"), mapped);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void closeCancelsPrefetch() {
+        var repository = repository();
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var bundle = repository.search(Bundle.class, Patient.class, Searches.ALL);
+            var iterator = new BundleIterator<>(repository, bundle, executor, 2);
+            assertTrue(iterator.hasNext());
+            iterator.next();
+
+            iterator.close();
+            assertFalse(iterator.hasNext());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void stoppedPrefetchKeepsEntries() {
+        var repository = repository();
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var bundle = repository.search(Bundle.class, Patient.class, Searches.ALL);
+            var ids = new ArrayList<String>();
+            var iterator = new BundleIterator<>(repository, bundle, executor, 2);
+            ids.add(iterator.next().getResource().getIdElement().getIdPart());
+
+            iterator.stopPrefetch();
+            iterator.forEachRemaining(
+                    x -> ids.add(x.getResource().getIdElement().getIdPart()));
+            assertEquals(
+                    List.of("p0", "p1", "p2", "p3", "p4", "p5", "p6"),
+                    ids.stream().sorted().collect(Collectors.toList()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.opencds.cqf.fhir.utility.iterable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import org.junit.jupiter.api.Test;
+
+class MemoizingIterableTest {
+
+    @Test
+    void testConsumesSourceOnDemand() {
+        var taken = new ArrayList<Integer>();
+        var source = Arrays.asList(1, 2, 3).iterator();
+        var iterable = new MemoizingIterable<Integer>(new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                var next = source.next();
+                taken.add(next);
+                return next;
+            }
+        });
+
+        var first = iterable.iterator();
+        assertEquals(1, first.next());
+        assertEquals(Arrays.asList(1), taken);
+
+        // A second iteration replays the consumed elements before continuing with the source
+        var all = new ArrayList<Integer>();
+        iterable.forEach(all::add);
+        assertEquals(Arrays.asList(1, 2, 3), all);
+        assertEquals(Arrays.asList(1, 2, 3), taken);
+
+        assertEquals(2, first.next());
+        assertEquals(3, first.next());
+        assertFalse(first.hasNext());
+    }
+}
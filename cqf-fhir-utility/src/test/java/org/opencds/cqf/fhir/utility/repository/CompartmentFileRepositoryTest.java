@@ -0,0 +1,239 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.fhir.utility.Ids;
+import org.opencds.cqf.fhir.utility.iterable.BundleIterator;
+import org.opencds.cqf.fhir.utility.search.Searches;
+
+public class CompartmentFileRepositoryTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    @TempDir
+    Path tempDir;
+
+    private static Observation observation(String id, String patient) {
+        var observation = new Observation();
+        observation.setId(id);
+        observation.setSubject(new Reference("Patient/" + patient));
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+        return observation;
+    }
+
+    private CompartmentFileRepository repository(int pageSize) {
+        var repository = new CompartmentFileRepository(fhirContext, tempDir, pageSize, 2);
+        for (int i = 0; i < 5; i++) {
+            repository.load(new Patient().setId("p" + i));
+            repository.load(observation("o" + i, "p" + i));
+        }
+
+        repository.load(observation("o5", "p1"));
+        repository.load(new Medication().setId("m1"));
+        return repository;
+    }
+
+    private static Map<String, List<IQueryParameterType>> bySubject(String... patients) {
+        var params = new ArrayList<IQueryParameterType>();
+        for (var patient : patients) {
+            params.add(new ReferenceParam("Patient/" + patient));
+        }
+
+        var search = new HashMap<String, List<IQueryParameterType>>();
+        search.put("subject", params);
+        return search;
+    }
+
+    private static List<String> ids(CompartmentFileRepository repository, Bundle bundle) {
+        var ids = new ArrayList<String>();
+        new BundleIterator<>(repository, bundle)
+                .forEachRemaining(e -> ids.add(e.getResource().getIdElement().getIdPart()));
+        return ids.stream().sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    public void readById() {
+        var repository = repository(100);
+        assertEquals(
+                "Patient/p3",
+                repository
+                        .read(Observation.class, Ids.newId(Observation.class, "o3"))
+                        .getSubject()
+                        .getReference());
+        assertNotNull(repository.read(Patient.class, Ids.newId(Patient.class, "p3")));
+        assertNotNull(repository.read(Medication.class, Ids.newId(Medication.class, "m1")));
+        assertThrows(
+                ResourceNotFoundException.class,
+                () -> repository.read(Observation.class, Ids.newId(Observation.class, "o9")));
+    }
+
+    @Test
+    public void searchByCompartment() {
+        var repository = repository(100);
+        assertEquals(
+                List.of("o1", "o5"),
+                ids(repository, repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+        assertEquals(
+                List.of("o1", "o2", "o5"),
+                ids(repository, repository.search(Bundle.class, Observation.class, bySubject("p1", "p2"))));
+        assertEquals(
+                List.of("p2"), ids(repository, repository.search(Bundle.class, Patient.class, Searches.byId("p2"))));
+        assertEquals(List.of("m1"), ids(repository, repository.search(Bundle.class, Medication.class, Searches.ALL)));
+    }
+
+    @Test
+    public void scansAreReturnedInPages() {
+        var repository = repository(2);
+        var first = repository.search(Bundle.class, Patient.class, Searches.ALL);
+        assertEquals(2, first.getEntry().size());
+        assertNotNull(first.getLink(Bundle.LINK_NEXT));
+        assertEquals(List.of("p0", "p1", "p2", "p3", "p4"), ids(repository, first));
+        assertEquals(
+                List.of("o0", "o1", "o2", "o3", "o4", "o5"),
+                ids(repository, repository.search(Bundle.class, Observation.class, Searches.ALL)));
+    }
+
+    @Test
+    public void pagesCanBeReadAgainAndConcurrently() throws Exception {
+        var repository = repository(2);
+        var first = repository.search(Bundle.class, Observation.class, Searches.ALL);
+        var next = first.getLink(Bundle.LINK_NEXT).getUrl();
+        var expected = ids(repository, repository.link(Bundle.class, next));
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var pages = new ArrayList<Future<Bundle>>();
+            for (int i = 0; i < 4; i++) {
+                pages.add(executor.submit(() -> repository.link(Bundle.class, next)));
+            }
+
+            for (var page : pages) {
+                assertEquals(expected, ids(repository, page.get()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> repository.link(Bundle.class, tempDir.toUri() + "?page=unknown&shard=0&file=x&offset=0"));
+    }
+
+    @Test
+    public void deletingPatientDeletesCompartment() {
+        var repository = repository(100);
+        var shared = observation("o6", "p1");
+        shared.addPerformer(new Reference("Patient/p2"));
+        repository.update(shared);
+
+        repository.delete(Patient.class, Ids.newId(Patient.class, "p1"));
+        assertEquals(List.of(), ids(repository, repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+        assertThrows(
+                ResourceNotFoundException.class,
+                () -> repository.read(Observation.class, Ids.newId(Observation.class, "o5")));
+
+        // A resource that is also in the compartment of another patient is kept there
+        assertNotNull(repository.read(Observation.class, Ids.newId(Observation.class, "o6")));
+        assertEquals(
+                List.of("o0", "o2", "o3", "o4", "o6"),
+                ids(repository, repository.search(Bundle.class, Observation.class, Searches.ALL)));
+    }
+
+    @Test
+    public void updateMovesResourceBetweenCompartments() {
+        var repository = repository(100);
+        var result = repository.update(observation("o1", "p2"));
+        assertTrue(!result.getCreated());
+
+        assertEquals(
+                List.of("o5"), ids(repository, repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+        assertEquals(
+                List.of("o1", "o2"),
+                ids(repository, repository.search(Bundle.class, Observation.class, bySubject("p2"))));
+        assertEquals(
+                "Patient/p2",
+                repository
+                        .read(Observation.class, Ids.newId(Observation.class, "o1"))
+                        .getSubject()
+                        .getReference());
+
+        repository.delete(Observation.class, Ids.newId(Observation.class, "o1"));
+        assertEquals(
+                List.of("o2"), ids(repository, repository.search(Bundle.class, Observation.class, bySubject("p2"))));
+        assertThrows(
+                ResourceNotFoundException.class,
+                () -> repository.read(Observation.class, Ids.newId(Observation.class, "o1")));
+    }
+
+    @Test
+    public void storeIsReopened() {
+        repository(100);
+        var reopened = new CompartmentFileRepository(fhirContext, tempDir);
+        assertEquals(
+                List.of("o1", "o5"), ids(reopened, reopened.search(Bundle.class, Observation.class, bySubject("p1"))));
+    }
+
+    @Test
+    public void idsThatDifferInCaseAreKeptApart() {
+        var repository = new CompartmentFileRepository(fhirContext, tempDir);
+        repository.load(new Patient().setId("abc"));
+        repository.load(new Patient().setId("ABC"));
+        repository.load(observation("o1", "abc"));
+        repository.load(observation("o2", "ABC"));
+
+        assertEquals(
+                List.of("o1"), ids(repository, repository.search(Bundle.class, Observation.class, bySubject("abc"))));
+        assertEquals(
+                List.of("o2"), ids(repository, repository.search(Bundle.class, Observation.class, bySubject("ABC"))));
+        assertEquals(
+                List.of("ABC", "abc"), ids(repository, repository.search(Bundle.class, Patient.class, Searches.ALL)));
+    }
+
+    @Test
+    public void resourcesAreLoadedTogether() {
+        var resources = new ArrayList<IBaseResource>();
+        for (int i = 0; i < 5; i++) {
+            resources.add(new Patient().setId("p" + i));
+            resources.add(observation("o" + i, "p" + i));
+        }
+
+        resources.add(observation("o5", "p1"));
+        resources.add(new Medication().setId("m1"));
+        var repository = new CompartmentFileRepository(fhirContext, tempDir);
+        repository.load(resources);
+
+        assertEquals(
+                List.of("o1", "o5"),
+                ids(repository, repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+        assertEquals(List.of("m1"), ids(repository, repository.search(Bundle.class, Medication.class, Searches.ALL)));
+        assertEquals(
+                "Patient/p3",
+                repository
+                        .read(Observation.class, Ids.newId(Observation.class, "o3"))
+                        .getSubject()
+                        .getReference());
+    }
+}
@@ -74,6 +74,43 @@ public class IGFileStructureRepositoryDirectoryTest {
         assertEquals(0, libs.getEntry().size());
     }
 
+    @Test
+    public void searchLibraryByName() {
+        var libs = repository.search(Bundle.class, Library.class, Searches.byName("FHIRHelpers"));
+        assertNotNull(libs);
+        assertEquals(1, libs.getEntry().size());
+        assertEquals(
+                "http://ecqi.healthit.gov/ecqms/Library/FHIRHelpers",
+                ((Library) libs.getEntry().get(0).getResource()).getUrl());
+    }
+
+    @Test
+    public void searchLibraryAfterUpdateAndDelete() {
+        var library = new Library().setUrl("http://example.org/Library/Indexed").setName("Indexed");
+        library.setId("Indexed");
+        repository.update(library);
+        try {
+            var libs = repository.search(
+                    Bundle.class, Library.class, Searches.byUrl("http://example.org/Library/Indexed"));
+            assertEquals(1, libs.getEntry().size());
+
+            library.setUrl("http://example.org/Library/Renamed");
+            repository.update(library);
+            libs = repository.search(Bundle.class, Library.class, Searches.byUrl("http://example.org/Library/Indexed"));
+            assertEquals(0, libs.getEntry().size());
+            libs = repository.search(Bundle.class, Library.class, Searches.byName("Indexed"));
+            assertEquals(1, libs.getEntry().size());
+        } finally {
+            repository.delete(Library.class, Ids.newId(Library.class, "Indexed"));
+        }
+
+        var libs = repository.search(Bundle.class, Library.class, Searches.byName("Indexed"));
+        assertEquals(0, libs.getEntry().size());
+        assertThrows(
+                ResourceNotFoundException.class,
+                () -> repository.read(Library.class, Ids.newId(Library.class, "Indexed")));
+    }
+
     @Test
     public void readCondition() {
         var id = Ids.newId(Condition.class, "measure-strat2-excl-EXM111-condition");
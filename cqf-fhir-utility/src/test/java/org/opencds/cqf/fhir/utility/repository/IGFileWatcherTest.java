@@ -0,0 +1,134 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.fhir.utility.Ids;
+import org.opencds.cqf.fhir.utility.search.Searches;
+
+public class IGFileWatcherTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    @TempDir
+    Path tempDir;
+
+    private IGFileStructureRepository repository;
+    private final List<IBaseResource> changed = new ArrayList<>();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        ResourceDirectoryCopier.copyFromJar(IGFileWatcherTest.class, "CMS111", tempDir);
+        repository = new IGFileStructureRepository(fhirContext, tempDir.toString());
+    }
+
+    // Refreshes the file as the watcher does when it sees the change
+    private void refresh(String file) {
+        changed.addAll(repository.refresh(tempDir.resolve(file)));
+    }
+
+    @Test
+    public void changedLibraryIsParsedAgain() throws Exception {
+        var library = repository.read(Library.class, Ids.newId(Library.class, "FHIRHelpers"));
+        assertEquals(
+                1,
+                repository
+                        .search(Bundle.class, Library.class, Searches.byName("FHIRHelpers"))
+                        .getEntry()
+                        .size());
+
+        var updated = library.copy().setName("FHIRHelpersUpdated");
+        Files.write(
+                tempDir.resolve("resources/library/FHIRHelpers.json"),
+                fhirContext.newJsonParser().encodeResourceToString(updated).getBytes(StandardCharsets.UTF_8));
+
+        refresh("resources/library/FHIRHelpers.json");
+        assertTrue(changed.contains(library));
+        assertEquals(
+                1,
+                repository
+                        .search(Bundle.class, Library.class, Searches.byName("FHIRHelpersUpdated"))
+                        .getEntry()
+                        .size());
+        assertEquals(
+                0,
+                repository
+                        .search(Bundle.class, Library.class, Searches.byName("FHIRHelpers"))
+                        .getEntry()
+                        .size());
+    }
+
+    @Test
+    public void changedCqlEvictsLibrary() throws Exception {
+        var library = repository.read(Library.class, Ids.newId(Library.class, "FHIRHelpers"));
+
+        Files.write(
+                tempDir.resolve("cql/FHIRHelpers.cql"),
+                "\n// changed\n".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        refresh("cql/FHIRHelpers.cql");
+        assertTrue(changed.contains(library));
+        var read = repository.read(Library.class, Ids.newId(Library.class, "FHIRHelpers"));
+        var cql = new String(read.getContentFirstRep().getData(), StandardCharsets.UTF_8);
+        assertTrue(cql.endsWith("// changed\n"));
+    }
+
+    @Test
+    public void deletedLibraryIsRemoved() throws Exception {
+        var id = Ids.newId(Library.class, "FHIRHelpers");
+        var library = repository.read(Library.class, id);
+
+        Files.delete(tempDir.resolve("resources/library/FHIRHelpers.json"));
+
+        refresh("resources/library/FHIRHelpers.json");
+        assertTrue(changed.contains(library));
+        assertThrows(ResourceNotFoundException.class, () -> repository.read(Library.class, id));
+        assertEquals(
+                3,
+                repository
+                        .search(Bundle.class, Library.class, Searches.ALL)
+                        .getEntry()
+                        .size());
+    }
+
+    @Test
+    public void watcherRefreshesChangedFiles() throws Exception {
+        var library = repository.read(Library.class, Ids.newId(Library.class, "FHIRHelpers"));
+        var notified = new CopyOnWriteArrayList<IBaseResource>();
+        try (var watcher = repository.watch().addListener(notified::add)) {
+            var updated = library.copy().setName("FHIRHelpersUpdated");
+            Files.write(
+                    tempDir.resolve("resources/library/FHIRHelpers.json"),
+                    fhirContext.newJsonParser().encodeResourceToString(updated).getBytes(StandardCharsets.UTF_8));
+
+            await(() -> notified.contains(library));
+        }
+    }
+
+    // Waits for the watcher thread to see the change
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 30000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "the change wasn't seen");
+            Thread.sleep(50);
+        }
+    }
+}
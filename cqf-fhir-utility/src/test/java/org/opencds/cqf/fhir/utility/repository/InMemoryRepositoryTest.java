@@ -1,14 +1,32 @@
 package org.opencds.cqf.fhir.utility.repository;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
 import org.junit.jupiter.api.Test;
 import org.opencds.cqf.fhir.api.Repository;
 import org.opencds.cqf.fhir.utility.search.Searches;
@@ -60,4 +78,186 @@ public class InMemoryRepositoryTest {
         var resources = repository.search(Bundle.class, Library.class, Searches.byUrl("http://example.com/123"));
         assertEquals(1, resources.getEntry().size());
     }
+
+    @Test
+    public void testSearchWithIndexedParameters() {
+        var observations = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        for (int i = 0; i < 10; i++) {
+            var observation = new Observation();
+            observation.setId("Observation/o" + i);
+            observation.setSubject(new Reference("Patient/p" + (i % 2)));
+            observation.getCode().addCoding().setSystem("http://loinc.org").setCode(i < 5 ? "a" : "b");
+            observations.update(observation);
+        }
+
+        Map<String, List<IQueryParameterType>> subject = new HashMap<>();
+        subject.put("subject", Collections.singletonList(new ReferenceParam("Patient/p0")));
+        assertEquals(
+                5,
+                observations
+                        .search(Bundle.class, Observation.class, subject)
+                        .getEntry()
+                        .size());
+
+        var subjectAndCode = Searches.builder()
+                .withTokenParam("code", "a", "http://loinc.org")
+                .build();
+        subjectAndCode.putAll(subject);
+        assertEquals(
+                3,
+                observations
+                        .search(Bundle.class, Observation.class, subjectAndCode)
+                        .getEntry()
+                        .size());
+
+        // The indexes follow updates and deletes
+        var moved = observations.read(Observation.class, new IdType("Observation/o0"));
+        moved.setSubject(new Reference("Patient/p1"));
+        observations.update(moved);
+        observations.delete(Observation.class, new IdType("Observation/o2"));
+        observations.create(new Observation().setSubject(new Reference("Patient/p0")));
+
+        var result = observations.search(Bundle.class, Observation.class, subject);
+        assertEquals(4, result.getEntry().size());
+        for (var entry : result.getEntry()) {
+            assertEquals(
+                    "Patient/p0",
+                    ((Observation) entry.getResource()).getSubject().getReference());
+        }
+    }
+
+    @Test
+    public void testResourcesChangedInPlace() {
+        var observations = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        var observation = new Observation();
+        observation.setId("Observation/o1");
+        observation.setSubject(new Reference("Patient/p0"));
+        observations.update(observation);
+
+        Map<String, List<IQueryParameterType>> p0 = new HashMap<>();
+        p0.put("subject", Collections.singletonList(new ReferenceParam("Patient/p0")));
+        Map<String, List<IQueryParameterType>> p1 = new HashMap<>();
+        p1.put("subject", Collections.singletonList(new ReferenceParam("Patient/p1")));
+
+        // Build the index, then change the inserted and the returned resources in place
+        assertEquals(
+                1, observations.search(Bundle.class, Observation.class, p0).getEntry().size());
+        observation.setSubject(new Reference("Patient/p1"));
+        var read = observations.read(Observation.class, new IdType("Observation/o1"));
+        read.setSubject(new Reference("Patient/p1"));
+        var found = (Observation) observations
+                .search(Bundle.class, Observation.class, p0)
+                .getEntry()
+                .get(0)
+                .getResource();
+        found.setSubject(new Reference("Patient/p1"));
+
+        // Reads and searches agree on the stored resource
+        assertEquals(
+                "Patient/p0",
+                observations
+                        .read(Observation.class, new IdType("Observation/o1"))
+                        .getSubject()
+                        .getReference());
+        assertEquals(
+                1, observations.search(Bundle.class, Observation.class, p0).getEntry().size());
+        assertEquals(
+                0, observations.search(Bundle.class, Observation.class, p1).getEntry().size());
+
+        // Until the change is saved
+        observations.update(observation);
+        assertEquals(
+                0, observations.search(Bundle.class, Observation.class, p0).getEntry().size());
+        assertEquals(
+                1, observations.search(Bundle.class, Observation.class, p1).getEntry().size());
+    }
+
+    @Test
+    public void testSearchWithDateIndex() {
+        var observations = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        for (int i = 1; i <= 9; i++) {
+            var observation = new Observation();
+            observation.setId("Observation/o" + i);
+            observation.setEffective(new DateTimeType("2020-0" + i + "-15"));
+            observations.update(observation);
+        }
+
+        var period = new Observation();
+        period.setId("Observation/period");
+        period.setEffective(new Period()
+                .setStartElement(new DateTimeType("2020-03-01"))
+                .setEndElement(new DateTimeType("2020-03-31")));
+        observations.update(period);
+
+        Map<String, List<IQueryParameterType>> march = new HashMap<>();
+        march.put("date", Collections.singletonList(new DateParam("2020-03")));
+        assertEquals(
+                Set.of("o3", "period"),
+                ids(observations.search(Bundle.class, Observation.class, march)));
+
+        Map<String, List<IQueryParameterType>> after = new HashMap<>();
+        after.put(
+                "date",
+                Collections.singletonList(new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, "2020-08-01")));
+        assertEquals(Set.of("o8", "o9"), ids(observations.search(Bundle.class, Observation.class, after)));
+
+        // The index follows updates and deletes
+        var moved = observations.read(Observation.class, new IdType("Observation/o1"));
+        moved.setEffective(new DateTimeType("2020-08-20"));
+        observations.update(moved);
+        observations.delete(Observation.class, new IdType("Observation/o9"));
+        assertEquals(Set.of("o1", "o8"), ids(observations.search(Bundle.class, Observation.class, after)));
+    }
+
+    @Test
+    public void testConcurrentSearchAndUpdate() throws Exception {
+        var observations = new InMemoryFhirRepository(FhirContext.forR4Cached());
+        Map<String, List<IQueryParameterType>> subject = new HashMap<>();
+        subject.put("subject", Collections.singletonList(new ReferenceParam("Patient/p0")));
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 4; t++) {
+                var thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 250; i++) {
+                        var observation = new Observation();
+                        observation.setId("Observation/o" + thread + "-" + i);
+                        observation.setSubject(new Reference("Patient/p" + (i % 2)));
+                        observations.update(observation);
+                        observations.search(Bundle.class, Observation.class, subject);
+                    }
+                }));
+            }
+
+            for (var future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(
+                500,
+                observations
+                        .search(Bundle.class, Observation.class, subject)
+                        .getEntry()
+                        .size());
+    }
+
+    @Test
+    public void testResourceMatcherIsShared() {
+        var matcher = Repositories.getResourceMatcher(FhirContext.forR4Cached());
+        assertSame(matcher, Repositories.getResourceMatcher(FhirContext.forR4Cached()));
+
+        repository.search(Bundle.class, Library.class, Searches.byUrl("http://example.com/123"));
+        assertTrue(matcher.getPathCache().size() > 0);
+    }
+
+    private static Set<String> ids(Bundle bundle) {
+        return bundle.getEntry().stream()
+                .map(e -> e.getResource().getIdElement().getIdPart())
+                .collect(Collectors.toSet());
+    }
 }
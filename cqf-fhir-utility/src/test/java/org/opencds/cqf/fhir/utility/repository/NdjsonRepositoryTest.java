@@ -0,0 +1,222 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.fhir.utility.Ids;
+import org.opencds.cqf.fhir.utility.iterable.BundleIterator;
+import org.opencds.cqf.fhir.utility.search.Searches;
+
+public class NdjsonRepositoryTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    @TempDir
+    Path tempDir;
+
+    private static String line(IBaseResource resource) {
+        return fhirContext.newJsonParser().encodeResourceToString(resource) + "\n";
+    }
+
+    private static Observation observation(String id, String patient) {
+        var observation = new Observation();
+        observation.setId(id);
+        observation.setSubject(new Reference("Patient/" + patient));
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("1234-5");
+        return observation;
+    }
+
+    private void writeExport() throws IOException {
+        Files.write(
+                tempDir.resolve("Patient.ndjson"),
+                (line(new Patient().setId("p1")) + line(new Patient().setId("p2"))).getBytes(StandardCharsets.UTF_8));
+        Files.write(
+                tempDir.resolve("Observation.ndjson"),
+                (line(observation("o1", "p1")) + "\n" + line(observation("o2", "p2")) + line(observation("o3", "p1")))
+                        .getBytes(StandardCharsets.UTF_8));
+        Files.write(
+                tempDir.resolve("Medication.ndjson"),
+                line(new Medication().setId("m1")).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> ids(Bundle bundle) {
+        return bundle.getEntry().stream()
+                .map(e -> e.getResource().getIdElement().getIdPart())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static Map<String, List<IQueryParameterType>> bySubject(String... patients) {
+        var params = new ArrayList<IQueryParameterType>();
+        for (var patient : patients) {
+            params.add(new ReferenceParam("Patient/" + patient));
+        }
+
+        var search = new HashMap<String, List<IQueryParameterType>>();
+        search.put("subject", params);
+        return search;
+    }
+
+    @Test
+    public void readById() throws IOException {
+        writeExport();
+        try (var repository = new NdjsonRepository(fhirContext, tempDir)) {
+            var observation = repository.read(Observation.class, Ids.newId(Observation.class, "o2"));
+            assertEquals("Patient/p2", observation.getSubject().getReference());
+            assertEquals(
+                    "m1",
+                    repository
+                            .read(Medication.class, Ids.newId(Medication.class, "m1"))
+                            .getIdElement()
+                            .getIdPart());
+            assertThrows(
+                    ResourceNotFoundException.class,
+                    () -> repository.read(Observation.class, Ids.newId(Observation.class, "o4")));
+        }
+    }
+
+    @Test
+    public void searchByPatient() throws IOException {
+        writeExport();
+        try (var repository = new NdjsonRepository(fhirContext, tempDir)) {
+            assertEquals(List.of("o1", "o3"), ids(repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+            assertEquals(
+                    List.of("o1", "o2", "o3"),
+                    ids(repository.search(Bundle.class, Observation.class, bySubject("p1", "p2"))));
+            assertEquals(List.of("p2"), ids(repository.search(Bundle.class, Patient.class, Searches.byId("p2"))));
+            assertEquals(
+                    List.of("o1", "o3"),
+                    ids(repository.search(Bundle.class, Observation.class, Searches.byId("o1", "o3", "o4"))));
+            assertEquals(
+                    List.of("o1", "o2", "o3"), ids(repository.search(Bundle.class, Observation.class, Searches.ALL)));
+            assertEquals(
+                    List.of("o2"),
+                    ids(repository.search(
+                            Bundle.class,
+                            Observation.class,
+                            Searches.builder()
+                                    .withTokenParam("code", "1234-5", "http://loinc.org")
+                                    .withTokenParam("_id", "o2")
+                                    .build())));
+            var search = bySubject("p2");
+            search.putAll(Searches.byCodeAndSystem("1234-5", "http://loinc.org"));
+            assertEquals(List.of("o2"), ids(repository.search(Bundle.class, Observation.class, search)));
+        }
+    }
+
+    @Test
+    public void indexIsReusedUntilFilesChange() throws IOException {
+        writeExport();
+        new NdjsonRepository(fhirContext, tempDir).close();
+        assertTrue(Files.isRegularFile(tempDir.resolve(NdjsonRepository.DEFAULT_INDEX_FILE)));
+
+        try (var repository = new NdjsonRepository(fhirContext, tempDir)) {
+            assertEquals(List.of("o1", "o3"), ids(repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+        }
+
+        Files.write(
+                tempDir.resolve("Observation.ndjson"),
+                line(observation("o4", "p1")).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        try (var repository = new NdjsonRepository(fhirContext, tempDir)) {
+            assertEquals(
+                    List.of("o1", "o3", "o4"),
+                    ids(repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+        }
+    }
+
+    private static List<String> allIds(NdjsonRepository repository, Bundle bundle) {
+        var ids = new ArrayList<String>();
+        new BundleIterator<>(repository, bundle)
+                .forEachRemaining(e -> ids.add(e.getResource().getIdElement().getIdPart()));
+        ids.sort(String::compareTo);
+        return ids;
+    }
+
+    @Test
+    public void searchesAreReturnedInPages() throws Exception {
+        writeExport();
+        try (var repository =
+                new NdjsonRepository(fhirContext, tempDir, tempDir.resolve(NdjsonRepository.DEFAULT_INDEX_FILE), 2)) {
+            var first = repository.search(Bundle.class, Observation.class, Searches.ALL);
+            assertEquals(2, first.getEntry().size());
+            assertNotNull(first.getLink(Bundle.LINK_NEXT));
+            assertEquals(List.of("o1", "o2", "o3"), allIds(repository, first));
+
+            // A page can be read again, and concurrently, since the next links hold their offsets
+            var next = first.getLink(Bundle.LINK_NEXT).getUrl();
+            var executor = Executors.newFixedThreadPool(4);
+            try {
+                var pages = new ArrayList<Future<Bundle>>();
+                for (int i = 0; i < 4; i++) {
+                    pages.add(executor.submit(() -> repository.link(Bundle.class, next)));
+                }
+
+                for (var page : pages) {
+                    assertEquals(List.of("o3"), ids(page.get()));
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertEquals(
+                    List.of("o1", "o3"),
+                    allIds(repository, repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+            assertThrows(
+                    IllegalArgumentException.class,
+                    () -> repository.link(Bundle.class, "file:///?search=unknown&offset=0"));
+        }
+    }
+
+    @Test
+    public void duplicatesAreReadFromTheLastLine() throws IOException {
+        writeExport();
+        var updated = observation("o1", "p2");
+        updated.getCode().getCodingFirstRep().setCode("6789-0");
+        Files.write(tempDir.resolve("Observation2.ndjson"), line(updated).getBytes(StandardCharsets.UTF_8));
+
+        for (int open = 0; open < 2; open++) {
+            try (var repository = new NdjsonRepository(fhirContext, tempDir)) {
+                assertEquals(
+                        List.of("o1", "o2", "o3"),
+                        ids(repository.search(Bundle.class, Observation.class, Searches.ALL)));
+                assertEquals(
+                        "6789-0",
+                        repository
+                                .read(Observation.class, Ids.newId(Observation.class, "o1"))
+                                .getCode()
+                                .getCodingFirstRep()
+                                .getCode());
+                assertEquals(List.of("o3"), ids(repository.search(Bundle.class, Observation.class, bySubject("p1"))));
+                assertEquals(
+                        List.of("o1", "o2"), ids(repository.search(Bundle.class, Observation.class, bySubject("p2"))));
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.utility.search.Searches;
+
+public class ProxyRepositoryTest {
+
+    private static final FhirContext fhirContext = FhirContext.forR4Cached();
+
+    // Returns a page with a next link under its base, and a last page for the link
+    private static class PagedRepository extends InMemoryFhirRepository {
+        private final String base;
+
+        PagedRepository(String base) {
+            super(fhirContext);
+            this.base = base;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <B extends IBaseBundle, T extends IBaseResource> B search(
+                Class<B> bundleType,
+                Class<T> resourceType,
+                Map<String, List<IQueryParameterType>> searchParameters,
+                Map<String, String> headers) {
+            var bundle = new Bundle();
+            bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl(base + "?page=2");
+            return (B) bundle;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <B extends IBaseBundle> B link(Class<B> bundleType, String url, Map<String, String> headers) {
+            var bundle = new Bundle();
+            bundle.addEntry().setResource(new Library().setName(base));
+            return (B) bundle;
+        }
+    }
+
+    @Test
+    public void linksAreRoutedToTheRepositoryThatReturnedThePage() {
+        var data = new PagedRepository("http://data/fhir");
+        var content = new PagedRepository("http://content/fhir");
+        var repository = new ProxyRepository(data, content, null);
+
+        var first = repository.search(Bundle.class, Library.class, Searches.ALL);
+        var next = repository.link(Bundle.class, first.getLink(Bundle.LINK_NEXT).getUrl());
+        assertEquals("http://content/fhir", ((Library) next.getEntryFirstRep().getResource()).getName());
+
+        // Links that weren't returned through the proxy are resolved against the data repository
+        next = repository.link(Bundle.class, "http://other/fhir?page=2");
+        assertEquals("http://data/fhir", ((Library) next.getEntryFirstRep().getResource()).getName());
+    }
+}
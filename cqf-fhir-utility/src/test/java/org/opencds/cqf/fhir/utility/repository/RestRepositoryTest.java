@@ -0,0 +1,74 @@
+package org.opencds.cqf.fhir.utility.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.utility.search.Searches;
+
+public class RestRepositoryTest {
+
+    // Records the url of each request, which is then abandoned
+    private static class RecordingInterceptor implements IClientInterceptor {
+        private final List<String> urls = new ArrayList<>();
+
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            urls.add(URLDecoder.decode(request.getUri(), StandardCharsets.UTF_8));
+            throw new IllegalStateException("not sent");
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {}
+    }
+
+    private final RecordingInterceptor interceptor = new RecordingInterceptor();
+
+    private RestRepository repository() {
+        var fhirContext = FhirContext.forR4();
+        fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        var client = fhirContext.newRestfulGenericClient("http://localhost/fhir");
+        client.registerInterceptor(interceptor);
+        return new RestRepository(client);
+    }
+
+    @Test
+    public void listsAreSentAsAlternatives() {
+        var repository = repository();
+        assertThrows(
+                RuntimeException.class,
+                () -> repository.search(
+                        Bundle.class, ValueSet.class, Searches.byUrl("http://a.org/vs", "http://b.org/vs")));
+        assertEquals(List.of("http://localhost/fhir/ValueSet?url=http://a.org/vs,http://b.org/vs"), interceptor.urls);
+    }
+
+    @Test
+    public void datesAreSentAsBoundsOfARange() {
+        var repository = repository();
+        var search = new HashMap<String, List<IQueryParameterType>>();
+        search.put(
+                "date",
+                List.of(
+                        new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, "2020-01-01"),
+                        new DateParam(ParamPrefixEnum.LESSTHAN_OR_EQUALS, "2020-12-31")));
+        assertThrows(RuntimeException.class, () -> repository.search(Bundle.class, Observation.class, search));
+        assertEquals(
+                List.of("http://localhost/fhir/Observation?date=ge2020-01-01&date=le2020-12-31"), interceptor.urls);
+    }
+}